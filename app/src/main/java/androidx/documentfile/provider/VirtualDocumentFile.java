@@ -12,9 +12,9 @@ import androidx.annotation.Nullable;
 import androidx.core.util.Pair;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.channels.FileChannel;
 import java.util.Objects;
 
@@ -175,7 +175,7 @@ public class VirtualDocumentFile extends DocumentFile {
     }
 
     @NonNull
-    public FileInputStream openInputStream() throws IOException {
+    public InputStream openInputStream() throws IOException {
         return mFs.newInputStream(mFullPath);
     }
 
@@ -4,6 +4,7 @@ package io.github.muntashirakon.AppManager;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.text.TextUtils;
 import android.util.DisplayMetrics;
 
 import androidx.annotation.NonNull;
@@ -14,6 +15,7 @@ import androidx.core.os.LocaleListCompat;
 
 import com.google.gson.Gson;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -27,11 +29,17 @@ import io.github.muntashirakon.AppManager.debloat.DebloatObject;
 import io.github.muntashirakon.AppManager.debloat.SuggestionObject;
 import io.github.muntashirakon.AppManager.misc.VMRuntime;
 import io.github.muntashirakon.AppManager.utils.ContextUtils;
+import io.github.muntashirakon.AppManager.utils.DigestUtils;
 import io.github.muntashirakon.AppManager.utils.FileUtils;
+import io.github.muntashirakon.AppManager.utils.SignatureMatcher;
 
 public class StaticDataset {
     private static String[] sTrackerCodeSignatures;
     private static String[] sTrackerNames;
+    private static SignatureMatcher sTrackerSignatureMatcher;
+    private static String[] sLibrarySignatures;
+    private static SignatureMatcher sLibrarySignatureMatcher;
+    private static String sSignatureVersion;
     private static List<DebloatObject> sDebloatObjects;
 
     public static final String ARMEABI_V7A = "armeabi_v7a";
@@ -89,6 +97,13 @@ public class StaticDataset {
         return sTrackerCodeSignatures;
     }
 
+    public static SignatureMatcher getTrackerSignatureMatcher() {
+        if (sTrackerSignatureMatcher == null) {
+            sTrackerSignatureMatcher = new SignatureMatcher(getTrackerCodeSignatures());
+        }
+        return sTrackerSignatureMatcher;
+    }
+
     public static String[] getTrackerNames() {
         if (sTrackerNames == null) {
             sTrackerNames = ContextUtils.getContext().getResources().getStringArray(R.array.tracker_names);
@@ -96,6 +111,32 @@ public class StaticDataset {
         return sTrackerNames;
     }
 
+    public static String[] getLibrarySignatures() {
+        if (sLibrarySignatures == null) {
+            sLibrarySignatures = ContextUtils.getContext().getResources().getStringArray(R.array.lib_signatures);
+        }
+        return sLibrarySignatures;
+    }
+
+    public static SignatureMatcher getLibrarySignatureMatcher() {
+        if (sLibrarySignatureMatcher == null) {
+            sLibrarySignatureMatcher = new SignatureMatcher(getLibrarySignatures());
+        }
+        return sLibrarySignatureMatcher;
+    }
+
+    /**
+     * A digest of the tracker and library signatures. It changes whenever a signature is added, removed or reordered.
+     */
+    public static String getSignatureVersion() {
+        if (sSignatureVersion == null) {
+            String signatures = TextUtils.join("\n", getTrackerCodeSignatures()) + "\0"
+                    + TextUtils.join("\n", getLibrarySignatures());
+            sSignatureVersion = DigestUtils.getHexDigest(DigestUtils.SHA_256, signatures.getBytes(StandardCharsets.UTF_8));
+        }
+        return sSignatureVersion;
+    }
+
     @WorkerThread
     public static List<DebloatObject> getDebloatObjects() {
         if (sDebloatObjects == null) {
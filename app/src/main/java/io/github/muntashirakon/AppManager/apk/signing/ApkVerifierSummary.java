@@ -0,0 +1,172 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.apk.signing;
+
+import android.util.Base64;
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.apksig.ApkVerifier;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.github.muntashirakon.AppManager.utils.JSONUtils;
+
+/**
+ * The parts of an {@link ApkVerifier.Result} that are shown to the user. Unlike the result itself, it can be stored.
+ */
+public class ApkVerifierSummary {
+    @NonNull
+    public static ApkVerifierSummary deserialize(@NonNull String jsonString) throws JSONException, CertificateException {
+        JSONObject jsonObject = new JSONObject(jsonString);
+        List<String> errors = JSONUtils.getArray(jsonObject.getJSONArray("errors"));
+        List<Pair<String, String>> ignoredSignerErrors = new ArrayList<>();
+        JSONArray ignoredSignerErrorArray = jsonObject.getJSONArray("ignored_signer_errors");
+        for (int i = 0; i < ignoredSignerErrorArray.length(); ++i) {
+            JSONObject error = ignoredSignerErrorArray.getJSONObject(i);
+            ignoredSignerErrors.add(new Pair<>(error.getString("signer"), error.getString("error")));
+        }
+        List<X509Certificate> certificates = new ArrayList<>();
+        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        JSONArray certificateArray = jsonObject.getJSONArray("certificates");
+        for (int i = 0; i < certificateArray.length(); ++i) {
+            byte[] encoded = Base64.decode(certificateArray.getString(i), Base64.NO_WRAP);
+            certificates.add((X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(encoded)));
+        }
+        return new ApkVerifierSummary(jsonObject.getBoolean("verified"),
+                jsonObject.getBoolean("source_stamp_verified"),
+                JSONUtils.getString(jsonObject, "source_stamp_source", null),
+                JSONUtils.getArray(jsonObject.getJSONArray("signature_schemes")), errors, ignoredSignerErrors,
+                jsonObject.getInt("warning_count"), certificates);
+    }
+
+    private final boolean mVerified;
+    private final boolean mSourceStampVerified;
+    @Nullable
+    private final String mSourceStampSource;
+    @NonNull
+    private final List<String> mSignatureSchemes;
+    @NonNull
+    private final List<String> mErrors;
+    // Signer name and error
+    @NonNull
+    private final List<Pair<String, String>> mIgnoredSignerErrors;
+    private final int mWarningCount;
+    @NonNull
+    private final List<X509Certificate> mSignerCertificates;
+
+    public ApkVerifierSummary(@NonNull ApkVerifier.Result result) {
+        mVerified = result.isVerified();
+        mSourceStampVerified = result.isSourceStampVerified();
+        mSourceStampSource = mSourceStampVerified ? Signer.getSourceStampSource(result.getSourceStampInfo()) : null;
+        mSignatureSchemes = new ArrayList<>(4);
+        if (result.isVerifiedUsingV1Scheme()) mSignatureSchemes.add("v1");
+        if (result.isVerifiedUsingV2Scheme()) mSignatureSchemes.add("v2");
+        if (result.isVerifiedUsingV3Scheme()) mSignatureSchemes.add("v3");
+        if (result.isVerifiedUsingV4Scheme()) mSignatureSchemes.add("v4");
+        mErrors = new ArrayList<>();
+        for (ApkVerifier.IssueWithParams err : result.getErrors()) {
+            mErrors.add(err.toString());
+        }
+        mIgnoredSignerErrors = new ArrayList<>();
+        int warningCount = result.getWarnings().size();
+        for (ApkVerifier.Result.V1SchemeSignerInfo signer : result.getV1SchemeIgnoredSigners()) {
+            for (ApkVerifier.IssueWithParams err : signer.getErrors()) {
+                mIgnoredSignerErrors.add(new Pair<>(signer.getName(), err.toString()));
+            }
+            warningCount += signer.getWarnings().size();
+        }
+        mWarningCount = warningCount;
+        List<X509Certificate> certificates = result.getSignerCertificates();
+        mSignerCertificates = certificates != null ? certificates : Collections.emptyList();
+    }
+
+    private ApkVerifierSummary(boolean verified, boolean sourceStampVerified, @Nullable String sourceStampSource,
+                               @NonNull List<String> signatureSchemes, @NonNull List<String> errors,
+                               @NonNull List<Pair<String, String>> ignoredSignerErrors, int warningCount,
+                               @NonNull List<X509Certificate> signerCertificates) {
+        mVerified = verified;
+        mSourceStampVerified = sourceStampVerified;
+        mSourceStampSource = sourceStampSource;
+        mSignatureSchemes = signatureSchemes;
+        mErrors = errors;
+        mIgnoredSignerErrors = ignoredSignerErrors;
+        mWarningCount = warningCount;
+        mSignerCertificates = signerCertificates;
+    }
+
+    public boolean isVerified() {
+        return mVerified;
+    }
+
+    public boolean isSourceStampVerified() {
+        return mSourceStampVerified;
+    }
+
+    @Nullable
+    public String getSourceStampSource() {
+        return mSourceStampSource;
+    }
+
+    @NonNull
+    public List<String> getSignatureSchemes() {
+        return mSignatureSchemes;
+    }
+
+    @NonNull
+    public List<String> getErrors() {
+        return mErrors;
+    }
+
+    @NonNull
+    public List<Pair<String, String>> getIgnoredSignerErrors() {
+        return mIgnoredSignerErrors;
+    }
+
+    public int getWarningCount() {
+        return mWarningCount;
+    }
+
+    @NonNull
+    public List<X509Certificate> getSignerCertificates() {
+        return mSignerCertificates;
+    }
+
+    @NonNull
+    public String serializeToJson() throws JSONException, CertificateEncodingException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("verified", mVerified);
+        jsonObject.put("source_stamp_verified", mSourceStampVerified);
+        jsonObject.put("source_stamp_source", mSourceStampSource);
+        jsonObject.put("signature_schemes", new JSONArray(mSignatureSchemes));
+        jsonObject.put("errors", new JSONArray(mErrors));
+        JSONArray ignoredSignerErrorArray = new JSONArray();
+        for (Pair<String, String> error : mIgnoredSignerErrors) {
+            JSONObject errorObject = new JSONObject();
+            errorObject.put("signer", error.first);
+            errorObject.put("error", error.second);
+            ignoredSignerErrorArray.put(errorObject);
+        }
+        jsonObject.put("ignored_signer_errors", ignoredSignerErrorArray);
+        jsonObject.put("warning_count", mWarningCount);
+        JSONArray certificateArray = new JSONArray();
+        for (X509Certificate certificate : mSignerCertificates) {
+            certificateArray.put(Base64.encodeToString(certificate.getEncoded(), Base64.NO_WRAP));
+        }
+        jsonObject.put("certificates", certificateArray);
+        return jsonObject.toString();
+    }
+}
@@ -0,0 +1,413 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.github.muntashirakon.AppManager.db.entity.Backup;
+import io.github.muntashirakon.AppManager.logcat.helper.SaveLogHelper;
+import io.github.muntashirakon.AppManager.logs.Log;
+import io.github.muntashirakon.io.Path;
+
+/**
+ * An append-only catalog of all the backups in {@link BackupFiles#getBaseDirectory()}, so that the backup table can be
+ * rebuilt without reading the metadata of every backup.
+ * <p>
+ * Each line of the catalog is a JSON object, and a later line overrides the earlier ones with the same path. A line
+ * either records a backup along with the modification time and the size of its metadata file, the removal of a backup,
+ * or the modification time of a package directory at the time it was last listed. The catalog is validated lazily: a
+ * package directory is listed again only if its modification time has changed, and the metadata of a backup is read
+ * again only if the modification time or the size of the metadata file has changed. Changes found during validation
+ * are appended to the catalog, and the catalog is rewritten once it has grown too large.
+ * <p>
+ * Paths are relative to the base directory, i.e. {@code package_name/backup_name} for named backups and {@code uuid}
+ * for UUID-based backups.
+ */
+public class BackupCatalog {
+    public static final String TAG = BackupCatalog.class.getSimpleName();
+
+    static final String CATALOG_FILE = "catalog.am.jsonl";
+
+    private static final String TYPE_BACKUP = "backup";
+    private static final String TYPE_REMOVED = "removed";
+    private static final String TYPE_DIRECTORY = "dir";
+    // Modification time of a directory that must be listed again
+    private static final long UNKNOWN_TIME = -1;
+
+    private static final Object sLock = new Object();
+
+    private static class Entry {
+        // Modification time and size of the metadata file
+        public final long lastModified;
+        public final long size;
+        @NonNull
+        public final Backup backup;
+
+        Entry(long lastModified, long size, @NonNull Backup backup) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.backup = backup;
+        }
+    }
+
+    /**
+     * Get all the backups, validating the catalog against the backup directories.
+     */
+    @WorkerThread
+    @NonNull
+    public static List<Backup> getAllBackups() {
+        synchronized (sLock) {
+            Path baseDirectory = BackupFiles.getBaseDirectory();
+            BackupCatalog catalog = new BackupCatalog();
+            catalog.load(baseDirectory);
+            List<String> newRecords = new ArrayList<>();
+            catalog.validate(baseDirectory, newRecords);
+            catalog.save(baseDirectory, newRecords);
+            List<Backup> backups = new ArrayList<>(catalog.mBackups.size());
+            for (Entry entry : catalog.mBackups.values()) {
+                backups.add(entry.backup);
+            }
+            return backups;
+        }
+    }
+
+    /**
+     * Record a newly committed backup.
+     */
+    @WorkerThread
+    public static void add(@NonNull Path backupPath) {
+        try {
+            BackupFiles.BackupFile backupFile = new BackupFiles.BackupFile(backupPath, false);
+            Path metadataFile = backupFile.getMetadataFile();
+            Backup backup = Backup.fromBackupMetadata(MetadataManager.getMetadata(backupFile));
+            String path = getRelativePath(backupPath);
+            append(getRecordsWithParent(path, getBackupRecord(path, metadataFile.lastModified(),
+                    metadataFile.length(), backup)));
+        } catch (IOException | JSONException e) {
+            // The catalog is validated before use anyway
+            Log.w(TAG, "Could not add " + backupPath + " to the catalog.", e);
+        }
+    }
+
+    /**
+     * Record the removal of a backup.
+     */
+    @WorkerThread
+    public static void remove(@NonNull Path backupPath) {
+        try {
+            String path = getRelativePath(backupPath);
+            append(getRecordsWithParent(path, getRemovedRecord(path)));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Could not remove " + backupPath + " from the catalog.", e);
+        }
+    }
+
+    @NonNull
+    private static String getRelativePath(@NonNull Path backupPath) {
+        String name = backupPath.getName();
+        if (BackupUtils.isUuid(name)) {
+            return name;
+        }
+        return backupPath.requireParent().getName() + "/" + name;
+    }
+
+    @NonNull
+    private static String[] getRecordsWithParent(@NonNull String path, @NonNull String record) throws JSONException {
+        int idx = path.lastIndexOf('/');
+        if (idx == -1) {
+            // UUID-based backup, the base directory is always listed
+            return new String[]{record};
+        }
+        // The parent has changed, and the catalog may not know all of its children
+        return new String[]{record, getDirectoryRecord(path.substring(0, idx), UNKNOWN_TIME)};
+    }
+
+    private static void append(@NonNull String... records) throws IOException {
+        synchronized (sLock) {
+            Path catalogFile = BackupFiles.getBaseDirectory().findOrCreateFile(CATALOG_FILE, null);
+            try (OutputStream os = catalogFile.openOutputStream(true)) {
+                PrintWriter writer = new PrintWriter(os);
+                for (String record : records) {
+                    writer.println(record);
+                }
+                writer.flush();
+            }
+        }
+    }
+
+    private static boolean isIgnored(@NonNull String name) {
+        return SaveLogHelper.SAVED_LOGS_DIR.equals(name)
+                || BackupFiles.APK_SAVING_DIRECTORY.equals(name)
+                || BackupFiles.TEMPORARY_DIRECTORY.equals(name)
+                || BackupFiles.CHUNK_STORE_DIRECTORY.equals(name);
+    }
+
+    @NonNull
+    private static String getBackupRecord(@NonNull String path, long lastModified, long size,
+                                          @NonNull Backup backup) throws JSONException {
+        JSONObject backupObject = new JSONObject();
+        backupObject.put("package_name", backup.packageName);
+        backupObject.put("backup_name", backup.backupName);
+        backupObject.put("label", backup.label);
+        backupObject.put("version_name", backup.versionName);
+        backupObject.put("version_code", backup.versionCode);
+        backupObject.put("is_system", backup.isSystem);
+        backupObject.put("has_splits", backup.hasSplits);
+        backupObject.put("has_rules", backup.hasRules);
+        backupObject.put("backup_time", backup.backupTime);
+        backupObject.put("crypto", backup.crypto);
+        backupObject.put("version", backup.version);
+        backupObject.put("flags", backup.flags);
+        backupObject.put("user_id", backup.userId);
+        backupObject.put("tar_type", backup.tarType);
+        backupObject.put("has_key_store", backup.hasKeyStore);
+        backupObject.put("installer", backup.installer);
+        JSONObject record = new JSONObject();
+        record.put("type", TYPE_BACKUP);
+        record.put("path", path);
+        record.put("mtime", lastModified);
+        record.put("size", size);
+        record.put("backup", backupObject);
+        return record.toString();
+    }
+
+    @NonNull
+    private static Backup getBackup(@NonNull JSONObject backupObject) throws JSONException {
+        Backup backup = new Backup();
+        backup.packageName = backupObject.getString("package_name");
+        backup.backupName = backupObject.getString("backup_name");
+        backup.label = backupObject.optString("label", null);
+        backup.versionName = backupObject.optString("version_name", null);
+        backup.versionCode = backupObject.getLong("version_code");
+        backup.isSystem = backupObject.getBoolean("is_system");
+        backup.hasSplits = backupObject.getBoolean("has_splits");
+        backup.hasRules = backupObject.getBoolean("has_rules");
+        backup.backupTime = backupObject.getLong("backup_time");
+        backup.crypto = backupObject.optString("crypto", null);
+        backup.version = backupObject.getInt("version");
+        backup.flags = backupObject.getInt("flags");
+        backup.userId = backupObject.getInt("user_id");
+        backup.tarType = backupObject.optString("tar_type", null);
+        backup.hasKeyStore = backupObject.getBoolean("has_key_store");
+        backup.installer = backupObject.optString("installer", null);
+        backup.uuid = "";
+        return backup;
+    }
+
+    @NonNull
+    private static String getRemovedRecord(@NonNull String path) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put("type", TYPE_REMOVED);
+        record.put("path", path);
+        return record.toString();
+    }
+
+    @NonNull
+    private static String getDirectoryRecord(@NonNull String path, long lastModified) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put("type", TYPE_DIRECTORY);
+        record.put("path", path);
+        record.put("mtime", lastModified);
+        return record.toString();
+    }
+
+    // Relative path of a backup => entry
+    private final Map<String, Entry> mBackups = new LinkedHashMap<>();
+    // Name of a package directory => modification time at the time it was last listed
+    private final Map<String, Long> mDirectories = new HashMap<>();
+    private int mRecordCount;
+    private boolean mRequiresRewrite;
+
+    private BackupCatalog() {
+    }
+
+    private void load(@NonNull Path baseDirectory) {
+        if (!baseDirectory.hasFile(CATALOG_FILE)) {
+            mRequiresRewrite = true;
+            return;
+        }
+        try (InputStream is = baseDirectory.findFile(CATALOG_FILE).openInputStream()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                JSONObject record = new JSONObject(line);
+                String path = record.getString("path");
+                switch (record.getString("type")) {
+                    case TYPE_BACKUP:
+                        Backup backup = getBackup(record.getJSONObject("backup"));
+                        // Catalogs written by older versions have no size, and they are validated again
+                        mBackups.put(path, new Entry(record.getLong("mtime"), record.optLong("size", -1), backup));
+                        break;
+                    case TYPE_REMOVED:
+                        mBackups.remove(path);
+                        break;
+                    case TYPE_DIRECTORY:
+                        mDirectories.put(path, record.getLong("mtime"));
+                        break;
+                    default:
+                        throw new JSONException("Invalid type in " + line);
+                }
+                ++mRecordCount;
+            }
+        } catch (IOException | JSONException e) {
+            // Possibly a partially written line, start over
+            Log.w(TAG, "Could not load the catalog, rebuilding.", e);
+            mBackups.clear();
+            mDirectories.clear();
+            mRequiresRewrite = true;
+        }
+    }
+
+    private void validate(@NonNull Path baseDirectory, @NonNull List<String> newRecords) {
+        // Group the known backups by their top-level directories
+        Map<String, List<String>> knownChildren = new HashMap<>();
+        for (String path : mBackups.keySet()) {
+            int idx = path.indexOf('/');
+            String topLevel = idx == -1 ? path : path.substring(0, idx);
+            List<String> children = knownChildren.get(topLevel);
+            if (children == null) {
+                children = new ArrayList<>();
+                knownChildren.put(topLevel, children);
+            }
+            children.add(path);
+        }
+        // The base directory is always listed since it is modified whenever the catalog is rewritten
+        Set<String> foundBackups = new HashSet<>();
+        Set<String> foundDirectories = new HashSet<>();
+        for (Path dir : baseDirectory.listFiles(Path::isDirectory)) {
+            String name = dir.getName();
+            if (isIgnored(name)) continue;
+            if (BackupUtils.isUuid(name)) {
+                // UUID-based backups only store one backup per folder
+                if (validateBackup(name, dir, newRecords)) {
+                    foundBackups.add(name);
+                }
+                continue;
+            }
+            foundDirectories.add(name);
+            // The modification time must be taken before listing so that a change during the listing is not missed
+            long lastModified = dir.lastModified();
+            if (isUnchanged(name, lastModified)) {
+                List<String> children = knownChildren.get(name);
+                if (children != null) {
+                    foundBackups.addAll(children);
+                }
+                continue;
+            }
+            for (Path backupDir : dir.listFiles(Path::isDirectory)) {
+                String path = name + "/" + backupDir.getName();
+                if (validateBackup(path, backupDir, newRecords)) {
+                    foundBackups.add(path);
+                }
+            }
+            putDirectory(name, lastModified, newRecords);
+        }
+        mDirectories.keySet().retainAll(foundDirectories);
+        // Remove the backups that no longer exist
+        for (String path : new ArrayList<>(mBackups.keySet())) {
+            if (!foundBackups.contains(path)) {
+                mBackups.remove(path);
+                try {
+                    newRecords.add(getRemovedRecord(path));
+                } catch (JSONException ignore) {
+                }
+            }
+        }
+    }
+
+    private boolean isUnchanged(@NonNull String path, long lastModified) {
+        // Zero means the modification time is unavailable
+        Long knownLastModified = mDirectories.get(path);
+        return lastModified != 0 && knownLastModified != null && knownLastModified == lastModified;
+    }
+
+    private void putDirectory(@NonNull String path, long lastModified, @NonNull List<String> newRecords) {
+        mDirectories.put(path, lastModified);
+        try {
+            newRecords.add(getDirectoryRecord(path, lastModified));
+        } catch (JSONException ignore) {
+        }
+    }
+
+    /**
+     * Read the metadata of the backup again if it has been modified since it was recorded.
+     *
+     * @return {@code true} if the backup is valid
+     */
+    private boolean validateBackup(@NonNull String path, @NonNull Path backupPath, @NonNull List<String> newRecords) {
+        try {
+            // The modification time of the directory does not change when the metadata file is rewritten in place
+            BackupFiles.BackupFile backupFile = new BackupFiles.BackupFile(backupPath, false);
+            Path metadataFile = backupFile.getMetadataFile();
+            long lastModified = metadataFile.lastModified();
+            long size = metadataFile.length();
+            Entry entry = mBackups.get(path);
+            if (entry != null && lastModified != 0 && entry.lastModified == lastModified && entry.size == size) {
+                return true;
+            }
+            Backup backup = Backup.fromBackupMetadata(MetadataManager.getMetadata(backupFile));
+            mBackups.put(path, new Entry(lastModified, size, backup));
+            newRecords.add(getBackupRecord(path, lastModified, size, backup));
+            return true;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Invalid backup " + backupPath, e);
+            return false;
+        }
+    }
+
+    private void save(@NonNull Path baseDirectory, @NonNull List<String> newRecords) {
+        int liveRecordCount = mBackups.size() + mDirectories.size();
+        try {
+            if (mRequiresRewrite || mRecordCount + newRecords.size() > 2 * liveRecordCount + 64) {
+                rewrite(baseDirectory);
+            } else if (!newRecords.isEmpty()) {
+                append(newRecords.toArray(new String[0]));
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Could not save the catalog.", e);
+        }
+    }
+
+    private void rewrite(@NonNull Path baseDirectory) throws IOException, JSONException {
+        String tmpName = CATALOG_FILE + ".tmp";
+        if (baseDirectory.hasFile(tmpName)) {
+            baseDirectory.findFile(tmpName).delete();
+        }
+        Path tmpFile = baseDirectory.createNewFile(tmpName, null);
+        try (OutputStream os = tmpFile.openOutputStream()) {
+            PrintWriter writer = new PrintWriter(os);
+            for (Map.Entry<String, Long> directory : mDirectories.entrySet()) {
+                writer.println(getDirectoryRecord(directory.getKey(), directory.getValue()));
+            }
+            for (Map.Entry<String, Entry> backup : mBackups.entrySet()) {
+                Entry entry = backup.getValue();
+                writer.println(getBackupRecord(backup.getKey(), entry.lastModified, entry.size, entry.backup));
+            }
+            writer.flush();
+        }
+        Path oldCatalog = baseDirectory.hasFile(CATALOG_FILE) ? baseDirectory.findFile(CATALOG_FILE) : null;
+        if ((oldCatalog != null && !oldCatalog.delete()) || !tmpFile.renameTo(CATALOG_FILE)) {
+            tmpFile.delete();
+            throw new IOException("Could not replace " + CATALOG_FILE);
+        }
+    }
+}
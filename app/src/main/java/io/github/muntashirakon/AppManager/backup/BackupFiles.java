@@ -10,6 +10,8 @@ import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -23,6 +25,7 @@ import io.github.muntashirakon.io.PathWriter;
 public class BackupFiles {
     static final String APK_SAVING_DIRECTORY = "apks";
     static final String TEMPORARY_DIRECTORY = ".tmp";
+    static final String CHUNK_STORE_DIRECTORY = ".chunks";
 
     static final String RULES_TSV = "rules.am.tsv";
     static final String MISC_TSV = "misc.am.tsv";
@@ -100,6 +103,14 @@ public class BackupFiles {
             return mIsTemporary ? mTempBackupPath : mBackupPath;
         }
 
+        /**
+         * Get the path where the backup resides after {@link #commit()}.
+         */
+        @NonNull
+        public Path getCommittedBackupPath() {
+            return mBackupPath;
+        }
+
         @NonNull
         public Path getMetadataFile() throws IOException {
             if (mIsTemporary) {
@@ -268,21 +279,32 @@ public class BackupFiles {
             if ("w".equals(mode)) {
                 mWriter = new PrintWriter(new BufferedWriter(new PathWriter(checksumFile)));
             } else if ("r".equals(mode)) {
-                synchronized (mChecksums) {
-                    BufferedReader reader = new BufferedReader(new PathReader(checksumFile));
-                    // Get checksums
-                    String line;
-                    String[] lineSplits;
-                    while ((line = reader.readLine()) != null) {
-                        lineSplits = line.split("\t", 2);
-                        if (lineSplits.length != 2) {
-                            throw new RuntimeException("Illegal lines found in the checksum file.");
-                        }
-                        mChecksums.put(lineSplits[1], lineSplits[0]);
+                read(new BufferedReader(new PathReader(checksumFile)));
+            } else throw new IOException("Unknown mode: " + mode);
+        }
+
+        /**
+         * Read checksums from a stream, e.g. a decrypted checksum file. The stream is closed afterwards.
+         */
+        public Checksum(@NonNull InputStream is) throws IOException {
+            mMode = "r";
+            read(new BufferedReader(new InputStreamReader(is)));
+        }
+
+        private void read(@NonNull BufferedReader reader) throws IOException {
+            synchronized (mChecksums) {
+                // Get checksums
+                String line;
+                String[] lineSplits;
+                while ((line = reader.readLine()) != null) {
+                    lineSplits = line.split("\t", 2);
+                    if (lineSplits.length != 2) {
+                        throw new RuntimeException("Illegal lines found in the checksum file.");
                     }
-                    reader.close();
+                    mChecksums.put(lineSplits[1], lineSplits[0]);
                 }
-            } else throw new IOException("Unknown mode: " + mode);
+                reader.close();
+            }
         }
 
         public void add(@NonNull String fileName, @NonNull String checksum) {
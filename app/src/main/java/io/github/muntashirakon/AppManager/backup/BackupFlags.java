@@ -37,6 +37,7 @@ public final class BackupFlags {
             BACKUP_EXTRAS,
             BACKUP_CACHE,
             BACKUP_MULTIPLE,
+            BACKUP_INCREMENTAL,
             BACKUP_RULES,
             BACKUP_NO_SIGNATURE_CHECK,
     })
@@ -60,6 +61,7 @@ public final class BackupFlags {
     public static final int BACKUP_MULTIPLE = 1 << 9;
     public static final int BACKUP_EXTRAS = 1 << 10;
     public static final int BACKUP_CACHE = 1 << 11;
+    public static final int BACKUP_INCREMENTAL = 1 << 12;
 
     private static final LinkedHashMap<Integer, Pair<Integer, Integer>> sBackupFlagsMap = new LinkedHashMap<Integer, Pair<Integer, Integer>>() {{
         put(BACKUP_APK_FILES, new Pair<>(R.string.backup_apk_files, R.string.backup_apk_files_description));
@@ -70,6 +72,7 @@ public final class BackupFlags {
         put(BACKUP_EXTRAS, new Pair<>(R.string.backup_extras, R.string.backup_extras_description));
         put(BACKUP_RULES, new Pair<>(R.string.rules, R.string.backup_rules_description));
         put(BACKUP_MULTIPLE, new Pair<>(R.string.backup_multiple, R.string.backup_multiple_description));
+        put(BACKUP_INCREMENTAL, new Pair<>(R.string.backup_incremental, R.string.backup_incremental_description));
         put(BACKUP_CUSTOM_USERS, new Pair<>(R.string.backup_custom_users, R.string.backup_custom_users_description));
         put(BACKUP_NO_SIGNATURE_CHECK, new Pair<>(R.string.skip_signature_checks, R.string.backup_skip_signature_checks_description));
     }};
@@ -96,6 +99,7 @@ public final class BackupFlags {
         backupFlags.add(BACKUP_EXTRAS);
         backupFlags.add(BACKUP_RULES);
         backupFlags.add(BACKUP_MULTIPLE);
+        backupFlags.add(BACKUP_INCREMENTAL);
         if (Users.getUsersIds().length > 1) {
             // Display custom users only if multiple users present
             backupFlags.add(BACKUP_CUSTOM_USERS);
@@ -132,6 +136,9 @@ public final class BackupFlags {
         if ((flags & BACKUP_MULTIPLE) != 0) {
             backupFlags.add(BACKUP_MULTIPLE);
         }
+        if ((flags & BACKUP_INCREMENTAL) != 0) {
+            backupFlags.add(BACKUP_INCREMENTAL);
+        }
         if ((flags & BACKUP_CUSTOM_USERS) != 0) {
             backupFlags.add(BACKUP_CUSTOM_USERS);
         }
@@ -241,6 +248,10 @@ public final class BackupFlags {
         return (mFlags & BACKUP_MULTIPLE) != 0;
     }
 
+    public boolean backupIncremental() {
+        return (mFlags & BACKUP_INCREMENTAL) != 0;
+    }
+
     public boolean backupCustomUsers() {
         return (mFlags & BACKUP_CUSTOM_USERS) != 0;
     }
@@ -275,6 +286,10 @@ public final class BackupFlags {
         }
         if (backupCache()) {
             sb.append(append ? "+" : "").append("Caches");
+            append = true;
+        }
+        if (backupIncremental()) {
+            sb.append(append ? "+" : "").append("Inc");
         }
         return sb;
     }
@@ -6,14 +6,20 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import io.github.muntashirakon.AppManager.logs.Log;
 import io.github.muntashirakon.AppManager.progress.ProgressHandler;
 import io.github.muntashirakon.AppManager.types.UserPackagePair;
 import io.github.muntashirakon.AppManager.utils.ContextUtils;
 import io.github.muntashirakon.AppManager.utils.DateUtils;
+import io.github.muntashirakon.AppManager.utils.MultithreadedExecutor;
 import io.github.muntashirakon.AppManager.utils.TarUtils;
+import io.github.muntashirakon.io.Path;
 
 /**
  * Manage backups for individual package belong to individual user.
@@ -59,6 +65,7 @@ public class BackupManager {
     private final BackupFlags mRequestedFlags;
 
     private boolean mRequiresRestart;
+    private int mCompressionThreads = MultithreadedExecutor.getThreadCount();
 
     protected BackupManager(@NonNull UserPackagePair targetPackage, int flags) {
         mTargetPackage = targetPackage;
@@ -76,6 +83,14 @@ public class BackupManager {
         return mRequiresRestart;
     }
 
+    /**
+     * Set the number of threads used for compressing the archives if parallel compression is enabled. When several
+     * backups are taken at once, they should share the threads instead of each using all of them.
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        mCompressionThreads = Math.max(compressionThreads, 1);
+    }
+
     /**
      * Backup the given package belonging to the given user. If multiple backup names given, iterate
      * over the backup names and perform the identical backups several times.
@@ -92,7 +107,8 @@ public class BackupManager {
         try {
             // Get backup files based on the number of backupNames
             BackupFiles backupFiles = new BackupFiles(mTargetPackage.getPackageName(), mTargetPackage.getUserId(), backupNames);
-            BackupFiles.BackupFile[] backupFileList = mRequestedFlags.backupMultiple() ?
+            // An incremental backup never replaces an existing backup since it may be the base of the new one
+            BackupFiles.BackupFile[] backupFileList = mRequestedFlags.backupMultiple() || mRequestedFlags.backupIncremental() ?
                     backupFiles.getFreshBackupPaths() : backupFiles.getBackupPaths(true);
             if (progressHandler != null) {
                 int max = calculateMaxProgress(backupFileList.length);
@@ -101,7 +117,7 @@ public class BackupManager {
             }
             for (BackupFiles.BackupFile backupFile : backupFileList) {
                 try (BackupOp backupOp = new BackupOp(mTargetPackage.getPackageName(), mMetadataManager, mRequestedFlags,
-                        backupFile, mTargetPackage.getUserId())) {
+                        backupFile, mTargetPackage.getUserId(), mCompressionThreads)) {
                     backupOp.runBackup(progressHandler);
                     BackupUtils.putBackupToDbAndBroadcast(ContextUtils.getContext(), backupOp.getMetadata());
                 }
@@ -113,7 +129,7 @@ public class BackupManager {
 
     @Nullable
     private String[] getProcessedBackupNames(@Nullable String[] backupNames) {
-        if (mRequestedFlags.backupMultiple()) {
+        if (mRequestedFlags.backupMultiple() || mRequestedFlags.backupIncremental()) {
             // Multiple backups requested
             if (backupNames == null) {
                 // Create a singleton backupNames array with current time
@@ -196,45 +212,123 @@ public class BackupManager {
     }
 
     public void deleteBackup(@Nullable String[] backupNames) throws BackupException {
+        List<BackupFiles.BackupFile> backupFileList = new ArrayList<>();
         if (backupNames == null) {
             // No backup names supplied, use user handle
-            BackupFiles backupFiles;
-            BackupFiles.BackupFile[] backupFileList;
             try {
-                backupFiles = new BackupFiles(mTargetPackage.getPackageName(),
+                BackupFiles backupFiles = new BackupFiles(mTargetPackage.getPackageName(),
                         mTargetPackage.getUserId(), null);
-                backupFileList = backupFiles.getBackupPaths(false);
+                backupFileList.addAll(Arrays.asList(backupFiles.getBackupPaths(false)));
             } catch (IOException e) {
                 throw new BackupException("Could not get backup files.", e);
             }
-            for (BackupFiles.BackupFile backupFile : backupFileList) {
-                try {
-                    MetadataManager.Metadata metadata = MetadataManager.getMetadata(backupFile);
-                    if (!backupFile.isFrozen() && !backupFile.delete()) {
-                        throw new BackupException("Could not delete the selected backups");
-                    }
-                    BackupUtils.deleteBackupToDbAndBroadcast(ContextUtils.getContext(), metadata);
-                } catch (IOException e) {
-                    throw new BackupException("Could not delete the selected backups", e);
-                }
-            }
         } else {
             // backupNames is not null but that doesn't mean that it's not empty,
             // requested for only single backups
-            BackupFiles.BackupFile backupFile;
             for (String backupName : backupNames) {
-                MetadataManager.Metadata metadata;
                 try {
-                    backupFile = new BackupFiles.BackupFile(BackupFiles.getPackagePath(mTargetPackage.getPackageName(),
-                            false).findFile(backupName), false);
-                    metadata = MetadataManager.getMetadata(backupFile);
+                    backupFileList.add(new BackupFiles.BackupFile(BackupFiles.getPackagePath(
+                            mTargetPackage.getPackageName(), false).findFile(backupName), false));
                 } catch (IOException e) {
                     throw new BackupException("Could not get backup files.", e);
                 }
-                if (!backupFile.isFrozen() && !backupFile.delete()) {
+            }
+        }
+        List<MetadataManager.Metadata> metadataList = new ArrayList<>(backupFileList.size());
+        for (BackupFiles.BackupFile backupFile : backupFileList) {
+            try {
+                metadataList.add(MetadataManager.getMetadata(backupFile));
+            } catch (IOException e) {
+                throw new BackupException("Could not get backup files.", e);
+            }
+        }
+        // Check everything before deleting anything so that a chain of incremental backups is never half-deleted
+        Set<String> deletedBackupNames = new HashSet<>();
+        for (BackupFiles.BackupFile backupFile : backupFileList) {
+            if (!backupFile.isFrozen()) {
+                deletedBackupNames.add(backupFile.getBackupPath().getName());
+            }
+        }
+        for (BackupFiles.BackupFile backupFile : backupFileList) {
+            ensureNotBaseBackup(backupFile, deletedBackupNames);
+        }
+        // Delete the incremental backups before their bases
+        boolean deletedChunks = false;
+        for (int i : getDeletionOrder(metadataList)) {
+            BackupFiles.BackupFile backupFile = backupFileList.get(i);
+            if (!backupFile.isFrozen()) {
+                deletedChunks |= ChunkStore.hasChunkIndex(backupFile.getBackupPath());
+                if (!backupFile.delete()) {
                     throw new BackupException("Could not delete the selected backups");
                 }
-                BackupUtils.deleteBackupToDbAndBroadcast(ContextUtils.getContext(), metadata);
+                BackupCatalog.remove(backupFile.getBackupPath());
+            }
+            BackupUtils.deleteBackupToDbAndBroadcast(ContextUtils.getContext(), metadataList.get(i));
+        }
+        if (deletedChunks) {
+            // Remove the chunks that were only used by the deleted backups
+            ChunkStore.collectGarbage();
+        }
+    }
+
+    /**
+     * Order the backups so that a backup comes before the backup it is based on.
+     */
+    @NonNull
+    private static List<Integer> getDeletionOrder(@NonNull List<MetadataManager.Metadata> metadataList) {
+        List<Integer> order = new ArrayList<>(metadataList.size());
+        boolean[] added = new boolean[metadataList.size()];
+        while (order.size() < metadataList.size()) {
+            int addedCount = order.size();
+            for (int i = 0; i < metadataList.size(); ++i) {
+                if (added[i]) continue;
+                // Wait until every remaining backup based on this one is added
+                boolean isBase = false;
+                for (int j = 0; j < metadataList.size(); ++j) {
+                    if (!added[j] && j != i && metadataList.get(i).backupName.equals(metadataList.get(j).baseBackup)) {
+                        isBase = true;
+                        break;
+                    }
+                }
+                if (!isBase) {
+                    added[i] = true;
+                    order.add(i);
+                }
+            }
+            if (order.size() == addedCount) {
+                // A cycle, which should never happen
+                for (int i = 0; i < metadataList.size(); ++i) {
+                    if (!added[i]) order.add(i);
+                }
+                break;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * An incremental backup cannot be restored without its base backup. So, refuse to delete a backup if another
+     * backup that is not going to be deleted is based on it.
+     */
+    private static void ensureNotBaseBackup(@NonNull BackupFiles.BackupFile backupFile,
+                                            @NonNull Set<String> deletedBackupNames) throws BackupException {
+        Path backupPath = backupFile.getBackupPath();
+        Path packagePath = backupPath.getParent();
+        if (packagePath == null) {
+            return;
+        }
+        String backupName = backupPath.getName();
+        for (Path path : packagePath.listFiles(Path::isDirectory)) {
+            if (path.getName().startsWith(".") || path.equals(backupPath)
+                    || deletedBackupNames.contains(path.getName())) {
+                continue;
+            }
+            try {
+                if (backupName.equals(MetadataManager.getMetadata(path).baseBackup)) {
+                    throw new BackupException("Could not delete " + backupName + " because the incremental backup "
+                            + path.getName() + " is based on it.");
+                }
+            } catch (IOException ignore) {
             }
         }
     }
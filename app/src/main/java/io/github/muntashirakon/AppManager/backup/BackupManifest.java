@@ -0,0 +1,203 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.backup;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import io.github.muntashirakon.io.Path;
+import io.github.muntashirakon.io.Paths;
+
+/**
+ * Per-file manifest of a backed up data directory. It is used for incremental backups: a file is archived only if it
+ * is new or its stat (type, size, modification time and mode) differs from the one in the manifest of the base
+ * backup. Files that are present in the base manifest but not in the current one are recorded as deleted so that they
+ * can be removed while restoring the chain of backups.
+ * <p>
+ * Each line has the format {@code type\tsize\tmtime\tmode\tpath} where the path is relative to the data directory and
+ * URI-encoded. Directories end with a {@code /}.
+ */
+public class BackupManifest {
+    public static final String MANIFEST_PREFIX = "manifest";
+    public static final String MANIFEST_SUFFIX = ".am.tsv";
+
+    public static final char TYPE_FILE = 'f';
+    public static final char TYPE_DIRECTORY = 'd';
+    public static final char TYPE_SYMLINK = 'l';
+    public static final char TYPE_DELETED = 'x';
+
+    public static class Entry {
+        public final char type;
+        @NonNull
+        public final String path;
+        public final long size;
+        public final long lastModified;
+        public final int mode;
+
+        public Entry(char type, @NonNull String path, long size, long lastModified, int mode) {
+            this.type = type;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mode = mode;
+        }
+
+        /**
+         * Whether the file represented by this entry has changed from the given entry (which is usually from the
+         * base backup).
+         */
+        public boolean isModified(@Nullable Entry oldEntry) {
+            if (oldEntry == null) return true;
+            return type != oldEntry.type || size != oldEntry.size || lastModified != oldEntry.lastModified
+                    || mode != oldEntry.mode;
+        }
+    }
+
+    @NonNull
+    public static String getManifestFilename(int dataIndex) {
+        return MANIFEST_PREFIX + dataIndex + MANIFEST_SUFFIX;
+    }
+
+    /**
+     * Generate a manifest from the given list of files. The files must be the ones returned by
+     * {@link Paths#getAll(Path, Path, String[], String[], boolean)} for the given base path.
+     */
+    @WorkerThread
+    @NonNull
+    public static BackupManifest fromFiles(@NonNull Path basePath, @NonNull List<Path> files) {
+        BackupManifest manifest = new BackupManifest();
+        for (Path file : files) {
+            String relativePath = Paths.relativePath(file, basePath);
+            if (relativePath.isEmpty() || relativePath.equals("/")) continue;
+            char type;
+            if (file.isSymbolicLink()) {
+                type = TYPE_SYMLINK;
+            } else if (file.isDirectory()) {
+                type = TYPE_DIRECTORY;
+            } else type = TYPE_FILE;
+            long size = type == TYPE_FILE ? file.length() : 0;
+            manifest.add(new Entry(type, relativePath, size, file.lastModified(), file.getMode()));
+        }
+        return manifest;
+    }
+
+    @WorkerThread
+    @NonNull
+    public static BackupManifest read(@NonNull InputStream is) throws IOException {
+        BackupManifest manifest = new BackupManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            String[] parts = line.split("\t", 5);
+            if (parts.length != 5 || parts[0].length() != 1) {
+                throw new IOException("Invalid manifest line: " + line);
+            }
+            try {
+                manifest.add(new Entry(parts[0].charAt(0), Uri.decode(parts[4]), Long.parseLong(parts[1]),
+                        Long.parseLong(parts[2]), Integer.parseInt(parts[3])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid manifest line: " + line, e);
+            }
+        }
+        return manifest;
+    }
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+
+    private void add(@NonNull Entry entry) {
+        mEntries.put(entry.path, entry);
+    }
+
+    @Nullable
+    public Entry get(@NonNull String path) {
+        Entry entry = mEntries.get(path);
+        return entry == null || entry.type == TYPE_DELETED ? null : entry;
+    }
+
+    /**
+     * Get all the entries that are present in this manifest, i.e. deleted entries are not included.
+     */
+    @NonNull
+    public List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            if (entry.type != TYPE_DELETED) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get paths that were deleted since the base backup.
+     */
+    @NonNull
+    public List<String> getDeletedPaths() {
+        List<String> deletedPaths = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.type == TYPE_DELETED) {
+                deletedPaths.add(entry.path);
+            }
+        }
+        // Delete children before parents
+        Collections.reverse(deletedPaths);
+        return deletedPaths;
+    }
+
+    /**
+     * Whether the file at the relative path must be archived in an incremental backup based on the given manifest.
+     * Directories and symbolic links are always archived since they carry no content but their attributes.
+     */
+    public boolean requiresArchiving(@NonNull String path, @Nullable BackupManifest baseManifest) {
+        Entry entry = Objects.requireNonNull(get(path));
+        if (baseManifest == null || entry.type != TYPE_FILE) return true;
+        return entry.isModified(baseManifest.get(path));
+    }
+
+    /**
+     * Record the entries that are present in the base manifest but not in this one as deleted.
+     */
+    public void recordDeletions(@NonNull BackupManifest baseManifest) {
+        Collection<Entry> baseEntries = baseManifest.getEntries();
+        for (Entry baseEntry : baseEntries) {
+            if (get(baseEntry.path) == null) {
+                add(new Entry(TYPE_DELETED, baseEntry.path, 0, 0, 0));
+            }
+        }
+    }
+
+    @WorkerThread
+    public void write(@NonNull OutputStream os) {
+        PrintWriter writer = new PrintWriter(os);
+        for (Entry entry : mEntries.values()) {
+            writer.print(entry.type);
+            writer.print('\t');
+            writer.print(entry.size);
+            writer.print('\t');
+            writer.print(entry.lastModified);
+            writer.print('\t');
+            writer.print(entry.mode);
+            writer.print('\t');
+            writer.println(Uri.encode(entry.path, "/"));
+        }
+        writer.flush();
+    }
+}
@@ -29,9 +29,12 @@ import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 import androidx.core.content.pm.PermissionInfoCompat;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -47,8 +50,6 @@ import io.github.muntashirakon.AppManager.compat.PackageManagerCompat;
 import io.github.muntashirakon.AppManager.compat.PermissionCompat;
 import io.github.muntashirakon.AppManager.crypto.Crypto;
 import io.github.muntashirakon.AppManager.crypto.CryptoException;
-import io.github.muntashirakon.AppManager.db.AppsDb;
-import io.github.muntashirakon.AppManager.db.entity.FileHash;
 import io.github.muntashirakon.AppManager.ipc.ProxyBinder;
 import io.github.muntashirakon.AppManager.logs.Log;
 import io.github.muntashirakon.AppManager.magisk.MagiskDenyList;
@@ -68,6 +69,7 @@ import io.github.muntashirakon.AppManager.utils.ContextUtils;
 import io.github.muntashirakon.AppManager.utils.DigestUtils;
 import io.github.muntashirakon.AppManager.utils.ExUtils;
 import io.github.muntashirakon.AppManager.utils.FileUtils;
+import io.github.muntashirakon.AppManager.utils.HexDigestOutputStream;
 import io.github.muntashirakon.AppManager.utils.KeyStoreUtils;
 import io.github.muntashirakon.AppManager.utils.PackageUtils;
 import io.github.muntashirakon.AppManager.utils.TarUtils;
@@ -76,10 +78,13 @@ import io.github.muntashirakon.AppManager.utils.Utils;
 import io.github.muntashirakon.io.IoUtils;
 import io.github.muntashirakon.io.Path;
 import io.github.muntashirakon.io.Paths;
+import io.github.muntashirakon.io.SplitOutputStream;
 
 @WorkerThread
 class BackupOp implements Closeable {
     static final String TAG = BackupOp.class.getSimpleName();
+    // Maximum number of backups in an incremental chain including the full backup
+    private static final int MAX_INCREMENTAL_CHAIN_LENGTH = 10;
 
     @NonNull
     private final String mPackageName;
@@ -106,9 +111,16 @@ class BackupOp implements Closeable {
     // We don't need privileged package manager here
     @NonNull
     private final PackageManager mPm;
+    // Whether to archive, encrypt and checksum in a single pass
+    private final boolean mStreamingBackup;
+    // Whether to store the archives in the chunk store
+    private final boolean mDeduplicate;
+    // Number of threads used for compressing the app files
+    private final int mCompressionThreads;
 
     BackupOp(@NonNull String packageName, @NonNull MetadataManager metadataManager, @NonNull BackupFlags backupFlags,
-             @NonNull BackupFiles.BackupFile backupFile, @UserIdInt int userId) throws BackupException {
+             @NonNull BackupFiles.BackupFile backupFile, @UserIdInt int userId, int compressionThreads)
+            throws BackupException {
         mPackageName = packageName;
         mBackupFile = backupFile;
         mUserId = userId;
@@ -135,6 +147,11 @@ class BackupOp implements Closeable {
             mBackupFile.cleanup();
             throw new BackupException("Failed to get crypto " + mMetadata.crypto, e);
         }
+        mDeduplicate = Prefs.BackupRestore.deduplicateBackups()
+                && CryptoUtils.MODE_NO_ENCRYPTION.equals(mMetadata.crypto);
+        // The archives are chunked while they are being written
+        mStreamingBackup = mDeduplicate || (Prefs.BackupRestore.useStreamingBackup() && mCrypto.supportsStreaming());
+        mCompressionThreads = Prefs.BackupRestore.compressInParallel() ? compressionThreads : 1;
         try {
             mChecksum = mBackupFile.getChecksum(CryptoUtils.MODE_NO_ENCRYPTION);
             String[] certChecksums = PackageUtils.getSigningCertChecksums(mMetadata.checksumAlgo, mPackageInfo, false);
@@ -189,8 +206,17 @@ class BackupOp implements Closeable {
                 backupRules();
                 incrementProgress(progressHandler);
             }
-            // Set backup time
+            // Set backup time and size
             mMetadata.backupTime = System.currentTimeMillis();
+            mMetadata.backupSize = Paths.size(mTempBackupPath);
+            if (mDeduplicate) {
+                // The archives are stored in the chunk store
+                try {
+                    mMetadata.backupSize += ChunkStore.getReferencedSize(mTempBackupPath);
+                } catch (IOException e) {
+                    throw new BackupException("Could not read the chunk indexes.", e);
+                }
+            }
             // Write modified metadata
             mMetadataManager.setMetadata(mMetadata);
             try {
@@ -219,7 +245,17 @@ class BackupOp implements Closeable {
             } catch (IOException e) {
                 throw new BackupException("Could not finalise backup.", e);
             }
+            BackupCatalog.add(mBackupFile.getCommittedBackupPath());
             backupSuccess = true;
+            // Store directory hashes only after the backup is in place
+            if (mBackupFlags.backupData()) {
+                try {
+                    BackupUtils.updateDataDirectoryHashes(mMetadata.dataDirs);
+                } catch (Throwable th) {
+                    // The backup itself has succeeded
+                    Log.w(TAG, "Could not store data directory hashes.", th);
+                }
+            }
         } catch (BackupException e) {
             throw e;
         } catch (Throwable th) {
@@ -265,10 +301,21 @@ class BackupOp implements Closeable {
                 throw new BackupException(mMetadata.apkName + " not found at " + sourceDir);
             }
         }
+        if (mStreamingBackup) {
+            try {
+                Path source = sourceDir;
+                backupStreaming(sourceBackupFilePrefix, (os, type) -> TarUtils.create(type, source, os,
+                        /* language=regexp */ new String[]{".*\\.apk"}, null, false, mCompressionThreads));
+            } catch (Throwable th) {
+                throw new BackupException("APK files backup is requested but no source directory has been backed up.", th);
+            }
+            return;
+        }
         Path[] sourceFiles;
         try {
             sourceFiles = TarUtils.create(mMetadata.tarType, sourceDir, mTempBackupPath, sourceBackupFilePrefix,
-                    /* language=regexp */ new String[]{".*\\.apk"}, null, null, false).toArray(new Path[0]);
+                    /* language=regexp */ new String[]{".*\\.apk"}, null, null, false, mCompressionThreads)
+                    .toArray(new Path[0]);
         } catch (Throwable th) {
             throw new BackupException("APK files backup is requested but no source directory has been backed up.", th);
         }
@@ -285,21 +332,32 @@ class BackupOp implements Closeable {
     private void backupData() throws BackupException {
         String sourceBackupFilePrefix;
         Path[] dataFiles;
-        // Store file hash in a separate thread
-        new Thread(() -> {
-            for (String dir : mMetadata.dataDirs) {
-                FileHash fileHash = new FileHash();
-                fileHash.path = dir;
-                fileHash.hash = DigestUtils.getHexDigest(DigestUtils.SHA_256, Paths.get(dir));
-                AppsDb.getInstance().fileHashDao().insert(fileHash);
-            }
-        }).start();
+        BackupManifest[] baseManifests = mBackupFlags.backupIncremental() ? loadBaseManifests() : null;
         for (int i = 0; i < mMetadata.dataDirs.length; ++i) {
             sourceBackupFilePrefix = DATA_PREFIX + i + getExt(mMetadata.tarType);
+            String[] exclude = BackupUtils.getExcludeDirs(!mBackupFlags.backupCache(), null);
+            if (mBackupFlags.backupIncremental()) {
+                try {
+                    backupDataIncremental(i, sourceBackupFilePrefix, exclude,
+                            baseManifests != null ? baseManifests[i] : null);
+                } catch (Throwable th) {
+                    throw new BackupException("Failed to backup data directory at " + mMetadata.dataDirs[i], th);
+                }
+                continue;
+            }
+            if (mStreamingBackup) {
+                try {
+                    Path source = Paths.get(mMetadata.dataDirs[i]);
+                    backupStreaming(sourceBackupFilePrefix, (os, type) -> TarUtils.create(type, source, os, null,
+                            exclude, false, mCompressionThreads));
+                } catch (Throwable th) {
+                    throw new BackupException("Failed to backup data directory at " + mMetadata.dataDirs[i], th);
+                }
+                continue;
+            }
             try {
                 dataFiles = TarUtils.create(mMetadata.tarType, Paths.get(mMetadata.dataDirs[i]), mTempBackupPath,
-                                sourceBackupFilePrefix, null, null,
-                                BackupUtils.getExcludeDirs(!mBackupFlags.backupCache(), null), false)
+                                sourceBackupFilePrefix, null, null, exclude, false, mCompressionThreads)
                         .toArray(new Path[0]);
             } catch (Throwable th) {
                 throw new BackupException("Failed to backup data directory at " + mMetadata.dataDirs[i], th);
@@ -315,6 +373,119 @@ class BackupOp implements Closeable {
         }
     }
 
+    /**
+     * Archive only the files of the data directory that are new or modified since the base backup, and store the
+     * manifest of the data directory along with the archive. If there is no base manifest, all files are archived.
+     */
+    private void backupDataIncremental(int index, @NonNull String filePrefix, @Nullable String[] exclude,
+                                       @Nullable BackupManifest baseManifest) throws IOException {
+        Path dataDir = Paths.get(mMetadata.dataDirs[index]);
+        List<Path> allFiles = Paths.getAll(dataDir, dataDir, null, exclude, false);
+        BackupManifest manifest = BackupManifest.fromFiles(dataDir, allFiles);
+        List<Path> files;
+        if (baseManifest != null) {
+            files = new ArrayList<>();
+            for (Path file : allFiles) {
+                String relativePath = Paths.relativePath(file, dataDir);
+                if (relativePath.isEmpty() || relativePath.equals("/")) continue;
+                if (manifest.requiresArchiving(relativePath, baseManifest)) {
+                    files.add(file);
+                }
+            }
+            manifest.recordDeletions(baseManifest);
+        } else files = allFiles;
+        if (mStreamingBackup) {
+            backupStreaming(filePrefix, (os, type) -> TarUtils.create(type, dataDir, files, os, false,
+                    mCompressionThreads));
+        } else {
+            Path[] archives;
+            try (SplitOutputStream sos = new SplitOutputStream(mTempBackupPath, filePrefix, TarUtils.DEFAULT_SPLIT_SIZE)) {
+                TarUtils.create(mMetadata.tarType, dataDir, files, sos, false, mCompressionThreads);
+                archives = sos.getFiles().toArray(new Path[0]);
+            }
+            archives = encrypt(archives);
+            for (Path file : archives) {
+                mChecksum.add(file.getName(), DigestUtils.getHexDigest(mMetadata.checksumAlgo, file));
+            }
+        }
+        // Store manifest
+        Path manifestFile = mTempBackupPath.createNewFile(BackupManifest.getManifestFilename(index), null);
+        try (OutputStream os = manifestFile.openOutputStream()) {
+            manifest.write(os);
+        }
+        manifestFile = encrypt(new Path[]{manifestFile})[0];
+        mChecksum.add(manifestFile.getName(), DigestUtils.getHexDigest(mMetadata.checksumAlgo, manifestFile));
+    }
+
+    /**
+     * Find the latest incremental backup of this app having the same data directories and load its manifests. If
+     * there isn't any, or the chain of backups has become too long, {@code null} is returned and a full backup is
+     * taken instead.
+     */
+    @Nullable
+    private BackupManifest[] loadBaseManifests() {
+        Path packagePath = mTempBackupPath.getParent();
+        if (packagePath == null) {
+            return null;
+        }
+        MetadataManager.Metadata baseMetadata = null;
+        for (Path backupPath : packagePath.listFiles(Path::isDirectory)) {
+            if (backupPath.getName().startsWith(".")) {
+                // Temporary backup
+                continue;
+            }
+            MetadataManager.Metadata metadata;
+            try {
+                metadata = MetadataManager.getMetadata(backupPath);
+            } catch (IOException e) {
+                continue;
+            }
+            if (metadata.userHandle != mUserId || !metadata.flags.backupIncremental()
+                    || !Arrays.equals(metadata.dataDirs, mMetadata.dataDirs)) {
+                continue;
+            }
+            if (baseMetadata == null || metadata.backupTime > baseMetadata.backupTime) {
+                baseMetadata = metadata;
+            }
+        }
+        if (baseMetadata == null) {
+            return null;
+        }
+        // Each backup in the chain has to be extracted during restore, limit the length of the chain
+        int chainLength = 1;
+        String baseBackupName = baseMetadata.baseBackup;
+        try {
+            while (baseBackupName != null) {
+                if (++chainLength >= MAX_INCREMENTAL_CHAIN_LENGTH) {
+                    Log.i(TAG, "Incremental chain is too long, taking a full backup.");
+                    return null;
+                }
+                baseBackupName = MetadataManager.getMetadata(packagePath.findFile(baseBackupName)).baseBackup;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Incremental chain is broken, taking a full backup.", e);
+            return null;
+        }
+        BackupManifest[] manifests = new BackupManifest[mMetadata.dataDirs.length];
+        try (Crypto crypto = CryptoUtils.getCrypto(baseMetadata)) {
+            Path basePath = baseMetadata.backupFile.getBackupPath();
+            String ext = CryptoUtils.getExtension(baseMetadata.crypto);
+            for (int i = 0; i < manifests.length; ++i) {
+                Path manifestFile = basePath.findFile(BackupManifest.getManifestFilename(i) + ext);
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                try (InputStream is = manifestFile.openInputStream()) {
+                    crypto.decrypt(is, os);
+                }
+                manifests[i] = BackupManifest.read(new ByteArrayInputStream(os.toByteArray()));
+            }
+        } catch (IOException | CryptoException e) {
+            Log.w(TAG, "Could not load manifests from the base backup, taking a full backup.", e);
+            return null;
+        }
+        mMetadata.baseBackup = baseMetadata.backupName;
+        return manifests;
+    }
+
     private void backupKeyStore() throws BackupException {  // Called only when the app has an keystore item
         Path keyStorePath = KeyStoreUtils.getKeyStorePath(mUserId);
         try {
@@ -343,21 +514,32 @@ class BackupOp implements Closeable {
             throw new BackupException("There were some KeyStore items but they couldn't be cached before taking a backup.");
         }
         String keyStorePrefix = KEYSTORE_PREFIX + getExt(mMetadata.tarType);
-        Path[] backedUpKeyStoreFiles;
+        Path[] backedUpKeyStoreFiles = null;
         try {
-            backedUpKeyStoreFiles = TarUtils.create(mMetadata.tarType, cachePath, mTempBackupPath, keyStorePrefix,
-                            keyStoreFilters.toArray(new String[0]), null, null, false)
-                    .toArray(new Path[0]);
+            if (mStreamingBackup) {
+                String[] filters = keyStoreFilters.toArray(new String[0]);
+                backupStreaming(keyStorePrefix, (os, type) -> TarUtils.create(type, cachePath, os, filters, null,
+                        false, mCompressionThreads));
+            } else {
+                backedUpKeyStoreFiles = TarUtils.create(mMetadata.tarType, cachePath, mTempBackupPath, keyStorePrefix,
+                                keyStoreFilters.toArray(new String[0]), null, null, false)
+                        .toArray(new Path[0]);
+            }
         } catch (Throwable th) {
             throw new BackupException("Could not backup KeyStore item.", th);
-        }
-        // Remove cache
-        for (String name : cachedKeyStoreFileNames) {
-            try {
-                cachePath.findFile(name).delete();
-            } catch (FileNotFoundException ignore) {
+        } finally {
+            // Remove cache
+            for (String name : cachedKeyStoreFileNames) {
+                try {
+                    cachePath.findFile(name).delete();
+                } catch (FileNotFoundException ignore) {
+                }
             }
         }
+        if (backedUpKeyStoreFiles == null) {
+            // Already encrypted and checksummed
+            return;
+        }
         try {
             backedUpKeyStoreFiles = encrypt(backedUpKeyStoreFiles);
         } catch (IOException e) {
@@ -507,6 +689,47 @@ class BackupOp implements Closeable {
         }
     }
 
+    private interface ArchiveWriter {
+        /**
+         * Write the archive to the given stream and close it.
+         *
+         * @param type Compression type, or {@code null} if the stream compresses the archive itself
+         */
+        void write(@NonNull OutputStream os, @Nullable @TarUtils.TarType String type) throws IOException;
+    }
+
+    /**
+     * Archive and split, encrypt and checksum the archive in a single pass, i.e. each byte of the source is read once
+     * and each byte of the backup is written once. The resulting files are identical to the ones produced by
+     * {@link TarUtils#create} followed by {@link #encrypt(Path[])}, since each part is encrypted independently. If the
+     * backup is deduplicated, the uncompressed app files and data are chunked instead, and only the chunk index is
+     * written.
+     */
+    private void backupStreaming(@NonNull String filePrefix, @NonNull ArchiveWriter writer) throws IOException {
+        if (mDeduplicate && (filePrefix.startsWith(SOURCE_PREFIX) || filePrefix.startsWith(DATA_PREFIX))) {
+            // Same name as the first part written by SplitOutputStream
+            String filename = filePrefix + ".0";
+            ChunkStore.ChunkOutputStream cos = new ChunkStore.ChunkOutputStream(mTempBackupPath, filename,
+                    mMetadata.tarType, mMetadata.checksumAlgo);
+            writer.write(cos, null);
+            mChecksum.add(filename, cos.getHexDigest());
+            return;
+        }
+        List<HexDigestOutputStream> digestStreams = new ArrayList<>(1);
+        SplitOutputStream sos = new SplitOutputStream(mTempBackupPath, filePrefix, TarUtils.DEFAULT_SPLIT_SIZE,
+                CryptoUtils.getExtension(mMetadata.crypto), (file, os) -> {
+            // Checksums are always calculated from the encrypted files
+            HexDigestOutputStream dos = new HexDigestOutputStream(os, mMetadata.checksumAlgo);
+            digestStreams.add(dos);
+            return mCrypto.wrapEncryptionStream(dos);
+        });
+        writer.write(sos, mMetadata.tarType);
+        List<Path> files = sos.getFiles();
+        for (int i = 0; i < files.size(); ++i) {
+            mChecksum.add(files.get(i).getName(), digestStreams.get(i).getHexDigest());
+        }
+    }
+
     @NonNull
     private Path[] encrypt(@NonNull Path[] files) throws IOException {
         synchronized (Crypto.class) {
@@ -16,6 +16,7 @@ import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -24,13 +25,17 @@ import java.util.List;
 import java.util.Locale;
 import java.util.regex.Pattern;
 
+import io.github.muntashirakon.AppManager.db.AppsDb;
+import io.github.muntashirakon.AppManager.db.dao.DirectoryHashDao;
 import io.github.muntashirakon.AppManager.db.entity.Backup;
+import io.github.muntashirakon.AppManager.db.entity.DirectoryHash;
 import io.github.muntashirakon.AppManager.db.utils.AppDb;
 import io.github.muntashirakon.AppManager.logcat.helper.SaveLogHelper;
 import io.github.muntashirakon.AppManager.logs.Log;
 import io.github.muntashirakon.AppManager.misc.OsEnvironment;
 import io.github.muntashirakon.AppManager.types.PackageChangeReceiver;
 import io.github.muntashirakon.AppManager.users.Users;
+import io.github.muntashirakon.AppManager.utils.DigestUtils;
 import io.github.muntashirakon.AppManager.utils.Utils;
 import io.github.muntashirakon.io.Path;
 import io.github.muntashirakon.io.Paths;
@@ -45,7 +50,7 @@ public final class BackupUtils {
     }
 
     @NonNull
-    private static List<Path> getBackupPaths() {
+    static List<Path> getBackupPaths() {
         Path baseDirectory = BackupFiles.getBaseDirectory();
         List<Path> backupPaths;
         Path[] paths = baseDirectory.listFiles(Path::isDirectory);
@@ -64,6 +69,9 @@ public final class BackupUtils {
             if (BackupFiles.TEMPORARY_DIRECTORY.equals(path.getName())) {
                 continue;
             }
+            if (BackupFiles.CHUNK_STORE_DIRECTORY.equals(path.getName())) {
+                continue;
+            }
             // Other backups can store multiple backups per folder
             backupPaths.addAll(Arrays.asList(path.listFiles(Path::isDirectory)));
         }
@@ -77,20 +85,12 @@ public final class BackupUtils {
     public static HashMap<String, Backup> storeAllAndGetLatestBackupMetadata() {
         AppDb appDb = new AppDb();
         HashMap<String, Backup> backupMetadata = new HashMap<>();
-        HashMap<String, List<MetadataManager.Metadata>> allBackupMetadata = getAllMetadata();
-        List<Backup> backups = new ArrayList<>();
-        for (List<MetadataManager.Metadata> metadataList : allBackupMetadata.values()) {
-            if (metadataList.size() == 0) continue;
-            Backup latestBackup = null;
-            Backup backup;
-            for (MetadataManager.Metadata metadata : metadataList) {
-                backup = Backup.fromBackupMetadata(metadata);
-                backups.add(backup);
-                if (latestBackup == null || backup.backupTime > latestBackup.backupTime) {
-                    latestBackup = backup;
-                }
+        List<Backup> backups = BackupCatalog.getAllBackups();
+        for (Backup backup : backups) {
+            Backup latestBackup = backupMetadata.get(backup.packageName);
+            if (latestBackup == null || backup.backupTime > latestBackup.backupTime) {
+                backupMetadata.put(backup.packageName, backup);
             }
-            backupMetadata.put(latestBackup.packageName, latestBackup);
         }
         appDb.deleteAllBackups();
         appDb.insertBackups(backups);
@@ -163,29 +163,6 @@ public final class BackupUtils {
         return latestBackup;
     }
 
-    /**
-     * Retrieves all metadata for all packages
-     */
-    @WorkerThread
-    @NonNull
-    public static HashMap<String, List<MetadataManager.Metadata>> getAllMetadata() {
-        HashMap<String, List<MetadataManager.Metadata>> backupMetadata = new HashMap<>();
-        List<Path> backupPaths = getBackupPaths();
-        for (Path backupPath : backupPaths) {
-            try {
-                MetadataManager.Metadata metadata = MetadataManager.getMetadata(backupPath);
-                if (!backupMetadata.containsKey(metadata.packageName)) {
-                    backupMetadata.put(metadata.packageName, new ArrayList<>());
-                }
-                //noinspection ConstantConditions
-                backupMetadata.get(metadata.packageName).add(metadata);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return backupMetadata;
-    }
-
     @Nullable
     public static String getShortBackupName(@NonNull String backupFileName) {
         if (TextUtils.isDigitsOnly(backupFileName)) {
@@ -222,6 +199,76 @@ public final class BackupUtils {
         }
     }
 
+    /**
+     * Store the fingerprint of the given data directories. The fingerprint only depends on the attributes of the files,
+     * so the directories aren't read again right after they have been archived. The content hash is cleared if the
+     * fingerprint has changed since it no longer describes the directory.
+     */
+    @WorkerThread
+    static void updateDataDirectoryHashes(@NonNull String[] dataDirs) {
+        DirectoryHashDao dao = AppsDb.getInstance().directoryHashDao();
+        for (String dir : dataDirs) {
+            Path dataDir = Paths.get(dir);
+            List<Path> files = getFilesForHashing(dataDir);
+            String fingerprint = getDataDirectoryFingerprint(dataDir, files);
+            DirectoryHash directoryHash = dao.get(dir);
+            if (directoryHash != null && fingerprint.equals(directoryHash.fingerprint)) {
+                // Unchanged
+                continue;
+            }
+            directoryHash = new DirectoryHash();
+            directoryHash.path = dir;
+            directoryHash.fingerprint = fingerprint;
+            directoryHash.hash = "";
+            dao.insert(directoryHash);
+        }
+    }
+
+    /**
+     * Whether the contents of the given data directory have changed since it was last backed up. The directory is
+     * only read fully if the fingerprint has changed, e.g. a file was touched or modified, and a content hash is known.
+     *
+     * @return {@code true} if modified or there is no record for this directory
+     */
+    @WorkerThread
+    public static boolean isDataDirectoryModified(@NonNull String dir) {
+        DirectoryHashDao dao = AppsDb.getInstance().directoryHashDao();
+        DirectoryHash directoryHash = dao.get(dir);
+        if (directoryHash == null) {
+            return true;
+        }
+        Path dataDir = Paths.get(dir);
+        List<Path> files = getFilesForHashing(dataDir);
+        String fingerprint = getDataDirectoryFingerprint(dataDir, files);
+        if (fingerprint.equals(directoryHash.fingerprint)) {
+            return false;
+        }
+        if (directoryHash.hash.isEmpty()) {
+            // Only the fingerprint is known
+            return true;
+        }
+        if (!directoryHash.hash.equals(DigestUtils.getHexDigest(DigestUtils.SHA_256, files))) {
+            return true;
+        }
+        // Only the attributes have changed, store the new fingerprint to avoid hashing again
+        directoryHash.fingerprint = fingerprint;
+        dao.insert(directoryHash);
+        return false;
+    }
+
+    @NonNull
+    private static List<Path> getFilesForHashing(@NonNull Path dataDir) {
+        // Caches aren't interesting
+        return Paths.getAll(dataDir, dataDir, null, getExcludeDirs(true, null), false);
+    }
+
+    @NonNull
+    private static String getDataDirectoryFingerprint(@NonNull Path dataDir, @NonNull List<Path> files) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BackupManifest.fromFiles(dataDir, files).write(os);
+        return DigestUtils.getHexDigest(DigestUtils.SHA_256, os.toByteArray());
+    }
+
     @NonNull
     static String[] getExcludeDirs(boolean includeCache, @Nullable String[] others) {
         // Lib dirs has to be ignored by default
@@ -0,0 +1,408 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import aosp.libcore.util.HexEncoding;
+import io.github.muntashirakon.AppManager.logs.Log;
+import io.github.muntashirakon.AppManager.utils.DigestUtils;
+import io.github.muntashirakon.AppManager.utils.HexDigestOutputStream;
+import io.github.muntashirakon.AppManager.utils.ParallelCompressorOutputStream;
+import io.github.muntashirakon.AppManager.utils.TarUtils;
+import io.github.muntashirakon.io.Path;
+
+/**
+ * A content-addressed store of backup chunks shared by all the backups in {@link BackupFiles#getBaseDirectory()}.
+ * <p>
+ * An archive is split into variable-size chunks using a rolling (gear) hash before it is compressed so that the same
+ * content produces the same chunks even if it is shifted, e.g. identical APK files of the same app installed in
+ * multiple users. Each chunk is then compressed on its own, stored once, named after its SHA-256 digest, and the
+ * backup only keeps a small index listing its chunks. The index has the name of the archive with
+ * {@link #CHUNK_INDEX_SUFFIX} appended. Chunks that are no longer referenced by any index are removed by
+ * {@link #collectGarbage()}.
+ * <p>
+ * Since encrypted backups use a random IV, their contents are never identical. So, only unencrypted backups are stored
+ * in chunks.
+ */
+public class ChunkStore {
+    public static final String TAG = ChunkStore.class.getSimpleName();
+
+    public static final String CHUNK_INDEX_SUFFIX = ".am.chunks";
+
+    private static final String INDEX_HEADER = "AMCHUNKS\t1";
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;  // 256 KiB
+    private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;  // 4 MiB
+    // A boundary is found every 1 MiB on average after the minimum chunk size. The high bits are used since they
+    // depend on the last 64 bytes whereas the low bits only depend on the last few bytes.
+    private static final long BOUNDARY_MASK = ((1L << 20) - 1) << 44;
+    // Chunks younger than this are never collected as they may belong to a backup that is still being written
+    private static final long GC_GRACE_PERIOD = 24 * 60 * 60 * 1000;  // 1 day
+
+    private static final long[] GEAR = new long[256];
+    // Reused chunks whose timestamps could not be refreshed, e.g. on some storage providers. They are protected from
+    // the garbage collection of this process until an index referencing them is found.
+    private static final Set<String> sUnstampedChunks = Collections.synchronizedSet(new HashSet<>());
+
+    static {
+        // The table must never change, otherwise the same content would produce different chunks
+        Random random = new Random(0x4170704d616e6167L);
+        for (int i = 0; i < GEAR.length; ++i) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public static boolean isChunkIndex(@NonNull Path file) {
+        return file.getName().endsWith(CHUNK_INDEX_SUFFIX);
+    }
+
+    /**
+     * Get the name of the original file, i.e. the name that is stored in the checksums.
+     */
+    @NonNull
+    public static String getOriginalName(@NonNull Path file) {
+        String name = file.getName();
+        if (name.endsWith(CHUNK_INDEX_SUFFIX)) {
+            return name.substring(0, name.length() - CHUNK_INDEX_SUFFIX.length());
+        }
+        return name;
+    }
+
+    public static boolean hasChunkIndex(@NonNull Path backupPath) {
+        return backupPath.listFiles((dir, name) -> name.endsWith(CHUNK_INDEX_SUFFIX)).length > 0;
+    }
+
+    /**
+     * Open the chunks listed in a chunk index as a single stream. The index stream is read completely and closed.
+     */
+    @WorkerThread
+    @NonNull
+    public static InputStream openChunks(@NonNull InputStream indexStream) throws IOException {
+        List<String> chunkNames = new ArrayList<>();
+        try {
+            readIndex(indexStream, chunkNames);
+        } finally {
+            indexStream.close();
+        }
+        return new ChunkInputStream(getStoreDirectory(), chunkNames);
+    }
+
+    /**
+     * Get the total size of the chunks referenced by the chunk indexes of the given backup. Chunks shared with other
+     * backups are counted as well.
+     */
+    @WorkerThread
+    public static long getReferencedSize(@NonNull Path backupPath) throws IOException {
+        long size = 0;
+        for (Path indexFile : backupPath.listFiles((dir, name) -> name.endsWith(CHUNK_INDEX_SUFFIX))) {
+            try (InputStream is = indexFile.openInputStream()) {
+                size += readIndex(is, new ArrayList<>());
+            }
+        }
+        return size;
+    }
+
+    @NonNull
+    private static Path getStoreDirectory() throws IOException {
+        return BackupFiles.getBaseDirectory().findOrCreateDirectory(BackupFiles.CHUNK_STORE_DIRECTORY);
+    }
+
+    /**
+     * Read the names of the chunks listed in a chunk index.
+     *
+     * @return Total size of the listed chunks
+     */
+    private static long readIndex(@NonNull InputStream is, @NonNull Collection<String> chunkNames) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        if (!INDEX_HEADER.equals(reader.readLine())) {
+            throw new IOException("Invalid chunk index.");
+        }
+        long totalSize = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            String[] parts = line.split("\t", 2);
+            if (parts.length != 2 || !isValidChunkName(parts[0])) {
+                throw new IOException("Invalid line in chunk index: " + line);
+            }
+            try {
+                totalSize += Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid line in chunk index: " + line, e);
+            }
+            chunkNames.add(parts[0]);
+        }
+        return totalSize;
+    }
+
+    private static boolean isValidChunkName(@NonNull String name) {
+        if (name.length() != 64) return false;
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private static String putChunk(@NonNull Path storeDir, @NonNull byte[] chunk, @NonNull MessageDigest digest)
+            throws IOException {
+        String name = HexEncoding.encodeToString(digest.digest(chunk), false /* lowercase */);
+        Path dir = storeDir.findOrCreateDirectory(name.substring(0, 2));
+        if (dir.hasFile(name)) {
+            // Already stored. Refresh the timestamp so that it is not collected before the index is written.
+            if (!dir.findFile(name).setLastModified(System.currentTimeMillis())) {
+                Log.w(TAG, "Could not refresh the timestamp of chunk %s", name);
+                sUnstampedChunks.add(name);
+            }
+            return name;
+        }
+        // Write to a temporary file first so that a partially written chunk is never used
+        Path tmpFile = dir.createNewFile(name + "." + Thread.currentThread().getId() + ".tmp", null);
+        try (OutputStream os = tmpFile.openOutputStream()) {
+            os.write(chunk);
+        }
+        if (!tmpFile.renameTo(name)) {
+            // Possibly stored by another thread in the meantime
+            tmpFile.delete();
+            if (!dir.hasFile(name)) {
+                throw new IOException("Could not store chunk " + name);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Delete the chunks that are not referenced by any backup.
+     *
+     * @return Number of deleted chunks
+     */
+    @WorkerThread
+    public static int collectGarbage() {
+        Path storeDir;
+        try {
+            storeDir = BackupFiles.getBaseDirectory().findFile(BackupFiles.CHUNK_STORE_DIRECTORY);
+        } catch (IOException e) {
+            // No chunks
+            return 0;
+        }
+        Set<String> referencedChunks = new HashSet<>();
+        for (Path backupPath : BackupUtils.getBackupPaths()) {
+            for (Path indexFile : backupPath.listFiles((dir, name) -> name.endsWith(CHUNK_INDEX_SUFFIX))) {
+                try (InputStream is = indexFile.openInputStream()) {
+                    readIndex(is, referencedChunks);
+                } catch (IOException e) {
+                    // Cannot tell which chunks are in use
+                    Log.e(TAG, "Could not read " + indexFile + ", aborting garbage collection.", e);
+                    return 0;
+                }
+            }
+        }
+        sUnstampedChunks.removeAll(referencedChunks);
+        long gcBefore = System.currentTimeMillis() - GC_GRACE_PERIOD;
+        int deletedCount = 0;
+        for (Path dir : storeDir.listFiles(Path::isDirectory)) {
+            for (Path chunk : dir.listFiles()) {
+                String name = chunk.getName();
+                if (referencedChunks.contains(name) || sUnstampedChunks.contains(name)
+                        || chunk.lastModified() > gcBefore) {
+                    continue;
+                }
+                if (chunk.delete()) {
+                    ++deletedCount;
+                }
+            }
+        }
+        Log.i(TAG, "Deleted %d unused chunks", deletedCount);
+        return deletedCount;
+    }
+
+    /**
+     * Split an uncompressed archive into chunks while it is being written, and store the new chunks. Each chunk is
+     * compressed on its own, so the chunks form a stream of concatenated gzip members, bzip2 streams or zstd frames,
+     * the same way as {@link ParallelCompressorOutputStream}. When the stream is closed, the chunk index is written
+     * to the given file with {@link #CHUNK_INDEX_SUFFIX} appended.
+     */
+    @WorkerThread
+    public static class ChunkOutputStream extends OutputStream {
+        @NonNull
+        private final Path mStoreDir;
+        @NonNull
+        private final Path mIndexFile;
+        @TarUtils.TarType
+        @NonNull
+        private final String mType;
+        @NonNull
+        private final MessageDigest mChunkDigest;
+        // Checksum of the compressed stream, i.e. of the file the index stands for
+        @NonNull
+        private final HexDigestOutputStream mDigestStream;
+        private final List<String> mIndexLines = new ArrayList<>();
+        private final byte[] mChunk = new byte[MAX_CHUNK_SIZE];
+        private int mChunkSize;
+        private long mHash;
+        private boolean mClosed;
+
+        public ChunkOutputStream(@NonNull Path dir, @NonNull String filename, @TarUtils.TarType @NonNull String type,
+                                 @DigestUtils.Algorithm @NonNull String checksumAlgo) throws IOException {
+            mStoreDir = getStoreDirectory();
+            mIndexFile = dir.createNewFile(filename + CHUNK_INDEX_SUFFIX, null);
+            mType = type;
+            try {
+                mChunkDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            mDigestStream = new HexDigestOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    // Only the digest is needed
+                }
+
+                @Override
+                public void write(@NonNull byte[] b, int off, int len) {
+                    // Only the digest is needed
+                }
+            }, checksumAlgo);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (mClosed) {
+                throw new IOException("Stream closed");
+            }
+            for (int i = off; i < off + len; ++i) {
+                mHash = (mHash << 1) + GEAR[b[i] & 0xff];
+                mChunk[mChunkSize++] = b[i];
+                if ((mChunkSize >= MIN_CHUNK_SIZE && (mHash & BOUNDARY_MASK) == 0) || mChunkSize == MAX_CHUNK_SIZE) {
+                    putNextChunk();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                // An empty archive must still be a valid compressed stream
+                if (mChunkSize > 0 || mIndexLines.isEmpty()) {
+                    putNextChunk();
+                }
+                try (OutputStream os = mIndexFile.openOutputStream()) {
+                    PrintWriter writer = new PrintWriter(os);
+                    writer.println(INDEX_HEADER);
+                    for (String line : mIndexLines) {
+                        writer.println(line);
+                    }
+                    writer.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                mIndexFile.delete();
+                throw e;
+            }
+        }
+
+        /**
+         * The index file, available after the stream is closed.
+         */
+        @NonNull
+        public Path getIndexFile() {
+            return mIndexFile;
+        }
+
+        /**
+         * Checksum of the file the index stands for, available after the stream is closed.
+         */
+        @NonNull
+        public String getHexDigest() {
+            return mDigestStream.getHexDigest();
+        }
+
+        private void putNextChunk() throws IOException {
+            byte[] chunk = ParallelCompressorOutputStream.compress(mType, mChunk, 0, mChunkSize);
+            mDigestStream.write(chunk);
+            mIndexLines.add(putChunk(mStoreDir, chunk, mChunkDigest) + "\t" + chunk.length);
+            mChunkSize = 0;
+            mHash = 0;
+        }
+    }
+
+    private static class ChunkInputStream extends InputStream {
+        @NonNull
+        private final Path mStoreDir;
+        @NonNull
+        private final List<String> mChunkNames;
+        private int mNextChunk;
+        @Nullable
+        private InputStream mCurrentStream;
+
+        ChunkInputStream(@NonNull Path storeDir, @NonNull List<String> chunkNames) {
+            mStoreDir = storeDir;
+            mChunkNames = Collections.unmodifiableList(chunkNames);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int readCount = read(b, 0, 1);
+            return readCount == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (true) {
+                if (mCurrentStream == null) {
+                    if (mNextChunk == mChunkNames.size()) {
+                        return -1;
+                    }
+                    String name = mChunkNames.get(mNextChunk++);
+                    mCurrentStream = mStoreDir.findFile(name.substring(0, 2)).findFile(name).openInputStream();
+                }
+                int readCount = mCurrentStream.read(b, off, len);
+                if (readCount != -1) {
+                    return readCount;
+                }
+                mCurrentStream.close();
+                mCurrentStream = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mCurrentStream != null) {
+                mCurrentStream.close();
+                mCurrentStream = null;
+            }
+            mNextChunk = mChunkNames.size();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.muntashirakon.AppManager.crypto.Crypto;
+import io.github.muntashirakon.AppManager.utils.DigestUtils;
+import io.github.muntashirakon.AppManager.utils.HexDigestInputStream;
+import io.github.muntashirakon.io.IoUtils;
+import io.github.muntashirakon.io.Path;
+import io.github.muntashirakon.io.SplitInputStream;
+
+/**
+ * Read the encrypted parts of a backup as a single decrypted stream without creating any intermediate files. The
+ * checksum of each part is calculated in the same pass, and verified after the stream is read completely. The
+ * authentication tag of each part (if any) is checked by the crypto when the end of the part is reached. Parts that
+ * are moved to the {@link ChunkStore} are read from their chunks.
+ */
+@WorkerThread
+class EncryptedSplitReader {
+    interface StreamReader {
+        void read(@NonNull InputStream is) throws IOException;
+    }
+
+    @NonNull
+    private final Crypto mCrypto;
+    @DigestUtils.Algorithm
+    @NonNull
+    private final String mChecksumAlgo;
+    @Nullable
+    private final BackupFiles.Checksum mChecksum;
+
+    /**
+     * @param checksum Checksums of the encrypted files, or {@code null} to skip the verification
+     * @throws UnsupportedOperationException if the crypto does not support streaming
+     */
+    EncryptedSplitReader(@NonNull Crypto crypto, @DigestUtils.Algorithm @NonNull String checksumAlgo,
+                         @Nullable BackupFiles.Checksum checksum) {
+        if (!crypto.supportsStreaming()) {
+            throw new UnsupportedOperationException("Crypto " + crypto.getClass().getSimpleName()
+                    + " does not support streaming.");
+        }
+        mCrypto = crypto;
+        mChecksumAlgo = checksumAlgo;
+        mChecksum = checksum;
+    }
+
+    /**
+     * Read the given files in order as a single decrypted stream.
+     *
+     * @param reader Reader of the decrypted stream, or {@code null} if only the files have to be verified. The reader
+     *               may stop reading before the end of the stream.
+     */
+    void read(@NonNull Path[] files, @Nullable StreamReader reader) throws IOException, BackupException {
+        List<HexDigestInputStream> digestStreams = new ArrayList<>(files.length);
+        try (SplitInputStream sis = new SplitInputStream(Arrays.asList(files), (file, is) -> {
+            if (ChunkStore.isChunkIndex(file)) {
+                // The file only lists the chunks of the original file
+                is = ChunkStore.openChunks(is);
+            }
+            HexDigestInputStream dis = new HexDigestInputStream(is, mChecksumAlgo);
+            digestStreams.add(dis);
+            return mCrypto.wrapDecryptionStream(dis);
+        })) {
+            if (reader != null) {
+                reader.read(sis);
+            }
+            // The reader may stop before the end of the last file (e.g. at the end of a tar archive). The rest has
+            // to be read so that each file is digested completely and its authentication tag is checked.
+            byte[] buf = new byte[IoUtils.DEFAULT_BUFFER_SIZE];
+            while (sis.read(buf) != -1) {
+                // Discard
+            }
+        }
+        if (mChecksum == null) {
+            return;
+        }
+        for (int i = 0; i < files.length; ++i) {
+            String checksum = i < digestStreams.size() ? digestStreams.get(i).getHexDigest() : null;
+            String requiredChecksum = mChecksum.get(ChunkStore.getOriginalName(files[i]));
+            if (checksum == null || !checksum.equals(requiredChecksum)) {
+                throw new BackupException("File verification failed." +
+                        "\nFile: " + files[i].getName() +
+                        "\nFound: " + checksum +
+                        "\nRequired: " + requiredChecksum);
+            }
+        }
+    }
+}
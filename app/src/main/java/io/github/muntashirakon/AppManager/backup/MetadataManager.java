@@ -18,6 +18,7 @@ import android.text.TextUtils;
 import android.text.format.Formatter;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 import androidx.core.content.pm.PackageInfoCompat;
 
@@ -100,6 +101,9 @@ public final class MetadataManager {
         public String tarType;  // tar_type
         public boolean keyStore;  // key_store
         public String installer;  // installer
+        @Nullable
+        public String baseBackup;  // base_backup (only for incremental backups, name of the backup this one is based on)
+        public long backupSize;  // backup_size (size of the backup files, 0 if unknown)
 
         public Metadata() {
         }
@@ -139,9 +143,12 @@ public final class MetadataManager {
             tarType = metadata.tarType;
             keyStore = metadata.keyStore;
             installer = metadata.installer;
+            baseBackup = metadata.baseBackup;
+            backupSize = metadata.backupSize;
         }
 
         public long getBackupSize() {
+            if (backupSize > 0) return backupSize;
             if (backupFile == null) return 0L;
             return Paths.size(backupFile.getBackupPath());
         }
@@ -260,6 +267,8 @@ public final class MetadataManager {
             mMetadata.tarType = rootObject.getString("tar_type");
             mMetadata.keyStore = rootObject.getBoolean("key_store");
             mMetadata.installer = JSONUtils.getString(rootObject, "installer", BuildConfig.APPLICATION_ID);
+            mMetadata.baseBackup = JSONUtils.getString(rootObject, "base_backup", null);
+            mMetadata.backupSize = rootObject.optLong("backup_size", 0);
         } catch (JSONException e) {
             throw new IOException(e.getMessage() + " for path " + backupFile.getBackupPath());
         }
@@ -313,6 +322,8 @@ public final class MetadataManager {
             rootObject.put("tar_type", mMetadata.tarType);
             rootObject.put("key_store", mMetadata.keyStore);
             rootObject.put("installer", mMetadata.installer);
+            rootObject.put("base_backup", mMetadata.baseBackup);
+            rootObject.put("backup_size", mMetadata.backupSize);
             outputStream.write(rootObject.toString(4).getBytes());
         } catch (JSONException e) {
             throw new IOException(e.getMessage() + " for path " + backupFile.getBackupPath());
@@ -25,6 +25,7 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -62,13 +63,16 @@ import io.github.muntashirakon.AppManager.rules.struct.SsaidRule;
 import io.github.muntashirakon.AppManager.rules.struct.UriGrantRule;
 import io.github.muntashirakon.AppManager.runner.Runner;
 import io.github.muntashirakon.AppManager.self.SelfPermissions;
+import io.github.muntashirakon.AppManager.settings.Prefs;
 import io.github.muntashirakon.AppManager.ssaid.SsaidSettings;
 import io.github.muntashirakon.AppManager.uri.UriManager;
+import io.github.muntashirakon.AppManager.utils.ArrayUtils;
 import io.github.muntashirakon.AppManager.utils.DigestUtils;
 import io.github.muntashirakon.AppManager.utils.KeyStoreUtils;
 import io.github.muntashirakon.AppManager.utils.PackageUtils;
 import io.github.muntashirakon.AppManager.utils.TarUtils;
 import io.github.muntashirakon.AppManager.utils.Utils;
+import io.github.muntashirakon.io.ExtendedFile;
 import io.github.muntashirakon.io.Path;
 import io.github.muntashirakon.io.Paths;
 import io.github.muntashirakon.io.UidGidPair;
@@ -77,6 +81,7 @@ import io.github.muntashirakon.io.UidGidPair;
 class RestoreOp implements Closeable {
     static final String TAG = RestoreOp.class.getSimpleName();
     private static final Object sLock = new Object();
+    private static final String STAGING_DIR_SUFFIX = ".am-restore";
 
     @NonNull
     private final String mPackageName;
@@ -99,6 +104,11 @@ class RestoreOp implements Closeable {
     private final int mUserId;
     private boolean mIsInstalled;
     private final List<Path> mDecryptedFiles = new ArrayList<>();
+    // Whether data is decrypted, verified and extracted in a single pass
+    private final boolean mStreamingRestore;
+    // Only for incremental backups
+    @Nullable
+    private RestoreOp mBaseRestoreOp;
 
     private boolean mRequiresRestart;
 
@@ -126,6 +136,9 @@ class RestoreOp implements Closeable {
         } catch (CryptoException e) {
             throw new BackupException("Failed to get crypto " + mMetadata.crypto, e);
         }
+        // Deduplicated backups can only be read as streams
+        mStreamingRestore = mCrypto.supportsStreaming() && (Prefs.BackupRestore.useStreamingBackup()
+                || ChunkStore.hasChunkIndex(mBackupPath));
         Path checksumFile;
         try {
             checksumFile = mBackupFile.getChecksumFile(mMetadata.crypto);
@@ -183,6 +196,9 @@ class RestoreOp implements Closeable {
             Log.d(TAG, "Deleting %s", file);
             file.delete();
         }
+        if (mBaseRestoreOp != null) {
+            mBaseRestoreOp.close();
+        }
     }
 
     @NonNull
@@ -279,7 +295,7 @@ class RestoreOp implements Closeable {
                 }
             }
         }
-        if (!mRequestedFlags.skipSignatureCheck()) {
+        if (!mRequestedFlags.skipSignatureCheck() && !mStreamingRestore) {
             String checksum;
             for (Path file : backupSourceFiles) {
                 checksum = DigestUtils.getHexDigest(mMetadata.checksumAlgo, file);
@@ -291,16 +307,6 @@ class RestoreOp implements Closeable {
                 }
             }
         }
-        if (!isVerified) {
-            // Signature verification failed but still here because signature check is disabled.
-            // The only way to restore is to reinstall the app
-            synchronized (sLock) {
-                PackageInstallerCompat installer = PackageInstallerCompat.getNewInstance();
-                if (installer.uninstall(mPackageName, mUserId, false)) {
-                    throw new BackupException("An uninstallation was necessary but couldn't perform it.");
-                }
-            }
-        }
         // Setup package staging directory
         Path packageStagingDirectory = Paths.get(PackageUtils.PACKAGE_STAGING_DIRECTORY);
         try {
@@ -328,17 +334,38 @@ class RestoreOp implements Closeable {
             } catch (IOException e) {
                 throw new BackupException("Could not create staging files", e);
             }
-            // Decrypt sources
-            try {
-                backupSourceFiles = decrypt(backupSourceFiles);
-            } catch (IOException e) {
-                throw new BackupException("Failed to decrypt " + Arrays.toString(backupSourceFiles), e);
+            Path finalPackageStagingDirectory = packageStagingDirectory;
+            if (mStreamingRestore) {
+                // Decrypt, verify and extract apk files to the package staging directory in a single pass
+                try {
+                    readStreaming(backupSourceFiles, is -> TarUtils.extract(mMetadata.tarType, is,
+                            finalPackageStagingDirectory, allApkNames, null, null));
+                } catch (BackupException e) {
+                    throw e;
+                } catch (Throwable th) {
+                    throw new BackupException("Failed to extract the apk file(s).", th);
+                }
+            } else {
+                // Decrypt sources
+                try {
+                    backupSourceFiles = decrypt(backupSourceFiles);
+                } catch (IOException e) {
+                    throw new BackupException("Failed to decrypt " + Arrays.toString(backupSourceFiles), e);
+                }
+                // Extract apk files to the package staging directory
+                try {
+                    TarUtils.extract(mMetadata.tarType, backupSourceFiles, packageStagingDirectory, allApkNames, null, null);
+                } catch (Throwable th) {
+                    throw new BackupException("Failed to extract the apk file(s).", th);
+                }
             }
-            // Extract apk files to the package staging directory
-            try {
-                TarUtils.extract(mMetadata.tarType, backupSourceFiles, packageStagingDirectory, allApkNames, null, null);
-            } catch (Throwable th) {
-                throw new BackupException("Failed to extract the apk file(s).", th);
+            if (!isVerified) {
+                // Signature verification failed but still here because signature check is disabled.
+                // The only way to restore is to reinstall the app
+                PackageInstallerCompat installer = PackageInstallerCompat.getNewInstance();
+                if (installer.uninstall(mPackageName, mUserId, false)) {
+                    throw new BackupException("An uninstallation was necessary but couldn't perform it.");
+                }
             }
             // A normal update will do it now
             InstallerOptions options = new InstallerOptions();
@@ -451,101 +478,290 @@ class RestoreOp implements Closeable {
             throw new BackupException("Data restore is requested but the app isn't installed.");
         }
         if (!mRequestedFlags.skipSignatureCheck()) {
-            // Verify integrity of the data backups
-            String checksum;
+            // Verify integrity of the data backups, including the base backups of an incremental backup. Backups that
+            // are restored in a single pass are verified while they are being extracted.
+            verifyData();
+        }
+        String publicSourceDir = new File(mPackageInfo.applicationInfo.publicSourceDir).getParent();
+        Path[] stagingDirs = new Path[mMetadata.dataDirs.length];
+        // Extract the data to the staging directories first, including the base backups of an incremental backup.
+        // Since the checksums and the authentication tags of a streaming restore can only be checked at the end of the
+        // stream, the app data is only cleared after all of them are extracted successfully.
+        try {
             for (int i = 0; i < mMetadata.dataDirs.length; ++i) {
-                Path[] dataFiles = getDataFiles(mBackupPath, i);
-                if (dataFiles.length == 0) {
-                    throw new BackupException("Data restore is requested but there are no data files for index " + i + ".");
-                }
-                for (Path file : dataFiles) {
-                    checksum = DigestUtils.getHexDigest(mMetadata.checksumAlgo, file);
-                    if (!checksum.equals(mChecksum.get(file.getName()))) {
-                        throw new BackupException("Data file verification failed for index " + i + "." +
-                                "\nFile: " + file +
-                                "\nFound: " + checksum +
-                                "\nRequired: " + mChecksum.get(file.getName()));
-                    }
+                String dataSource = BackupUtils.getWritableDataDirectory(mMetadata.dataDirs[i], mMetadata.userHandle, mUserId);
+                BackupDataDirectoryInfo dataDirectoryInfo = BackupDataDirectoryInfo.getInfo(dataSource, mUserId);
+                if (!isDataDirectoryRequested(dataDirectoryInfo)) {
+                    continue;
                 }
+                stagingDirs[i] = getStagingDirectory(Paths.get(dataSource), dataDirectoryInfo);
+                extractData(i, stagingDirs[i], publicSourceDir);
             }
+        } catch (BackupException e) {
+            // Roll back
+            deleteStagingDirectories(stagingDirs);
+            throw e;
         }
         // Force-stop and clear app data
         PackageManagerCompat.clearApplicationUserData(mPackageName, mUserId);
         // Restore backups
-        for (int i = 0; i < mMetadata.dataDirs.length; ++i) {
-            String dataSource = BackupUtils.getWritableDataDirectory(mMetadata.dataDirs[i], mMetadata.userHandle, mUserId);
-            BackupDataDirectoryInfo dataDirectoryInfo = BackupDataDirectoryInfo.getInfo(dataSource, mUserId);
-            Path dataSourceFile = Paths.get(dataSource);
+        try {
+            for (int i = 0; i < mMetadata.dataDirs.length; ++i) {
+                String dataSource = BackupUtils.getWritableDataDirectory(mMetadata.dataDirs[i], mMetadata.userHandle, mUserId);
+                BackupDataDirectoryInfo dataDirectoryInfo = BackupDataDirectoryInfo.getInfo(dataSource, mUserId);
+                Path dataSourceFile = Paths.get(dataSource);
+
+                UidGidPair uidGidPair = dataSourceFile.getUidGid();
+                if (uidGidPair == null) {
+                    // Fallback to app UID
+                    uidGidPair = new UidGidPair(mPackageInfo.applicationInfo.uid, mPackageInfo.applicationInfo.uid);
+                }
+                if (!isDataDirectoryRequested(dataDirectoryInfo)) {
+                    continue;
+                }
+                // Create data folder if not exists
+                if (!dataSourceFile.exists()) {
+                    if (dataDirectoryInfo.isExternal() && !dataDirectoryInfo.isMounted) {
+                        throw new BackupException("External directory containing " + dataSource + " is not mounted.");
+                    }
+                    dataSourceFile.mkdirs();
+                    if (!dataDirectoryInfo.isExternal()) {
+                        // Restore UID, GID
+                        dataSourceFile.setUidGid(uidGidPair);
+                    }
+                }
+                // Move the extracted data to the data directory
+                try {
+                    moveStagedFiles(stagingDirs[i], dataSourceFile);
+                } catch (IOException e) {
+                    throw new BackupException("Failed to restore data files for index " + i + ".", e);
+                }
+                // Restore UID and GID
+                if (!Runner.runCommand(String.format(Locale.ROOT, "chown -R %d:%d \"%s\"", uidGidPair.uid, uidGidPair.gid, dataSource)).isSuccessful()) {
+                    throw new BackupException("Failed to restore ownership info for index " + i + ".");
+                }
+                // Restore context
+                if (!dataDirectoryInfo.isExternal()) {
+                    Runner.runCommand(new String[]{"restorecon", "-R", dataSource});
+                }
+            }
+        } finally {
+            deleteStagingDirectories(stagingDirs);
+        }
+    }
+
+    private boolean isDataDirectoryRequested(@NonNull BackupDataDirectoryInfo dataDirectoryInfo) {
+        if (dataDirectoryInfo.isExternal()) {
+            // Skip if external data restore is not requested
+            switch (dataDirectoryInfo.subtype) {
+                case BackupDataDirectoryInfo.TYPE_ANDROID_DATA:
+                    // Skip restoring Android/data directory if not requested
+                    return mRequestedFlags.backupExternalData();
+                case BackupDataDirectoryInfo.TYPE_ANDROID_OBB:
+                case BackupDataDirectoryInfo.TYPE_ANDROID_MEDIA:
+                    // Skip restoring Android/data or Android/media if media/obb restore not requested
+                    return mRequestedFlags.backupMediaObb();
+                case BackupDataDirectoryInfo.TYPE_CREDENTIAL_PROTECTED:
+                case BackupDataDirectoryInfo.TYPE_CUSTOM:
+                case BackupDataDirectoryInfo.TYPE_DEVICE_PROTECTED:
+                    // NOP
+                    return true;
+            }
+            return true;
+        }
+        // Skip if internal data restore is not requested.
+        return mRequestedFlags.backupInternalData();
+    }
+
+    /**
+     * Create an empty staging directory next to the data directory so that the staged files can be moved to the data
+     * directory without copying them.
+     */
+    @NonNull
+    private static Path getStagingDirectory(@NonNull Path dataSourceFile,
+                                            @NonNull BackupDataDirectoryInfo dataDirectoryInfo)
+            throws BackupException {
+        if (dataDirectoryInfo.isExternal() && !dataDirectoryInfo.isMounted) {
+            throw new BackupException("External directory containing " + dataSourceFile + " is not mounted.");
+        }
+        String stagingDirName = "." + dataSourceFile.getName() + STAGING_DIR_SUFFIX;
+        try {
+            Path parent = dataSourceFile.requireParent();
+            parent.mkdirs();
+            if (parent.hasFile(stagingDirName)) {
+                // Left over from an interrupted restore
+                parent.findFile(stagingDirName).delete();
+            }
+            return parent.createNewDirectory(stagingDirName);
+        } catch (IOException e) {
+            throw new BackupException("Could not create staging directory for " + dataSourceFile, e);
+        }
+    }
 
+    /**
+     * Move the contents of the staging directory to the data directory, merging the directories that already exist
+     * (e.g. the ones recreated by the system after clearing the app data).
+     */
+    private static void moveStagedFiles(@NonNull Path stagingDir, @NonNull Path dest) throws IOException {
+        for (Path file : stagingDir.listFiles()) {
+            Path target = Paths.build(dest, file.getName());
+            if (target != null && (target.exists() || target.isSymbolicLink())) {
+                if (file.isDirectory() && !file.isSymbolicLink() && target.isDirectory() && !target.isSymbolicLink()) {
+                    moveStagedFiles(file, target);
+                    continue;
+                }
+                target.delete();
+            }
+            // Path#moveTo() resolves symbolic links and cannot move the dangling ones. Since the staging directory is
+            // located next to the data directory, rename(2) is used instead which moves the links themselves.
+            ExtendedFile srcFile = file.getFile();
+            ExtendedFile destDir = dest.getFile();
+            if (srcFile == null || destDir == null || !srcFile.renameTo(destDir.getChildFile(file.getName()))) {
+                throw new IOException("Could not move " + file + " to " + dest);
+            }
+        }
+    }
+
+    private static void deleteStagingDirectories(@NonNull Path[] stagingDirs) {
+        for (Path stagingDir : stagingDirs) {
+            if (stagingDir != null) {
+                Log.d(TAG, "Deleting %s", stagingDir);
+                stagingDir.delete();
+            }
+        }
+    }
+
+    private void verifyData() throws BackupException {
+        String checksum;
+        for (int i = 0; i < mMetadata.dataDirs.length; ++i) {
             Path[] dataFiles = getDataFiles(mBackupPath, i);
             if (dataFiles.length == 0) {
                 throw new BackupException("Data restore is requested but there are no data files for index " + i + ".");
             }
-            UidGidPair uidGidPair = dataSourceFile.getUidGid();
-            if (uidGidPair == null) {
-                // Fallback to app UID
-                uidGidPair = new UidGidPair(mPackageInfo.applicationInfo.uid, mPackageInfo.applicationInfo.uid);
-            }
-            if (dataDirectoryInfo.isExternal()) {
-                // Skip if external data restore is not requested
-                switch (dataDirectoryInfo.subtype) {
-                    case BackupDataDirectoryInfo.TYPE_ANDROID_DATA:
-                        // Skip restoring Android/data directory if not requested
-                        if (!mRequestedFlags.backupExternalData()) {
-                            continue;
-                        }
-                        break;
-                    case BackupDataDirectoryInfo.TYPE_ANDROID_OBB:
-                    case BackupDataDirectoryInfo.TYPE_ANDROID_MEDIA:
-                        // Skip restoring Android/data or Android/media if media/obb restore not requested
-                        if (!mRequestedFlags.backupMediaObb()) {
-                            continue;
-                        }
-                        break;
-                    case BackupDataDirectoryInfo.TYPE_CREDENTIAL_PROTECTED:
-                    case BackupDataDirectoryInfo.TYPE_CUSTOM:
-                    case BackupDataDirectoryInfo.TYPE_DEVICE_PROTECTED:
-                        // NOP
-                        break;
-                }
-            } else {
-                // Skip if internal data restore is not requested.
-                if (!mRequestedFlags.backupInternalData()) continue;
+            if (mStreamingRestore) {
+                // Verified during extraction
+                continue;
             }
-            // Create data folder if not exists
-            if (!dataSourceFile.exists()) {
-                if (dataDirectoryInfo.isExternal() && !dataDirectoryInfo.isMounted) {
-                    throw new BackupException("External directory containing " + dataSource + " is not mounted.");
-                }
-                dataSourceFile.mkdirs();
-                if (!dataDirectoryInfo.isExternal()) {
-                    // Restore UID, GID
-                    dataSourceFile.setUidGid(uidGidPair);
+            if (mMetadata.baseBackup != null) {
+                dataFiles = ArrayUtils.appendElement(Path.class, dataFiles, getManifestFile(i));
+            }
+            for (Path file : dataFiles) {
+                checksum = DigestUtils.getHexDigest(mMetadata.checksumAlgo, file);
+                if (!checksum.equals(mChecksum.get(file.getName()))) {
+                    throw new BackupException("Data file verification failed for index " + i + "." +
+                            "\nFile: " + file +
+                            "\nFound: " + checksum +
+                            "\nRequired: " + mChecksum.get(file.getName()));
                 }
             }
+        }
+        RestoreOp baseRestoreOp = getBaseRestoreOp();
+        if (baseRestoreOp != null) {
+            baseRestoreOp.verifyData();
+        }
+    }
+
+    /**
+     * Extract the data files for the given index. For an incremental backup, the base backups are extracted first,
+     * and then the files that were deleted since the base backup are removed.
+     */
+    private void extractData(int index, @NonNull Path dataSourceFile, @Nullable String publicSourceDir)
+            throws BackupException {
+        RestoreOp baseRestoreOp = getBaseRestoreOp();
+        if (baseRestoreOp != null) {
+            baseRestoreOp.extractData(index, dataSourceFile, publicSourceDir);
+        }
+        Path[] dataFiles = getDataFiles(mBackupPath, index);
+        if (dataFiles.length == 0) {
+            throw new BackupException("Data restore is requested but there are no data files for index " + index + ".");
+        }
+        String[] exclusions = BackupUtils.getExcludeDirs(!mRequestedFlags.backupCache(), null);
+        if (mStreamingRestore) {
+            try {
+                readStreaming(dataFiles, is -> TarUtils.extract(mMetadata.tarType, is, dataSourceFile, null,
+                        exclusions, publicSourceDir));
+            } catch (BackupException e) {
+                throw e;
+            } catch (Throwable th) {
+                throw new BackupException("Failed to restore data files for index " + index + ".", th);
+            }
+        } else {
             // Decrypt data
             try {
                 dataFiles = decrypt(dataFiles);
             } catch (IOException e) {
                 throw new BackupException("Failed to decrypt " + Arrays.toString(dataFiles), e);
             }
-            // Extract data to the data directory
             try {
-                String publicSourceDir = new File(mPackageInfo.applicationInfo.publicSourceDir).getParent();
-                TarUtils.extract(mMetadata.tarType, dataFiles, dataSourceFile, null, BackupUtils
-                        .getExcludeDirs(!mRequestedFlags.backupCache(), null), publicSourceDir);
+                TarUtils.extract(mMetadata.tarType, dataFiles, dataSourceFile, null, exclusions, publicSourceDir);
             } catch (Throwable th) {
-                throw new BackupException("Failed to restore data files for index " + i + ".", th);
+                throw new BackupException("Failed to restore data files for index " + index + ".", th);
+            }
+        }
+        if (mMetadata.baseBackup == null) {
+            return;
+        }
+        // Remove deleted files
+        BackupManifest[] manifest = new BackupManifest[1];
+        try {
+            if (mStreamingRestore) {
+                readStreaming(new Path[]{getManifestFile(index)}, is -> manifest[0] = BackupManifest.read(is));
+            } else {
+                Path manifestFile = decrypt(new Path[]{getManifestFile(index)})[0];
+                try (InputStream is = manifestFile.openInputStream()) {
+                    manifest[0] = BackupManifest.read(is);
+                }
             }
-            // Restore UID and GID
-            if (!Runner.runCommand(String.format(Locale.ROOT, "chown -R %d:%d \"%s\"", uidGidPair.uid, uidGidPair.gid, dataSource)).isSuccessful()) {
-                throw new BackupException("Failed to restore ownership info for index " + i + ".");
+        } catch (IOException e) {
+            throw new BackupException("Failed to read manifest for index " + index + ".", e);
+        }
+        for (String deletedPath : manifest[0].getDeletedPaths()) {
+            String filename = Paths.normalize(deletedPath);
+            if (filename == null || filename.startsWith("../")) {
+                throw new BackupException("Invalid path " + deletedPath + " in manifest for index " + index + ".");
             }
-            // Restore context
-            if (!dataDirectoryInfo.isExternal()) {
-                Runner.runCommand(new String[]{"restorecon", "-R", dataSource});
+            Paths.build(dataSourceFile, filename.split("/")).delete();
+        }
+    }
+
+    private void readStreaming(@NonNull Path[] files, @NonNull EncryptedSplitReader.StreamReader reader)
+            throws IOException, BackupException {
+        new EncryptedSplitReader(mCrypto, mMetadata.checksumAlgo, mRequestedFlags.skipSignatureCheck() ? null
+                : mChecksum).read(files, reader);
+    }
+
+    @NonNull
+    private Path getManifestFile(int index) throws BackupException {
+        String manifestFilename = BackupManifest.getManifestFilename(index) + CryptoUtils.getExtension(mMetadata.crypto);
+        try {
+            return mBackupPath.findFile(manifestFilename);
+        } catch (FileNotFoundException e) {
+            throw new BackupException("Incremental backup has no manifest for index " + index + ".", e);
+        }
+    }
+
+    /**
+     * Get the restore operation for the backup this incremental backup is based on.
+     *
+     * @return {@code null} if this is not an incremental backup or it is the first one in the chain
+     */
+    @Nullable
+    private RestoreOp getBaseRestoreOp() throws BackupException {
+        if (mMetadata.baseBackup == null) {
+            return null;
+        }
+        if (mBaseRestoreOp == null) {
+            BackupFiles.BackupFile baseBackupFile;
+            try {
+                baseBackupFile = new BackupFiles.BackupFile(mBackupPath.requireParent()
+                        .findFile(mMetadata.baseBackup), false);
+            } catch (IOException e) {
+                throw new BackupException("Base backup " + mMetadata.baseBackup + " is missing.", e);
             }
+            mBaseRestoreOp = new RestoreOp(mPackageName, MetadataManager.getNewInstance(), mRequestedFlags,
+                    baseBackupFile, mUserId);
         }
+        return mBaseRestoreOp;
     }
 
     private synchronized void restoreExtras() throws BackupException {
@@ -3,10 +3,12 @@
 package io.github.muntashirakon.AppManager.backup;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -14,7 +16,9 @@ import java.util.List;
 import io.github.muntashirakon.AppManager.crypto.Crypto;
 import io.github.muntashirakon.AppManager.crypto.CryptoException;
 import io.github.muntashirakon.AppManager.logs.Log;
+import io.github.muntashirakon.AppManager.settings.Prefs;
 import io.github.muntashirakon.AppManager.utils.DigestUtils;
+import io.github.muntashirakon.AppManager.utils.TarUtils;
 import io.github.muntashirakon.io.Path;
 
 import static io.github.muntashirakon.AppManager.backup.BackupManager.DATA_PREFIX;
@@ -38,6 +42,9 @@ class VerifyOp implements Closeable {
     @NonNull
     private final BackupFiles.Checksum mChecksum;
     private final List<Path> mDecryptedFiles = new ArrayList<>();
+    // Only in the streaming mode where the files are decrypted and verified in memory
+    @Nullable
+    private final EncryptedSplitReader mSplitReader;
 
     VerifyOp(@NonNull MetadataManager metadataManager, @NonNull BackupFiles.BackupFile backupFile)
             throws BackupException {
@@ -65,21 +72,34 @@ class VerifyOp implements Closeable {
         } catch (IOException e) {
             throw new BackupException("Could not get encrypted checksum.txt file.", e);
         }
-        // Decrypt checksum
-        try {
-            synchronized (Crypto.class) {
-                mCrypto.decrypt(new Path[]{checksumFile});
-                mDecryptedFiles.addAll(Arrays.asList(mCrypto.getNewFiles()));
+        // Deduplicated backups can only be read as streams
+        if (mCrypto.supportsStreaming() && (Prefs.BackupRestore.useStreamingBackup()
+                || ChunkStore.hasChunkIndex(mBackupPath))) {
+            // Decrypt checksums in memory
+            try (InputStream is = mCrypto.wrapDecryptionStream(checksumFile.openInputStream())) {
+                mChecksum = new BackupFiles.Checksum(is);
+            } catch (Throwable e) {
+                throw new BackupException("Could not get checksums.", e);
             }
-        } catch (IOException e) {
-            throw new BackupException("Could not decrypt " + checksumFile.getName(), e);
-        }
-        // Get checksums
-        try {
-            mChecksum = mBackupFile.getChecksum(CryptoUtils.MODE_NO_ENCRYPTION);
-        } catch (Throwable e) {
-            mBackupFile.cleanup();
-            throw new BackupException("Could not get checksums.", e);
+            mSplitReader = new EncryptedSplitReader(mCrypto, mMetadata.checksumAlgo, mChecksum);
+        } else {
+            // Decrypt checksum
+            try {
+                synchronized (Crypto.class) {
+                    mCrypto.decrypt(new Path[]{checksumFile});
+                    mDecryptedFiles.addAll(Arrays.asList(mCrypto.getNewFiles()));
+                }
+            } catch (IOException e) {
+                throw new BackupException("Could not decrypt " + checksumFile.getName(), e);
+            }
+            // Get checksums
+            try {
+                mChecksum = mBackupFile.getChecksum(CryptoUtils.MODE_NO_ENCRYPTION);
+            } catch (Throwable e) {
+                mBackupFile.cleanup();
+                throw new BackupException("Could not get checksums.", e);
+            }
+            mSplitReader = null;
         }
         // Verify metadata
         Path metadataFile;
@@ -139,16 +159,7 @@ class VerifyOp implements Closeable {
             // No APK files found
             throw new BackupException("Backup does not contain any APK files.");
         }
-        String checksum;
-        for (Path file : backupSourceFiles) {
-            checksum = DigestUtils.getHexDigest(mMetadata.checksumAlgo, file);
-            if (!checksum.equals(mChecksum.get(file.getName()))) {
-                throw new BackupException("Could not verify APK files." +
-                        "\nFile: " + file.getName() +
-                        "\nFound: " + checksum +
-                        "\nRequired: " + mChecksum.get(file.getName()));
-            }
-        }
+        verifyFiles(backupSourceFiles, true, "Could not verify APK files.");
     }
 
     private void verifyKeyStore() throws BackupException {
@@ -156,34 +167,27 @@ class VerifyOp implements Closeable {
         if (keyStoreFiles.length == 0) {
             throw new BackupException("KeyStore files do not exist.");
         }
-        String checksum;
-        for (Path file : keyStoreFiles) {
-            checksum = DigestUtils.getHexDigest(mMetadata.checksumAlgo, file);
-            if (!checksum.equals(mChecksum.get(file.getName()))) {
-                throw new BackupException("Could not verify KeyStore files." +
-                        "\nFile: " + file.getName() +
-                        "\nFound: " + checksum +
-                        "\nRequired: " + mChecksum.get(file.getName()));
-            }
-        }
+        verifyFiles(keyStoreFiles, true, "Could not verify KeyStore files.");
     }
 
     private void verifyData() throws BackupException {
         Path[] dataFiles;
-        String checksum;
         for (int i = 0; i < mMetadata.dataDirs.length; ++i) {
             dataFiles = getDataFiles(mBackupPath, i);
             if (dataFiles.length == 0) {
                 throw new BackupException("No data files at index " + i + ".");
             }
-            for (Path file : dataFiles) {
-                checksum = DigestUtils.getHexDigest(mMetadata.checksumAlgo, file);
-                if (!checksum.equals(mChecksum.get(file.getName()))) {
-                    throw new BackupException("Could not verify data files at index " + i + "." +
-                            "\nFile: " + file.getName() +
-                            "\nFound: " + checksum +
-                            "\nRequired: " + mChecksum.get(file.getName()));
+            verifyFiles(dataFiles, true, "Could not verify data files at index " + i + ".");
+            if (mMetadata.baseBackup != null) {
+                // Incremental backup
+                Path manifestFile;
+                try {
+                    manifestFile = mBackupPath.findFile(BackupManifest.getManifestFilename(i)
+                            + CryptoUtils.getExtension(mMetadata.crypto));
+                } catch (IOException e) {
+                    throw new BackupException("No manifest at index " + i + ".", e);
                 }
+                verifyFiles(new Path[]{manifestFile}, false, "Could not verify manifest at index " + i + ".");
             }
         }
     }
@@ -196,13 +200,7 @@ class VerifyOp implements Closeable {
             // There are no permissions, just skip
             return;
         }
-        String checksum = DigestUtils.getHexDigest(mMetadata.checksumAlgo, miscFile);
-        if (!checksum.equals(mChecksum.get(miscFile.getName()))) {
-            throw new BackupException("Could not verify extras." +
-                    "\nFile: " + miscFile.getName() +
-                    "\nFound: " + checksum +
-                    "\nRequired: " + mChecksum.get(miscFile.getName()));
-        }
+        verifyFiles(new Path[]{miscFile}, false, "Could not verify extras.");
     }
 
     private void verifyRules() throws BackupException {
@@ -217,12 +215,35 @@ class VerifyOp implements Closeable {
                 return;
             }
         }
-        String checksum = DigestUtils.getHexDigest(mMetadata.checksumAlgo, rulesFile);
-        if (!checksum.equals(mChecksum.get(rulesFile.getName()))) {
-            throw new BackupException("Could not verify rules file." +
-                    "\nFile: " + rulesFile.getName() +
-                    "\nFound: " + checksum +
-                    "\nRequired: " + mChecksum.get(rulesFile.getName()));
+        verifyFiles(new Path[]{rulesFile}, false, "Could not verify rules file.");
+    }
+
+    /**
+     * Verify the checksums of the given files. In the streaming mode, the files are also decrypted in memory to check
+     * the authentication tags, and if they are parts of an archive, all the headers of the archive are read to ensure
+     * that it is not malformed.
+     */
+    private void verifyFiles(@NonNull Path[] files, boolean isArchive, @NonNull String errorMessage)
+            throws BackupException {
+        if (mSplitReader != null) {
+            try {
+                mSplitReader.read(files, isArchive ? is -> TarUtils.validate(mMetadata.tarType, is) : null);
+            } catch (BackupException e) {
+                throw new BackupException(errorMessage + "\n" + e.getMessage(), e);
+            } catch (IOException | RuntimeException e) {
+                throw new BackupException(errorMessage, e);
+            }
+            return;
+        }
+        String checksum;
+        for (Path file : files) {
+            checksum = DigestUtils.getHexDigest(mMetadata.checksumAlgo, file);
+            if (!checksum.equals(mChecksum.get(file.getName()))) {
+                throw new BackupException(errorMessage +
+                        "\nFile: " + file.getName() +
+                        "\nFound: " + checksum +
+                        "\nRequired: " + mChecksum.get(file.getName()));
+            }
         }
     }
 
@@ -0,0 +1,167 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.batchops;
+
+import android.os.SystemClock;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import io.github.muntashirakon.AppManager.utils.MultithreadedExecutor;
+
+/**
+ * Run backup or restore jobs with admission control. Each job has an estimated cost, i.e. the number of bytes it has
+ * to read or write. Heavy jobs are bound by the storage, and running many of them at once only makes them compete for
+ * it. So, only a limited number of heavy jobs run at a time, while the rest of the workers, whose count is bound by
+ * the CPU, keep picking up the light jobs. The jobs are started in descending order of their costs so that a large job
+ * does not end up running alone at the end.
+ */
+class BackupScheduler {
+    // Jobs larger than this are considered to be bound by the storage
+    static final long HEAVY_JOB_THRESHOLD = 64 * 1024 * 1024;
+
+    private static class Job implements Comparable<Job> {
+        @NonNull
+        public final Runnable runnable;
+        public final long cost;
+        public final boolean heavy;
+
+        Job(@NonNull Runnable runnable, long cost) {
+            this.runnable = runnable;
+            this.cost = cost;
+            this.heavy = cost >= HEAVY_JOB_THRESHOLD;
+        }
+
+        @Override
+        public int compareTo(@NonNull Job o) {
+            // Descending order
+            return Long.compare(o.cost, cost);
+        }
+    }
+
+    private final int mWorkerCount;
+    private final int mMaxHeavyJobs;
+    private final List<Job> mJobs = new ArrayList<>();
+    private final Deque<Job> mHeavyJobs = new ArrayDeque<>();
+    private final Deque<Job> mLightJobs = new ArrayDeque<>();
+    private int mRunningHeavyJobs;
+    private int mCompletedJobs;
+    private long mCompletedBytes;
+    private long mStartTime;
+
+    /**
+     * @param workerCount  Number of jobs that can run at once, usually {@link MultithreadedExecutor#getThreadCount()}
+     * @param maxHeavyJobs Number of heavy jobs that can run at once
+     */
+    BackupScheduler(int workerCount, int maxHeavyJobs) {
+        mWorkerCount = Math.max(workerCount, 1);
+        mMaxHeavyJobs = Math.max(Math.min(maxHeavyJobs, mWorkerCount), 1);
+    }
+
+    /**
+     * @param cost Estimated number of bytes the job has to process, {@code 0} if unknown.
+     */
+    void add(long cost, @NonNull Runnable job) {
+        mJobs.add(new Job(job, cost));
+    }
+
+    /**
+     * Run all the jobs and wait for them to finish.
+     */
+    @WorkerThread
+    void runAndWait() {
+        Collections.sort(mJobs);
+        synchronized (this) {
+            for (Job job : mJobs) {
+                if (job.heavy) {
+                    mHeavyJobs.add(job);
+                } else mLightJobs.add(job);
+            }
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+        int workerCount = Math.min(mWorkerCount, mJobs.size());
+        mJobs.clear();
+        MultithreadedExecutor executor = MultithreadedExecutor.getNewInstance();
+        for (int i = 0; i < workerCount; ++i) {
+            executor.submit(this::work);
+        }
+        executor.awaitCompletion();
+    }
+
+    /**
+     * Average number of bytes processed per second since the jobs were started.
+     */
+    @AnyThread
+    synchronized float getBytesPerSecond() {
+        long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        if (mStartTime == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return mCompletedBytes * 1000f / elapsed;
+    }
+
+    /**
+     * Average number of jobs finished per minute since the jobs were started.
+     */
+    @AnyThread
+    synchronized float getJobsPerMinute() {
+        long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        if (mStartTime == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return mCompletedJobs * 60_000f / elapsed;
+    }
+
+    @WorkerThread
+    private void work() {
+        Job job;
+        while ((job = nextJob()) != null) {
+            try {
+                job.runnable.run();
+            } finally {
+                finishJob(job);
+            }
+        }
+    }
+
+    @Nullable
+    private synchronized Job nextJob() {
+        while (true) {
+            if (!mHeavyJobs.isEmpty() && mRunningHeavyJobs < mMaxHeavyJobs) {
+                ++mRunningHeavyJobs;
+                return mHeavyJobs.poll();
+            }
+            if (!mLightJobs.isEmpty()) {
+                return mLightJobs.poll();
+            }
+            if (mHeavyJobs.isEmpty()) {
+                // All done
+                return null;
+            }
+            // Only heavy jobs are left, wait for one of the running ones to finish
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private synchronized void finishJob(@NonNull Job job) {
+        if (job.heavy) {
+            --mRunningHeavyJobs;
+            notifyAll();
+        }
+        ++mCompletedJobs;
+        mCompletedBytes += job.cost;
+    }
+}
@@ -15,12 +15,14 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.os.UserHandleHidden;
+import android.text.format.Formatter;
 
 import androidx.annotation.CheckResult;
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.RequiresPermission;
 import androidx.annotation.WorkerThread;
 import androidx.core.os.BundleCompat;
 
@@ -46,7 +48,11 @@ import io.github.muntashirakon.AppManager.apk.behavior.DexOptOptions;
 import io.github.muntashirakon.AppManager.apk.behavior.DexOptimizer;
 import io.github.muntashirakon.AppManager.apk.installer.PackageInstallerCompat;
 import io.github.muntashirakon.AppManager.backup.BackupException;
+import io.github.muntashirakon.AppManager.backup.BackupFiles;
+import io.github.muntashirakon.AppManager.backup.BackupFlags;
 import io.github.muntashirakon.AppManager.backup.BackupManager;
+import io.github.muntashirakon.AppManager.backup.ChunkStore;
+import io.github.muntashirakon.AppManager.backup.MetadataManager;
 import io.github.muntashirakon.AppManager.backup.convert.ConvertUtils;
 import io.github.muntashirakon.AppManager.backup.convert.Converter;
 import io.github.muntashirakon.AppManager.backup.convert.ImportType;
@@ -65,6 +71,7 @@ import io.github.muntashirakon.AppManager.rules.compontents.ComponentUtils;
 import io.github.muntashirakon.AppManager.rules.compontents.ComponentsBlocker;
 import io.github.muntashirakon.AppManager.rules.compontents.ExternalComponentsImporter;
 import io.github.muntashirakon.AppManager.self.SelfPermissions;
+import io.github.muntashirakon.AppManager.types.PackageSizeInfo;
 import io.github.muntashirakon.AppManager.types.UserPackagePair;
 import io.github.muntashirakon.AppManager.utils.ArrayUtils;
 import io.github.muntashirakon.AppManager.utils.ContextUtils;
@@ -337,14 +344,21 @@ public class BatchOpsManager {
         Context context = ContextUtils.getContext();
         PackageManager pm = context.getPackageManager();
         CharSequence operationName = context.getString(R.string.backup_restore);
-        MultithreadedExecutor executor = MultithreadedExecutor.getNewInstance();
+        BackupScheduler scheduler = newBackupScheduler();
         AtomicInteger i = new AtomicInteger(0);
         float lastProgress = mProgressHandler != null ? mProgressHandler.getLastProgress() : 0;
+        // The backups running at once share the compression threads
+        int threadCount = MultithreadedExecutor.getThreadCount();
+        int concurrentBackups = Math.max(1, Math.min(threadCount, mUserPackagePairs.length));
+        int compressionThreads = Math.max(1, threadCount / concurrentBackups);
         try {
             String[] backupNames = mArgs.getStringArray(ARG_BACKUP_NAMES);
+            BackupFlags backupFlags = new BackupFlags(mArgs.getInt(ARG_FLAGS));
+            boolean hasUsageAccess = SelfPermissions.checkUsageStatsPermission();
             for (UserPackagePair pair : mUserPackagePairs) {
                 CharSequence appLabel = PackageUtils.getPackageLabel(pm, pair.getPackageName(), pair.getUserId());
-                executor.submit(() -> {
+                long cost = hasUsageAccess ? estimateBackupCost(context, pair, backupFlags) : 0;
+                scheduler.add(cost, () -> {
                     synchronized (i) {
                         i.set(i.get() + 1);
                         updateProgress(lastProgress, i.get());
@@ -352,6 +366,7 @@ public class BatchOpsManager {
                     CharSequence title = context.getString(R.string.backing_up_app, appLabel);
                     ProgressHandler subProgressHandler = newSubProgress(operationName, title);
                     BackupManager backupManager = BackupManager.getNewInstance(pair, mArgs.getInt(ARG_FLAGS));
+                    backupManager.setCompressionThreads(compressionThreads);
                     try {
                         backupManager.backup(backupNames, subProgressHandler);
                     } catch (BackupException e) {
@@ -366,7 +381,9 @@ public class BatchOpsManager {
         } catch (Throwable th) {
             log("====> op=BACKUP_RESTORE, mode=BACKUP", th);
         }
-        executor.awaitCompletion();
+        runScheduler(scheduler);
+        // Remove the chunks that were only used by the replaced backups, even if deduplication has been turned off
+        ChunkStore.collectGarbage();
         return new Result(failedPackages);
     }
 
@@ -375,13 +392,13 @@ public class BatchOpsManager {
         Context context = ContextUtils.getContext();
         PackageManager pm = context.getPackageManager();
         CharSequence operationName = context.getString(R.string.backup_restore);
-        MultithreadedExecutor executor = MultithreadedExecutor.getNewInstance();
+        BackupScheduler scheduler = newBackupScheduler();
         AtomicBoolean requiresRestart = new AtomicBoolean();
         AtomicInteger i = new AtomicInteger(0);
         float lastProgress = mProgressHandler != null ? mProgressHandler.getLastProgress() : 0;
         String[] backupNames = mArgs.getStringArray(ARG_BACKUP_NAMES);
         for (UserPackagePair pair : mUserPackagePairs) {
-            executor.submit(() -> {
+            scheduler.add(estimateRestoreCost(pair, backupNames), () -> {
                 synchronized (i) {
                     i.set(i.get() + 1);
                     updateProgress(lastProgress, i.get());
@@ -402,12 +419,83 @@ public class BatchOpsManager {
                 }
             });
         }
-        executor.awaitCompletion();
+        runScheduler(scheduler);
         Result result = new Result(failedPackages);
         result.setRequiresRestart(requiresRestart.get());
         return result;
     }
 
+    @NonNull
+    private static BackupScheduler newBackupScheduler() {
+        int threadCount = MultithreadedExecutor.getThreadCount();
+        // Let at most half of the workers read or write large amount of data at once
+        return new BackupScheduler(threadCount, Math.max(1, threadCount / 2));
+    }
+
+    @WorkerThread
+    private void runScheduler(@NonNull BackupScheduler scheduler) {
+        if (mProgressHandler == null) {
+            scheduler.runAndWait();
+            return;
+        }
+        Context context = ContextUtils.getContext();
+        mProgressHandler.setProgressTextInterface(progressHandler -> context.getString(
+                R.string.backup_progress_with_throughput,
+                ProgressHandler.PROGRESS_REGULAR.getProgressText(progressHandler),
+                Formatter.formatShortFileSize(context, (long) scheduler.getBytesPerSecond()),
+                scheduler.getJobsPerMinute()));
+        try {
+            scheduler.runAndWait();
+        } finally {
+            mProgressHandler.setProgressTextInterface(ProgressHandler.PROGRESS_REGULAR);
+        }
+    }
+
+    /**
+     * Estimate the number of bytes to be backed up for the package based on the requested flags.
+     */
+    @WorkerThread
+    @RequiresPermission("android.permission.PACKAGE_USAGE_STATS")
+    private static long estimateBackupCost(@NonNull Context context, @NonNull UserPackagePair pair,
+                                           @NonNull BackupFlags flags) {
+        PackageSizeInfo sizeInfo = PackageUtils.getPackageSizeInfo(context, pair.getPackageName(), pair.getUserId(),
+                null);
+        if (sizeInfo == null) {
+            return 0;
+        }
+        long cost = 0;
+        if (flags.backupApkFiles()) {
+            cost += sizeInfo.codeSize;
+        }
+        if (flags.backupInternalData() || flags.backupExternalData()) {
+            cost += sizeInfo.dataSize;
+            if (flags.backupCache()) {
+                cost += sizeInfo.cacheSize;
+            }
+        }
+        if (flags.backupMediaObb()) {
+            cost += sizeInfo.mediaSize + sizeInfo.obbSize;
+        }
+        return cost;
+    }
+
+    /**
+     * Estimate the number of bytes to be restored for the package, i.e. the size of the backup.
+     */
+    @WorkerThread
+    private static long estimateRestoreCost(@NonNull UserPackagePair pair, @Nullable String[] backupNames) {
+        String backupName = backupNames != null && backupNames.length > 0 ? backupNames[0]
+                : String.valueOf(pair.getUserId());
+        try {
+            Path backupPath = BackupFiles.getPackagePath(pair.getPackageName(), false).findFile(backupName);
+            MetadataManager.Metadata metadata = MetadataManager.getMetadata(backupPath);
+            // Only the backups made by older versions are measured
+            return metadata.getBackupSize();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
     private Result deleteBackups() {
         List<UserPackagePair> failedPackages = new ArrayList<>();
         float lastProgress = mProgressHandler != null ? mProgressHandler.getLastProgress() : 0;
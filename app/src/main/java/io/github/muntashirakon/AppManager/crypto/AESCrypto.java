@@ -138,6 +138,20 @@ public class AESCrypto implements Crypto {
         }
     }
 
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    @NonNull
+    @Override
+    public OutputStream wrapEncryptionStream(@NonNull OutputStream encryptedStream) {
+        // Init cipher
+        GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(true, getParams());
+        return new CipherOutputStream(encryptedStream, cipher);
+    }
+
     @WorkerThread
     @Override
     public void decrypt(@NonNull Path[] files) throws IOException {
@@ -156,6 +170,15 @@ public class AESCrypto implements Crypto {
         }
     }
 
+    @NonNull
+    @Override
+    public InputStream wrapDecryptionStream(@NonNull InputStream encryptedStream) {
+        // Init cipher
+        GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(false, getParams());
+        return new CipherInputStream(encryptedStream, cipher);
+    }
+
     @WorkerThread
     private void handleFiles(boolean forEncryption, @NonNull Path[] files) throws IOException {
         mNewFiles.clear();
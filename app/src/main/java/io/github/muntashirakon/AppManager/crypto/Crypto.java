@@ -19,12 +19,38 @@ public interface Crypto extends Closeable {
     @WorkerThread
     void encrypt(@NonNull InputStream unencryptedStream, @NonNull OutputStream encryptedStream) throws IOException;
 
+    /**
+     * Whether this crypto can wrap a stream directly using {@link #wrapEncryptionStream(OutputStream)} and
+     * {@link #wrapDecryptionStream(InputStream)}. Cryptos that
+     * delegate the operation to another process (e.g. OpenPGP) cannot do this.
+     */
+    boolean supportsStreaming();
+
+    /**
+     * Return an output stream that encrypts everything written to it before writing to the supplied stream. Closing
+     * the returned stream finalises the encryption and closes the supplied stream.
+     *
+     * @throws UnsupportedOperationException if {@link #supportsStreaming()} returns {@code false}
+     */
+    @NonNull
+    OutputStream wrapEncryptionStream(@NonNull OutputStream encryptedStream) throws IOException;
+
     @WorkerThread
     void decrypt(@NonNull Path[] files) throws IOException;
 
     @WorkerThread
     void decrypt(@NonNull InputStream encryptedStream, @NonNull OutputStream unencryptedStream) throws IOException;
 
+    /**
+     * Return an input stream that decrypts everything read from the supplied stream. For authenticated ciphers, the
+     * authentication tag is checked when the end of the supplied stream is reached, and an {@link IOException} is
+     * thrown if it does not match. Closing the returned stream closes the supplied stream.
+     *
+     * @throws UnsupportedOperationException if {@link #supportsStreaming()} returns {@code false}
+     */
+    @NonNull
+    InputStream wrapDecryptionStream(@NonNull InputStream encryptedStream) throws IOException;
+
     @NonNull
     Path[] getNewFiles();
 
@@ -25,6 +25,18 @@ public class DummyCrypto implements Crypto {
         // Do nothing since both are the same stream
     }
 
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
+    @NonNull
+    @Override
+    public OutputStream wrapEncryptionStream(@NonNull OutputStream encryptedStream) {
+        // Nothing to encrypt
+        return encryptedStream;
+    }
+
     @Override
     public void decrypt(@NonNull Path[] files) {
         // The new files will be deleted, so don't send
@@ -36,6 +48,13 @@ public class DummyCrypto implements Crypto {
         // Do nothing since both are the same stream
     }
 
+    @NonNull
+    @Override
+    public InputStream wrapDecryptionStream(@NonNull InputStream encryptedStream) {
+        // Nothing to decrypt
+        return encryptedStream;
+    }
+
     @NonNull
     @Override
     public Path[] getNewFiles() {
@@ -139,6 +139,24 @@ public class OpenPGPCrypto implements Crypto {
         handleStreams(intent, Cipher.ENCRYPT_MODE, unencryptedStream, encryptedStream);
     }
 
+    @Override
+    public boolean supportsStreaming() {
+        // En/decryption is done by the OpenPGP provider which requires the whole stream at once
+        return false;
+    }
+
+    @NonNull
+    @Override
+    public OutputStream wrapEncryptionStream(@NonNull OutputStream encryptedStream) {
+        throw new UnsupportedOperationException("OpenPGP doesn't support stream wrapping.");
+    }
+
+    @NonNull
+    @Override
+    public InputStream wrapDecryptionStream(@NonNull InputStream encryptedStream) {
+        throw new UnsupportedOperationException("OpenPGP doesn't support stream wrapping.");
+    }
+
     @WorkerThread
     private void handleFiles(Intent intent, int mode, @NonNull Path[] filesList) throws IOException {
         mIsFileMode = true;
@@ -2,27 +2,43 @@
 
 package io.github.muntashirakon.AppManager.db;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import io.github.muntashirakon.AppManager.db.dao.AppDao;
 import io.github.muntashirakon.AppManager.db.dao.BackupDao;
-import io.github.muntashirakon.AppManager.db.dao.FileHashDao;
+import io.github.muntashirakon.AppManager.db.dao.DirectoryHashDao;
 import io.github.muntashirakon.AppManager.db.dao.LogFilterDao;
+import io.github.muntashirakon.AppManager.db.dao.ScanResultDao;
 import io.github.muntashirakon.AppManager.db.entity.App;
 import io.github.muntashirakon.AppManager.db.entity.Backup;
-import io.github.muntashirakon.AppManager.db.entity.FileHash;
+import io.github.muntashirakon.AppManager.db.entity.DirectoryHash;
 import io.github.muntashirakon.AppManager.db.entity.LogFilter;
+import io.github.muntashirakon.AppManager.db.entity.ScanResult;
 import io.github.muntashirakon.AppManager.utils.ContextUtils;
 
-@Database(entities = {App.class, LogFilter.class, FileHash.class, Backup.class}, version = 2)
+@Database(entities = {App.class, LogFilter.class, DirectoryHash.class, Backup.class, ScanResult.class}, version = 4)
 public abstract class AppsDb extends RoomDatabase {
+    private static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `scan_result` (`sha256` TEXT NOT NULL, "
+                    + "`signature_version` TEXT NOT NULL, `class_count` INTEGER NOT NULL, `trackers` TEXT NOT NULL, "
+                    + "`libraries` TEXT NOT NULL, `missing_classes` TEXT NOT NULL, `native_libraries` TEXT NOT NULL, "
+                    + "`verifier_result` TEXT, `last_used` INTEGER NOT NULL, PRIMARY KEY(`sha256`))");
+        }
+    };
+
     private static AppsDb sAppsDb;
 
     public static AppsDb getInstance() {
         if (sAppsDb == null) {
             sAppsDb = Room.databaseBuilder(ContextUtils.getContext(), AppsDb.class, "apps.db")
+                    .addMigrations(MIGRATION_3_4)
                     .fallbackToDestructiveMigration()
                     .build();
         }
@@ -35,5 +51,7 @@ public abstract class AppsDb extends RoomDatabase {
 
     public abstract LogFilterDao logFilterDao();
 
-    public abstract FileHashDao fileHashDao();
+    public abstract DirectoryHashDao directoryHashDao();
+
+    public abstract ScanResultDao scanResultDao();
 }
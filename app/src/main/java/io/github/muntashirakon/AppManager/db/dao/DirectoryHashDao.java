@@ -7,13 +7,13 @@ import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
 
-import io.github.muntashirakon.AppManager.db.entity.FileHash;
+import io.github.muntashirakon.AppManager.db.entity.DirectoryHash;
 
 @Dao
-public interface FileHashDao {
-    @Query("SELECT hash FROM file_hash WHERE path = :path LIMIT 1")
-    String getHash(String path);
+public interface DirectoryHashDao {
+    @Query("SELECT * FROM directory_hash WHERE path = :path LIMIT 1")
+    DirectoryHash get(String path);
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
-    void insert(FileHash fileHash);
+    void insert(DirectoryHash directoryHash);
 }
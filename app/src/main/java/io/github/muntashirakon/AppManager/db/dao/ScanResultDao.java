@@ -0,0 +1,28 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.db.dao;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import io.github.muntashirakon.AppManager.db.entity.ScanResult;
+
+@Dao
+public interface ScanResultDao {
+    @Query("SELECT * FROM scan_result WHERE sha256 = :sha256 LIMIT 1")
+    ScanResult get(String sha256);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(ScanResult scanResult);
+
+    @Query("UPDATE scan_result SET last_used = :lastUsed WHERE sha256 = :sha256")
+    void updateLastUsed(String sha256, long lastUsed);
+
+    @Query("DELETE FROM scan_result WHERE sha256 = :sha256")
+    void delete(String sha256);
+
+    @Query("DELETE FROM scan_result WHERE sha256 NOT IN (SELECT sha256 FROM scan_result ORDER BY last_used DESC LIMIT :count)")
+    void trim(int count);
+}
@@ -0,0 +1,46 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+import java.util.Objects;
+
+@SuppressWarnings("NotNullFieldNotInitialized")
+@Entity(tableName = "directory_hash")
+public class DirectoryHash {
+    @PrimaryKey
+    @ColumnInfo(name = "path")
+    @NonNull
+    public String path;
+
+    /**
+     * Digest of the path, size, modification time and mode of each file in the directory
+     */
+    @ColumnInfo(name = "fingerprint")
+    @NonNull
+    public String fingerprint;
+
+    /**
+     * Digest of the contents of the directory, empty if unknown
+     */
+    @ColumnInfo(name = "hash")
+    @NonNull
+    public String hash;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DirectoryHash)) return false;
+        DirectoryHash that = (DirectoryHash) o;
+        return path.equals(that.path) && fingerprint.equals(that.fingerprint) && hash.equals(that.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path, fingerprint, hash);
+    }
+}
@@ -0,0 +1,73 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * Result of scanning an APK file in the scanner
+ */
+@SuppressWarnings("NotNullFieldNotInitialized")
+@Entity(tableName = "scan_result")
+public class ScanResult {
+    /**
+     * SHA-256 of the APK file
+     */
+    @PrimaryKey
+    @ColumnInfo(name = "sha256")
+    @NonNull
+    public String sha256;
+
+    /**
+     * Version of the tracker and library signatures used in the scan
+     */
+    @ColumnInfo(name = "signature_version")
+    @NonNull
+    public String signatureVersion;
+
+    @ColumnInfo(name = "class_count")
+    public int classCount;
+
+    /**
+     * JSON array of the indices of the matched tracker signatures, each followed by the number of matched classes
+     */
+    @ColumnInfo(name = "trackers")
+    @NonNull
+    public String trackers;
+
+    /**
+     * JSON array of the indices of the matched library signatures, each followed by the number of matched classes
+     */
+    @ColumnInfo(name = "libraries")
+    @NonNull
+    public String libraries;
+
+    /**
+     * JSON array of the classes that matched no library signature
+     */
+    @ColumnInfo(name = "missing_classes")
+    @NonNull
+    public String missingClasses;
+
+    /**
+     * JSON array of the native libraries
+     */
+    @ColumnInfo(name = "native_libraries")
+    @NonNull
+    public String nativeLibraries;
+
+    /**
+     * Serialized {@link io.github.muntashirakon.AppManager.apk.signing.ApkVerifierSummary}, {@code null} if the
+     * verification could not be done
+     */
+    @ColumnInfo(name = "verifier_result")
+    @Nullable
+    public String verifierResult;
+
+    @ColumnInfo(name = "last_used")
+    public long lastUsed;
+}
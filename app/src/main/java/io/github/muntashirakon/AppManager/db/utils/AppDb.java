@@ -18,16 +18,17 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import io.github.muntashirakon.AppManager.backup.BackupUtils;
 import io.github.muntashirakon.AppManager.compat.PackageManagerCompat;
@@ -50,6 +51,7 @@ import io.github.muntashirakon.AppManager.usage.UsageUtils;
 import io.github.muntashirakon.AppManager.users.Users;
 import io.github.muntashirakon.AppManager.utils.ExUtils;
 import io.github.muntashirakon.AppManager.utils.KeyStoreUtils;
+import io.github.muntashirakon.AppManager.utils.MultithreadedExecutor;
 import io.github.muntashirakon.AppManager.utils.PackageUtils;
 import io.github.muntashirakon.AppManager.utils.ThreadUtils;
 
@@ -57,6 +59,7 @@ public class AppDb {
     public static final String TAG = AppDb.class.getSimpleName();
 
     private static final Object sLock = new Object();
+    private static final int VARIABLE_DATA_BATCH_SIZE = 16;
 
     private final AppDao mAppDao;
     private final BackupDao mBackupDao;
@@ -180,11 +183,11 @@ public class AppDb {
     @NonNull
     private List<App> updateApplicationInternal(@NonNull Context context, @NonNull String packageName) {
         int[] userIds = Users.getUsersIds();
-        List<App> oldApps = new ArrayList<>(mAppDao.getAll(packageName));
+        Map<String, App> oldApps = getAppIndex(mAppDao.getAll(packageName));
         List<App> appList = new ArrayList<>(userIds.length);
         List<Backup> backups = new ArrayList<>(mBackupDao.get(packageName));
         for (int userId : userIds) {
-            int oldAppIndex = findIndexOfApp(oldApps, packageName, userId);
+            App oldApp = oldApps.get(getAppKey(packageName, userId));
             PackageInfo packageInfo = null;
             Backup backup = null;
             ListIterator<Backup> backupListIterator = backups.listIterator();
@@ -207,15 +210,14 @@ public class AppDb {
             }
             if (backup == null && packageInfo == null) {
                 // Neither backup nor package exist
-                if (oldAppIndex >= 0) {
+                if (oldApp != null) {
                     // Delete existing backup
-                    mAppDao.delete(oldApps.get(oldAppIndex));
+                    mAppDao.delete(oldApp);
                 }
                 continue;
             }
-            if (oldAppIndex >= 0) {
+            if (oldApp != null) {
                 // There's already existing app
-                App oldApp = oldApps.get(oldAppIndex);
                 mAppDao.delete(oldApp);
                 if ((packageInfo != null && isUpToDate(oldApp, packageInfo))
                         || (backup != null && isUpToDate(oldApp, backup))) {
@@ -243,7 +245,7 @@ public class AppDb {
     public void updateApplications(@NonNull Context context) {
         synchronized (sLock) {
             Map<String, Backup> backups = getBackups(false);
-            List<App> oldApps = new ArrayList<>(mAppDao.getAll());
+            Map<String, App> oldApps = getAppIndex(mAppDao.getAll());
             List<App> modifiedApps = new ArrayList<>();
             Set<String> newApps = new HashSet<>();
             Set<String> updatedApps = new HashSet<>();
@@ -266,23 +268,19 @@ public class AppDb {
                     continue;
                 }
 
-                for (PackageInfo packageInfo : packageInfoList) {
+                List<App> upToDateApps = new ArrayList<>();
+                List<PackageInfo> changedPackages = diffPackages(oldApps, packageInfoList, upToDateApps);
+                long currentTime = System.currentTimeMillis();
+                for (App oldApp : upToDateApps) {
+                    updatedApps.add(oldApp.packageName);
+                    modifiedApps.add(oldApp);
+                    backups.remove(oldApp.packageName);
+                    oldApp.lastActionTime = currentTime;
+                }
+                for (PackageInfo packageInfo : changedPackages) {
                     // Interrupt thread on request
                     if (ThreadUtils.isInterrupted()) return;
 
-                    int oldAppIndex = findIndexOfApp(oldApps, packageInfo.packageName, UserHandleHidden.getUserId(packageInfo.applicationInfo.uid));
-                    if (oldAppIndex >= 0) {
-                        // There's already existing app
-                        App oldApp = oldApps.remove(oldAppIndex);
-                        if (isUpToDate(oldApp, packageInfo)) {
-                            // Up-to-date app
-                            updatedApps.add(oldApp.packageName);
-                            modifiedApps.add(oldApp);
-                            backups.remove(packageInfo.packageName);
-                            oldApp.lastActionTime = System.currentTimeMillis();
-                            continue;
-                        }
-                    }
                     // New app
                     App app = App.fromPackageInfo(context, packageInfo);
                     backups.remove(packageInfo.packageName);
@@ -300,10 +298,9 @@ public class AppDb {
                 // Interrupt thread on request
                 if (ThreadUtils.isInterrupted()) return;
 
-                int oldAppIndex = findIndexOfApp(oldApps, backup.packageName, backup.userId);
-                if (oldAppIndex >= 0) {
+                App oldApp = oldApps.remove(getAppKey(backup.packageName, backup.userId));
+                if (oldApp != null) {
                     // There's already existing app
-                    App oldApp = oldApps.remove(oldAppIndex);
                     if (isUpToDate(oldApp, backup)) {
                         // Up-to-date app
                         updatedApps.add(oldApp.packageName);
@@ -317,13 +314,14 @@ public class AppDb {
                 modifiedApps.add(app);
             }
             // Add new data
-            mAppDao.delete(oldApps);
+            List<App> removedApps = new ArrayList<>(oldApps.values());
+            mAppDao.delete(removedApps);
             mAppDao.insert(modifiedApps);
-            if (!oldApps.isEmpty()) {
+            if (!removedApps.isEmpty()) {
                 // Delete broadcast
                 Intent intent = new Intent(PackageChangeReceiver.ACTION_DB_PACKAGE_REMOVED);
                 intent.setPackage(context.getPackageName());
-                intent.putExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST, getPackageNamesFromApps(oldApps));
+                intent.putExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST, getPackageNamesFromApps(removedApps));
                 context.sendBroadcast(intent);
             }
             if (!newApps.isEmpty()) {
@@ -357,7 +355,7 @@ public class AppDb {
     private static void updateVariableData(@NonNull Context context, @NonNull List<App> modifiedApps) {
         UriManager uriManager = new UriManager();
         ArrayMap<Integer, SsaidSettings> userIdSsaidSettingsMap = new ArrayMap<>();
-        List<PackageUsageInfo> packageUsageInfoList = new ArrayList<>();
+        Map<String, PackageUsageInfo> packageUsageInfoMap = new HashMap<>();
         boolean hasUsageAccess = FeatureController.isUsageAccessEnabled() && SelfPermissions.checkUsageStatsPermission();
         for (int userId : Users.getUsersIds()) {
             // Interrupt thread on request
@@ -366,7 +364,9 @@ public class AppDb {
                 List<PackageUsageInfo> usageInfoList = ExUtils.exceptionAsNull(() -> AppUsageStatsManager.getInstance()
                         .getUsageStats(UsageUtils.USAGE_WEEKLY, userId));
                 if (usageInfoList != null) {
-                    packageUsageInfoList.addAll(usageInfoList);
+                    for (PackageUsageInfo usageInfo : usageInfoList) {
+                        packageUsageInfoMap.put(getAppKey(usageInfo.packageName, usageInfo.userId), usageInfo);
+                    }
                 }
             }
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -377,70 +377,117 @@ public class AppDb {
                 }
             }
         }
-        for (App app : modifiedApps) {
-            if (!app.isInstalled && !app.isSystemApp()) {
-                continue;
-            }
-            int userId = app.userId;
-            try (ComponentsBlocker cb = ComponentsBlocker.getInstance(app.packageName, userId, false)) {
-                app.rulesCount = cb.entryCount();
-            }
-            app.codeSize = app.dataSize = 0;
-            if (hasUsageAccess) {
-                PackageSizeInfo sizeInfo = PackageUtils.getPackageSizeInfo(context, app.packageName, userId, null);
-                if (sizeInfo != null) {
-                    app.codeSize = sizeInfo.codeSize + sizeInfo.obbSize;
-                    app.dataSize = sizeInfo.dataSize + sizeInfo.mediaSize + sizeInfo.cacheSize;
+        // Each app requires several IPCs and file reads, and they are independent of one another. So, the apps are
+        // processed in batches in parallel.
+        Thread callerThread = Thread.currentThread();
+        MultithreadedExecutor executor = MultithreadedExecutor.getNewInstance();
+        for (int i = 0; i < modifiedApps.size(); i += VARIABLE_DATA_BATCH_SIZE) {
+            List<App> batch = modifiedApps.subList(i, Math.min(i + VARIABLE_DATA_BATCH_SIZE, modifiedApps.size()));
+            executor.submit(() -> {
+                for (App app : batch) {
+                    // Interrupt on request
+                    if (callerThread.isInterrupted()) return;
+                    updateVariableData(context, app, hasUsageAccess, uriManager, userIdSsaidSettingsMap,
+                            packageUsageInfoMap);
                 }
+            });
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                Log.d(TAG, "Waiting for the variable data to be updated...");
             }
-            // Interrupt thread on request
-            if (ThreadUtils.isInterrupted()) return;
-            if (!app.isInstalled) {
-                continue;
+        } catch (InterruptedException e) {
+            // Drop the pending batches and let the caller see the interrupt
+            executor.shutdownNow();
+            callerThread.interrupt();
+        }
+    }
+
+    @WorkerThread
+    private static void updateVariableData(@NonNull Context context, @NonNull App app, boolean hasUsageAccess,
+                                           @NonNull UriManager uriManager,
+                                           @NonNull Map<Integer, SsaidSettings> userIdSsaidSettingsMap,
+                                           @NonNull Map<String, PackageUsageInfo> packageUsageInfoMap) {
+        if (!app.isInstalled && !app.isSystemApp()) {
+            return;
+        }
+        int userId = app.userId;
+        try (ComponentsBlocker cb = ComponentsBlocker.getInstance(app.packageName, userId, false)) {
+            app.rulesCount = cb.entryCount();
+        }
+        app.codeSize = app.dataSize = 0;
+        if (hasUsageAccess) {
+            PackageSizeInfo sizeInfo = PackageUtils.getPackageSizeInfo(context, app.packageName, userId, null);
+            if (sizeInfo != null) {
+                app.codeSize = sizeInfo.codeSize + sizeInfo.obbSize;
+                app.dataSize = sizeInfo.dataSize + sizeInfo.mediaSize + sizeInfo.cacheSize;
             }
-            app.hasKeystore = KeyStoreUtils.hasKeyStore(app.uid);
-            app.usesSaf = uriManager.getGrantedUris(app.packageName) != null;
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                SsaidSettings ssaidSettings = userIdSsaidSettingsMap.get(userId);
-                if (ssaidSettings != null) {
-                    String ssaid = ssaidSettings.getSsaid(app.packageName, app.uid);
-                    app.ssaid = TextUtils.isEmpty(ssaid) ? null : ssaid;
-                } else {
-                    app.ssaid = null;
+        }
+        if (!app.isInstalled) {
+            return;
+        }
+        app.hasKeystore = KeyStoreUtils.hasKeyStore(app.uid);
+        app.usesSaf = uriManager.getGrantedUris(app.packageName) != null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            SsaidSettings ssaidSettings = userIdSsaidSettingsMap.get(userId);
+            if (ssaidSettings != null) {
+                String ssaid;
+                // The settings state is not thread-safe
+                synchronized (ssaidSettings) {
+                    ssaid = ssaidSettings.getSsaid(app.packageName, app.uid);
                 }
-            }
-            PackageUsageInfo usageInfo = findUsage(packageUsageInfoList, app.packageName, userId);
-            if (usageInfo != null) {
-                app.mobileDataUsage = usageInfo.mobileData != null ? usageInfo.mobileData.getTotal() : 0;
-                app.wifiDataUsage = usageInfo.wifiData != null ? usageInfo.wifiData.getTotal() : 0;
-                app.openCount = usageInfo.timesOpened;
-                app.screenTime = usageInfo.screenTime;
-                app.lastUsageTime = usageInfo.lastUsageTime;
+                app.ssaid = TextUtils.isEmpty(ssaid) ? null : ssaid;
             } else {
-                app.mobileDataUsage = app.wifiDataUsage = app.screenTime = app.lastUsageTime = 0;
-                app.openCount = 0;
+                app.ssaid = null;
             }
         }
+        PackageUsageInfo usageInfo = packageUsageInfoMap.get(getAppKey(app.packageName, userId));
+        if (usageInfo != null) {
+            app.mobileDataUsage = usageInfo.mobileData != null ? usageInfo.mobileData.getTotal() : 0;
+            app.wifiDataUsage = usageInfo.wifiData != null ? usageInfo.wifiData.getTotal() : 0;
+            app.openCount = usageInfo.timesOpened;
+            app.screenTime = usageInfo.screenTime;
+            app.lastUsageTime = usageInfo.lastUsageTime;
+        } else {
+            app.mobileDataUsage = app.wifiDataUsage = app.screenTime = app.lastUsageTime = 0;
+            app.openCount = 0;
+        }
     }
 
-    private static int findIndexOfApp(@NonNull List<App> appList, @NonNull String packageName, @UserIdInt int userId) {
-        for (int i = 0; i < appList.size(); ++i) {
-            App app = appList.get(i);
-            if (app.userId == userId && app.packageName.equals(packageName)) {
-                return i;
-            }
+    /**
+     * Move the apps that are up-to-date with the given packages from {@code oldApps} to {@code upToDateApps}. The
+     * rest of the matching apps are also removed from {@code oldApps} as they have to be replaced.
+     *
+     * @param oldApps Apps indexed by {@link #getAppKey(String, int)}
+     * @return The packages that are either new or modified
+     */
+    @NonNull
+    static List<PackageInfo> diffPackages(@NonNull Map<String, App> oldApps, @NonNull List<PackageInfo> packageInfoList,
+                                          @NonNull List<App> upToDateApps) {
+        List<PackageInfo> changedPackages = new ArrayList<>();
+        for (PackageInfo packageInfo : packageInfoList) {
+            int userId = UserHandleHidden.getUserId(packageInfo.applicationInfo.uid);
+            App oldApp = oldApps.remove(getAppKey(packageInfo.packageName, userId));
+            if (oldApp != null && isUpToDate(oldApp, packageInfo)) {
+                upToDateApps.add(oldApp);
+            } else changedPackages.add(packageInfo);
         }
-        return -1;
+        return changedPackages;
     }
 
-    @Nullable
-    private static PackageUsageInfo findUsage(@NonNull List<PackageUsageInfo> usageInfoList, @NonNull String packageName, @UserIdInt int userId) {
-        for (PackageUsageInfo usageInfo : usageInfoList) {
-            if (usageInfo.userId == userId && usageInfo.packageName.equals(packageName)) {
-                return usageInfo;
-            }
+    @NonNull
+    static Map<String, App> getAppIndex(@NonNull List<App> apps) {
+        Map<String, App> appIndex = new HashMap<>(apps.size());
+        for (App app : apps) {
+            appIndex.put(getAppKey(app.packageName, app.userId), app);
         }
-        return null;
+        return appIndex;
+    }
+
+    @NonNull
+    static String getAppKey(@NonNull String packageName, @UserIdInt int userId) {
+        return userId + "_" + packageName;
     }
 
     private static boolean isUpToDate(@NonNull App currentApp, @NonNull PackageInfo installedPackageInfo) {
@@ -7,148 +7,174 @@ import androidx.annotation.NonNull;
 
 import org.jf.baksmali.Adaptors.ClassDefinition;
 import org.jf.baksmali.BaksmaliOptions;
-import org.jf.baksmali.formatter.BaksmaliFormatter;
 import org.jf.baksmali.formatter.BaksmaliWriter;
 import org.jf.dexlib2.Opcodes;
-import org.jf.dexlib2.analysis.InlineMethodResolver;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
-import org.jf.dexlib2.dexbacked.DexBackedOdexFile;
 import org.jf.dexlib2.iface.ClassDef;
-import org.jf.dexlib2.iface.MultiDexContainer;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import io.github.muntashirakon.AppManager.BuildConfig;
+import io.github.muntashirakon.io.IoUtils;
 
 // FIXME: 8/2/22 Add support for lower SDKs by fixing Smali/Baksmali
+
+/**
+ * Classes of a set of dex files. Only the names of the classes are loaded in advance (see {@link DexIndex}), and a
+ * class is loaded via dexlib2 when it is requested.
+ */
 public class DexClasses implements Closeable {
-    private final HashMap<String, ClassDef> mClassNameClassDefMap = new HashMap<>();
-    private final HashMap<String, List<String>> mBaseClassNestedClassMap = new HashMap<>();
+    @NonNull
+    private final List<ByteBuffer> mDexFiles;
+    @NonNull
+    private final DexIndex mDexIndex;
+    // Created when a class from the dex file is requested
+    @NonNull
+    private final DexBackedDexFile[] mDexBackedDexFiles;
     // TODO: 18/10/21 Load frameworks.jar and add its dex files as options.classPath
     private final BaksmaliOptions mOptions;
     private final Opcodes mOpcodes;
 
+    /**
+     * Load the classes from an APK or a dex file. A dex file is memory-mapped.
+     */
     public DexClasses(@NonNull File apkFile, @IntRange(from = -1) int apiLevel) throws IOException {
-        mOpcodes = apiLevel < 0 ? Opcodes.getDefault() : Opcodes.forApi(apiLevel);
-        mOptions = new BaksmaliOptions();
-        // options
-        mOptions.deodex = false;
-        mOptions.implicitReferences = false;
-        mOptions.parameterRegisters = true;
-        mOptions.localsDirective = true;
-        mOptions.sequentialLabels = true;
-        mOptions.debugInfo = BuildConfig.DEBUG;
-        mOptions.codeOffsets = false;
-        mOptions.accessorComments = false;
-        mOptions.registerInfo = 0;
-        mOptions.inlineResolver = null;
-        BaksmaliFormatter formatter = new BaksmaliFormatter();
-        MultiDexContainer<? extends DexBackedDexFile> container = DexUtils.loadApk(apkFile, apiLevel);
-        List<String> dexEntryNames = container.getDexEntryNames();
-        for (String dexEntryName : dexEntryNames) {
-            MultiDexContainer.DexEntry<? extends DexBackedDexFile> dexEntry =
-                    Objects.requireNonNull(container.getEntry(dexEntryName));
-            DexBackedDexFile dexFile = dexEntry.getDexFile();
-            // Store list of classes
-            for (ClassDef classDef : dexFile.getClasses()) {
-                String name = formatter.getType(classDef.getType());
-                if (name.endsWith(";")) name = name.substring(0, name.length() - 1);
-                if (name.startsWith("L")) {
-                    name = name.substring(1).replace('/', '.');
-                }
-                mClassNameClassDefMap.put(name, classDef);
-                String baseClass = DexUtils.getClassNameWithoutInnerClasses(name);
-                List<String> classes = mBaseClassNestedClassMap.get(baseClass);
-                if (classes == null) {
-                    classes = new ArrayList<>();
-                    mBaseClassNestedClassMap.put(baseClass, classes);
-                }
-                classes.add(name);
-            }
-            if (dexFile.supportsOptimizedOpcodes()) {
-                throw new IOException("ODEX isn't supported.");
-            }
-            if (dexFile instanceof DexBackedOdexFile) {
-                mOptions.inlineResolver = InlineMethodResolver.createInlineMethodResolver(
-                        ((DexBackedOdexFile) dexFile).getOdexVersion());
-            }
-        }
+        this(apiLevel, readDexFiles(apkFile));
     }
 
     public DexClasses(@NonNull InputStream inputStream, @IntRange(from = -1) int apiLevel) throws IOException {
+        this(apiLevel, Collections.singletonList(ByteBuffer.wrap(IoUtils.readFully(inputStream, -1, true))));
+    }
+
+    /**
+     * Load the classes from the contents of dex files, e.g. the dex files extracted from an APK file.
+     */
+    public DexClasses(@NonNull List<byte[]> dexFiles, @IntRange(from = -1) int apiLevel) throws IOException {
+        this(apiLevel, wrap(dexFiles));
+    }
+
+    private DexClasses(@IntRange(from = -1) int apiLevel, @NonNull List<ByteBuffer> dexFiles) throws IOException {
         mOpcodes = apiLevel < 0 ? Opcodes.getDefault() : Opcodes.forApi(apiLevel);
-        mOptions = new BaksmaliOptions();
-        // options
-        mOptions.deodex = false;
-        mOptions.implicitReferences = false;
-        mOptions.parameterRegisters = true;
-        mOptions.localsDirective = true;
-        mOptions.sequentialLabels = true;
-        mOptions.debugInfo = BuildConfig.DEBUG;
-        mOptions.codeOffsets = false;
-        mOptions.accessorComments = false;
-        mOptions.registerInfo = 0;
-        mOptions.inlineResolver = null;
-        BaksmaliFormatter formatter = new BaksmaliFormatter();
-        InputStream is = new BufferedInputStream(inputStream);
-        DexBackedDexFile dexFile = DexUtils.loadDexContainer(is, apiLevel);
-        // Store list of classes
-        for (ClassDef classDef : dexFile.getClasses()) {
-            String name = formatter.getType(classDef.getType());
-            if (name.endsWith(";")) name = name.substring(0, name.length() - 1);
-            if (name.startsWith("L")) {
-                name = name.substring(1).replace('/', '.');
+        mOptions = getDefaultOptions();
+        mDexFiles = dexFiles;
+        mDexIndex = new DexIndex(dexFiles);
+        mDexBackedDexFiles = new DexBackedDexFile[dexFiles.size()];
+    }
+
+    @NonNull
+    private static List<ByteBuffer> wrap(@NonNull List<byte[]> dexFiles) {
+        List<ByteBuffer> buffers = new ArrayList<>(dexFiles.size());
+        for (byte[] dexFile : dexFiles) {
+            buffers.add(ByteBuffer.wrap(dexFile));
+        }
+        return buffers;
+    }
+
+    @NonNull
+    private static List<ByteBuffer> readDexFiles(@NonNull File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel channel = fis.getChannel();
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            //noinspection StatementWithEmptyBody
+            while (magic.hasRemaining() && channel.read(magic) > 0) {
             }
-            mClassNameClassDefMap.put(name, classDef);
-            String baseClass = DexUtils.getClassNameWithoutInnerClasses(name);
-            List<String> classes = mBaseClassNestedClassMap.get(baseClass);
-            if (classes == null) {
-                classes = new ArrayList<>();
-                mBaseClassNestedClassMap.put(baseClass, classes);
+            magic.flip();
+            if (DexIndex.isDex(magic)) {
+                // The mapping remains valid after the channel is closed
+                return Collections.singletonList(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
             }
-            classes.add(name);
         }
-        if (dexFile.supportsOptimizedOpcodes()) {
-            throw new IOException("ODEX isn't supported.");
-        }
-        if (dexFile instanceof DexBackedOdexFile) {
-            mOptions.inlineResolver = InlineMethodResolver.createInlineMethodResolver(
-                    ((DexBackedOdexFile) dexFile).getOdexVersion());
+        // Like DexFileFactory, any entry of a zip file can be a dex file. The entries are usually compressed and
+        // cannot be mapped.
+        List<ByteBuffer> dexFiles = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(file)) {
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                long size = zipEntry.getSize();
+                if (zipEntry.isDirectory() || size < 4 || size > Integer.MAX_VALUE) {
+                    continue;
+                }
+                try (DataInputStream dis = new DataInputStream(zipFile.getInputStream(zipEntry))) {
+                    byte[] magic = new byte[4];
+                    dis.readFully(magic);
+                    if (!DexIndex.isDex(ByteBuffer.wrap(magic))) {
+                        continue;
+                    }
+                    byte[] dexFile = Arrays.copyOf(magic, (int) size);
+                    dis.readFully(dexFile, magic.length, dexFile.length - magic.length);
+                    dexFiles.add(ByteBuffer.wrap(dexFile));
+                }
+            }
         }
+        return dexFiles;
+    }
+
+    @NonNull
+    private static BaksmaliOptions getDefaultOptions() {
+        BaksmaliOptions options = new BaksmaliOptions();
+        // options
+        options.deodex = false;
+        options.implicitReferences = false;
+        options.parameterRegisters = true;
+        options.localsDirective = true;
+        options.sequentialLabels = true;
+        options.debugInfo = BuildConfig.DEBUG;
+        options.codeOffsets = false;
+        options.accessorComments = false;
+        options.registerInfo = 0;
+        options.inlineResolver = null;
+        return options;
     }
 
     @NonNull
     public List<String> getClassNames() {
-        return new ArrayList<>(mClassNameClassDefMap.keySet());
+        List<String> classNames = new ArrayList<>(mDexIndex.size());
+        for (int i = 0; i < mDexIndex.size(); ++i) {
+            classNames.add(mDexIndex.getClassName(i));
+        }
+        return classNames;
     }
 
     @NonNull
     public List<String> getBaseClassNames() {
-        return new ArrayList<>(mBaseClassNestedClassMap.keySet());
+        Set<String> baseClassNames = new LinkedHashSet<>();
+        for (int i = 0; i < mDexIndex.size(); ++i) {
+            baseClassNames.add(DexUtils.getClassNameWithoutInnerClasses(mDexIndex.getClassName(i)));
+        }
+        return new ArrayList<>(baseClassNames);
     }
 
     @NonNull
     public ClassDef getClassDef(@NonNull String className) throws ClassNotFoundException {
-        ClassDef classDef = mClassNameClassDefMap.get(className);
-        if (classDef == null) throw new ClassNotFoundException(className + " could not be found.");
-        return classDef;
+        int index = mDexIndex.indexOf(className);
+        if (index < 0) throw new ClassNotFoundException(className + " could not be found.");
+        return getDexFile(mDexIndex.getDexFileIndex(index)).getClassSection().get(mDexIndex.getClassDefIndex(index));
     }
 
     @NonNull
     public String getJavaCode(@NonNull String className) throws ClassNotFoundException {
         try {
             String baseClass = DexUtils.getClassNameWithoutInnerClasses(className);
-            List<String> classes = mBaseClassNestedClassMap.get(baseClass);
-            if (classes == null || classes.isEmpty() || !classes.contains(className)) {
+            List<String> classes = getNestedClassNames(baseClass);
+            if (classes.isEmpty() || !classes.contains(className)) {
                 throw new ClassNotFoundException();
             }
             List<ClassDef> classDefs = new ArrayList<>(classes.size());
@@ -161,6 +187,51 @@ public class DexClasses implements Closeable {
         }
     }
 
+    /**
+     * Get the base class and its nested classes.
+     */
+    @NonNull
+    private List<String> getNestedClassNames(@NonNull String baseClass) {
+        List<String> classes = new ArrayList<>();
+        if (mDexIndex.indexOf(baseClass) >= 0) {
+            classes.add(baseClass);
+        }
+        // The nested classes are sorted right after the base class
+        String prefix = baseClass + "$";
+        int index = mDexIndex.indexOf(prefix);
+        for (int i = index >= 0 ? index : -index - 1; i < mDexIndex.size(); ++i) {
+            String className = mDexIndex.getClassName(i);
+            if (!className.startsWith(prefix)) {
+                break;
+            }
+            if (baseClass.equals(DexUtils.getClassNameWithoutInnerClasses(className))) {
+                classes.add(className);
+            }
+        }
+        return classes;
+    }
+
+    @NonNull
+    private DexBackedDexFile getDexFile(int dexFileIndex) {
+        synchronized (mDexBackedDexFiles) {
+            DexBackedDexFile dexFile = mDexBackedDexFiles[dexFileIndex];
+            if (dexFile == null) {
+                ByteBuffer buffer = mDexFiles.get(dexFileIndex);
+                byte[] bytes;
+                if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.remaining()) {
+                    bytes = buffer.array();
+                } else {
+                    // dexlib2 requires the dex file to be in an array
+                    bytes = new byte[buffer.remaining()];
+                    buffer.duplicate().get(bytes);
+                }
+                dexFile = new DexBackedDexFile(mOpcodes, bytes);
+                mDexBackedDexFiles[dexFileIndex] = dexFile;
+            }
+            return dexFile;
+        }
+    }
+
     @NonNull
     public String getClassContents(@NonNull String className) throws ClassNotFoundException {
         return getClassContents(getClassDef(className));
@@ -180,5 +251,9 @@ public class DexClasses implements Closeable {
 
     @Override
     public void close() throws IOException {
+        // Only the classes loaded via dexlib2 can be released, the rest is released along with this object
+        synchronized (mDexBackedDexFiles) {
+            Arrays.fill(mDexBackedDexFiles, null);
+        }
     }
 }
@@ -0,0 +1,182 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.dex;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Names of the classes defined in a set of dex files. Only the header, string_ids, type_ids and class_defs of each dex
+ * file are read, and no dexlib2 object is created. The names are sorted, and each of them refers to the dex file and
+ * the class_def_item where the class is defined.
+ */
+final class DexIndex {
+    private static final int HEADER_SIZE = 0x70;
+    private static final int STRING_IDS_OFF = 0x3C;
+    private static final int TYPE_IDS_SIZE = 0x40;
+    private static final int TYPE_IDS_OFF = 0x44;
+    private static final int CLASS_DEFS_SIZE = 0x60;
+    private static final int CLASS_DEFS_OFF = 0x64;
+    private static final int CLASS_DEF_ITEM_SIZE = 0x20;
+    // Maximum number of class_def_items, since they are indexed by an unsigned short type index
+    private static final int MAX_CLASS_DEFS = 0x10000;
+
+    static boolean isDex(@NonNull ByteBuffer buffer) {
+        return buffer.remaining() >= 4 && buffer.get(buffer.position()) == 'd'
+                && buffer.get(buffer.position() + 1) == 'e' && buffer.get(buffer.position() + 2) == 'x'
+                && buffer.get(buffer.position() + 3) == '\n';
+    }
+
+    @NonNull
+    private final String[] mClassNames;
+    // Index of the dex file in the upper and index of the class_def_item in the lower 16 bits
+    @NonNull
+    private final int[] mLocations;
+
+    DexIndex(@NonNull List<ByteBuffer> dexFiles) throws IOException {
+        if (dexFiles.size() > Short.MAX_VALUE) {
+            throw new IOException("Too many dex files: " + dexFiles.size());
+        }
+        int classCount = 0;
+        String[][] classNames = new String[dexFiles.size()][];
+        for (int i = 0; i < dexFiles.size(); ++i) {
+            try {
+                classNames[i] = readClassNames(dexFiles.get(i));
+            } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+                throw new IOException("Invalid dex file at index " + i, e);
+            }
+            classCount += classNames[i].length;
+        }
+        // Sort the locations by the class names. The sort is stable, so the last one of the duplicate classes is kept,
+        // the same way the dex files would have been merged.
+        Integer[] locations = new Integer[classCount];
+        int k = 0;
+        for (int i = 0; i < classNames.length; ++i) {
+            for (int j = 0; j < classNames[i].length; ++j) {
+                locations[k++] = (i << 16) | j;
+            }
+        }
+        Arrays.sort(locations, (o1, o2) -> getClassName(classNames, o1).compareTo(getClassName(classNames, o2)));
+        String[] sortedClassNames = new String[classCount];
+        int[] sortedLocations = new int[classCount];
+        int count = 0;
+        for (int location : locations) {
+            String className = getClassName(classNames, location);
+            if (count > 0 && sortedClassNames[count - 1].equals(className)) {
+                --count;
+            }
+            sortedClassNames[count] = className;
+            sortedLocations[count] = location;
+            ++count;
+        }
+        mClassNames = count == classCount ? sortedClassNames : Arrays.copyOf(sortedClassNames, count);
+        mLocations = count == classCount ? sortedLocations : Arrays.copyOf(sortedLocations, count);
+    }
+
+    int size() {
+        return mClassNames.length;
+    }
+
+    @NonNull
+    String getClassName(int index) {
+        return mClassNames[index];
+    }
+
+    int getDexFileIndex(int index) {
+        return mLocations[index] >>> 16;
+    }
+
+    int getClassDefIndex(int index) {
+        return mLocations[index] & 0xFFFF;
+    }
+
+    /**
+     * @return Index of the class, or {@code -(insertion point) - 1} if it is not found
+     * @see Arrays#binarySearch(Object[], Object)
+     */
+    int indexOf(@NonNull String className) {
+        return Arrays.binarySearch(mClassNames, className);
+    }
+
+    @NonNull
+    private static String getClassName(@NonNull String[][] classNames, int location) {
+        return classNames[location >>> 16][location & 0xFFFF];
+    }
+
+    @NonNull
+    private static String[] readClassNames(@NonNull ByteBuffer buffer) throws IOException {
+        ByteBuffer dex = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (!isDex(dex)) {
+            throw new IOException("Not a dex file. ODEX isn't supported.");
+        }
+        if (dex.remaining() < HEADER_SIZE) {
+            throw new IOException("Invalid dex header");
+        }
+        int stringIdsOff = dex.getInt(STRING_IDS_OFF);
+        int typeIdsSize = dex.getInt(TYPE_IDS_SIZE);
+        int typeIdsOff = dex.getInt(TYPE_IDS_OFF);
+        int classDefsSize = dex.getInt(CLASS_DEFS_SIZE);
+        int classDefsOff = dex.getInt(CLASS_DEFS_OFF);
+        if (classDefsSize < 0 || classDefsSize > MAX_CLASS_DEFS) {
+            throw new IOException("Invalid number of classes: " + classDefsSize);
+        }
+        String[] classNames = new String[classDefsSize];
+        for (int i = 0; i < classDefsSize; ++i) {
+            int typeIdx = dex.getInt(classDefsOff + i * CLASS_DEF_ITEM_SIZE);
+            if (typeIdx < 0 || typeIdx >= typeIdsSize) {
+                throw new IOException("Invalid type index " + typeIdx);
+            }
+            int descriptorIdx = dex.getInt(typeIdsOff + typeIdx * 4);
+            int stringDataOff = dex.getInt(stringIdsOff + descriptorIdx * 4);
+            classNames[i] = toClassName(readString(dex, stringDataOff));
+        }
+        return classNames;
+    }
+
+    /**
+     * Read a string_data_item, which is a uleb128 length followed by the MUTF-8 encoded string.
+     */
+    @NonNull
+    private static String readString(@NonNull ByteBuffer dex, int offset) throws IOException {
+        int utf16Size = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = dex.get(offset++);
+            utf16Size |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0 && shift < 35);
+        if (utf16Size < 0 || utf16Size > dex.limit() - offset) {
+            throw new IOException("Invalid string length " + utf16Size);
+        }
+        char[] chars = new char[utf16Size];
+        for (int i = 0; i < utf16Size; ++i) {
+            int c = dex.get(offset++) & 0xFF;
+            if (c < 0x80) {
+                chars[i] = (char) c;
+            } else if ((c & 0xE0) == 0xC0) {
+                chars[i] = (char) (((c & 0x1F) << 6) | (dex.get(offset++) & 0x3F));
+            } else {
+                int c2 = dex.get(offset++) & 0x3F;
+                chars[i] = (char) (((c & 0x0F) << 12) | (c2 << 6) | (dex.get(offset++) & 0x3F));
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Convert a type descriptor, e.g. {@code Lcom/example/Foo;} to a class name, e.g. {@code com.example.Foo}.
+     */
+    @NonNull
+    private static String toClassName(@NonNull String descriptor) {
+        int start = descriptor.startsWith("L") ? 1 : 0;
+        int end = descriptor.endsWith(";") ? descriptor.length() - 1 : descriptor.length();
+        return descriptor.substring(start, Math.max(start, end)).replace('/', '.');
+    }
+}
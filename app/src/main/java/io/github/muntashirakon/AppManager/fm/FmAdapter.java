@@ -13,6 +13,7 @@ import android.view.ViewGroup;
 import androidx.annotation.ColorInt;
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.widget.AppCompatTextView;
 import androidx.appcompat.widget.LinearLayoutCompat;
 import androidx.appcompat.widget.PopupMenu;
@@ -60,10 +61,65 @@ class FmAdapter extends MultiSelectionView.Adapter<FmAdapter.ViewHolder> {
     }
 
     public void setFmList(List<FmItem> list) {
+        // While a folder is being loaded, the new list only has new items merged into the current one. When a folder
+        // is refreshed, or the cached listing is replaced, the same paths may come with new details.
+        List<Integer> replacedPositions = new ArrayList<>();
+        List<int[]> insertedRanges = mAdapterList.isEmpty() ? null
+                : findInsertedRanges(mAdapterList, list, replacedPositions);
         mAdapterList.clear();
         mAdapterList.addAll(list);
         notifySelectionChange();
-        notifyDataSetChanged();
+        if (insertedRanges == null) {
+            notifyDataSetChanged();
+        } else {
+            // Keep the scroll position
+            for (int[] range : insertedRanges) {
+                notifyItemRangeInserted(range[0], range[1]);
+            }
+            // Consecutive positions are notified together
+            int start = 0;
+            for (int k = 1; k <= replacedPositions.size(); ++k) {
+                if (k == replacedPositions.size() || replacedPositions.get(k) != replacedPositions.get(k - 1) + 1) {
+                    notifyItemRangeChanged(replacedPositions.get(start), k - start);
+                    start = k;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the ranges of items inserted into the old list to get the new list.
+     *
+     * @param replacedPositions Filled with the positions (in the new list) of the items that are kept but replaced by
+     *                          another instance, which have to be bound again
+     * @return The start positions (in the new list) and the lengths of the ranges, or {@code null} if the new list
+     * was not made by inserting items
+     */
+    @Nullable
+    private static List<int[]> findInsertedRanges(@NonNull List<FmItem> oldList, @NonNull List<FmItem> newList,
+                                                  @NonNull List<Integer> replacedPositions) {
+        if (newList.size() < oldList.size()) {
+            return null;
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (j < newList.size()) {
+            if (i < oldList.size() && oldList.get(i).equals(newList.get(j))) {
+                if (oldList.get(i) != newList.get(j)) {
+                    replacedPositions.add(j);
+                }
+                ++i;
+                ++j;
+                continue;
+            }
+            int start = j;
+            while (j < newList.size() && (i >= oldList.size() || !oldList.get(i).equals(newList.get(j)))) {
+                ++j;
+            }
+            ranges.add(new int[]{start, j - start});
+        }
+        return i == oldList.size() ? ranges : null;
     }
 
     @Override
@@ -0,0 +1,379 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.fm;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import io.github.muntashirakon.AppManager.logs.Log;
+import io.github.muntashirakon.AppManager.utils.DigestUtils;
+import io.github.muntashirakon.AppManager.utils.FileUtils;
+import io.github.muntashirakon.io.Path;
+import io.github.muntashirakon.io.PathAttributes;
+import io.github.muntashirakon.io.PathContentInfo;
+import io.github.muntashirakon.io.Paths;
+
+/**
+ * Cache of the folder listings of the file manager, kept in memory and on disk. A listing of a regular folder is valid
+ * as long as the modification time of the folder is unchanged. SAF does not report reliable modification times for
+ * folders, so their listings are only used to display something until the folder is listed again.
+ */
+final class FmDirectoryCache {
+    public static final String TAG = FmDirectoryCache.class.getSimpleName();
+
+    private static final int VERSION = 1;
+    private static final int MAX_MEMORY_LISTINGS = 32;
+    private static final int MAX_DISK_LISTINGS = 512;
+    // Listings larger than this are not worth the disk space
+    private static final int MAX_CHILDREN = 1 << 16;
+
+    private static FmDirectoryCache sInstance;
+
+    @NonNull
+    static synchronized FmDirectoryCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new FmDirectoryCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Whether the listings of the given folder can be cached. Virtual file systems are already in memory.
+     */
+    static boolean isCacheable(@NonNull Uri uri) {
+        return ContentResolver.SCHEME_FILE.equals(uri.getScheme())
+                || ContentResolver.SCHEME_CONTENT.equals(uri.getScheme());
+    }
+
+    static class Listing {
+        // Modification time of the folder when it was listed, 0 if unknown
+        final long lastModified;
+        @NonNull
+        final List<Entry> entries;
+
+        Listing(long lastModified, @NonNull List<Entry> entries) {
+            this.lastModified = lastModified;
+            this.entries = entries;
+        }
+
+        @NonNull
+        List<FmItem> toFmItems(@NonNull Path parent) {
+            boolean isSaf = ContentResolver.SCHEME_CONTENT.equals(parent.getUri().getScheme());
+            List<FmItem> fmItems = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                fmItems.add(entry.toFmItem(parent, isSaf));
+            }
+            return fmItems;
+        }
+    }
+
+    static class Entry {
+        @NonNull
+        final String uri;
+        final boolean isDirectory;
+        @Nullable
+        final PathAttributes attributes;
+        @Nullable
+        final PathContentInfo contentInfo;
+
+        Entry(@NonNull FmItem fmItem) {
+            uri = fmItem.path.getUri().toString();
+            isDirectory = fmItem.isDirectory;
+            attributes = fmItem.getAttributes();
+            contentInfo = fmItem.getContentInfo();
+        }
+
+        Entry(@NonNull String uri, boolean isDirectory, @Nullable PathAttributes attributes,
+              @Nullable PathContentInfo contentInfo) {
+            this.uri = uri;
+            this.isDirectory = isDirectory;
+            this.attributes = attributes;
+            this.contentInfo = contentInfo;
+        }
+
+        @NonNull
+        FmItem toFmItem(@NonNull Path parent, boolean isSaf) {
+            Uri childUri = Uri.parse(uri);
+            Path path = isSaf ? Paths.getTreeDocument(parent, childUri) : Paths.get(childUri);
+            FmItem fmItem = attributes != null ? new FmItem(path, attributes) : new FmItem(path, isDirectory);
+            fmItem.setContentInfo(contentInfo);
+            return fmItem;
+        }
+
+        /**
+         * Whether the entry is displayed the same way as a freshly listed one. The content info is not compared.
+         */
+        boolean isSameAs(@NonNull Entry freshEntry) {
+            if (!uri.equals(freshEntry.uri) || isDirectory != freshEntry.isDirectory) {
+                return false;
+            }
+            if (freshEntry.attributes == null) {
+                // Nothing to compare with, the attributes may have changed
+                return false;
+            }
+            if (attributes == null) {
+                // Attributes are loaded when displayed
+                return true;
+            }
+            return attributes.name.equals(freshEntry.attributes.name)
+                    && attributes.lastModified == freshEntry.attributes.lastModified
+                    && attributes.size == freshEntry.attributes.size
+                    && Objects.equals(attributes.mimeType, freshEntry.attributes.mimeType);
+        }
+    }
+
+    /**
+     * Whether the displayed items would be displayed the same way as the freshly listed ones. The freshly listed items
+     * must have their attributes loaded.
+     */
+    static boolean isSameListing(@NonNull List<FmItem> fmItems, @NonNull List<FmItem> freshFmItems) {
+        if (fmItems.size() != freshFmItems.size()) {
+            return false;
+        }
+        for (int i = 0; i < fmItems.size(); ++i) {
+            if (!new Entry(fmItems.get(i)).isSameAs(new Entry(freshFmItems.get(i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final LruCache<String, Listing> mMemoryCache = new LruCache<>(MAX_MEMORY_LISTINGS);
+    private final File mCacheDir;
+
+    private FmDirectoryCache() {
+        mCacheDir = new File(FileUtils.getCachePath(), "fm");
+    }
+
+    @WorkerThread
+    @Nullable
+    Listing get(@NonNull Uri uri) {
+        String key = uri.toString();
+        Listing listing = mMemoryCache.get(key);
+        if (listing != null) {
+            return listing;
+        }
+        File file = getListingFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            listing = readListing(is, key);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not read cached listing of %s", e, uri);
+            listing = null;
+        }
+        if (listing == null) {
+            // Outdated or corrupted
+            file.delete();
+            return null;
+        }
+        mMemoryCache.put(key, listing);
+        return listing;
+    }
+
+    /**
+     * Store the listing of a folder.
+     *
+     * @param lastModified Modification time of the folder before it was listed, 0 if unknown
+     */
+    @WorkerThread
+    void put(@NonNull Uri uri, long lastModified, @NonNull List<FmItem> fmItems) {
+        if (fmItems.size() > MAX_CHILDREN) {
+            invalidate(uri);
+            return;
+        }
+        List<Entry> entries = new ArrayList<>(fmItems.size());
+        for (FmItem fmItem : fmItems) {
+            Entry entry = new Entry(fmItem);
+            if (!isCacheable(Uri.parse(entry.uri))) {
+                // Contains file systems mounted in this folder, which are not persistent
+                invalidate(uri);
+                return;
+            }
+            entries.add(entry);
+        }
+        String key = uri.toString();
+        Listing listing = new Listing(lastModified, Collections.unmodifiableList(entries));
+        mMemoryCache.put(key, listing);
+        writeListing(key, listing);
+    }
+
+    /**
+     * Store the listing of a folder again with the attributes and the content info loaded since it was stored. Nothing
+     * is done if the listing was invalidated in the meantime.
+     */
+    @WorkerThread
+    void update(@NonNull Uri uri, @NonNull List<FmItem> fmItems) {
+        Listing listing = mMemoryCache.get(uri.toString());
+        if (listing != null) {
+            put(uri, listing.lastModified, fmItems);
+        }
+    }
+
+    void invalidate(@NonNull Uri uri) {
+        String key = uri.toString();
+        mMemoryCache.remove(key);
+        getListingFile(key).delete();
+    }
+
+    private void writeListing(@NonNull String key, @NonNull Listing listing) {
+        if (!mCacheDir.exists() && !mCacheDir.mkdirs()) {
+            return;
+        }
+        File file = getListingFile(key);
+        File tmpFile = new File(mCacheDir, file.getName() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            os.writeInt(VERSION);
+            os.writeUTF(key);
+            os.writeLong(listing.lastModified);
+            os.writeInt(listing.entries.size());
+            for (Entry entry : listing.entries) {
+                writeEntry(os, entry);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache listing of %s", e, key);
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            return;
+        }
+        trim();
+    }
+
+    /**
+     * Delete the least recently written listings if there are too many.
+     */
+    private void trim() {
+        File[] files = mCacheDir.listFiles();
+        if (files == null || files.length <= MAX_DISK_LISTINGS) {
+            return;
+        }
+        long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (o1, o2) -> Long.compare(lastModified[o1], lastModified[o2]));
+        for (int i = 0; i < files.length - MAX_DISK_LISTINGS; ++i) {
+            files[order[i]].delete();
+        }
+    }
+
+    @NonNull
+    private File getListingFile(@NonNull String key) {
+        return new File(mCacheDir, DigestUtils.getHexDigest(DigestUtils.SHA_1, key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Nullable
+    private static Listing readListing(@NonNull DataInputStream is, @NonNull String key) throws IOException {
+        if (is.readInt() != VERSION || !key.equals(is.readUTF())) {
+            return null;
+        }
+        long lastModified = is.readLong();
+        int count = is.readInt();
+        if (count < 0 || count > MAX_CHILDREN) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            entries.add(readEntry(is));
+        }
+        return new Listing(lastModified, Collections.unmodifiableList(entries));
+    }
+
+    private static void writeEntry(@NonNull DataOutputStream os, @NonNull Entry entry) throws IOException {
+        os.writeUTF(entry.uri);
+        os.writeBoolean(entry.isDirectory);
+        PathAttributes attributes = entry.attributes;
+        os.writeBoolean(attributes != null);
+        if (attributes != null) {
+            os.writeUTF(attributes.name);
+            writeNullableString(os, attributes.mimeType);
+            os.writeLong(attributes.lastModified);
+            os.writeLong(attributes.lastAccess);
+            os.writeLong(attributes.creationTime);
+            os.writeBoolean(attributes.isRegularFile);
+            os.writeBoolean(attributes.isDirectory);
+            os.writeBoolean(attributes.isSymbolicLink);
+            os.writeLong(attributes.size);
+        }
+        PathContentInfo contentInfo = entry.contentInfo;
+        os.writeBoolean(contentInfo != null);
+        if (contentInfo != null) {
+            os.writeUTF(contentInfo.getName());
+            writeNullableString(os, contentInfo.getMessage());
+            writeNullableString(os, contentInfo.getMimeType());
+            String[] fileExtensions = contentInfo.getFileExtensions();
+            os.writeInt(fileExtensions != null ? fileExtensions.length : -1);
+            if (fileExtensions != null) {
+                for (String fileExtension : fileExtensions) {
+                    os.writeUTF(fileExtension);
+                }
+            }
+            os.writeBoolean(contentInfo.isPartial());
+        }
+    }
+
+    @NonNull
+    private static Entry readEntry(@NonNull DataInputStream is) throws IOException {
+        String uri = is.readUTF();
+        boolean isDirectory = is.readBoolean();
+        PathAttributes attributes = null;
+        if (is.readBoolean()) {
+            attributes = new PathAttributes(is.readUTF(), readNullableString(is), is.readLong(), is.readLong(),
+                    is.readLong(), is.readBoolean(), is.readBoolean(), is.readBoolean(), is.readLong());
+        }
+        PathContentInfo contentInfo = null;
+        if (is.readBoolean()) {
+            String name = is.readUTF();
+            String message = readNullableString(is);
+            String mimeType = readNullableString(is);
+            int extensionCount = is.readInt();
+            String[] fileExtensions = null;
+            if (extensionCount >= 0) {
+                fileExtensions = new String[extensionCount];
+                for (int i = 0; i < extensionCount; ++i) {
+                    fileExtensions[i] = is.readUTF();
+                }
+            }
+            contentInfo = new PathContentInfo(name, message, mimeType, fileExtensions, is.readBoolean());
+        }
+        return new Entry(uri, isDirectory, attributes, contentInfo);
+    }
+
+    private static void writeNullableString(@NonNull DataOutputStream os, @Nullable String s) throws IOException {
+        os.writeBoolean(s != null);
+        if (s != null) {
+            os.writeUTF(s);
+        }
+    }
+
+    @Nullable
+    private static String readNullableString(@NonNull DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+}
@@ -39,6 +39,11 @@ public class FmItem implements Comparable<FmItem> {
         isDirectory = path.isDirectory();
     }
 
+    FmItem(@NonNull Path path, boolean isDirectory) {
+        this.path = path;
+        this.isDirectory = isDirectory;
+    }
+
     FmItem(@NonNull Path path, @NonNull PathAttributes attributes) {
         this.path = path;
         mAttributes = attributes;
@@ -89,6 +94,11 @@ public class FmItem implements Comparable<FmItem> {
         return mChildCount;
     }
 
+    @Nullable
+    PathAttributes getAttributes() {
+        return mAttributes;
+    }
+
     @Nullable
     public PathContentInfo getContentInfo() {
         return mContentInfo;
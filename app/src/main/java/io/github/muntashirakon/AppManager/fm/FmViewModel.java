@@ -8,6 +8,7 @@ import android.content.ContentResolver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.FileObserver;
 import android.provider.DocumentsContract;
 import android.text.TextUtils;
 
@@ -22,10 +23,12 @@ import androidx.lifecycle.MutableLiveData;
 
 import com.j256.simplemagic.ContentType;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -57,6 +60,10 @@ import io.github.muntashirakon.lifecycle.SingleLiveEvent;
 public class FmViewModel extends AndroidViewModel implements ListOptions.ListOptionActions {
     public static final String TAG = FmViewModel.class.getSimpleName();
 
+    // The first page is small so that the first rows are displayed as soon as possible
+    private static final int FIRST_PAGE_SIZE = 64;
+    private static final int MAX_PAGE_SIZE = 4096;
+
     private final Object mSizeLock = new Object();
     private final MutableLiveData<List<FmItem>> mFmItemsLiveData = new MutableLiveData<>();
     private final MutableLiveData<Throwable> mFmErrorLiveData = new MutableLiveData<>();
@@ -67,6 +74,8 @@ public class FmViewModel extends AndroidViewModel implements ListOptions.ListOpt
     private final SingleLiveEvent<Pair<Path, Bitmap>> mShortcutCreatorLiveData = new SingleLiveEvent<>();
     private final SingleLiveEvent<SharableItems> mSharableItemsLiveData = new SingleLiveEvent<>();
     private final List<FmItem> mFmItems = new ArrayList<>();
+    // Filtered and sorted items that are displayed, guarded by mFmItems
+    private final List<FmItem> mFilteredItems = new ArrayList<>();
     private final Set<Path> mSelectedItems = Collections.synchronizedSet(new LinkedHashSet<>());
     private final HashMap<Uri, Integer> mPathScrollPositionMap = new HashMap<>();
     private FmActivity.Options mOptions;
@@ -84,6 +93,11 @@ public class FmViewModel extends AndroidViewModel implements ListOptions.ListOpt
     private Future<?> mFmFileLoaderResult;
     private Future<?> mFmFileSystemLoaderResult;
     private final Set<Integer> mVfsIdSet = new HashSet<>();
+    // The folder whose listing was loaded completely and cached
+    @Nullable
+    private volatile Uri mCachedUri;
+    @Nullable
+    private FileObserver mFileObserver;
     private final FileCache mFileCache = new FileCache();
 
     public FmViewModel(@NonNull Application application) {
@@ -102,6 +116,8 @@ public class FmViewModel extends AndroidViewModel implements ListOptions.ListOpt
         if (mFmFileSystemLoaderResult != null) {
             mFmFileSystemLoaderResult.cancel(true);
         }
+        watchFolder(null);
+        updateCachedListing();
         // Clear VFS related data
         for (int vfsId : mVfsIdSet) {
             ExUtils.exceptionAsIgnored(() -> VirtualFileSystem.unmount(vfsId));
@@ -301,7 +317,10 @@ public class FmViewModel extends AndroidViewModel implements ListOptions.ListOpt
             }
         }
         Path path = currentPath;
+        long startTime = System.currentTimeMillis();
         mFmFileLoaderResult = ThreadUtils.postOnBackgroundThread(() -> {
+            // The content info of the displayed items was loaded since the last folder was cached
+            updateCachedListing();
             if (!path.isDirectory()) {
                 IOException e;
                 if (path.exists()) {
@@ -314,89 +333,146 @@ public class FmViewModel extends AndroidViewModel implements ListOptions.ListOpt
             }
             // Send current URI
             mUriLiveData.postValue(mCurrentUri);
+            Uri currentUri = mCurrentUri;
             long s, e;
-            boolean isSaf = ContentResolver.SCHEME_CONTENT.equals(mCurrentUri.getScheme());
+            boolean isSaf = ContentResolver.SCHEME_CONTENT.equals(currentUri.getScheme());
             FolderShortInfo folderShortInfo = new FolderShortInfo();
-            int folderCount = 0;
-            synchronized (mFmItems) {
-                mFmItems.clear();
-                if (isSaf) {
-                    // SAF needs special handling to retrieve children
-                    s = System.currentTimeMillis();
-                    ContentResolver resolver = getApplication().getContentResolver();
-                    Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(mCurrentUri,
-                            DocumentsContract.getDocumentId(mCurrentUri));
-                    Cursor c = null;
-                    try {
-                        c = resolver.query(childrenUri, null, null, null, null);
-                        String[] columns = c.getColumnNames();
-                        while (c.moveToNext()) {
-                            String documentId = null;
-                            for (int i = 0; i < columns.length; ++i) {
-                                if (DocumentsContract.Document.COLUMN_DOCUMENT_ID.equals(columns[i])) {
-                                    documentId = c.getString(i);
-                                }
-                            }
-                            if (documentId == null) {
-                                // Invalid document, probably loading still?
-                                continue;
-                            }
-                            Uri documentUri = DocumentsContract.buildDocumentUriUsingTree(mCurrentUri, documentId);
-                            Path child = Paths.getTreeDocument(path, documentUri);
-                            PathAttributes attributes = PathAttributes.fromSafTreeCursor(documentUri, c);
-                            FmItem fmItem = new FmItem(child, attributes);
-                            mFmItems.add(fmItem);
-                            if (fmItem.isDirectory) {
-                                ++folderCount;
-                            }
-                            if (ThreadUtils.isInterrupted()) {
-                                return;
+            folderShortInfo.canRead = path.canRead();
+            folderShortInfo.canWrite = path.canWrite();
+            boolean cacheable = FmDirectoryCache.isCacheable(currentUri);
+            if (!isSaf) {
+                watchFolder(currentUri);
+            }
+            // Taken before listing so that any change made during the listing invalidates the cache
+            long lastModified = isSaf ? 0 : path.lastModified();
+            FmDirectoryCache.Listing cachedListing = cacheable ? FmDirectoryCache.getInstance().get(currentUri) : null;
+            if (cachedListing != null) {
+                // Display the cached listing right away
+                List<FmItem> cachedItems = cachedListing.toFmItems(path);
+                synchronized (mFmItems) {
+                    if (ThreadUtils.isInterrupted()) {
+                        return;
+                    }
+                    mFmItems.clear();
+                    mFmItems.addAll(cachedItems);
+                }
+                filterAndSort();
+                Log.d(TAG, "Time to first row (cached): %d ms", System.currentTimeMillis() - startTime);
+                int folderCount = 0;
+                for (FmItem fmItem : cachedItems) {
+                    if (fmItem.isDirectory) {
+                        ++folderCount;
+                    }
+                }
+                folderShortInfo.folderCount = folderCount;
+                folderShortInfo.fileCount = cachedItems.size() - folderCount;
+                if (ThreadUtils.isInterrupted()) {
+                    return;
+                }
+                mFolderShortInfoLiveData.postValue(folderShortInfo);
+            }
+            // List the folder, or list it again in the background to revalidate the cached listing. This is done
+            // even if the modification time matches, since neither the files modified in place nor the folders
+            // that cannot be watched (e.g. the ones only accessible with root) alter it. The displayed listing is
+            // only replaced if it differs.
+            FmItemPager pager = new FmItemPager(startTime, cachedListing == null);
+            if (cachedListing == null) {
+                synchronized (mFmItems) {
+                    if (ThreadUtils.isInterrupted()) {
+                        return;
+                    }
+                    mFmItems.clear();
+                    mFilteredItems.clear();
+                }
+            }
+            if (isSaf) {
+                // SAF needs special handling to retrieve children
+                s = System.currentTimeMillis();
+                ContentResolver resolver = getApplication().getContentResolver();
+                Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(currentUri,
+                        DocumentsContract.getDocumentId(currentUri));
+                Cursor c = null;
+                try {
+                    c = resolver.query(childrenUri, null, null, null, null);
+                    String[] columns = c.getColumnNames();
+                    while (c.moveToNext()) {
+                        String documentId = null;
+                        for (int i = 0; i < columns.length; ++i) {
+                            if (DocumentsContract.Document.COLUMN_DOCUMENT_ID.equals(columns[i])) {
+                                documentId = c.getString(i);
                             }
                         }
-                        e = System.currentTimeMillis();
-                        Log.d(TAG, "Time to fetch files via SAF: %d ms", e - s);
-                    } catch (Exception ex) {
-                        Log.w(TAG, "Failed query: %s", ex);
-                    } finally {
-                        IoUtils.closeQuietly(c);
-                    }
-                } else {
-                    s = System.currentTimeMillis();
-                    Path[] children = path.listFiles();
-                    e = System.currentTimeMillis();
-                    Log.d(TAG, "Time to list files: %d ms", e - s);
-                    s = System.currentTimeMillis();
-                    for (Path child : children) {
-                        FmItem fmItem = new FmItem(child);
-                        mFmItems.add(fmItem);
-                        if (fmItem.isDirectory) {
-                            ++folderCount;
+                        if (documentId == null) {
+                            // Invalid document, probably loading still?
+                            continue;
                         }
+                        Uri documentUri = DocumentsContract.buildDocumentUriUsingTree(currentUri, documentId);
+                        Path child = Paths.getTreeDocument(path, documentUri);
+                        PathAttributes attributes = PathAttributes.fromSafTreeCursor(documentUri, c);
+                        pager.add(new FmItem(child, attributes));
                         if (ThreadUtils.isInterrupted()) {
                             return;
                         }
                     }
                     e = System.currentTimeMillis();
-                    Log.d(TAG, "Time to process file list: %d ms", e - s);
+                    Log.d(TAG, "Time to fetch files via SAF: %d ms", e - s);
+                } catch (Exception ex) {
+                    Log.w(TAG, "Failed query: %s", ex);
+                    // Do not cache an incomplete listing
+                    cacheable = false;
+                } finally {
+                    IoUtils.closeQuietly(c);
                 }
+            } else {
+                s = System.currentTimeMillis();
+                Path[] children = path.listFiles();
+                e = System.currentTimeMillis();
+                Log.d(TAG, "Time to list files: %d ms", e - s);
+                s = System.currentTimeMillis();
+                for (Path child : children) {
+                    // Checking the type of each child is what makes large folders slow
+                    FmItem fmItem = null;
+                    if (cachedListing != null) {
+                        // The attributes are compared with the cached ones, and they are fetched with the same call
+                        try {
+                            fmItem = new FmItem(child, child.getAttributes());
+                        } catch (IOException ex) {
+                            Log.w(TAG, "Could not get attributes of %s", ex, child);
+                        }
+                    }
+                    pager.add(fmItem != null ? fmItem : new FmItem(child));
+                    if (ThreadUtils.isInterrupted()) {
+                        return;
+                    }
+                }
+                e = System.currentTimeMillis();
+                Log.d(TAG, "Time to process file list: %d ms", e - s);
             }
-            folderShortInfo.folderCount = folderCount;
-            folderShortInfo.fileCount = mFmItems.size() - folderCount;
-            folderShortInfo.canRead = path.canRead();
-            folderShortInfo.canWrite = path.canWrite();
+            // The pages are already sorted, merge the remaining items and send the final list
+            s = System.currentTimeMillis();
+            if (!pager.finish()) {
+                return;
+            }
+            e = System.currentTimeMillis();
+            Log.d(TAG, "Time to sort files: %d ms", e - s);
+            folderShortInfo.folderCount = pager.folderCount;
+            folderShortInfo.fileCount = pager.itemCount - pager.folderCount;
             if (ThreadUtils.isInterrupted()) {
                 return;
             }
             // Send folder info for the first time
             mFolderShortInfoLiveData.postValue(folderShortInfo);
-            // Run filter and sorting options for fmItems
-            s = System.currentTimeMillis();
-            filterAndSort();
-            e = System.currentTimeMillis();
-            Log.d(TAG, "Time to sort files: %d ms", e - s);
+            if (cacheable) {
+                List<FmItem> fmItems;
+                synchronized (mFmItems) {
+                    fmItems = new ArrayList<>(mFmItems);
+                }
+                FmDirectoryCache.getInstance().put(currentUri, lastModified, fmItems);
+                mCachedUri = currentUri;
+            }
             synchronized (mSizeLock) {
                 // Calculate size and send folder info again
-                folderShortInfo.size = Paths.size(path);
+                folderShortInfo.size = Paths.cachedSize(path);
                 if (ThreadUtils.isInterrupted()) {
                     return;
                 }
@@ -473,19 +549,82 @@ public class FmViewModel extends AndroidViewModel implements ListOptions.ListOpt
     }
 
     private void filterAndSort() {
-        boolean displayDotFiles = (mSelectedOptions & FmListOptions.OPTIONS_DISPLAY_DOT_FILES) != 0;
-        boolean foldersOnTop = (mSelectedOptions & FmListOptions.OPTIONS_FOLDERS_FIRST) != 0;
+        synchronized (mFmItems) {
+            List<FmItem> filteredList = filter(mFmItems);
+            if (ThreadUtils.isInterrupted()) {
+                return;
+            }
+            Collections.sort(filteredList, getComparator());
+            if (ThreadUtils.isInterrupted()) {
+                return;
+            }
+            mFilteredItems.clear();
+            mFilteredItems.addAll(filteredList);
+            postFilteredItems(true);
+        }
+    }
 
-        List<FmItem> filteredList;
+    /**
+     * Add a page of new items and merge the visible ones into the displayed list.
+     *
+     * @return {@code true} if the displayed list was updated
+     */
+    private boolean addPage(@NonNull List<FmItem> page) {
         synchronized (mFmItems) {
-            if (!TextUtils.isEmpty(mQueryString)) {
-                filteredList = AdvancedSearchView.matches(mQueryString, mFmItems, FmItem::getName,
-                        AdvancedSearchView.SEARCH_TYPE_CONTAINS);
-            } else filteredList = new ArrayList<>(mFmItems);
+            if (ThreadUtils.isInterrupted()) {
+                // Another folder is being loaded
+                return false;
+            }
+            mFmItems.addAll(page);
+            List<FmItem> filteredPage = filter(page);
+            if (filteredPage.isEmpty()) {
+                return false;
+            }
+            Comparator<FmItem> comparator = getComparator();
+            Collections.sort(filteredPage, comparator);
+            // Merge the sorted page into the sorted list
+            List<FmItem> mergedList = new ArrayList<>(mFilteredItems.size() + filteredPage.size());
+            int i = 0, j = 0;
+            while (i < mFilteredItems.size() && j < filteredPage.size()) {
+                if (comparator.compare(filteredPage.get(j), mFilteredItems.get(i)) < 0) {
+                    mergedList.add(filteredPage.get(j++));
+                } else mergedList.add(mFilteredItems.get(i++));
+            }
+            mergedList.addAll(mFilteredItems.subList(i, mFilteredItems.size()));
+            mergedList.addAll(filteredPage.subList(j, filteredPage.size()));
+            mFilteredItems.clear();
+            mFilteredItems.addAll(mergedList);
+            postFilteredItems(false);
+            return true;
         }
-        if (ThreadUtils.isInterrupted()) {
-            return;
+    }
+
+    /**
+     * Send a copy of the displayed list. Must be called with mFmItems locked.
+     *
+     * @param complete Whether all the items have been loaded
+     */
+    private void postFilteredItems(boolean complete) {
+        if (complete && mScrollToFilename != null) {
+            for (int i = 0; i < mFilteredItems.size(); ++i) {
+                if (mScrollToFilename.equals(mFilteredItems.get(i).getName())) {
+                    setScrollPosition(mCurrentUri, i);
+                    break;
+                }
+            }
+            mScrollToFilename = null;
         }
+        mFmItemsLiveData.postValue(new ArrayList<>(mFilteredItems));
+    }
+
+    @NonNull
+    private List<FmItem> filter(@NonNull List<FmItem> fmItems) {
+        boolean displayDotFiles = (mSelectedOptions & FmListOptions.OPTIONS_DISPLAY_DOT_FILES) != 0;
+        List<FmItem> filteredList;
+        if (!TextUtils.isEmpty(mQueryString)) {
+            filteredList = AdvancedSearchView.matches(mQueryString, fmItems, FmItem::getName,
+                    AdvancedSearchView.SEARCH_TYPE_CONTAINS);
+        } else filteredList = new ArrayList<>(fmItems);
         if (!displayDotFiles) {
             Iterator<FmItem> iterator = filteredList.listIterator();
             while (iterator.hasNext()) {
@@ -495,50 +634,171 @@ public class FmViewModel extends AndroidViewModel implements ListOptions.ListOpt
                 }
             }
         }
-        if (ThreadUtils.isInterrupted()) {
-            return;
+        return filteredList;
+    }
+
+    @NonNull
+    private Comparator<FmItem> getComparator() {
+        boolean foldersOnTop = (mSelectedOptions & FmListOptions.OPTIONS_FOLDERS_FIRST) != 0;
+        int sortBy = mSortBy;
+        int inverse = mReverseSort ? -1 : 1;
+        return (o1, o2) -> {
+            if (foldersOnTop) {
+                // Folders should be on top
+                int c = -Boolean.compare(o1.isDirectory, o2.isDirectory);
+                if (c != 0) return c;
+            }
+            int c = 0;
+            if (sortBy == FmListOptions.SORT_BY_LAST_MODIFIED) {
+                c = -Long.compare(o1.getLastModified(), o2.getLastModified()) * inverse;
+            } else if (sortBy == FmListOptions.SORT_BY_SIZE) {
+                c = -Long.compare(o1.getSize(), o2.getSize()) * inverse;
+            } else if (sortBy == FmListOptions.SORT_BY_TYPE) {
+                c = o1.path.getType().compareToIgnoreCase(o2.path.getType()) * inverse;
+            }
+            if (c != 0) return c;
+            // Sort by name otherwise, which is only reversed when sorting by name
+            int nameComp = o1.getName().compareToIgnoreCase(o2.getName());
+            return sortBy == FmListOptions.SORT_BY_NAME ? nameComp * inverse : nameComp;
+        };
+    }
+
+    /**
+     * Collect the items of a folder in pages that grow in size and send each of them to be displayed. If a cached
+     * listing is already displayed, the items are only collected and the displayed list is replaced at the end if it
+     * differs.
+     */
+    private class FmItemPager {
+        private final long mStartTime;
+        private final boolean mProgressive;
+        private final List<FmItem> mItems = new ArrayList<>();
+        private List<FmItem> mPage = new ArrayList<>(FIRST_PAGE_SIZE);
+        private int mPageSize = FIRST_PAGE_SIZE;
+        private boolean mFirstRowDisplayed;
+        int itemCount;
+        int folderCount;
+
+        FmItemPager(long startTime, boolean progressive) {
+            mStartTime = startTime;
+            mProgressive = progressive;
         }
-        // Sort by name first
-        Collections.sort(filteredList, (o1, o2) -> o1.getName().compareToIgnoreCase(o2.getName()));
-        if (mSortBy == FmListOptions.SORT_BY_NAME) {
-            if (mReverseSort) {
-                Collections.reverse(filteredList);
+
+        void add(@NonNull FmItem fmItem) {
+            ++itemCount;
+            if (fmItem.isDirectory) {
+                ++folderCount;
             }
-        } else {
-            // Other sorting options
-            int inverse = mReverseSort ? -1 : 1;
-            Collections.sort(filteredList, (o1, o2) -> {
-                Path p1 = o1.path;
-                Path p2 = o2.path;
-                if (mSortBy == FmListOptions.SORT_BY_LAST_MODIFIED) {
-                    return -Long.compare(o1.getLastModified(), o2.getLastModified()) * inverse;
-                }
-                if (mSortBy == FmListOptions.SORT_BY_SIZE) {
-                    return -Long.compare(o1.getSize(), o2.getSize()) * inverse;
+            if (!mProgressive) {
+                mItems.add(fmItem);
+                return;
+            }
+            mPage.add(fmItem);
+            if (mPage.size() >= mPageSize) {
+                flush();
+                mPageSize = Math.min(mPageSize * 2, MAX_PAGE_SIZE);
+            }
+        }
+
+        /**
+         * @return {@code false} if the loading was cancelled
+         */
+        boolean finish() {
+            if (!mProgressive) {
+                synchronized (mFmItems) {
+                    if (ThreadUtils.isInterrupted()) {
+                        return false;
+                    }
+                    if (!FmDirectoryCache.isSameListing(mFmItems, mItems)) {
+                        Log.d(TAG, "Cached listing of %s is outdated.", mCurrentUri);
+                        mFmItems.clear();
+                        mFmItems.addAll(mItems);
+                        filterAndSort();
+                    }
                 }
-                if (mSortBy == FmListOptions.SORT_BY_TYPE) {
-                    return p1.getType().compareToIgnoreCase(p2.getType()) * inverse;
+                return true;
+            }
+            flush();
+            synchronized (mFmItems) {
+                if (ThreadUtils.isInterrupted()) {
+                    return false;
                 }
-                return 0;
-            });
+                // Also sent if the folder is empty or nothing matches
+                postFilteredItems(true);
+            }
+            logFirstRow();
+            return true;
+        }
+
+        private void flush() {
+            if (mPage.isEmpty()) {
+                return;
+            }
+            if (addPage(mPage)) {
+                logFirstRow();
+            }
+            mPage = new ArrayList<>(mPageSize);
+        }
+
+        private void logFirstRow() {
+            if (!mFirstRowDisplayed) {
+                mFirstRowDisplayed = true;
+                Log.d(TAG, "Time to first row: %d ms", System.currentTimeMillis() - mStartTime);
+            }
         }
-        if (foldersOnTop) {
-            // Folders should be on top
-            Collections.sort(filteredList, (o1, o2) -> -Boolean.compare(o1.isDirectory, o2.isDirectory));
+    }
+
+    /**
+     * Store the listing of the last cached folder again along with the details of the items loaded since.
+     */
+    private void updateCachedListing() {
+        Uri cachedUri = mCachedUri;
+        if (cachedUri == null) {
+            return;
+        }
+        mCachedUri = null;
+        List<FmItem> fmItems;
+        synchronized (mFmItems) {
+            fmItems = new ArrayList<>(mFmItems);
+        }
+        if (ThreadUtils.isMainThread()) {
+            ThreadUtils.postOnBackgroundThread(() -> FmDirectoryCache.getInstance().update(cachedUri, fmItems));
+        } else FmDirectoryCache.getInstance().update(cachedUri, fmItems);
+    }
+
+    /**
+     * Invalidate the cached listing of a local folder whenever something in it changes, including the files modified
+     * in place, which do not alter the modification time of the folder.
+     *
+     * @param uri The folder to watch, or {@code null} to stop watching
+     */
+    private synchronized void watchFolder(@Nullable Uri uri) {
+        if (mFileObserver != null) {
+            mFileObserver.stopWatching();
+            mFileObserver = null;
         }
-        if (ThreadUtils.isInterrupted()) {
+        if (uri == null || !ContentResolver.SCHEME_FILE.equals(uri.getScheme()) || uri.getPath() == null) {
             return;
         }
-        if (mScrollToFilename != null) {
-            for (int i = 0; i < filteredList.size(); ++i) {
-                if (mScrollToFilename.equals(filteredList.get(i).getName())) {
-                    setScrollPosition(mCurrentUri, i);
-                    break;
-                }
-            }
-            mScrollToFilename = null;
+        File folder = new File(uri.getPath());
+        if (!folder.canRead()) {
+            // Needs privileged access, rely on the modification time
+            return;
         }
-        mFmItemsLiveData.postValue(filteredList);
+        int mask = FileObserver.CREATE
+                | FileObserver.DELETE
+                | FileObserver.DELETE_SELF
+                | FileObserver.MOVED_TO
+                | FileObserver.MOVED_FROM
+                | FileObserver.MOVE_SELF
+                | FileObserver.MODIFY
+                | FileObserver.ATTRIB;
+        mFileObserver = new FileObserver(folder.getAbsolutePath(), mask) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                FmDirectoryCache.getInstance().invalidate(uri);
+            }
+        };
+        mFileObserver.startWatching();
     }
 
     @WorkerThread
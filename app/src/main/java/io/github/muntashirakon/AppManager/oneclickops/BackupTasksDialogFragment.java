@@ -13,6 +13,7 @@ import android.view.View;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
+import androidx.annotation.WorkerThread;
 import androidx.fragment.app.DialogFragment;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
@@ -21,12 +22,13 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Future;
 
 import io.github.muntashirakon.AppManager.R;
 import io.github.muntashirakon.AppManager.backup.BackupManager;
+import io.github.muntashirakon.AppManager.backup.BackupUtils;
 import io.github.muntashirakon.AppManager.backup.dialog.BackupRestoreDialogFragment;
-import io.github.muntashirakon.AppManager.db.AppsDb;
 import io.github.muntashirakon.AppManager.db.entity.Backup;
 import io.github.muntashirakon.AppManager.main.ApplicationItem;
 import io.github.muntashirakon.AppManager.self.SelfPermissions;
@@ -35,13 +37,12 @@ import io.github.muntashirakon.AppManager.types.UserPackagePair;
 import io.github.muntashirakon.AppManager.usage.AppUsageStatsManager;
 import io.github.muntashirakon.AppManager.usage.UsageUtils;
 import io.github.muntashirakon.AppManager.utils.CpuUtils;
-import io.github.muntashirakon.AppManager.utils.DigestUtils;
 import io.github.muntashirakon.AppManager.utils.LangUtils;
+import io.github.muntashirakon.AppManager.utils.MultithreadedExecutor;
 import io.github.muntashirakon.AppManager.utils.PackageUtils;
 import io.github.muntashirakon.AppManager.utils.ThreadUtils;
 import io.github.muntashirakon.AppManager.utils.UIUtils;
 import io.github.muntashirakon.dialog.SearchableMultiChoiceDialogBuilder;
-import io.github.muntashirakon.io.Paths;
 
 public class BackupTasksDialogFragment extends DialogFragment {
     public static final String TAG = "BackupTasksDialogFragment";
@@ -156,29 +157,44 @@ public class BackupTasksDialogFragment extends DialogFragment {
                     wakeLock.acquire();
                 }
                 try {
-                    List<ApplicationItem> applicationItems = new ArrayList<>();
-                    List<CharSequence> applicationLabels = new ArrayList<>();
-                    Backup backup;
+                    List<ApplicationItem> backedUpItems = new ArrayList<>();
                     for (ApplicationItem item : PackageUtils.getInstalledOrBackedUpApplicationsFromDb(requireContext(), false, true)) {
                         if (ThreadUtils.isInterrupted()) return;
-                        backup = item.backup;
-                        if (backup == null || !item.isInstalled) continue;
-                        try {
-                            BackupManager.getNewInstance(new UserPackagePair(item.packageName, backup.userId),
-                                    0).verify(backup.backupName);
-                        } catch (Throwable e) {
-                            applicationItems.add(item);
-                            applicationLabels.add(new SpannableStringBuilder(backup.label)
-                                    .append(LangUtils.getSeparatorString())
-                                    .append(backup.backupName)
-                                    .append('\n')
-                                    .append(UIUtils.getSmallerText(UIUtils.getSecondaryText(mActivity,
-                                            new SpannableStringBuilder(backup.packageName)
-                                                    .append('\n')
-                                                    .append(e.getMessage())))));
-                        }
+                        if (item.backup == null || !item.isInstalled) continue;
+                        backedUpItems.add(item);
                     }
+                    // Verify the backups in parallel, the failures are stored by their index to retain the order
+                    CharSequence[] failedLabels = new CharSequence[backedUpItems.size()];
+                    MultithreadedExecutor executor = MultithreadedExecutor.getNewInstance();
+                    for (int i = 0; i < backedUpItems.size(); ++i) {
+                        int index = i;
+                        executor.submit(() -> {
+                            Backup backup = Objects.requireNonNull(backedUpItems.get(index).backup);
+                            try {
+                                BackupManager.getNewInstance(new UserPackagePair(backup.packageName, backup.userId),
+                                        0).verify(backup.backupName);
+                            } catch (Throwable e) {
+                                failedLabels[index] = new SpannableStringBuilder(backup.label)
+                                        .append(LangUtils.getSeparatorString())
+                                        .append(backup.backupName)
+                                        .append('\n')
+                                        .append(UIUtils.getSmallerText(UIUtils.getSecondaryText(mActivity,
+                                                new SpannableStringBuilder(backup.packageName)
+                                                        .append('\n')
+                                                        .append(e.getMessage()))));
+                            }
+                        });
+                    }
+                    executor.awaitCompletion();
                     if (ThreadUtils.isInterrupted()) return;
+                    List<ApplicationItem> applicationItems = new ArrayList<>();
+                    List<CharSequence> applicationLabels = new ArrayList<>();
+                    for (int i = 0; i < failedLabels.length; ++i) {
+                        if (failedLabels[i] != null) {
+                            applicationItems.add(backedUpItems.get(i));
+                            applicationLabels.add(failedLabels[i]);
+                        }
+                    }
                     ThreadUtils.postOnMainThread(() -> runMultiChoiceDialog(applicationItems, applicationLabels));
                 } finally {
                     CpuUtils.releaseWakeLock(wakeLock);
@@ -211,34 +227,19 @@ public class BackupTasksDialogFragment extends DialogFragment {
                         // 1. App version code and 2. last update date (Whether to back up source)
                         boolean needSourceUpdate = item.versionCode > backup.versionCode
                                 || item.lastUpdateTime > backup.backupTime;
-                        if (needSourceUpdate
-                                // 3. Last activity date
-                                || (hasUsageAccess && AppUsageStatsManager.getLastActivityTime(item.packageName,
-                                new UsageUtils.TimeInterval(backup.backupTime, System.currentTimeMillis())) > backup.backupTime)
-                                // 4. Check integrity
-                                || !isVerified(item, backup)) {
-                            // 5. Check hash
-                            try {
-                                List<String> changedDirs = new ArrayList<>();
-                                for (String dir : backup.getMetadata().dataDirs) {
-                                    String hash = AppsDb.getInstance().fileHashDao().getHash(dir);
-                                    // For now, if hash is null, don't proceed to backup
-                                    if (hash == null) {
-                                        break;
-                                    }
-                                    String newHash = DigestUtils.getHexDigest(DigestUtils.SHA_256, Paths.get(dir));
-                                    if (!hash.equals(newHash)) changedDirs.add(dir);
-                                }
-                                // TODO: 23/4/21 Support delta backup
-                            } catch (IOException ignore) {
-                            }
-                            applicationItems.add(item);
-                            applicationLabels.add(new SpannableStringBuilder().append(backup.label)
-                                    .append(LangUtils.getSeparatorString())
-                                    .append(backup.backupName)
-                                    .append('\n')
-                                    .append(UIUtils.getSmallerText(UIUtils.getSecondaryText(mActivity, backup.packageName))));
+                        if (!needSourceUpdate
+                                // 3. Last activity date and 4. data directories (Whether to back up data)
+                                && !isDataModified(item, backup, hasUsageAccess)
+                                // 5. Check integrity
+                                && isVerified(item, backup)) {
+                            continue;
                         }
+                        applicationItems.add(item);
+                        applicationLabels.add(new SpannableStringBuilder().append(backup.label)
+                                .append(LangUtils.getSeparatorString())
+                                .append(backup.backupName)
+                                .append('\n')
+                                .append(UIUtils.getSmallerText(UIUtils.getSecondaryText(mActivity, backup.packageName))));
                     }
                     if (ThreadUtils.isInterrupted()) return;
                     ThreadUtils.postOnMainThread(() -> runMultiChoiceDialog(applicationItems, applicationLabels));
@@ -282,6 +283,26 @@ public class BackupTasksDialogFragment extends DialogFragment {
         super.onDestroy();
     }
 
+    @WorkerThread
+    private boolean isDataModified(ApplicationItem item, Backup backup, boolean hasUsageAccess) {
+        if (hasUsageAccess && AppUsageStatsManager.getLastActivityTime(item.packageName,
+                new UsageUtils.TimeInterval(backup.backupTime, System.currentTimeMillis())) <= backup.backupTime) {
+            // The app hasn't been used since the backup
+            return false;
+        }
+        try {
+            for (String dir : backup.getMetadata().dataDirs) {
+                // Only the file attributes are compared unless they've changed
+                if (BackupUtils.isDataDirectoryModified(dir)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
     private boolean isVerified(ApplicationItem item, Backup backup) {
         try {
             BackupManager.getNewInstance(new UserPackagePair(item.packageName, backup.userId),
@@ -0,0 +1,210 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.scanner;
+
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import io.github.muntashirakon.AppManager.apk.ApkFile;
+import io.github.muntashirakon.AppManager.apk.ApkUtils;
+import io.github.muntashirakon.AppManager.logs.Log;
+import io.github.muntashirakon.AppManager.utils.DigestUtils;
+import io.github.muntashirakon.AppManager.utils.ParallelDigestOutputStream;
+import io.github.muntashirakon.io.IoUtils;
+import io.github.muntashirakon.io.fs.SequentialZipReader;
+
+/**
+ * Everything the scanner needs from the contents of an APK file, collected in a single read of the file: the digests
+ * of the file, the names of the dex files, the native libraries and the package name. The dex files themselves are
+ * only loaded when they are requested, since they are not needed if a previous scan of the same file is found.
+ */
+final class ApkAnalyzer {
+    public static final String TAG = ApkAnalyzer.class.getSimpleName();
+
+    @DigestUtils.Algorithm
+    private static final String[] ALGORITHMS = new String[]{DigestUtils.MD5, DigestUtils.SHA_1, DigestUtils.SHA_256,
+            DigestUtils.SHA_384, DigestUtils.SHA_512};
+    private static final String MANIFEST_FILE = "AndroidManifest.xml";
+    // Same as NativeLib#parse
+    private static final int ELF_HEADER_SIZE = 20;
+    // "dex\n", followed by the version and a null byte
+    private static final int DEX_MAGIC_SIZE = 8;
+
+    private final File mApkFile;
+    private final String[] mHexDigests;
+    private final List<String> mDexFiles = new ArrayList<>();
+    private final Set<String> mNativeLibraries = new HashSet<>();
+    @Nullable
+    private byte[] mManifest;
+
+    @WorkerThread
+    ApkAnalyzer(@NonNull File apkFile) throws IOException {
+        mApkFile = apkFile;
+        // The digests are calculated on their own workers while the entries are being processed
+        try (ParallelDigestOutputStream pdos = new ParallelDigestOutputStream(ALGORITHMS)) {
+            read(apkFile, pdos);
+            pdos.close();
+            mHexDigests = pdos.getHexDigests();
+        }
+    }
+
+    @WorkerThread
+    private void read(@NonNull File apkFile, @NonNull ParallelDigestOutputStream pdos) throws IOException {
+        SequentialZipReader.read(apkFile, new SequentialZipReader.Callback() {
+            @Override
+            public void onBytes(@NonNull byte[] b, int off, int len) throws IOException {
+                pdos.write(b, off, len);
+            }
+
+            @Nullable
+            @Override
+            public SequentialZipReader.EntryConsumer onEntry(@NonNull String name, long size) {
+                if (size > Integer.MAX_VALUE - 8) {
+                    Log.w(TAG, "Skipped large entry %s", name);
+                    return null;
+                }
+                if (name.equals(MANIFEST_FILE)) {
+                    return new EntryBuffer((int) size, Integer.MAX_VALUE) {
+                        @Override
+                        void onBuffered(@NonNull byte[] bytes) {
+                            mManifest = bytes;
+                        }
+                    };
+                }
+                if (name.endsWith(".so")) {
+                    return new EntryBuffer((int) Math.min(size, ELF_HEADER_SIZE), ELF_HEADER_SIZE) {
+                        @Override
+                        void onBuffered(@NonNull byte[] bytes) {
+                            try {
+                                mNativeLibraries.add(NativeLibraries.NativeLib.parse(name, size,
+                                        new ByteArrayInputStream(bytes)).getName());
+                            } catch (IOException e) {
+                                Log.w(TAG, "Could not load native library %s", e, name);
+                            }
+                        }
+                    };
+                }
+                // Like DexFileFactory, any entry can be a dex file
+                return new DexMagicChecker(name);
+            }
+        });
+    }
+
+    @NonNull
+    Pair<String, String>[] getDigests() {
+        @SuppressWarnings("unchecked")
+        Pair<String, String>[] digests = new Pair[ALGORITHMS.length];
+        for (int i = 0; i < ALGORITHMS.length; ++i) {
+            digests[i] = new Pair<>(ALGORITHMS[i], mHexDigests[i]);
+        }
+        return digests;
+    }
+
+    @WorkerThread
+    @NonNull
+    List<byte[]> getDexFiles() throws IOException {
+        List<byte[]> dexFiles = new ArrayList<>(mDexFiles.size());
+        try (ZipFile zipFile = new ZipFile(mApkFile)) {
+            for (String name : mDexFiles) {
+                ZipEntry zipEntry = zipFile.getEntry(name);
+                if (zipEntry == null) {
+                    throw new FileNotFoundException("Dex file " + name + " is removed from " + mApkFile);
+                }
+                try (InputStream is = zipFile.getInputStream(zipEntry)) {
+                    dexFiles.add(IoUtils.readFully(is, (int) zipEntry.getSize(), true));
+                }
+            }
+        }
+        return dexFiles;
+    }
+
+    @NonNull
+    Collection<String> getNativeLibraries() {
+        return mNativeLibraries;
+    }
+
+    @Nullable
+    String getPackageName() {
+        if (mManifest == null) {
+            return null;
+        }
+        try {
+            return ApkUtils.getManifestAttributes(ByteBuffer.wrap(mManifest)).get("package");
+        } catch (ApkFile.ApkFileException | IOException e) {
+            Log.w(TAG, "Could not decode the manifest", e);
+            return null;
+        }
+    }
+
+    /**
+     * Collect the first {@code limit} bytes of an entry.
+     */
+    private abstract static class EntryBuffer implements SequentialZipReader.EntryConsumer {
+        private final int mLimit;
+        @NonNull
+        byte[] mBuffer;
+        int mLength;
+
+        EntryBuffer(int size, int limit) {
+            mBuffer = new byte[size];
+            mLimit = limit;
+        }
+
+        @Override
+        public boolean onData(@NonNull byte[] b, int off, int len) {
+            len = Math.min(len, mLimit - mLength);
+            if (mLength + len > mBuffer.length) {
+                // The size in the central directory is wrong
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mLength + len, mBuffer.length * 2));
+            }
+            System.arraycopy(b, off, mBuffer, mLength, len);
+            mLength += len;
+            return mLength < mLimit;
+        }
+
+        @Override
+        public void onEnd() {
+            onBuffered(mLength == mBuffer.length ? mBuffer : Arrays.copyOf(mBuffer, mLength));
+        }
+
+        abstract void onBuffered(@NonNull byte[] bytes);
+    }
+
+    /**
+     * Record an entry if it begins with the dex magic.
+     */
+    private class DexMagicChecker extends EntryBuffer {
+        private final String mName;
+
+        DexMagicChecker(@NonNull String name) {
+            super(DEX_MAGIC_SIZE, DEX_MAGIC_SIZE);
+            mName = name;
+        }
+
+        @Override
+        void onBuffered(@NonNull byte[] bytes) {
+            if (bytes.length == DEX_MAGIC_SIZE && bytes[0] == 'd' && bytes[1] == 'e' && bytes[2] == 'x'
+                    && bytes[3] == '\n' && bytes[7] == 0) {
+                mDexFiles.add(mName);
+            }
+        }
+    }
+}
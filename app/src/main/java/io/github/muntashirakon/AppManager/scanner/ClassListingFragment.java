@@ -65,16 +65,6 @@ public class ClassListingFragment extends Fragment implements AdvancedSearchView
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         mViewModel = new ViewModelProvider(requireActivity()).get(ScannerViewModel.class);
         mActivity = (ScannerActivity) requireActivity();
-        mAllClasses = mViewModel.getAllClasses();
-        mTrackerClasses = mViewModel.getTrackerClasses();
-        if (mAllClasses == null) {
-            mActivity.onBackPressed();
-            return;
-        }
-        if (mTrackerClasses == null) {
-            mTrackerClasses = Collections.emptyList();
-        }
-
         mTrackerClassesOnly = false;
 
         RecyclerView listView = view.findViewById(R.id.list_item);
@@ -85,7 +75,15 @@ public class ClassListingFragment extends Fragment implements AdvancedSearchView
         listView.setLayoutManager(new LinearLayoutManager(mActivity));
         listView.setAdapter(mClassListingAdapter);
         showProgress(true);
-        setAdapterList();
+        mViewModel.allClassesLiveData().observe(getViewLifecycleOwner(), allClasses -> {
+            mAllClasses = allClasses;
+            mTrackerClasses = mViewModel.getTrackerClasses();
+            if (mTrackerClasses == null) {
+                mTrackerClasses = Collections.emptyList();
+            }
+            setAdapterList();
+        });
+        mViewModel.loadAllClassesIfRequired();
     }
 
     @Override
@@ -134,7 +132,9 @@ public class ClassListingFragment extends Fragment implements AdvancedSearchView
         int id = item.getItemId();
         if (id == R.id.action_toggle_class_listing) {
             mTrackerClassesOnly = !mTrackerClassesOnly;
-            setAdapterList();
+            if (mAllClasses != null) {
+                setAdapterList();
+            }
         } else return super.onOptionsItemSelected(item);
         return true;
     }
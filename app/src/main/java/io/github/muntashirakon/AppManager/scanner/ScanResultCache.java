@@ -0,0 +1,102 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.scanner;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.Collection;
+import java.util.List;
+
+import io.github.muntashirakon.AppManager.StaticDataset;
+import io.github.muntashirakon.AppManager.db.AppsDb;
+import io.github.muntashirakon.AppManager.db.dao.ScanResultDao;
+import io.github.muntashirakon.AppManager.db.entity.ScanResult;
+import io.github.muntashirakon.AppManager.logs.Log;
+import io.github.muntashirakon.AppManager.utils.JSONUtils;
+
+/**
+ * Results of the previous scans, keyed by the SHA-256 of the APK files. A result is discarded as soon as the tracker or
+ * library signatures change.
+ */
+final class ScanResultCache {
+    public static final String TAG = ScanResultCache.class.getSimpleName();
+
+    private static final int MAX_RESULTS = 64;
+    // A row must fit in a cursor window
+    private static final int MAX_RESULT_SIZE = 1024 * 1024;
+
+    @WorkerThread
+    @Nullable
+    static ScanResult get(@NonNull String sha256) {
+        ScanResultDao dao = AppsDb.getInstance().scanResultDao();
+        ScanResult scanResult = dao.get(sha256);
+        if (scanResult == null) {
+            return null;
+        }
+        if (!scanResult.signatureVersion.equals(StaticDataset.getSignatureVersion())) {
+            dao.delete(sha256);
+            return null;
+        }
+        dao.updateLastUsed(sha256, System.currentTimeMillis());
+        return scanResult;
+    }
+
+    @WorkerThread
+    static void put(@NonNull ScanResult scanResult) {
+        long size = scanResult.trackers.length() + scanResult.libraries.length() + scanResult.missingClasses.length()
+                + scanResult.nativeLibraries.length()
+                + (scanResult.verifierResult != null ? scanResult.verifierResult.length() : 0);
+        if (size > MAX_RESULT_SIZE) {
+            Log.d(TAG, "Scan result of %s is too large to be cached.", scanResult.sha256);
+            return;
+        }
+        scanResult.signatureVersion = StaticDataset.getSignatureVersion();
+        scanResult.lastUsed = System.currentTimeMillis();
+        ScanResultDao dao = AppsDb.getInstance().scanResultDao();
+        dao.insert(scanResult);
+        dao.trim(MAX_RESULTS);
+    }
+
+    /**
+     * Store only the signatures that have matched at least one class.
+     */
+    @NonNull
+    static String serializeSignatureCount(@NonNull int[] signatureCount) {
+        JSONArray jsonArray = new JSONArray();
+        for (int i = 0; i < signatureCount.length; ++i) {
+            if (signatureCount[i] != 0) {
+                jsonArray.put(i).put(signatureCount[i]);
+            }
+        }
+        return jsonArray.toString();
+    }
+
+    @NonNull
+    static int[] deserializeSignatureCount(@NonNull String jsonString, int signatureCount) throws JSONException {
+        int[] counts = new int[signatureCount];
+        JSONArray jsonArray = new JSONArray(jsonString);
+        for (int i = 0; i + 1 < jsonArray.length(); i += 2) {
+            int index = jsonArray.getInt(i);
+            if (index < 0 || index >= signatureCount) {
+                throw new JSONException("Invalid signature index " + index);
+            }
+            counts[index] = jsonArray.getInt(i + 1);
+        }
+        return counts;
+    }
+
+    @NonNull
+    static String serializeStrings(@NonNull Collection<String> strings) {
+        return new JSONArray(strings).toString();
+    }
+
+    @NonNull
+    static List<String> deserializeStrings(@NonNull String jsonString) throws JSONException {
+        return JSONUtils.getArray(new JSONArray(jsonString));
+    }
+}
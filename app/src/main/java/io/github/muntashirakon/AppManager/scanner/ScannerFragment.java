@@ -143,15 +143,15 @@ public class ScannerFragment extends Fragment {
             SpannableStringBuilder builder = new SpannableStringBuilder();
             builder.append(PackageUtils.getApkVerifierInfo(result, mActivity));
             List<X509Certificate> certificates = result.getSignerCertificates();
-            if (certificates != null && certificates.size() > 0) {
+            if (certificates.size() > 0) {
                 builder.append(getCertificateInfo(mActivity, certificates));
             }
             checksumDescription.setText(builder);
         });
         // List all classes
-        mViewModel.allClassesLiveData().observe(getViewLifecycleOwner(), allClasses -> {
+        mViewModel.classCountLiveData().observe(getViewLifecycleOwner(), classCount -> {
             ((TextView) view.findViewById(R.id.classes_title)).setText(getResources().getQuantityString(R.plurals.classes,
-                    allClasses.size(), allClasses.size()));
+                    classCount, classCount));
             classesView.setOnClickListener(v -> mActivity.loadNewFragment(new ClassListingFragment()));
         });
         // List tracker classes
@@ -338,7 +338,11 @@ public class ScannerFragment extends Fragment {
             foundTrackerList.append(getString(R.string.found_trackers)).append(" ").append(
                     TextUtilsCompat.joinSpannable(", ", foundTrackerNames));
         }
-        int totalTrackerClasses = mViewModel.getTrackerClasses().size();
+        // A class matches at most one signature
+        int totalTrackerClasses = 0;
+        for (SignatureInfo trackerInfo : trackerInfoList) {
+            totalTrackerClasses += trackerInfo.getCount();
+        }
         // Get summary
         CharSequence summary;
         if (totalTrackersFound == 0) {
@@ -20,10 +20,14 @@ import androidx.lifecycle.MutableLiveData;
 import com.android.apksig.ApkVerifier;
 import com.android.apksig.apk.ApkFormatException;
 
+import org.json.JSONException;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -31,20 +35,25 @@ import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import io.github.muntashirakon.AppManager.R;
 import io.github.muntashirakon.AppManager.StaticDataset;
+import io.github.muntashirakon.AppManager.apk.signing.ApkVerifierSummary;
+import io.github.muntashirakon.AppManager.db.entity.ScanResult;
+import io.github.muntashirakon.AppManager.dex.DexClasses;
 import io.github.muntashirakon.AppManager.fm.ContentType2;
 import io.github.muntashirakon.AppManager.scanner.vt.VirusTotal;
 import io.github.muntashirakon.AppManager.scanner.vt.VtFileReport;
 import io.github.muntashirakon.AppManager.scanner.vt.VtFileScanMeta;
 import io.github.muntashirakon.AppManager.self.filecache.FileCache;
 import io.github.muntashirakon.AppManager.settings.FeatureController;
-import io.github.muntashirakon.AppManager.utils.DigestUtils;
 import io.github.muntashirakon.AppManager.utils.ExUtils;
 import io.github.muntashirakon.AppManager.utils.FileUtils;
 import io.github.muntashirakon.AppManager.utils.MultithreadedExecutor;
+import io.github.muntashirakon.AppManager.utils.SignatureMatcher;
 import io.github.muntashirakon.io.IoUtils;
 import io.github.muntashirakon.io.Path;
 import io.github.muntashirakon.io.Paths;
@@ -67,13 +76,32 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
     private List<String> mTrackerClasses;
     private List<String> mLibraryClasses;
     private Collection<String> mNativeLibraries;
+    @Nullable
+    private String mSha256;
+    // Result of a previous scan of the same file
+    @Nullable
+    private volatile ScanResult mScanResult;
+    // Parts of the scan result, either loaded from a previous scan or filled as the scan progresses
+    private volatile int mClassCount;
+    private volatile int[] mTrackerSignatureCount;
+    private volatile int[] mLibrarySignatureCount;
+    private volatile ArrayList<String> mMissingClasses;
+    @Nullable
+    private volatile ApkVerifierSummary mApkVerifierSummary;
+    // The verifier result, the trackers and the libraries
+    private final AtomicInteger mPendingScanParts = new AtomicInteger(3);
+    // A part could not be loaded, the result must not be saved
+    private volatile boolean mScanPartFailed;
+    private final AtomicBoolean mAllClassesRequested = new AtomicBoolean();
 
     private CountDownLatch mWaitForFile;
+    private CountDownLatch mWaitForScanResult;
     private final FileCache mFileCache = new FileCache();
     private final MultithreadedExecutor mExecutor = MultithreadedExecutor.getNewInstance();
     private final MutableLiveData<Pair<String, String>[]> mApkChecksumsLiveData = new MutableLiveData<>();
-    private final MutableLiveData<ApkVerifier.Result> mApkVerifierResultLiveData = new MutableLiveData<>();
+    private final MutableLiveData<ApkVerifierSummary> mApkVerifierResultLiveData = new MutableLiveData<>();
     private final MutableLiveData<PackageInfo> mPackageInfoLiveData = new MutableLiveData<>();
+    private final MutableLiveData<Integer> mClassCountLiveData = new MutableLiveData<>();
     private final MutableLiveData<List<String>> mAllClassesLiveData = new MutableLiveData<>();
     private final MutableLiveData<List<SignatureInfo>> mTrackerClassesLiveData = new MutableLiveData<>();
     private final MutableLiveData<List<SignatureInfo>> mLibraryClassesLiveData = new MutableLiveData<>();
@@ -106,6 +134,7 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
         if (mIsSummaryLoaded) return;
         mIsSummaryLoaded = true;
         mWaitForFile = new CountDownLatch(1);
+        mWaitForScanResult = new CountDownLatch(1);
         // Cache files
         mExecutor.submit(() -> {
             Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
@@ -115,17 +144,15 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
                 mWaitForFile.countDown();
             }
         });
-        // Generate APK checksums
-        mExecutor.submit(this::generateApkChecksumsAndFetchScanReports);
+        // Generate APK checksums and load all classes in a single read of the file
+        mExecutor.submit(() -> {
+            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+            analyzeApk();
+        });
         // Verify APK
         mExecutor.submit(this::loadApkVerifierResult);
         // Load package info
         mExecutor.submit(this::loadPackageInfo);
-        // Load all classes
-        mExecutor.submit(() -> {
-            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            loadAllClasses();
-        });
     }
 
     @NonNull
@@ -134,7 +161,7 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
     }
 
     @NonNull
-    public LiveData<ApkVerifier.Result> apkVerifierResultLiveData() {
+    public LiveData<ApkVerifierSummary> apkVerifierResultLiveData() {
         return mApkVerifierResultLiveData;
     }
 
@@ -143,6 +170,15 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
         return mPackageInfoLiveData;
     }
 
+    @NonNull
+    public LiveData<Integer> classCountLiveData() {
+        return mClassCountLiveData;
+    }
+
+    /**
+     * The classes are only loaded along with the rest of the scan. If a previous scan result is used instead, call
+     * {@link #loadAllClassesIfRequired()} to load them.
+     */
     @NonNull
     public LiveData<List<String>> allClassesLiveData() {
         return mAllClassesLiveData;
@@ -206,6 +242,27 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
         return mAllClasses;
     }
 
+    @AnyThread
+    public void loadAllClassesIfRequired() {
+        if (mScanResult == null || !mAllClassesRequested.compareAndSet(false, true)) {
+            // Already loaded or being loaded
+            return;
+        }
+        mExecutor.submit(() -> {
+            loadClasses();
+            // Only the tracker classes are listed, the signatures are already counted in the previous scan
+            SignatureMatcher matcher = StaticDataset.getTrackerSignatureMatcher();
+            List<String> trackerClasses = new ArrayList<>();
+            for (String className : mAllClasses) {
+                if (className.length() > 8 && className.contains(".") && matcher.matches(className)) {
+                    trackerClasses.add(className);
+                }
+            }
+            mTrackerClasses = trackerClasses;
+            mAllClassesLiveData.postValue(mAllClasses);
+        });
+    }
+
     public Collection<String> getNativeLibraries() {
         return mNativeLibraries;
     }
@@ -232,39 +289,93 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
     }
 
     @WorkerThread
-    private void generateApkChecksumsAndFetchScanReports() {
+    private void analyzeApk() {
         waitForFile();
-        String pithusReportUrl = null;
+        ApkAnalyzer apkAnalyzer = null;
+        Pair<String, String>[] digests = null;
         try {
-            Path file = Paths.getUnprivileged(mApkFile);
-            Pair<String, String>[] digests = DigestUtils.getDigests(file);
-            mApkChecksumsLiveData.postValue(digests);
-            if (FeatureController.isInternetEnabled()) {
-                String md5 = digests[0].second;
-                String sha256 = digests[2].second;
-                pithusReportUrl = ExUtils.exceptionAsNull(() -> Pithus.resolveReport(sha256));
-                if (mVt == null) return;
-                mVt.fetchReportsOrScan(file, md5, this);
-            }
+            apkAnalyzer = new ApkAnalyzer(mApkFile);
+            digests = apkAnalyzer.getDigests();
+            mSha256 = digests[2].second;
+            loadScanResult(mSha256);
         } catch (IOException e) {
             e.printStackTrace();
-            mApkChecksumsLiveData.postValue(null);
+        } finally {
+            mWaitForScanResult.countDown();
+        }
+        mApkChecksumsLiveData.postValue(digests);
+        if (digests != null) {
+            Pair<String, String>[] finalDigests = digests;
+            mExecutor.submit(() -> fetchScanReports(finalDigests));
+        } else {
             mVtFileReportLiveData.postValue(null);
+            mPithusReportLiveData.postValue(null);
+        }
+        loadAllClasses(apkAnalyzer);
+    }
+
+    @WorkerThread
+    private void fetchScanReports(@NonNull Pair<String, String>[] digests) {
+        String pithusReportUrl = null;
+        if (FeatureController.isInternetEnabled()) {
+            String md5 = digests[0].second;
+            String sha256 = digests[2].second;
+            pithusReportUrl = ExUtils.exceptionAsNull(() -> Pithus.resolveReport(sha256));
+            if (mVt == null) return;
+            try {
+                mVt.fetchReportsOrScan(Paths.getUnprivileged(mApkFile), md5, this);
+            } catch (IOException e) {
+                e.printStackTrace();
+                mVtFileReportLiveData.postValue(null);
+            }
         }
         mPithusReportLiveData.postValue(pithusReportUrl);
     }
 
+    @WorkerThread
+    private void loadScanResult(@NonNull String sha256) {
+        ScanResult scanResult = ScanResultCache.get(sha256);
+        if (scanResult == null) {
+            return;
+        }
+        try {
+            mTrackerSignatureCount = ScanResultCache.deserializeSignatureCount(scanResult.trackers,
+                    StaticDataset.getTrackerCodeSignatures().length);
+            mLibrarySignatureCount = ScanResultCache.deserializeSignatureCount(scanResult.libraries,
+                    StaticDataset.getLibrarySignatures().length);
+            mMissingClasses = new ArrayList<>(ScanResultCache.deserializeStrings(scanResult.missingClasses));
+            mNativeLibraries = ScanResultCache.deserializeStrings(scanResult.nativeLibraries);
+            mApkVerifierSummary = scanResult.verifierResult != null
+                    ? ApkVerifierSummary.deserialize(scanResult.verifierResult) : null;
+            mClassCount = scanResult.classCount;
+            mScanResult = scanResult;
+        } catch (JSONException | CertificateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @WorkerThread
     private void loadApkVerifierResult() {
         waitForFile();
+        waitForScanResult();
+        if (mScanResult != null) {
+            if (mApkVerifierSummary != null) {
+                mApkVerifierResultLiveData.postValue(mApkVerifierSummary);
+            }
+            return;
+        }
         try {
             ApkVerifier.Builder builder = new ApkVerifier.Builder(mApkFile)
                     .setMaxCheckedPlatformVersion(Build.VERSION.SDK_INT);
             ApkVerifier apkVerifier = builder.build();
-            ApkVerifier.Result apkVerifierResult = apkVerifier.verify();
-            mApkVerifierResultLiveData.postValue(apkVerifierResult);
+            ApkVerifierSummary apkVerifierSummary = new ApkVerifierSummary(apkVerifier.verify());
+            mApkVerifierSummary = apkVerifierSummary;
+            mApkVerifierResultLiveData.postValue(apkVerifierSummary);
         } catch (IOException | ApkFormatException | NoSuchAlgorithmException e) {
             e.printStackTrace();
+            mScanPartFailed = true;
         }
+        onScanPartLoaded();
     }
 
     @WorkerThread
@@ -279,14 +390,49 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
     }
 
     @WorkerThread
-    private void loadAllClasses() {
-        waitForFile();
+    private void loadAllClasses(@Nullable ApkAnalyzer apkAnalyzer) {
+        if (mScanResult != null) {
+            // Show the previous result, the classes are loaded only when they are requested
+            mClassCountLiveData.postValue(mClassCount);
+            mTrackerClassesLiveData.postValue(getTrackerInfoList(mTrackerSignatureCount));
+            mLibraryClassesLiveData.postValue(getLibraryInfoList(mLibrarySignatureCount));
+            mMissingClassesLiveData.postValue(mMissingClasses);
+            return;
+        }
+        if (apkAnalyzer != null) {
+            mNativeLibraries = apkAnalyzer.getNativeLibraries();
+            String packageName = apkAnalyzer.getPackageName();
+            if (packageName != null) {
+                mPackageName = packageName;
+            }
+            loadClasses(apkAnalyzer);
+        } else {
+            mNativeLibraries = Collections.emptyList();
+            mAllClasses = Collections.emptyList();
+        }
+        mClassCount = mAllClasses.size();
+        mClassCountLiveData.postValue(mClassCount);
+        mAllClassesLiveData.postValue(mAllClasses);
+        // Load tracker and library info
+        mExecutor.submit(this::loadTrackers);
+        mExecutor.submit(this::loadLibraries);
+    }
+
+    @WorkerThread
+    private void loadClasses(@NonNull ApkAnalyzer apkAnalyzer) {
         try {
-            NativeLibraries nativeLibraries = new NativeLibraries(mApkFile);
-            mNativeLibraries = nativeLibraries.getUniqueLibs();
+            DexClasses dexClasses = new DexClasses(apkAnalyzer.getDexFiles(), -1);
+            mDexVfsId = VirtualFileSystem.mount(Uri.fromFile(mApkFile), Paths.getUnprivileged(mApkFile), dexClasses);
+            mAllClasses = dexClasses.getBaseClassNames();
+            Collections.sort(mAllClasses);
         } catch (Throwable e) {
-            mNativeLibraries = Collections.emptyList();
+            e.printStackTrace();
+            mAllClasses = Collections.emptyList();
         }
+    }
+
+    @WorkerThread
+    private void loadClasses() {
         try {
             mDexVfsId = VirtualFileSystem.mount(Uri.fromFile(mApkFile), Paths.getUnprivileged(mApkFile), ContentType2.DEX.getMimeType());
             DexFileSystem dfs = (DexFileSystem) Objects.requireNonNull(VirtualFileSystem.getFileSystem(mDexVfsId));
@@ -296,34 +442,37 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
             e.printStackTrace();
             mAllClasses = Collections.emptyList();
         }
-        mAllClassesLiveData.postValue(mAllClasses);
-        // Load tracker and library info
-        mExecutor.submit(this::loadTrackers);
-        mExecutor.submit(this::loadLibraries);
     }
 
     @WorkerThread
     private void loadTrackers() {
         if (mAllClasses == null) return;
-        List<SignatureInfo> trackerInfoList = new ArrayList<>();
-        String[] trackerNames = StaticDataset.getTrackerNames();
         String[] trackerSignatures = StaticDataset.getTrackerCodeSignatures();
+        SignatureMatcher matcher = StaticDataset.getTrackerSignatureMatcher();
         int[] signatureCount = new int[trackerSignatures.length];
         // Iterate over all classes
         mTrackerClasses = new ArrayList<>();
         for (String className : mAllClasses) {
             if (className.length() > 8 && className.contains(".")) {
-                // Iterate over all signatures to match the class name
+                // Match all signatures at once
                 // This is a greedy algorithm, only matches the first item
-                for (int i = 0; i < trackerSignatures.length; i++) {
-                    if (className.contains(trackerSignatures[i])) {
-                        mTrackerClasses.add(className);
-                        signatureCount[i]++;
-                        break;
-                    }
+                int i = matcher.firstMatch(className);
+                if (i != -1) {
+                    mTrackerClasses.add(className);
+                    signatureCount[i]++;
                 }
             }
         }
+        mTrackerSignatureCount = signatureCount;
+        mTrackerClassesLiveData.postValue(getTrackerInfoList(signatureCount));
+        onScanPartLoaded();
+    }
+
+    @NonNull
+    private static List<SignatureInfo> getTrackerInfoList(@NonNull int[] signatureCount) {
+        List<SignatureInfo> trackerInfoList = new ArrayList<>();
+        String[] trackerNames = StaticDataset.getTrackerNames();
+        String[] trackerSignatures = StaticDataset.getTrackerCodeSignatures();
         // Iterate over signatures again but this time list only the found ones.
         for (int i = 0; i < trackerSignatures.length; i++) {
             if (signatureCount[i] == 0) continue;
@@ -331,34 +480,29 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
             signatureInfo.setCount(signatureCount[i]);
             trackerInfoList.add(signatureInfo);
         }
-        mTrackerClassesLiveData.postValue(trackerInfoList);
+        return trackerInfoList;
     }
 
     public void loadLibraries() {
         if (mAllClasses == null) return;
-        List<SignatureInfo> libraryInfoList = new ArrayList<>();
         ArrayList<String> missingLibs = new ArrayList<>();
-        String[] libNames = getApplication().getResources().getStringArray(R.array.lib_names);
-        String[] libSignatures = getApplication().getResources().getStringArray(R.array.lib_signatures);
-        String[] libTypes = getApplication().getResources().getStringArray(R.array.lib_types);
-        // The following array is directly mapped to the arrays above
+        String[] libSignatures = StaticDataset.getLibrarySignatures();
+        SignatureMatcher matcher = StaticDataset.getLibrarySignatureMatcher();
+        // The following array is directly mapped to the signatures
         int[] signatureCount = new int[libSignatures.length];
         // Iterate over all classes
         mLibraryClasses = new ArrayList<>();
         for (String className : mAllClasses) {
             if (className.length() > 8 && className.contains(".")) {
-                boolean matched = false;
-                // Iterate over all signatures to match the class name
+                // Match all signatures at once
                 // This is a greedy algorithm, only matches the first item
-                for (int i = 0; i < libSignatures.length; i++) {
-                    if (className.contains(libSignatures[i])) {
-                        matched = true;
-                        // Add to found classes
-                        mLibraryClasses.add(className);
-                        // Increment this signature match count
-                        signatureCount[i]++;
-                        break;
-                    }
+                int i = matcher.firstMatch(className);
+                boolean matched = i != -1;
+                if (matched) {
+                    // Add to found classes
+                    mLibraryClasses.add(className);
+                    // Increment this signature match count
+                    signatureCount[i]++;
                 }
                 // Add the class to the missing libs list if it doesn't match the filters
                 if (!matched
@@ -368,6 +512,19 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
                 }
             }
         }
+        mLibrarySignatureCount = signatureCount;
+        mMissingClasses = missingLibs;
+        mLibraryClassesLiveData.postValue(getLibraryInfoList(signatureCount));
+        mMissingClassesLiveData.postValue(missingLibs);
+        onScanPartLoaded();
+    }
+
+    @NonNull
+    private List<SignatureInfo> getLibraryInfoList(@NonNull int[] signatureCount) {
+        List<SignatureInfo> libraryInfoList = new ArrayList<>();
+        String[] libNames = getApplication().getResources().getStringArray(R.array.lib_names);
+        String[] libSignatures = StaticDataset.getLibrarySignatures();
+        String[] libTypes = getApplication().getResources().getStringArray(R.array.lib_types);
         // Iterate over signatures again but this time list only the found ones.
         for (int i = 0; i < libSignatures.length; i++) {
             if (signatureCount[i] == 0) continue;
@@ -375,8 +532,32 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
             signatureInfo.setCount(signatureCount[i]);
             libraryInfoList.add(signatureInfo);
         }
-        mLibraryClassesLiveData.postValue(libraryInfoList);
-        mMissingClassesLiveData.postValue(missingLibs);
+        return libraryInfoList;
+    }
+
+    /**
+     * Save the scan result once the verifier result, the trackers and the libraries are all loaded successfully.
+     */
+    @WorkerThread
+    private void onScanPartLoaded() {
+        if (mPendingScanParts.decrementAndGet() != 0 || mSha256 == null || mScanPartFailed) {
+            return;
+        }
+        ScanResult scanResult = new ScanResult();
+        scanResult.sha256 = mSha256;
+        scanResult.classCount = mClassCount;
+        scanResult.trackers = ScanResultCache.serializeSignatureCount(mTrackerSignatureCount);
+        scanResult.libraries = ScanResultCache.serializeSignatureCount(mLibrarySignatureCount);
+        scanResult.missingClasses = ScanResultCache.serializeStrings(mMissingClasses);
+        scanResult.nativeLibraries = ScanResultCache.serializeStrings(mNativeLibraries);
+        ApkVerifierSummary apkVerifierSummary = mApkVerifierSummary;
+        try {
+            scanResult.verifierResult = apkVerifierSummary != null ? apkVerifierSummary.serializeToJson() : null;
+        } catch (JSONException | CertificateEncodingException e) {
+            e.printStackTrace();
+            return;
+        }
+        ScanResultCache.put(scanResult);
     }
 
     @WorkerThread
@@ -388,6 +569,15 @@ public class ScannerViewModel extends AndroidViewModel implements VirusTotal.Ful
         }
     }
 
+    @WorkerThread
+    private void waitForScanResult() {
+        try {
+            mWaitForScanResult.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
     private boolean mUploadingEnabled;
     private CountDownLatch mUploadingEnabledWatcher;
 
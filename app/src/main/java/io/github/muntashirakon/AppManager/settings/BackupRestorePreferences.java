@@ -157,6 +157,15 @@ public class BackupRestorePreferences extends PreferenceFragment {
         // Keystore toggle
         SwitchPreferenceCompat backupKeyStore = Objects.requireNonNull(findPreference("backup_android_keystore"));
         backupKeyStore.setChecked(Prefs.BackupRestore.backupAppsWithKeyStore());
+        // Parallel compression toggle
+        SwitchPreferenceCompat parallelCompression = Objects.requireNonNull(findPreference("backup_parallel_compression"));
+        parallelCompression.setChecked(Prefs.BackupRestore.compressInParallel());
+        // Single-pass backup toggle
+        SwitchPreferenceCompat backupStreaming = Objects.requireNonNull(findPreference("backup_streaming"));
+        backupStreaming.setChecked(Prefs.BackupRestore.useStreamingBackup());
+        // Deduplication toggle
+        SwitchPreferenceCompat backupDeduplication = Objects.requireNonNull(findPreference("backup_deduplication"));
+        backupDeduplication.setChecked(Prefs.BackupRestore.deduplicateBackups());
         // Encryption
         ((Preference) Objects.requireNonNull(findPreference("encryption"))).setOnPreferenceClickListener(preference -> {
             CharSequence[] encryptionNamesText = new CharSequence[ENCRYPTION_NAMES.length];
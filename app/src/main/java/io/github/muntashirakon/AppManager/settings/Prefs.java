@@ -181,6 +181,18 @@ public final class Prefs {
             AppPref.set(AppPref.PrefKey.PREF_BACKUP_FLAGS_INT, flags);
         }
 
+        public static boolean compressInParallel() {
+            return AppPref.getBoolean(AppPref.PrefKey.PREF_BACKUP_PARALLEL_COMPRESSION_BOOL);
+        }
+
+        public static boolean useStreamingBackup() {
+            return AppPref.getBoolean(AppPref.PrefKey.PREF_BACKUP_STREAMING_BOOL);
+        }
+
+        public static boolean deduplicateBackups() {
+            return AppPref.getBoolean(AppPref.PrefKey.PREF_BACKUP_DEDUPLICATION_BOOL);
+        }
+
         public static boolean backupDirectoryExists() {
             Uri uri = Storage.getVolumePath();
             Path path;
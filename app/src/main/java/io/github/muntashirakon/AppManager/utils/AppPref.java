@@ -63,7 +63,10 @@ public class AppPref {
 
         PREF_BACKUP_ANDROID_KEYSTORE_BOOL,
         PREF_BACKUP_COMPRESSION_METHOD_STR,
+        PREF_BACKUP_DEDUPLICATION_BOOL,
         PREF_BACKUP_FLAGS_INT,
+        PREF_BACKUP_PARALLEL_COMPRESSION_BOOL,
+        PREF_BACKUP_STREAMING_BOOL,
         PREF_BACKUP_VOLUME_STR,
 
         PREF_COMPONENTS_SORT_ORDER_INT,
@@ -377,6 +380,8 @@ public class AppPref {
             case PREF_INSTALLER_FORCE_DEX_OPT_BOOL:
             case PREF_INSTALLER_SIGN_APK_BOOL:
             case PREF_BACKUP_ANDROID_KEYSTORE_BOOL:
+            case PREF_BACKUP_PARALLEL_COMPRESSION_BOOL:
+            case PREF_BACKUP_DEDUPLICATION_BOOL:
             case PREF_ENABLE_SCREEN_LOCK_BOOL:
             case PREF_MAIN_WINDOW_SORT_REVERSE_BOOL:
             case PREF_LOG_VIEWER_EXPAND_BY_DEFAULT_BOOL:
@@ -396,6 +401,7 @@ public class AppPref {
             case PREF_ZIP_ALIGN_BOOL:
             case PREF_SEND_NOTIFICATIONS_TO_CONNECTED_DEVICES_BOOL:
             case PREF_ENABLE_AUTO_LOCK_BOOL:
+            case PREF_BACKUP_STREAMING_BOOL:
                 return true;
             case PREF_CONCURRENCY_THREAD_COUNT_INT:
             case PREF_APP_THEME_CUSTOM_INT:
@@ -62,11 +62,21 @@ public class DigestUtils {
     @WorkerThread
     @NonNull
     public static String getHexDigest(@Algorithm String algo, @NonNull Path path) {
-        List<Path> allFiles = Paths.getAll(path);
+        return getHexDigest(algo, Paths.getAll(path));
+    }
+
+    /**
+     * Calculate a combined digest of the contents of the given files in the given order.
+     */
+    @WorkerThread
+    @NonNull
+    public static String getHexDigest(@Algorithm String algo, @NonNull List<Path> allFiles) {
         List<String> hashes = new ArrayList<>(allFiles.size());
         for (Path file : allFiles) {
+            if (file.isDirectory()) continue;
             try (InputStream fileInputStream = file.openInputStream()) {
-                hashes.add(getHexDigest(algo, fileInputStream));
+                hashes.add(HexEncoding.encodeToString(getDigest(algo, fileInputStream, file.length()),
+                        false /* lowercase */));
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -100,6 +110,15 @@ public class DigestUtils {
     @WorkerThread
     @NonNull
     public static byte[] getDigest(@Algorithm String algo, @NonNull InputStream stream) {
+        return getDigest(algo, stream, -1);
+    }
+
+    /**
+     * @param size Size of the stream, {@code -1} if unknown
+     */
+    @WorkerThread
+    @NonNull
+    private static byte[] getDigest(@Algorithm String algo, @NonNull InputStream stream, long size) {
         if (CRC32.equals(algo)) {
             try {
                 return longToBytes(calculateCrc32(stream));
@@ -108,17 +127,30 @@ public class DigestUtils {
                 return new byte[0];
             }
         }
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance(algo);
-            try (DigestInputStream digestInputStream = new DigestInputStream(stream, messageDigest)) {
-                byte[] buffer = new byte[IoUtils.DEFAULT_BUFFER_SIZE];
-                //noinspection StatementWithEmptyBody
-                while (digestInputStream.read(buffer) != -1) {
+        if (size <= ParallelDigestOutputStream.DEFAULT_BLOCK_SIZE) {
+            // The size is unknown or the stream fits in a single block, a worker would only add overhead
+            try {
+                MessageDigest messageDigest = MessageDigest.getInstance(algo);
+                try (DigestInputStream digestInputStream = new DigestInputStream(stream, messageDigest)) {
+                    byte[] buffer = new byte[IoUtils.DEFAULT_BUFFER_SIZE];
+                    //noinspection StatementWithEmptyBody
+                    while (digestInputStream.read(buffer) != -1) {
+                    }
+                    digestInputStream.close();
+                    return messageDigest.digest();
                 }
-                digestInputStream.close();
-                return messageDigest.digest();
+            } catch (NoSuchAlgorithmException | IOException e) {
+                e.printStackTrace();
+                return new byte[0];
             }
-        } catch (NoSuchAlgorithmException | IOException e) {
+        }
+        // The stream is read while the previous blocks are being digested
+        try (InputStream is = stream;
+             ParallelDigestOutputStream pdos = new ParallelDigestOutputStream(algo)) {
+            pdos.writeFrom(is);
+            pdos.close();
+            return pdos.getDigests()[0];
+        } catch (IOException e) {
             e.printStackTrace();
             return new byte[0];
         }
@@ -157,28 +189,18 @@ public class DigestUtils {
             throw new IOException(file + " is not a file.");
         }
         @Algorithm String[] algorithms = new String[]{MD5, SHA_1, SHA_256, SHA_384, SHA_512};
-        MessageDigest[] messageDigests = new MessageDigest[algorithms.length];
         @SuppressWarnings("unchecked")
         Pair<String, String>[] digests = new Pair[algorithms.length];
-        for (int i = 0; i < algorithms.length; ++i) {
-            try {
-                messageDigests[i] = MessageDigest.getInstance(algorithms[i]);
-            } catch (NoSuchAlgorithmException e) {
-                return ExUtils.rethrowAsIOException(e);
-            }
-        }
-        try (InputStream is = file.openInputStream()) {
-            byte[] buffer = new byte[IoUtils.DEFAULT_BUFFER_SIZE];
-            int length;
-            while ((length = is.read(buffer)) != -1) {
-                for (int i = 0; i < algorithms.length; ++i) {
-                    messageDigests[i].update(buffer, 0, length);
-                }
+        // Each algorithm runs on its own worker
+        try (InputStream is = file.openInputStream();
+             ParallelDigestOutputStream pdos = new ParallelDigestOutputStream(algorithms)) {
+            pdos.writeFrom(is);
+            pdos.close();
+            String[] hexDigests = pdos.getHexDigests();
+            for (int i = 0; i < algorithms.length; ++i) {
+                digests[i] = new Pair<>(algorithms[i], hexDigests[i]);
             }
         }
-        for (int i = 0; i < algorithms.length; ++i) {
-            digests[i] = new Pair<>(algorithms[i], HexEncoding.encodeToString(messageDigests[i].digest(), false));
-        }
         return digests;
     }
 
@@ -195,7 +217,7 @@ public class DigestUtils {
     }
 
     @NonNull
-    private static byte[] longToBytes(long l) {
+    static byte[] longToBytes(long l) {
         byte[] result = new byte[8];
         for (int i = 7; i >= 0; i--) {
             result[i] = (byte) (l & 0xFF);
@@ -0,0 +1,107 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.utils;
+
+import androidx.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import aosp.libcore.util.HexEncoding;
+
+/**
+ * An {@link InputStream} that calculates the digest of everything read through it. Unlike
+ * {@link java.security.DigestInputStream}, it also supports {@link DigestUtils#CRC32} and returns the digest in the
+ * same format as {@link DigestUtils#getHexDigest(String, java.io.InputStream)}.
+ *
+ * @see HexDigestOutputStream
+ */
+public class HexDigestInputStream extends FilterInputStream {
+    @NonNull
+    private final String mAlgo;
+    private final MessageDigest mMessageDigest;
+    private final CRC32 mCrc32;
+    private String mHexDigest;
+
+    public HexDigestInputStream(@NonNull InputStream in, @DigestUtils.Algorithm @NonNull String algo)
+            throws IOException {
+        super(in);
+        mAlgo = algo;
+        if (DigestUtils.CRC32.equals(algo)) {
+            mCrc32 = new CRC32();
+            mMessageDigest = null;
+        } else {
+            mCrc32 = null;
+            try {
+                mMessageDigest = MessageDigest.getInstance(algo);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @NonNull
+    public String getAlgorithm() {
+        return mAlgo;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            if (mCrc32 != null) {
+                mCrc32.update(b);
+            } else mMessageDigest.update((byte) b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        int readCount = in.read(b, off, len);
+        if (readCount > 0) {
+            if (mCrc32 != null) {
+                mCrc32.update(b, off, readCount);
+            } else mMessageDigest.update(b, off, readCount);
+        }
+        return readCount;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes must be digested too
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        long remaining = n;
+        while (remaining > 0) {
+            int readCount = read(buf, 0, (int) Math.min(remaining, buf.length));
+            if (readCount < 0) break;
+            remaining -= readCount;
+        }
+        return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Get the digest of all the bytes read so far. Calling this method finalises the digest, and therefore, it should
+     * only be called after the stream is read completely.
+     */
+    @NonNull
+    public String getHexDigest() {
+        if (mHexDigest == null) {
+            byte[] digest;
+            if (mCrc32 != null) {
+                digest = DigestUtils.longToBytes(mCrc32.getValue());
+            } else digest = mMessageDigest.digest();
+            mHexDigest = HexEncoding.encodeToString(digest, false /* lowercase */);
+        }
+        return mHexDigest;
+    }
+}
@@ -0,0 +1,81 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.utils;
+
+import androidx.annotation.NonNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import aosp.libcore.util.HexEncoding;
+
+/**
+ * An {@link OutputStream} that calculates the digest of everything written through it. Unlike
+ * {@link java.security.DigestOutputStream}, it also supports {@link DigestUtils#CRC32} and returns the digest in the
+ * same format as {@link DigestUtils#getHexDigest(String, java.io.InputStream)}.
+ */
+public class HexDigestOutputStream extends FilterOutputStream {
+    @NonNull
+    private final String mAlgo;
+    private final MessageDigest mMessageDigest;
+    private final CRC32 mCrc32;
+    private String mHexDigest;
+
+    public HexDigestOutputStream(@NonNull OutputStream out, @DigestUtils.Algorithm @NonNull String algo)
+            throws IOException {
+        super(out);
+        mAlgo = algo;
+        if (DigestUtils.CRC32.equals(algo)) {
+            mCrc32 = new CRC32();
+            mMessageDigest = null;
+        } else {
+            mCrc32 = null;
+            try {
+                mMessageDigest = MessageDigest.getInstance(algo);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @NonNull
+    public String getAlgorithm() {
+        return mAlgo;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (mCrc32 != null) {
+            mCrc32.update(b);
+        } else mMessageDigest.update((byte) b);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (mCrc32 != null) {
+            mCrc32.update(b, off, len);
+        } else mMessageDigest.update(b, off, len);
+    }
+
+    /**
+     * Get the digest of all the bytes written so far. Calling this method finalises the digest, and therefore, it
+     * should only be called after the stream is closed.
+     */
+    @NonNull
+    public String getHexDigest() {
+        if (mHexDigest == null) {
+            byte[] digest;
+            if (mCrc32 != null) {
+                digest = DigestUtils.longToBytes(mCrc32.getValue());
+            } else digest = mMessageDigest.digest();
+            mHexDigest = HexEncoding.encodeToString(digest, false /* lowercase */);
+        }
+        return mHexDigest;
+    }
+}
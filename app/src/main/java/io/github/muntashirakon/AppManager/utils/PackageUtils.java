@@ -67,7 +67,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -79,7 +78,7 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import aosp.libcore.util.HexEncoding;
 import io.github.muntashirakon.AppManager.R;
-import io.github.muntashirakon.AppManager.apk.signing.Signer;
+import io.github.muntashirakon.AppManager.apk.signing.ApkVerifierSummary;
 import io.github.muntashirakon.AppManager.apk.signing.SignerInfo;
 import io.github.muntashirakon.AppManager.compat.AppOpsManagerCompat;
 import io.github.muntashirakon.AppManager.compat.PackageManagerCompat;
@@ -839,22 +838,22 @@ public final class PackageUtils {
 
     @NonNull
     public static Spannable getApkVerifierInfo(@Nullable ApkVerifier.Result result, Context ctx) {
+        return getApkVerifierInfo(result != null ? new ApkVerifierSummary(result) : null, ctx);
+    }
+
+    @NonNull
+    public static Spannable getApkVerifierInfo(@Nullable ApkVerifierSummary result, Context ctx) {
         SpannableStringBuilder builder = new SpannableStringBuilder();
         if (result == null) return builder;
         int colorFailure = ColorCodes.getFailureColor(ctx);
         int colorSuccess = ColorCodes.getSuccessColor(ctx);
-        int warnCount = 0;
+        int warnCount = result.getWarningCount();
         List<CharSequence> errors = new ArrayList<>();
-        for (ApkVerifier.IssueWithParams err : result.getErrors()) {
-            errors.add(getColoredText(err.toString(), colorFailure));
-        }
-        warnCount += result.getWarnings().size();
-        for (ApkVerifier.Result.V1SchemeSignerInfo signer : result.getV1SchemeIgnoredSigners()) {
-            String name = signer.getName();
-            for (ApkVerifier.IssueWithParams err : signer.getErrors()) {
-                errors.add(getColoredText(new SpannableStringBuilder(getBoldString(name + LangUtils.getSeparatorString())).append(err.toString()), colorFailure));
-            }
-            warnCount += signer.getWarnings().size();
+        for (String err : result.getErrors()) {
+            errors.add(getColoredText(err, colorFailure));
+        }
+        for (Pair<String, String> err : result.getIgnoredSignerErrors()) {
+            errors.add(getColoredText(new SpannableStringBuilder(getBoldString(err.first + LangUtils.getSeparatorString())).append(err.second), colorFailure));
         }
         if (result.isVerified()) {
             if (warnCount == 0) {
@@ -865,16 +864,12 @@ public final class PackageUtils {
                         .getQuantityString(R.plurals.verified_with_warning, warnCount, warnCount)), colorSuccess));
             }
             if (result.isSourceStampVerified()) {
-                String source = Signer.getSourceStampSource(result.getSourceStampInfo());
+                String source = result.getSourceStampSource();
                 if (source != null) {
                     builder.append("\n✔ ").append(ctx.getString(R.string.source_stamp_verified_and_identified_to_be_from_source, source));
                 } else builder.append("\n✔ ").append(ctx.getString(R.string.source_stamp_verified));
             }
-            List<CharSequence> sigSchemes = new LinkedList<>();
-            if (result.isVerifiedUsingV1Scheme()) sigSchemes.add("v1");
-            if (result.isVerifiedUsingV2Scheme()) sigSchemes.add("v2");
-            if (result.isVerifiedUsingV3Scheme()) sigSchemes.add("v3");
-            if (result.isVerifiedUsingV4Scheme()) sigSchemes.add("v4");
+            List<String> sigSchemes = result.getSignatureSchemes();
             builder.append("\n").append(getPrimaryText(ctx, ctx.getResources()
                     .getQuantityString(R.plurals.app_signing_signature_schemes_pl, sigSchemes.size()) + LangUtils.getSeparatorString()));
             builder.append(TextUtilsCompat.joinSpannable(", ", sigSchemes));
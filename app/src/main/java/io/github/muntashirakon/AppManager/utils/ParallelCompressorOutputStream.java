@@ -0,0 +1,205 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compress a stream using multiple threads in the same way as pigz or pzstd. The input is split into fixed-size
+ * blocks, and each block is compressed independently on a worker pool. The compressed blocks are written in order as
+ * concatenated gzip members, bzip2 streams or zstd frames, which is a valid input for any decompressor that supports
+ * concatenated streams (e.g. {@link TarUtils#extract}) including the older versions of App Manager.
+ */
+public class ParallelCompressorOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;  // 1 MiB
+
+    @NonNull
+    private final OutputStream mOut;
+    @TarUtils.TarType
+    @NonNull
+    private final String mType;
+    private final int mMaxPendingBlocks;
+    @NonNull
+    private final ExecutorService mExecutor;
+    private final Queue<Future<byte[]>> mPendingBlocks;
+    private byte[] mBlock;
+    private int mBlockLength;
+    private boolean mHasWrittenBlock;
+    private boolean mClosed;
+
+    public ParallelCompressorOutputStream(@NonNull OutputStream out, @NonNull @TarUtils.TarType String type,
+                                          int threadCount) {
+        this(out, type, threadCount, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ParallelCompressorOutputStream(@NonNull OutputStream out, @NonNull @TarUtils.TarType String type,
+                                          int threadCount, int blockSize) {
+        if (threadCount <= 0 || blockSize <= 0) {
+            throw new IllegalArgumentException("Invalid thread count " + threadCount + " or block size " + blockSize);
+        }
+        switch (type) {
+            case TarUtils.TAR_GZIP:
+            case TarUtils.TAR_BZIP2:
+            case TarUtils.TAR_ZSTD:
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid compression type: " + type);
+        }
+        mOut = out;
+        mType = type;
+        // Keep every worker busy while the oldest block is being written, but do not buffer the whole input
+        mMaxPendingBlocks = threadCount * 2;
+        mExecutor = Executors.newFixedThreadPool(threadCount);
+        mPendingBlocks = new ArrayDeque<>(mMaxPendingBlocks);
+        mBlock = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        mBlock[mBlockLength++] = (byte) b;
+        if (mBlockLength == mBlock.length) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        while (len > 0) {
+            int size = Math.min(mBlock.length - mBlockLength, len);
+            System.arraycopy(b, off, mBlock, mBlockLength, size);
+            mBlockLength += size;
+            off += size;
+            len -= size;
+            if (mBlockLength == mBlock.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Write all the compressed blocks that are ready. Since a block is compressed only when it is full, this does not
+     * flush the partially filled block.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!mPendingBlocks.isEmpty() && mPendingBlocks.peek().isDone()) {
+            writeNextBlock();
+        }
+        mOut.flush();
+    }
+
+    @WorkerThread
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            // An empty input must still produce a valid compressed stream
+            if (mBlockLength > 0 || !mHasWrittenBlock) {
+                submitBlock();
+            }
+            while (!mPendingBlocks.isEmpty()) {
+                writeNextBlock();
+            }
+            mOut.flush();
+        } finally {
+            mClosed = true;
+            mBlock = null;
+            for (Future<byte[]> future : mPendingBlocks) {
+                future.cancel(true);
+            }
+            mExecutor.shutdownNow();
+            mOut.close();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (mPendingBlocks.size() >= mMaxPendingBlocks) {
+            writeNextBlock();
+        }
+        final byte[] block = mBlock;
+        final int length = mBlockLength;
+        mPendingBlocks.add(mExecutor.submit(() -> compress(mType, block, 0, length)));
+        mHasWrittenBlock = true;
+        mBlock = new byte[block.length];
+        mBlockLength = 0;
+    }
+
+    private void writeNextBlock() throws IOException {
+        Future<byte[]> future = mPendingBlocks.remove();
+        try {
+            mOut.write(future.get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a compressed block.");
+        }
+    }
+
+    /**
+     * Compress the given bytes as a single gzip member, bzip2 stream or zstd frame, i.e. the compressed blocks can be
+     * concatenated in the same way as the ones written by this stream.
+     */
+    @NonNull
+    public static byte[] compress(@NonNull @TarUtils.TarType String type, @NonNull byte[] b, int off, int len)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(len / 2 + 64);
+        try (OutputStream os = getCompressorOutputStream(type, baos)) {
+            os.write(b, off, len);
+        }
+        return baos.toByteArray();
+    }
+
+    @NonNull
+    private static OutputStream getCompressorOutputStream(@NonNull @TarUtils.TarType String type,
+                                                          @NonNull OutputStream os) throws IOException {
+        switch (type) {
+            case TarUtils.TAR_GZIP:
+                // Each block is an independent gzip member
+                return new GzipCompressorOutputStream(os);
+            case TarUtils.TAR_BZIP2:
+                // Each block is an independent bzip2 stream
+                return new BZip2CompressorOutputStream(os);
+            case TarUtils.TAR_ZSTD:
+                // Each block is an independent zstd frame
+                return new ZstdOutputStream(os);
+            default:
+                throw new IllegalArgumentException("Invalid compression type: " + type);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
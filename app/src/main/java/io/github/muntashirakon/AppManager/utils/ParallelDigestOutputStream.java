@@ -0,0 +1,270 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import aosp.libcore.util.HexEncoding;
+
+/**
+ * Calculate the digests of everything written to this stream, one worker thread per algorithm. The input is collected
+ * into a ring of large blocks, and every block is passed to all the workers while the next one is being filled. So,
+ * calculating several digests costs about as much as the slowest of them, and a single digest is calculated alongside
+ * reading the input. No thread is started if the input fits in a single block.
+ */
+public class ParallelDigestOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;  // 1 MiB
+    public static final int DEFAULT_BLOCK_COUNT = 4;
+
+    private static class Digester {
+        private final MessageDigest mMessageDigest;
+        private final CRC32 mCrc32;
+
+        Digester(@DigestUtils.Algorithm @NonNull String algo) throws NoSuchAlgorithmException {
+            if (DigestUtils.CRC32.equals(algo)) {
+                mCrc32 = new CRC32();
+                mMessageDigest = null;
+            } else {
+                mCrc32 = null;
+                mMessageDigest = MessageDigest.getInstance(algo);
+            }
+        }
+
+        void update(@NonNull byte[] b, int off, int len) {
+            if (mCrc32 != null) {
+                mCrc32.update(b, off, len);
+            } else mMessageDigest.update(b, off, len);
+        }
+
+        @NonNull
+        byte[] digest() {
+            if (mCrc32 != null) {
+                return DigestUtils.longToBytes(mCrc32.getValue());
+            } else return mMessageDigest.digest();
+        }
+    }
+
+    private static class PendingBlock {
+        @NonNull
+        public final byte[] block;
+        @NonNull
+        public final Future<?>[] futures;
+
+        PendingBlock(@NonNull byte[] block, @NonNull Future<?>[] futures) {
+            this.block = block;
+            this.futures = futures;
+        }
+    }
+
+    @NonNull
+    private final String[] mAlgorithms;
+    @NonNull
+    private final Digester[] mDigesters;
+    private final int mMaxPendingBlocks;
+    private final Queue<PendingBlock> mPendingBlocks;
+    // Started when the first block is submitted
+    private ExecutorService[] mExecutors;
+    private byte[] mBlock;
+    private int mBlockLength;
+    private byte[][] mDigests;
+    private boolean mClosed;
+
+    public ParallelDigestOutputStream(@DigestUtils.Algorithm @NonNull String... algorithms) throws IOException {
+        this(algorithms, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_COUNT);
+    }
+
+    public ParallelDigestOutputStream(@DigestUtils.Algorithm @NonNull String[] algorithms, int blockSize,
+                                      int blockCount) throws IOException {
+        if (algorithms.length == 0 || blockSize <= 0 || blockCount <= 0) {
+            throw new IllegalArgumentException("Invalid algorithm count " + algorithms.length + ", block size "
+                    + blockSize + " or block count " + blockCount);
+        }
+        mAlgorithms = algorithms;
+        mDigesters = new Digester[algorithms.length];
+        for (int i = 0; i < algorithms.length; ++i) {
+            try {
+                mDigesters[i] = new Digester(algorithms[i]);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+        // The block being filled is not counted
+        mMaxPendingBlocks = Math.max(blockCount - 1, 1);
+        mPendingBlocks = new ArrayDeque<>(mMaxPendingBlocks);
+        mBlock = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        mBlock[mBlockLength++] = (byte) b;
+        if (mBlockLength == mBlock.length) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        while (len > 0) {
+            int size = Math.min(mBlock.length - mBlockLength, len);
+            System.arraycopy(b, off, mBlock, mBlockLength, size);
+            mBlockLength += size;
+            off += size;
+            len -= size;
+            if (mBlockLength == mBlock.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Read the given stream until its end directly into the blocks. The stream is not closed.
+     */
+    @WorkerThread
+    public void writeFrom(@NonNull InputStream is) throws IOException {
+        ensureOpen();
+        int len;
+        while ((len = is.read(mBlock, mBlockLength, mBlock.length - mBlockLength)) != -1) {
+            mBlockLength += len;
+            if (mBlockLength == mBlock.length) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Wait for the workers to finish and calculate the digests.
+     */
+    @WorkerThread
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            if (mExecutors == null) {
+                // Everything fits in a single block, no need to use a worker
+                for (Digester digester : mDigesters) {
+                    digester.update(mBlock, 0, mBlockLength);
+                }
+            } else {
+                if (mBlockLength > 0) {
+                    submitBlock();
+                }
+                while (!mPendingBlocks.isEmpty()) {
+                    waitForNextBlock();
+                }
+            }
+            mDigests = new byte[mDigesters.length][];
+            for (int i = 0; i < mDigesters.length; ++i) {
+                mDigests[i] = mDigesters[i].digest();
+            }
+        } finally {
+            mClosed = true;
+            mBlock = null;
+            for (PendingBlock pendingBlock : mPendingBlocks) {
+                for (Future<?> future : pendingBlock.futures) {
+                    future.cancel(true);
+                }
+            }
+            mPendingBlocks.clear();
+            if (mExecutors != null) {
+                for (ExecutorService executor : mExecutors) {
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    @NonNull
+    public String[] getAlgorithms() {
+        return mAlgorithms;
+    }
+
+    /**
+     * Get the digests in the order of the algorithms. They are only available after the stream is closed.
+     */
+    @NonNull
+    public byte[][] getDigests() {
+        if (mDigests == null) {
+            throw new IllegalStateException("The digests are available only after closing the stream.");
+        }
+        return mDigests;
+    }
+
+    /**
+     * Same as {@link #getDigests()}, but in the same format as {@link DigestUtils#getHexDigest(String, InputStream)}.
+     */
+    @NonNull
+    public String[] getHexDigests() {
+        byte[][] digests = getDigests();
+        String[] hexDigests = new String[digests.length];
+        for (int i = 0; i < digests.length; ++i) {
+            hexDigests[i] = HexEncoding.encodeToString(digests[i], false /* lowercase */);
+        }
+        return hexDigests;
+    }
+
+    private void submitBlock() throws IOException {
+        if (mExecutors == null) {
+            mExecutors = new ExecutorService[mDigesters.length];
+            for (int i = 0; i < mDigesters.length; ++i) {
+                // A single thread per digest keeps the blocks in order
+                mExecutors[i] = Executors.newSingleThreadExecutor();
+            }
+        }
+        // Reuse the oldest block once every worker is done with it
+        byte[] nextBlock = mPendingBlocks.size() >= mMaxPendingBlocks ? waitForNextBlock() : new byte[mBlock.length];
+        final byte[] block = mBlock;
+        final int length = mBlockLength;
+        Future<?>[] futures = new Future[mDigesters.length];
+        for (int i = 0; i < mDigesters.length; ++i) {
+            Digester digester = mDigesters[i];
+            futures[i] = mExecutors[i].submit(() -> digester.update(block, 0, length));
+        }
+        mPendingBlocks.add(new PendingBlock(block, futures));
+        mBlock = nextBlock;
+        mBlockLength = 0;
+    }
+
+    @NonNull
+    private byte[] waitForNextBlock() throws IOException {
+        PendingBlock pendingBlock = mPendingBlocks.remove();
+        try {
+            for (Future<?> future : pendingBlock.futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a digest.");
+        }
+        return pendingBlock.block;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+}
@@ -0,0 +1,161 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.utils;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Matches a text against a set of signatures at once using the Aho-Corasick algorithm. The result is the same as
+ * checking {@link String#contains(CharSequence)} for each signature in order and stopping at the first match, but the
+ * text is scanned only once regardless of the number of signatures.
+ */
+public final class SignatureMatcher {
+    private static final int ROOT = 0;
+
+    // The transitions of node i are at [mEdgeStart[i], mEdgeStart[i + 1]), sorted by character
+    @NonNull
+    private final int[] mEdgeStart;
+    @NonNull
+    private final char[] mEdgeChars;
+    @NonNull
+    private final int[] mEdgeTargets;
+    @NonNull
+    private final int[] mFailure;
+    // Lowest index of the signatures that end at a node or at any of its suffixes, Integer.MAX_VALUE if none
+    @NonNull
+    private final int[] mFirstMatch;
+
+    public SignatureMatcher(@NonNull String[] signatures) {
+        // Build the trie. Each edge is keyed by the parent node in the upper and the character in the lower bits so
+        // that the sorted keys are grouped by node.
+        Map<Long, Integer> edges = new HashMap<>();
+        int nodeCount = 1;
+        int[] ownMatch = new int[16];
+        Arrays.fill(ownMatch, Integer.MAX_VALUE);
+        for (int i = 0; i < signatures.length; ++i) {
+            String signature = signatures[i];
+            int node = ROOT;
+            for (int j = 0; j < signature.length(); ++j) {
+                long key = ((long) node << 16) | signature.charAt(j);
+                Integer next = edges.get(key);
+                if (next == null) {
+                    next = nodeCount++;
+                    edges.put(key, next);
+                }
+                node = next;
+            }
+            if (node >= ownMatch.length) {
+                int oldLength = ownMatch.length;
+                ownMatch = Arrays.copyOf(ownMatch, Math.max(node + 1, oldLength * 2));
+                Arrays.fill(ownMatch, oldLength, ownMatch.length, Integer.MAX_VALUE);
+            }
+            // Duplicates keep the first index
+            ownMatch[node] = Math.min(ownMatch[node], i);
+        }
+        // Flatten the edges
+        long[] keys = new long[edges.size()];
+        int k = 0;
+        for (long key : edges.keySet()) {
+            keys[k++] = key;
+        }
+        Arrays.sort(keys);
+        mEdgeStart = new int[nodeCount + 1];
+        mEdgeChars = new char[keys.length];
+        mEdgeTargets = new int[keys.length];
+        for (int i = 0; i < keys.length; ++i) {
+            int node = (int) (keys[i] >>> 16);
+            mEdgeChars[i] = (char) (keys[i] & 0xFFFF);
+            //noinspection ConstantConditions
+            mEdgeTargets[i] = edges.get(keys[i]);
+            ++mEdgeStart[node + 1];
+        }
+        for (int i = 0; i < nodeCount; ++i) {
+            mEdgeStart[i + 1] += mEdgeStart[i];
+        }
+        // Compute the failure links in breadth-first order so that the failure node of a node is always complete
+        mFailure = new int[nodeCount];
+        mFirstMatch = new int[nodeCount];
+        mFirstMatch[ROOT] = ownMatch[ROOT];
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ROOT;
+        while (head < tail) {
+            int node = queue[head++];
+            for (int e = mEdgeStart[node]; e < mEdgeStart[node + 1]; ++e) {
+                int child = mEdgeTargets[e];
+                int failure = node == ROOT ? ROOT : next(mFailure[node], mEdgeChars[e]);
+                mFailure[child] = failure;
+                int own = child < ownMatch.length ? ownMatch[child] : Integer.MAX_VALUE;
+                mFirstMatch[child] = Math.min(own, mFirstMatch[failure]);
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * Find the first signature contained in the text.
+     *
+     * @return Index of the signature or {@code -1} if none of them is contained in the text
+     */
+    public int firstMatch(@NonNull CharSequence text) {
+        int match = mFirstMatch[ROOT];
+        int node = ROOT;
+        for (int i = 0; i < text.length() && match != 0; ++i) {
+            node = next(node, text.charAt(i));
+            if (mFirstMatch[node] < match) {
+                match = mFirstMatch[node];
+            }
+        }
+        return match == Integer.MAX_VALUE ? -1 : match;
+    }
+
+    /**
+     * Whether any of the signatures is contained in the text.
+     */
+    public boolean matches(@NonNull CharSequence text) {
+        if (mFirstMatch[ROOT] != Integer.MAX_VALUE) {
+            return true;
+        }
+        int node = ROOT;
+        for (int i = 0; i < text.length(); ++i) {
+            node = next(node, text.charAt(i));
+            if (mFirstMatch[node] != Integer.MAX_VALUE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int next(int node, char c) {
+        while (true) {
+            int target = findEdge(node, c);
+            if (target != -1) {
+                return target;
+            }
+            if (node == ROOT) {
+                return ROOT;
+            }
+            node = mFailure[node];
+        }
+    }
+
+    private int findEdge(int node, char c) {
+        int lo = mEdgeStart[node];
+        int hi = mEdgeStart[node + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            char midChar = mEdgeChars[mid];
+            if (midChar < c) {
+                lo = mid + 1;
+            } else if (midChar > c) {
+                hi = mid - 1;
+            } else return mEdgeTargets[mid];
+        }
+        return -1;
+    }
+}
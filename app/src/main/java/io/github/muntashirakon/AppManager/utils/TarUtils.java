@@ -19,6 +19,7 @@ import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.utils.CloseShieldFilterInputStream;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -73,30 +74,96 @@ public final class TarUtils {
                                     @NonNull String destFilePrefix, @Nullable String[] filters,
                                     @Nullable Long splitSize, @Nullable String[] exclude, boolean followLinks)
             throws IOException {
-        try (SplitOutputStream sos = new SplitOutputStream(dest, destFilePrefix, splitSize == null ? DEFAULT_SPLIT_SIZE : splitSize);
-             BufferedOutputStream bos = new BufferedOutputStream(sos)) {
+        return create(type, source, dest, destFilePrefix, filters, splitSize, exclude, followLinks, 1);
+    }
+
+    /**
+     * Same as {@link #create(String, Path, Path, String, String[], Long, String[], boolean)}, but compresses the
+     * archive using the given number of threads.
+     *
+     * @param threadCount Number of compression threads. If more than one, the archive is compressed in blocks using
+     *                    {@link ParallelCompressorOutputStream}.
+     */
+    @WorkerThread
+    @NonNull
+    public static List<Path> create(@NonNull @TarType String type, @NonNull Path source, @NonNull Path dest,
+                                    @NonNull String destFilePrefix, @Nullable String[] filters,
+                                    @Nullable Long splitSize, @Nullable String[] exclude, boolean followLinks,
+                                    int threadCount)
+            throws IOException {
+        try (SplitOutputStream sos = new SplitOutputStream(dest, destFilePrefix, splitSize == null ? DEFAULT_SPLIT_SIZE : splitSize)) {
+            create(type, source, sos, filters, exclude, followLinks, threadCount);
+            return sos.getFiles();
+        }
+    }
+
+    /**
+     * Create a tar file using the given compression method and write it to the given stream. The stream is closed
+     * once the archive is finished.
+     *
+     * @param type        Compression type, or {@code null} to write an uncompressed archive
+     * @param source      Source directory/file
+     * @param out         Destination stream, e.g. a {@link SplitOutputStream} with per-part encryption
+     * @param filters     A list of mutually exclusive regex filters
+     * @param exclude     A list of mutually exclusive regex patterns to be excluded
+     * @param followLinks Whether to follow the links
+     * @param threadCount Number of compression threads. If more than one, the archive is compressed in blocks using
+     *                    {@link ParallelCompressorOutputStream}.
+     */
+    @WorkerThread
+    public static void create(@Nullable @TarType String type, @NonNull Path source, @NonNull OutputStream out,
+                              @Nullable String[] filters, @Nullable String[] exclude, boolean followLinks,
+                              int threadCount)
+            throws IOException {
+        Path basePath = source.isDirectory() ? source : source.getParent();
+        if (basePath == null) {
+            basePath = Paths.get("/");
+        }
+        List<Path> files = Paths.getAll(basePath, source, filters, exclude, followLinks);
+        create(type, basePath, files, out, followLinks, threadCount);
+    }
+
+    /**
+     * Create a tar file containing only the given files using the given compression method and write it to the given
+     * stream. The stream is closed once the archive is finished.
+     *
+     * @param type        Compression type, or {@code null} to write an uncompressed archive
+     * @param basePath    The path in respect to which the entry names are generated
+     * @param files       Files and directories to be added, usually a subset of the ones returned by
+     *                    {@link Paths#getAll(Path, Path, String[], String[], boolean)}
+     * @param out         Destination stream
+     * @param followLinks Whether to follow the links
+     * @param threadCount Number of compression threads
+     */
+    @WorkerThread
+    public static void create(@Nullable @TarType String type, @NonNull Path basePath, @NonNull List<Path> files,
+                              @NonNull OutputStream out, boolean followLinks, int threadCount)
+            throws IOException {
+        try (BufferedOutputStream bos = new BufferedOutputStream(out)) {
             OutputStream os;
-            switch (type) {
-                case TAR_GZIP:
-                    os = new GzipCompressorOutputStream(bos);
-                    break;
-                case TAR_BZIP2:
-                    os = new BZip2CompressorOutputStream(bos);
-                    break;
-                case TAR_ZSTD:
-                    os = new ZstdOutputStream(bos);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Invalid compression type: " + type);
+            if (type == null) {
+                // The destination compresses the archive, if at all
+                os = bos;
+            } else if (threadCount > 1) {
+                os = new ParallelCompressorOutputStream(bos, type, threadCount);
+            } else {
+                switch (type) {
+                    case TAR_GZIP:
+                        os = new GzipCompressorOutputStream(bos);
+                        break;
+                    case TAR_BZIP2:
+                        os = new BZip2CompressorOutputStream(bos);
+                        break;
+                    case TAR_ZSTD:
+                        os = new ZstdOutputStream(bos);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid compression type: " + type);
+                }
             }
             try (TarArchiveOutputStream tos = new TarArchiveOutputStream(os)) {
                 tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
                 tos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
-                Path basePath = source.isDirectory() ? source : source.getParent();
-                if (basePath == null) {
-                    basePath = Paths.get("/");
-                }
-                List<Path> files = Paths.getAll(basePath, source, filters, exclude, followLinks);
                 for (Path file : files) {
                     String relativePath = Paths.relativePath(file, basePath);
                     if (relativePath.isEmpty() || relativePath.equals("/")) continue;
@@ -122,7 +189,6 @@ public final class TarUtils {
             } finally {
                 os.close();
             }
-            return sos.getFiles();
         }
     }
 
@@ -141,6 +207,26 @@ public final class TarUtils {
                                @Nullable String[] filters, @Nullable String[] exclusions,
                                @Nullable String realDataAppPath)
             throws IOException {
+        try (SplitInputStream sis = new SplitInputStream(sources)) {
+            extract(type, sis, dest, filters, exclusions, realDataAppPath);
+        }
+    }
+
+    /**
+     * Extract a tar file compressed using the given compression method from the given stream. The stream is not
+     * closed, and it may not be read completely as the trailing blocks of the archive are ignored.
+     *
+     * @param type       Compression type
+     * @param in         Source stream, e.g. a {@link SplitInputStream} with per-part decryption
+     * @param dest       Destination directory
+     * @param filters    A list of mutually exclusive regex filters
+     * @param exclusions A list of mutually exclusive regex patterns to be excluded
+     */
+    @WorkerThread
+    public static void extract(@NonNull @TarType String type, @NonNull InputStream in, @NonNull Path dest,
+                               @Nullable String[] filters, @Nullable String[] exclusions,
+                               @Nullable String realDataAppPath)
+            throws IOException {
         // Convert filters into patterns to reduce overheads
         Pattern[] filterPatterns;
         if (filters != null) {
@@ -157,22 +243,8 @@ public final class TarUtils {
             }
         } else exclusionPatterns = null;
         // Run extraction
-        try (SplitInputStream sis = new SplitInputStream(sources);
-             BufferedInputStream bis = new BufferedInputStream(sis)) {
-            InputStream is;
-            switch (type) {
-                case TAR_GZIP:
-                    is = new GzipCompressorInputStream(bis, true);
-                    break;
-                case TAR_BZIP2:
-                    is = new BZip2CompressorInputStream(bis, true);
-                    break;
-                case TAR_ZSTD:
-                    is = new ZstdInputStream(bis);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Invalid compression type: " + type);
-            }
+        try (BufferedInputStream bis = new BufferedInputStream(new CloseShieldFilterInputStream(in))) {
+            InputStream is = getDecompressorInputStream(type, bis);
             try (TarArchiveInputStream tis = new TarArchiveInputStream(is)) {
                 String realDestPath = dest.getRealFilePath();
                 TarArchiveEntry entry;
@@ -243,6 +315,38 @@ public final class TarUtils {
         }
     }
 
+    /**
+     * Read all the headers of a tar file compressed using the given compression method without extracting anything.
+     * This ensures that the archive can be decompressed and is not truncated. The stream is not closed.
+     *
+     * @param type Compression type
+     * @param in   Source stream, e.g. a {@link SplitInputStream} with per-part decryption
+     */
+    @WorkerThread
+    public static void validate(@NonNull @TarType String type, @NonNull InputStream in) throws IOException {
+        try (BufferedInputStream bis = new BufferedInputStream(new CloseShieldFilterInputStream(in));
+             TarArchiveInputStream tis = new TarArchiveInputStream(getDecompressorInputStream(type, bis))) {
+            while (tis.getNextEntry() != null) {
+                // The contents of the previous entry are read and discarded before reading the next header
+            }
+        }
+    }
+
+    @NonNull
+    private static InputStream getDecompressorInputStream(@NonNull @TarType String type, @NonNull InputStream is)
+            throws IOException {
+        switch (type) {
+            case TAR_GZIP:
+                return new GzipCompressorInputStream(is, true);
+            case TAR_BZIP2:
+                return new BZip2CompressorInputStream(is, true);
+            case TAR_ZSTD:
+                return new ZstdInputStream(is);
+            default:
+                throw new IllegalArgumentException("Invalid compression type: " + type);
+        }
+    }
+
     @VisibleForTesting
     @NonNull
     static String getAbsolutePathToDataApp(@NonNull String brokenPath, @Nullable String realPath) {
@@ -0,0 +1,166 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io;
+
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Calculate the size of a directory tree by walking the subdirectories in parallel.
+ * <p>
+ * The attributes of the children are fetched along with the listing (see {@link ExtendedFile#listFiles()}), and a
+ * file with multiple hard links is counted only once. Optionally, the sum of the files directly inside a directory is
+ * cached with the modification time of the directory, which changes whenever a child is added, removed or renamed. So,
+ * a subsequent walk only lists the directories that have changed. Files modified in place do not alter the
+ * modification time of their parent and are therefore not noticed until something else in the directory changes.
+ */
+final class DirectorySizeCalculator {
+    private static final int STAT_ATTRIBUTES = FileStat.ATTR_TYPE | FileStat.ATTR_LENGTH
+            | FileStat.ATTR_LAST_MODIFIED | FileStat.ATTR_MODE | FileStat.ATTR_INODE;
+    private static final int MAX_CACHED_DIRECTORIES = 1 << 16;
+
+    private static final ForkJoinPool sPool = new ForkJoinPool(Math.max(4,
+            Runtime.getRuntime().availableProcessors() * 2));
+    private static final LruCache<String, DirectoryEntry> sCache = new LruCache<>(MAX_CACHED_DIRECTORIES);
+
+    private static class DirectoryEntry {
+        final long lastModified;
+        // Total size of the files with a single link
+        final long filesSize;
+        // dev:ino of the files with multiple links
+        @NonNull
+        final String[] linkedFileIds;
+        final long[] linkedFileSizes;
+        @NonNull
+        final String[] subdirectories;
+
+        DirectoryEntry(long lastModified, long filesSize, @NonNull List<String> linkedFileIds,
+                       @NonNull List<Long> linkedFileSizes, @NonNull List<String> subdirectories) {
+            this.lastModified = lastModified;
+            this.filesSize = filesSize;
+            this.linkedFileIds = linkedFileIds.toArray(new String[0]);
+            this.linkedFileSizes = new long[linkedFileSizes.size()];
+            for (int i = 0; i < this.linkedFileSizes.length; ++i) {
+                this.linkedFileSizes[i] = linkedFileSizes.get(i);
+            }
+            this.subdirectories = subdirectories.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Calculate the size of the given directory. The calculation is aborted if the calling thread is interrupted, in
+     * which case the returned size is incomplete.
+     *
+     * @param useCache Whether to use and update the cached sums of the directories
+     */
+    @WorkerThread
+    static long size(@NonNull ExtendedFile directory, boolean useCache) {
+        Thread caller = Thread.currentThread();
+        SizeTask task = new SizeTask(caller, Collections.newSetFromMap(new ConcurrentHashMap<>()), directory,
+                directory.lastModified(), useCache);
+        ForkJoinTask<Long> future = sPool.submit(task);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            caller.interrupt();
+            return 0;
+        } catch (ExecutionException e) {
+            return 0;
+        }
+    }
+
+    private static class SizeTask extends RecursiveTask<Long> {
+        @NonNull
+        private final Thread mCaller;
+        @NonNull
+        private final Set<String> mSeenLinkedFiles;
+        @NonNull
+        private final ExtendedFile mDirectory;
+        private final long mLastModified;
+        private final boolean mUseCache;
+
+        SizeTask(@NonNull Thread caller, @NonNull Set<String> seenLinkedFiles, @NonNull ExtendedFile directory,
+                 long lastModified, boolean useCache) {
+            mCaller = caller;
+            mSeenLinkedFiles = seenLinkedFiles;
+            mDirectory = directory;
+            mLastModified = lastModified;
+            mUseCache = useCache;
+        }
+
+        @Override
+        protected Long compute() {
+            if (mCaller.isInterrupted()) {
+                return 0L;
+            }
+            // The same path may refer to different files for the local and the remote file systems
+            String key = (mDirectory instanceof RemoteFile ? "remote:" : "local:") + mDirectory.getAbsolutePath();
+            DirectoryEntry entry = mUseCache ? sCache.get(key) : null;
+            List<SizeTask> subtasks = new ArrayList<>();
+            if (entry == null || entry.lastModified != mLastModified || mLastModified == 0) {
+                entry = scan(subtasks);
+                if (mUseCache && mLastModified != 0) {
+                    sCache.put(key, entry);
+                }
+            } else {
+                // Unchanged, but the subdirectories could still have changed
+                for (String name : entry.subdirectories) {
+                    ExtendedFile subdirectory = mDirectory.getChildFile(name);
+                    FileStat stat = subdirectory.getFileStat(FileStat.ATTR_LAST_MODIFIED);
+                    subtasks.add(new SizeTask(mCaller, mSeenLinkedFiles, subdirectory, stat.lastModified, mUseCache));
+                }
+            }
+            long size = entry.filesSize;
+            for (int i = 0; i < entry.linkedFileIds.length; ++i) {
+                if (mSeenLinkedFiles.add(entry.linkedFileIds[i])) {
+                    size += entry.linkedFileSizes[i];
+                }
+            }
+            for (SizeTask subtask : invokeAll(subtasks)) {
+                size += subtask.join();
+            }
+            return size;
+        }
+
+        @NonNull
+        private DirectoryEntry scan(@NonNull List<SizeTask> subtasks) {
+            long filesSize = 0;
+            List<String> linkedFileIds = new ArrayList<>();
+            List<Long> linkedFileSizes = new ArrayList<>();
+            List<String> subdirectories = new ArrayList<>();
+            ExtendedFile[] children = mDirectory.listFiles();
+            if (children != null) {
+                for (ExtendedFile child : children) {
+                    FileStat stat = child.getFileStat(STAT_ATTRIBUTES);
+                    if (stat.isSymlink()) {
+                        // Symbolic links to directories are not followed
+                        if (stat.isFile()) {
+                            filesSize += stat.length;
+                        }
+                    } else if (stat.isFile()) {
+                        if (stat.nlink > 1) {
+                            linkedFileIds.add(stat.dev + ":" + stat.ino);
+                            linkedFileSizes.add(stat.length);
+                        } else filesSize += stat.length;
+                    } else if (stat.isDirectory()) {
+                        subdirectories.add(stat.name);
+                        subtasks.add(new SizeTask(mCaller, mSeenLinkedFiles, child, stat.lastModified, mUseCache));
+                    }
+                }
+            }
+            return new DirectoryEntry(mLastModified, filesSize, linkedFileIds, linkedFileSizes, subdirectories);
+        }
+    }
+}
@@ -14,6 +14,8 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 
@@ -24,6 +26,8 @@ public final class IoUtils {
     public static final String TAG = IoUtils.class.getSimpleName();
 
     public static final int DEFAULT_BUFFER_SIZE = 1024 * 50;
+    // Progress is reported after each chunk
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
 
     /**
      * Get byte array from an InputStream most efficiently.
@@ -73,15 +77,57 @@ public final class IoUtils {
         return new String(IoUtils.readFully(inputStream, -1, true), Charset.defaultCharset());
     }
 
+    /**
+     * Copy the contents of one file to another. If both files are real files on the same side, i.e. both are local
+     * files or both are accessed via the same remote file system, the bytes are copied by the kernel (sendfile or
+     * memory mapping) without passing through a buffer in this process. Other files, e.g. empty or special files, are
+     * copied using streams.
+     */
     @AnyThread
     public static long copy(@NonNull Path from, @NonNull Path to, @Nullable ProgressHandler progressHandler)
             throws IOException {
+        ExtendedFile src = from.getFile();
+        ExtendedFile dst = to.getFile();
+        if (src != null && dst != null && src.getClass() == dst.getClass() && src.isFile()) {
+            try (FileChannel in = from.openFileChannel(FileSystemManager.MODE_READ_ONLY)) {
+                // Pseudo files, e.g. in /proc or /sys, report a size of 0, and transferTo() would copy nothing
+                long size = in.size();
+                if (size > 0) {
+                    try (FileChannel out = to.openFileChannel(FileSystemManager.MODE_WRITE_ONLY
+                            | FileSystemManager.MODE_CREATE | FileSystemManager.MODE_TRUNCATE)) {
+                        return copy(in, out, size, progressHandler);
+                    }
+                }
+            }
+        }
         try (InputStream in = from.openInputStream();
              OutputStream out = to.openOutputStream()) {
             return copy(in, out, from.length(), progressHandler);
         }
     }
 
+    /**
+     * Copy the contents of one channel to the current position of another using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+     *
+     * @param totalSize Total size of the source. Only used for handling progress. Set {@code -1} if unknown.
+     */
+    @AnyThread
+    public static long copy(@NonNull FileChannel in, @NonNull FileChannel out, long totalSize,
+                            @Nullable ProgressHandler progressHandler) throws IOException {
+        float lastProgress = progressHandler != null ? progressHandler.getLastProgress() : 0;
+        long count = 0;
+        long n;
+        while ((n = in.transferTo(count, TRANSFER_CHUNK_SIZE, out)) > 0) {
+            count += n;
+            // No progress can be reported without the total size
+            if (progressHandler != null && totalSize > 0) {
+                progressHandler.postUpdate(100, lastProgress + (count * 100f / totalSize));
+            }
+        }
+        return count;
+    }
+
     /**
      * Copy the contents of one stream to another.
 
@@ -1552,7 +1552,7 @@ public class Path implements Comparable<Path> {
         }
         if (documentFile instanceof ExtendedRawDocumentFile) {
             try {
-                return Objects.requireNonNull(getFile()).newOutputStream(append);
+                return Objects.requireNonNull(getFile()).newSequentialOutputStream(append);
             } catch (IOException e) {
                 throw new IOException("Could not open file for writing: " + documentFile.getUri(), e);
             }
@@ -1575,7 +1575,7 @@ public class Path implements Comparable<Path> {
         }
         if (documentFile instanceof ExtendedRawDocumentFile) {
             try {
-                return Objects.requireNonNull(getFile()).newInputStream();
+                return Objects.requireNonNull(getFile()).newSequentialInputStream();
             } catch (IOException e) {
                 throw new IOException("Could not open file for reading: " + documentFile.getUri(), e);
             }
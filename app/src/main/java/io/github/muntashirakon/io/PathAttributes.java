@@ -127,9 +127,9 @@ public class PathAttributes {
     public final boolean isOtherFile;
     public final long size;
 
-    private PathAttributes(@NonNull String displayName, @Nullable String mimeType, long lastModified, long lastAccess,
-                           long creationTime, boolean isRegularFile, boolean isDirectory, boolean isSymbolicLink,
-                           long size) {
+    public PathAttributes(@NonNull String displayName, @Nullable String mimeType, long lastModified, long lastAccess,
+                          long creationTime, boolean isRegularFile, boolean isDirectory, boolean isSymbolicLink,
+                          long size) {
         this.name = displayName;
         this.mimeType = mimeType;
         this.lastModified = lastModified;
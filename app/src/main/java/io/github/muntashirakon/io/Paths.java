@@ -505,6 +505,19 @@ public final class Paths {
     }
 
     public static long size(@Nullable Path root) {
+        return size(root, false);
+    }
+
+    /**
+     * Same as {@link #size(Path)}, except that the sum of the files directly inside each directory is reused as long as
+     * the modification time of the directory is unchanged. Files modified in place are therefore not noticed, which is
+     * only acceptable when the size is displayed while browsing.
+     */
+    public static long cachedSize(@Nullable Path root) {
+        return size(root, true);
+    }
+
+    private static long size(@Nullable Path root, boolean useCache) {
         if (root == null) {
             return 0;
         }
@@ -518,6 +531,10 @@ public final class Paths {
             // Other types of files aren't supported
             return 0;
         }
+        ExtendedFile file = root.getFile();
+        if (file != null) {
+            return DirectorySizeCalculator.size(file, useCache);
+        }
         long length = 0;
         Path[] files = root.listFiles();
         for (Path file : files) {
@@ -525,7 +542,7 @@ public final class Paths {
                 // Size could be too long
                 return length;
             }
-            length += size(file);
+            length += size(file, useCache);
         }
         return length;
     }
@@ -3,6 +3,7 @@
 package io.github.muntashirakon.io;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import java.io.IOException;
@@ -12,9 +13,20 @@ import java.util.Arrays;
 import java.util.List;
 
 public class SplitInputStream extends InputStream {
+    /**
+     * Wraps the raw input stream of each part before anything is read from it. This allows a transformation (e.g.
+     * decryption) and a checksum to be applied per part in the same pass as the join.
+     */
+    public interface PartStreamWrapper {
+        @NonNull
+        InputStream wrap(@NonNull Path file, @NonNull InputStream is) throws IOException;
+    }
+
     private final List<InputStream> mInputStreams;
     private int mCurrentIndex = -1;
     private final List<Path> mFiles;
+    @Nullable
+    private final PartStreamWrapper mWrapper;
 
     private final byte[] mBuf;
 
@@ -40,15 +52,23 @@ public class SplitInputStream extends InputStream {
     // 0 <= markBufCount <= markLimit
 
     public SplitInputStream(@NonNull List<Path> files) {
-        mFiles = files;
-        mInputStreams = new ArrayList<>(files.size());
-        mBuf = new byte[1024 * 4];
+        this(files, null);
     }
 
     public SplitInputStream(@NonNull Path[] files) {
         this(Arrays.asList(files));
     }
 
+    /**
+     * @param wrapper Wrapper for the input stream of each part
+     */
+    public SplitInputStream(@NonNull List<Path> files, @Nullable PartStreamWrapper wrapper) {
+        mFiles = files;
+        mWrapper = wrapper;
+        mInputStreams = new ArrayList<>(files.size());
+        mBuf = new byte[1024 * 4];
+    }
+
     @Override
     public int read() throws IOException {
         byte[] bytes = new byte[1];
@@ -193,6 +213,20 @@ public class SplitInputStream extends InputStream {
         return n;
     }
 
+    @NonNull
+    private InputStream openPart(@NonNull Path file) throws IOException {
+        InputStream is = file.openInputStream();
+        if (mWrapper == null) {
+            return is;
+        }
+        try {
+            return mWrapper.wrap(file, is);
+        } catch (IOException | RuntimeException e) {
+            is.close();
+            throw e;
+        }
+    }
+
     @WorkerThread
     private synchronized int readStream(@NonNull byte[] b) throws IOException {
         int off = 0;
@@ -204,7 +238,7 @@ public class SplitInputStream extends InputStream {
                 return -1;
             } else if (mCurrentIndex == -1) {
                 // Initialize a new stream
-                mInputStreams.add(mFiles.get(0).openInputStream());
+                mInputStreams.add(openPart(mFiles.get(0)));
                 ++mCurrentIndex;
             }
             do {
@@ -212,7 +246,7 @@ public class SplitInputStream extends InputStream {
                 if (readCount <= 0) {
                     // This stream has been read completely, initialize new stream if available
                     if (mCurrentIndex + 1 != mFiles.size()) {
-                        mInputStreams.add(mFiles.get(mCurrentIndex + 1).openInputStream());
+                        mInputStreams.add(openPart(mFiles.get(mCurrentIndex + 1)));
                         ++mCurrentIndex;
                     } else {
                         // Last stream reached
@@ -3,6 +3,7 @@
 package io.github.muntashirakon.io;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import java.io.IOException;
@@ -11,6 +12,15 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class SplitOutputStream extends OutputStream {
+    /**
+     * Wraps the raw output stream of each part before anything is written to it. This allows a transformation
+     * (e.g. encryption) and a checksum to be applied per part in the same pass as the split.
+     */
+    public interface PartStreamWrapper {
+        @NonNull
+        OutputStream wrap(@NonNull Path file, @NonNull OutputStream os) throws IOException;
+    }
+
     private static final long MAX_BYTES_WRITTEN = 1024 * 1024 * 1024;  // 1GB
 
     private final List<OutputStream> mOutputStreams = new ArrayList<>(1);
@@ -20,16 +30,32 @@ public class SplitOutputStream extends OutputStream {
     private final long mMaxBytesPerFile;
     private final String mBaseName;
     private final Path mBasePath;
+    @NonNull
+    private final String mSuffix;
+    @Nullable
+    private final PartStreamWrapper mWrapper;
+    private boolean mClosed;
 
     public SplitOutputStream(@NonNull Path basePath, @NonNull String baseName) {
         this(basePath, baseName, MAX_BYTES_WRITTEN);
     }
 
     public SplitOutputStream(@NonNull Path basePath, @NonNull String baseName, long maxBytesPerFile) {
+        this(basePath, baseName, maxBytesPerFile, "", null);
+    }
+
+    /**
+     * @param suffix  Appended to the name of each part, after the part index (e.g. {@code .aes})
+     * @param wrapper Wrapper for the output stream of each part
+     */
+    public SplitOutputStream(@NonNull Path basePath, @NonNull String baseName, long maxBytesPerFile,
+                             @NonNull String suffix, @Nullable PartStreamWrapper wrapper) {
         mBasePath = basePath;
         mBaseName = baseName;
         mMaxBytesPerFile = maxBytesPerFile;
         mBytesWritten = maxBytesPerFile;
+        mSuffix = suffix;
+        mWrapper = wrapper;
     }
 
     public List<Path> getFiles() {
@@ -71,6 +97,11 @@ public class SplitOutputStream extends OutputStream {
     @WorkerThread
     @Override
     public void close() throws IOException {
+        // Wrapped streams (e.g. ciphers) may not tolerate being closed twice
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
         for (OutputStream stream : mOutputStreams) {
             stream.close();
         }
@@ -82,7 +113,8 @@ public class SplitOutputStream extends OutputStream {
             // Need to create a new stream
             Path newFile = getNextFile();
             mFiles.add(newFile);
-            mOutputStreams.add(newFile.openOutputStream());
+            OutputStream os = newFile.openOutputStream();
+            mOutputStreams.add(mWrapper != null ? mWrapper.wrap(newFile, os) : os);
             ++mCurrentIndex;
             mBytesWritten = 0;
         }
@@ -90,6 +122,6 @@ public class SplitOutputStream extends OutputStream {
 
     @NonNull
     private Path getNextFile() throws IOException {
-        return mBasePath.createNewFile(mBaseName + "." + (mCurrentIndex + 1), null);
+        return mBasePath.createNewFile(mBaseName + "." + (mCurrentIndex + 1) + mSuffix, null);
     }
 }
@@ -29,6 +29,7 @@ import io.github.muntashirakon.AppManager.dex.DexClasses;
 import io.github.muntashirakon.AppManager.dex.DexUtils;
 import io.github.muntashirakon.AppManager.fm.ContentType2;
 import io.github.muntashirakon.AppManager.self.filecache.FileCache;
+import io.github.muntashirakon.AppManager.utils.FileUtils;
 import io.github.muntashirakon.io.ExtendedFile;
 import io.github.muntashirakon.io.Path;
 import io.github.muntashirakon.io.Paths;
@@ -36,6 +37,8 @@ import io.github.muntashirakon.io.Paths;
 public class DexFileSystem extends VirtualFileSystem {
     public static final String TYPE = ContentType2.DEX.getMimeType();
 
+    private static final String SMALI_EXTENSION = ".smali";
+
     private static class ClassInfo {
         @Nullable
         public final File cachedFile;
@@ -58,11 +61,19 @@ public class DexFileSystem extends VirtualFileSystem {
     private DexClasses mDexClasses;
     @Nullable
     private Node<ClassDef> mRootNode;
+    // Classes loaded before mounting, used only for the first mount
+    @Nullable
+    private DexClasses mPreloadedDexClasses;
 
     protected DexFileSystem(@NonNull Path dexPath) {
         super(dexPath);
     }
 
+    protected DexFileSystem(@NonNull Path dexPath, @NonNull DexClasses dexClasses) {
+        super(dexPath);
+        mPreloadedDexClasses = dexClasses;
+    }
+
     public int getApiLevel() {
         // TODO: 26/11/22 Set via MountOptions
         return -1;
@@ -81,9 +92,18 @@ public class DexFileSystem extends VirtualFileSystem {
 
     @Override
     protected Path onMount() throws IOException {
-        if (".dex".equals(getFile().getExtension())) {
-            try (InputStream is = getFile().openInputStream()) {
-                mDexClasses = new DexClasses(is, getApiLevel());
+        if (mPreloadedDexClasses != null) {
+            mDexClasses = mPreloadedDexClasses;
+            mPreloadedDexClasses = null;
+        } else if (".dex".equals(getFile().getExtension())) {
+            ExtendedFile file = getFile().getFile();
+            if (file != null && FileUtils.canReadUnprivileged(file)) {
+                // The dex file is memory-mapped
+                mDexClasses = new DexClasses(file, getApiLevel());
+            } else {
+                try (InputStream is = getFile().openInputStream()) {
+                    mDexClasses = new DexClasses(is, getApiLevel());
+                }
             }
         } else { // APK/Zip file, may need caching
             ExtendedFile file = getFile().getFile();
@@ -94,7 +114,20 @@ public class DexFileSystem extends VirtualFileSystem {
                 mDexClasses = new DexClasses(cachedFile, getApiLevel());
             }
         }
-        mRootNode = buildTree(Objects.requireNonNull(mDexClasses));
+        mRootNode = new PathIndex.IndexedNode<>(getPathIndex(Objects.requireNonNull(mDexClasses)), (index, entry) -> {
+            DexClasses dexClasses = mDexClasses;
+            if (dexClasses == null) {
+                return null;
+            }
+            String path = index.getPath(entry);
+            String className = path.substring(0, path.length() - SMALI_EXTENSION.length())
+                    .replace(File.separatorChar, '.');
+            try {
+                return dexClasses.getClassDef(className);
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        });
         return Paths.get(this);
     }
 
@@ -276,39 +309,21 @@ public class DexFileSystem extends VirtualFileSystem {
     }
 
     @NonNull
-    private static Node<ClassDef> buildTree(@NonNull DexClasses dexClasses) {
-        Node<ClassDef> rootNode = new Node<>(null, File.separator);
-        List<String> classNames = dexClasses.getClassNames();
-        for (String className : classNames) {
-            ClassDef classDef;
-            try {
-                classDef = dexClasses.getClassDef(className);
-            } catch (ClassNotFoundException e) {
-                classDef = null;
-            }
-            buildTree(rootNode, className, Objects.requireNonNull(classDef));
+    private PathIndex getPathIndex(@NonNull DexClasses dexClasses) {
+        String key = TYPE + ":" + getFile().getUri();
+        long size = getFile().length();
+        long lastModified = getFile().lastModified();
+        PathIndex index = PathIndex.getCached(key, size, lastModified);
+        if (index != null) {
+            return index;
         }
-        return rootNode;
-    }
-
-    // Build nodes as needed by the entry, entry itself is the last node in the tree if it is not a directory
-    private static void buildTree(@NonNull Node<ClassDef> rootNode, @NonNull String className, @NonNull ClassDef classDef) {
-        String filename = Paths.sanitize(className, true);
-        if (filename == null) {
-            return;
-        }
-        String[] components = filename.split("\\.");
-        if (components.length < 1) return;
-        Node<ClassDef> lastNode = rootNode;
-        for (int i = 0; i < components.length - 1 /* last one will be set manually */; ++i) {
-            Node<ClassDef> newNode = lastNode.getChild(components[i]);
-            if (newNode == null) {
-                // Add children
-                newNode = new Node<>(lastNode, components[i]);
-                lastNode.addChild(newNode);
-            }
-            lastNode = newNode;
+        PathIndex.Builder builder = new PathIndex.Builder();
+        for (String className : dexClasses.getClassNames()) {
+            // Each package is a directory
+            builder.add(className.replace('.', File.separatorChar) + SMALI_EXTENSION, false, null);
         }
-        lastNode.addChild(new Node<>(lastNode, components[components.length - 1] + ".smali", classDef));
+        index = builder.build(size, lastModified);
+        PathIndex.putCached(key, index);
+        return index;
     }
 }
@@ -0,0 +1,325 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io.fs;
+
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import io.github.muntashirakon.io.Paths;
+
+/**
+ * A sorted index of the paths in an archive, packed into a single UTF-8 string table. The paths are relative and
+ * separated by {@code /}. Since all the paths under a directory are adjacent to each other, the children of a directory
+ * are found by binary search without building a tree.
+ */
+final class PathIndex {
+    // The indices are reused as long as the file is not modified. They are small, but there is no reason to keep many.
+    private static final LruCache<String, PathIndex> sCache = new LruCache<>(8);
+
+    /**
+     * Get a previously built index of the given file if the size and the modification time of the file have not
+     * changed since.
+     */
+    @Nullable
+    static PathIndex getCached(@NonNull String key, long size, long lastModified) {
+        PathIndex index = sCache.get(key);
+        if (index != null && index.mFileSize == size && index.mFileLastModified == lastModified) {
+            return index;
+        }
+        return null;
+    }
+
+    static void putCached(@NonNull String key, @NonNull PathIndex index) {
+        sCache.put(key, index);
+    }
+
+    static class Builder {
+        private final List<byte[]> mPaths = new ArrayList<>();
+        private final List<Boolean> mDirectories = new ArrayList<>();
+        private final List<String> mOriginalNames = new ArrayList<>();
+
+        /**
+         * @param path         Path to be sanitized
+         * @param directory    Whether the path is a directory
+         * @param originalName Name to be returned by {@link PathIndex#getOriginalName(int)}, stored only if it differs from the
+         *                     sanitized path
+         */
+        @NonNull
+        Builder add(@NonNull String path, boolean directory, @Nullable String originalName) {
+            String sanitizedPath = Paths.sanitize(path, true);
+            if (sanitizedPath == null || sanitizedPath.equals(File.separator)) {
+                return this;
+            }
+            mPaths.add(sanitizedPath.getBytes(StandardCharsets.UTF_8));
+            mDirectories.add(directory);
+            mOriginalNames.add(sanitizedPath.equals(originalName) ? null : originalName);
+            return this;
+        }
+
+        @NonNull
+        PathIndex build(long fileSize, long fileLastModified) {
+            Integer[] order = new Integer[mPaths.size()];
+            for (int i = 0; i < order.length; ++i) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (o1, o2) -> compare(mPaths.get(o1), mPaths.get(o2)));
+            int totalLength = 0;
+            for (byte[] path : mPaths) {
+                totalLength += path.length;
+            }
+            byte[] table = new byte[totalLength];
+            int[] offsets = new int[order.length + 1];
+            BitSet directories = new BitSet(order.length);
+            SparseArray<String> originalNames = new SparseArray<>();
+            int count = 0;
+            int offset = 0;
+            byte[] lastPath = null;
+            for (int i : order) {
+                byte[] path = mPaths.get(i);
+                if (lastPath != null && compare(lastPath, path) == 0) {
+                    // Duplicate entry, keep the first one
+                    continue;
+                }
+                System.arraycopy(path, 0, table, offset, path.length);
+                offsets[count] = offset;
+                directories.set(count, mDirectories.get(i));
+                if (mOriginalNames.get(i) != null) {
+                    originalNames.put(count, mOriginalNames.get(i));
+                }
+                offset += path.length;
+                lastPath = path;
+                ++count;
+            }
+            offsets[count] = offset;
+            return new PathIndex(table, offsets, count, directories, originalNames, fileSize, fileLastModified);
+        }
+    }
+
+    static class Child {
+        @NonNull
+        final String name;
+        // Index of the entry, -1 if the directory has no entry of its own
+        final int entry;
+        final boolean directory;
+
+        Child(@NonNull String name, int entry, boolean directory) {
+            this.name = name;
+            this.entry = entry;
+            this.directory = directory;
+        }
+    }
+
+    interface EntryResolver<T> {
+        /**
+         * Get the object associated with a file entry.
+         *
+         * @return The object or {@code null} if the entry should not be shown
+         */
+        @Nullable
+        T resolve(@NonNull PathIndex index, int entry);
+    }
+
+    /**
+     * A node backed by the index. The children of a directory are created only when they are first accessed.
+     */
+    static class IndexedNode<T> extends VirtualFileSystem.Node<T> {
+        @NonNull
+        private final PathIndex mIndex;
+        @NonNull
+        private final EntryResolver<T> mResolver;
+
+        /**
+         * Create the root node.
+         */
+        IndexedNode(@NonNull PathIndex index, @NonNull EntryResolver<T> resolver) {
+            this(null, File.separator, null, index, resolver);
+        }
+
+        private IndexedNode(@Nullable IndexedNode<T> parent, @NonNull String name, @Nullable T object,
+                            @NonNull PathIndex index, @NonNull EntryResolver<T> resolver) {
+            // Only directories have children
+            super(parent, name, object, true, object == null);
+            mIndex = index;
+            mResolver = resolver;
+        }
+
+        @NonNull
+        @Override
+        protected List<VirtualFileSystem.Node<T>> loadChildren() {
+            // The physical path never changes, and the names of the nodes are taken from the index
+            String path = Objects.requireNonNull(getPhysicalFullPath());
+            String directory = path.equals(File.separator) ? "" : path.substring(1);
+            List<Child> indexedChildren = mIndex.listChildren(directory);
+            List<VirtualFileSystem.Node<T>> children = new ArrayList<>(indexedChildren.size());
+            for (Child child : indexedChildren) {
+                if (child.directory) {
+                    children.add(new IndexedNode<>(this, child.name, null, mIndex, mResolver));
+                    continue;
+                }
+                T object = mResolver.resolve(mIndex, child.entry);
+                if (object != null) {
+                    children.add(new IndexedNode<>(this, child.name, object, mIndex, mResolver));
+                }
+            }
+            return children;
+        }
+    }
+
+    @NonNull
+    private final byte[] mTable;
+    @NonNull
+    private final int[] mOffsets;
+    private final int mCount;
+    @NonNull
+    private final BitSet mDirectories;
+    @NonNull
+    private final SparseArray<String> mOriginalNames;
+    private final long mFileSize;
+    private final long mFileLastModified;
+
+    private PathIndex(@NonNull byte[] table, @NonNull int[] offsets, int count, @NonNull BitSet directories,
+                      @NonNull SparseArray<String> originalNames, long fileSize, long fileLastModified) {
+        mTable = table;
+        mOffsets = offsets;
+        mCount = count;
+        mDirectories = directories;
+        mOriginalNames = originalNames;
+        mFileSize = fileSize;
+        mFileLastModified = fileLastModified;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    @NonNull
+    String getPath(int entry) {
+        return new String(mTable, mOffsets[entry], mOffsets[entry + 1] - mOffsets[entry], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the name of the entry as it was added to the index.
+     */
+    @NonNull
+    String getOriginalName(int entry) {
+        String name = mOriginalNames.get(entry);
+        return name != null ? name : getPath(entry);
+    }
+
+    boolean isDirectory(int entry) {
+        return mDirectories.get(entry);
+    }
+
+    /**
+     * List the immediate children of a directory.
+     *
+     * @param directory Relative path of the directory, empty for the root
+     */
+    @NonNull
+    List<Child> listChildren(@NonNull String directory) {
+        byte[] prefix = directory.isEmpty() ? new byte[0] : (directory + File.separator).getBytes(StandardCharsets.UTF_8);
+        int i = lowerBound(prefix);
+        if (i >= mCount || !startsWith(i, prefix)) {
+            return Collections.emptyList();
+        }
+        List<Child> children = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        while (i < mCount && startsWith(i, prefix)) {
+            int start = mOffsets[i] + prefix.length;
+            int end = mOffsets[i + 1];
+            int separator = indexOf(start, end, (byte) File.separatorChar);
+            if (separator == -1) {
+                // Immediate child
+                String name = new String(mTable, start, end - start, StandardCharsets.UTF_8);
+                if (names.add(name)) {
+                    children.add(new Child(name, i, isDirectory(i)));
+                }
+                ++i;
+                continue;
+            }
+            // Descendant of a child directory: add the directory and skip the rest of its descendants
+            String name = new String(mTable, start, separator - start, StandardCharsets.UTF_8);
+            if (names.add(name)) {
+                children.add(new Child(name, -1, true));
+            }
+            byte[] next = new byte[separator - mOffsets[i] + 1];
+            System.arraycopy(mTable, mOffsets[i], next, 0, next.length);
+            // The paths under the directory end before the one with the separator replaced by its successor
+            next[next.length - 1] = (byte) (File.separatorChar + 1);
+            i = lowerBound(next);
+        }
+        return children;
+    }
+
+    private int lowerBound(@NonNull byte[] key) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, key) < 0) {
+                lo = mid + 1;
+            } else hi = mid;
+        }
+        return lo;
+    }
+
+    private boolean startsWith(int entry, @NonNull byte[] prefix) {
+        int start = mOffsets[entry];
+        if (mOffsets[entry + 1] - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (mTable[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(int start, int end, byte b) {
+        for (int i = start; i < end; ++i) {
+            if (mTable[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(int entry, @NonNull byte[] key) {
+        int start = mOffsets[entry];
+        int length = mOffsets[entry + 1] - start;
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; ++i) {
+            int c = (mTable[start + i] & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int compare(@NonNull byte[] a, @NonNull byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; ++i) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+}
@@ -0,0 +1,170 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io.fs;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A read-only {@link FileChannel} whose implementations only need to provide positional reads and the size.
+ */
+abstract class ReadOnlyFileChannel extends FileChannel {
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private long mPosition;
+
+    /**
+     * Same as {@link #read(ByteBuffer, long)} but called only when the channel is open and the position is valid.
+     */
+    protected abstract int readAt(@NonNull ByteBuffer dst, long position) throws IOException;
+
+    protected abstract long sizeInternal() throws IOException;
+
+    protected void ensureOpen() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        int len = readAt(dst, mPosition);
+        if (len > 0) {
+            mPosition += len;
+        }
+        return len;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset > dsts.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        long total = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            if (!dsts[i].hasRemaining()) {
+                continue;
+            }
+            int len = read(dsts[i]);
+            if (len < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += len;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        ensureOpen();
+        return readAt(dst, position);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return mPosition;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        ensureOpen();
+        mPosition = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return sizeInternal();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        ensureOpen();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException();
+        }
+        ensureOpen();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(count, 1)));
+        long total = 0;
+        while (total < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - total));
+            int len = readAt(buf, position + total);
+            if (len <= 0) {
+                break;
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                target.write(buf);
+            }
+            total += len;
+        }
+        return total;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        throw new UnsupportedOperationException("Memory mapping is not supported.");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Locking is not supported.");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Locking is not supported.");
+    }
+}
@@ -0,0 +1,223 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io.fs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import io.github.muntashirakon.AppManager.logs.Log;
+
+/**
+ * Reads a ZIP file from the beginning to the end exactly once. Every byte of the file is passed to the callback in
+ * order, and the entries are offered to the callback as they are reached. This allows several kinds of analyses to
+ * share a single read of the file.
+ */
+public final class SequentialZipReader {
+    public static final String TAG = SequentialZipReader.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    public interface Callback {
+        /**
+         * Receive the next bytes of the file. All the bytes of the file are passed here exactly once and in order.
+         */
+        void onBytes(@NonNull byte[] b, int off, int len) throws IOException;
+
+        /**
+         * An entry is reached.
+         *
+         * @param name Name of the entry
+         * @param size Uncompressed size of the entry
+         * @return A consumer for the uncompressed data of the entry or {@code null} to skip it
+         */
+        @Nullable
+        EntryConsumer onEntry(@NonNull String name, long size);
+    }
+
+    public interface EntryConsumer {
+        /**
+         * Receive the next uncompressed bytes of the entry.
+         *
+         * @return {@code true} if more data is required
+         */
+        boolean onData(@NonNull byte[] b, int off, int len) throws IOException;
+
+        /**
+         * Called when the entry ends or when no more data is required. It is not called if the entry is broken.
+         */
+        void onEnd() throws IOException;
+    }
+
+    @WorkerThread
+    public static void read(@NonNull File file, @NonNull Callback callback) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            // The central directory is read without moving the stream
+            List<ZipCentralDirectory.Entry> entries = new ArrayList<>(ZipCentralDirectory.readEntries(fis.getChannel()));
+            Collections.sort(entries, (o1, o2) -> Long.compare(o1.localHeaderOffset, o2.localHeaderOffset));
+            Source source = new Source(fis, callback);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (ZipCentralDirectory.Entry entry : entries) {
+                if (entry.name.endsWith("/")) {
+                    continue;
+                }
+                if (entry.localHeaderOffset < source.position) {
+                    // The data of this entry overlaps with the previous one, which cannot be read without seeking
+                    Log.w(TAG, "Skipped overlapping entry %s", entry.name);
+                    continue;
+                }
+                source.skipTo(entry.localHeaderOffset);
+                ByteBuffer header = ByteBuffer.wrap(source.readFully(ZipCentralDirectory.LOCAL_HEADER_SIZE))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getInt(0) != ZipCentralDirectory.LOCAL_HEADER_SIGNATURE) {
+                    throw new ZipException("Invalid local header for " + entry.name);
+                }
+                int nameLength = header.getShort(26) & 0xFFFF;
+                int extraLength = header.getShort(28) & 0xFFFF;
+                source.skipTo(source.position + nameLength + extraLength);
+                if (entry.method != 0 /* STORED */ && entry.method != 8 /* DEFLATED */) {
+                    continue;
+                }
+                EntryConsumer consumer = callback.onEntry(entry.name, entry.uncompressedSize);
+                if (consumer == null) {
+                    continue;
+                }
+                InputStream is = source.limit(entry.compressedSize);
+                Inflater inflater = null;
+                if (entry.method == 8) {
+                    inflater = new Inflater(true);
+                    is = new InflaterInputStream(is, inflater, BUFFER_SIZE / 4);
+                }
+                try {
+                    int len;
+                    while ((len = is.read(buffer)) > 0) {
+                        if (!consumer.onData(buffer, 0, len)) {
+                            break;
+                        }
+                    }
+                } catch (ZipException | EOFException e) {
+                    // A broken entry should not stop reading the rest of the file
+                    Log.w(TAG, "Could not read entry %s", e, entry.name);
+                    continue;
+                } finally {
+                    if (inflater != null) {
+                        inflater.end();
+                    }
+                }
+                consumer.onEnd();
+            }
+            // The rest, including the central directory
+            source.skipTo(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Buffered reader of the file which passes every byte it reads to the callback.
+     */
+    private static class Source {
+        @NonNull
+        private final InputStream mInputStream;
+        @NonNull
+        private final Callback mCallback;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mBufferPosition;
+        private int mBufferLimit;
+        // Position in the file of the next byte to be returned
+        long position;
+
+        Source(@NonNull InputStream is, @NonNull Callback callback) {
+            mInputStream = is;
+            mCallback = callback;
+        }
+
+        private boolean fill() throws IOException {
+            if (mBufferPosition < mBufferLimit) {
+                return true;
+            }
+            int len = mInputStream.read(mBuffer);
+            if (len <= 0) {
+                return false;
+            }
+            mCallback.onBytes(mBuffer, 0, len);
+            mBufferPosition = 0;
+            mBufferLimit = len;
+            return true;
+        }
+
+        int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, mBufferLimit - mBufferPosition);
+            System.arraycopy(mBuffer, mBufferPosition, b, off, n);
+            mBufferPosition += n;
+            position += n;
+            return n;
+        }
+
+        @NonNull
+        byte[] readFully(int len) throws IOException {
+            byte[] b = new byte[len];
+            int off = 0;
+            while (off < len) {
+                int n = read(b, off, len - off);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                off += n;
+            }
+            return b;
+        }
+
+        /**
+         * Skip to the given position in the file. The skipped bytes are still passed to the callback.
+         */
+        void skipTo(long target) throws IOException {
+            while (position < target && fill()) {
+                int n = (int) Math.min(target - position, mBufferLimit - mBufferPosition);
+                mBufferPosition += n;
+                position += n;
+            }
+        }
+
+        /**
+         * Get a stream of the next {@code len} bytes.
+         */
+        @NonNull
+        InputStream limit(long len) {
+            long end = position + len;
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) == 1 ? (b[0] & 0xFF) : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (position >= end) {
+                        return -1;
+                    }
+                    return Source.this.read(b, off, (int) Math.min(len, end - position));
+                }
+            };
+        }
+    }
+}
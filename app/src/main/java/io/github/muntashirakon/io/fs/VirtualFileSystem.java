@@ -7,12 +7,19 @@ import static io.github.muntashirakon.io.FileSystemManager.MODE_READ_WRITE;
 import static io.github.muntashirakon.io.FileSystemManager.MODE_WRITE_ONLY;
 
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.system.ErrnoException;
 import android.system.OsConstants;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import androidx.annotation.WorkerThread;
 import androidx.collection.SparseArrayCompat;
 
@@ -24,6 +31,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -33,9 +41,11 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ThreadLocalRandom;
 
+import io.github.muntashirakon.AppManager.dex.DexClasses;
 import io.github.muntashirakon.AppManager.logs.Log;
 import io.github.muntashirakon.AppManager.self.filecache.FileCache;
 import io.github.muntashirakon.AppManager.utils.ArrayUtils;
+import io.github.muntashirakon.AppManager.utils.ContextUtils;
 import io.github.muntashirakon.io.FileSystemManager;
 import io.github.muntashirakon.io.IoUtils;
 import io.github.muntashirakon.io.Path;
@@ -128,6 +138,8 @@ public abstract class VirtualFileSystem {
     private static final SparseArrayCompat<VirtualFileSystem> sFileSystems = new SparseArrayCompat<>(3);
     private static final HashMap<Uri, Integer> sUriVfsIdsMap = new HashMap<>(3);
     private static final HashMap<Uri, List<Integer>> sParentUriVfsIdsMap = new HashMap<>(3);
+    @Nullable
+    private static Handler sProxyHandler;
 
     @WorkerThread
     public static int mount(@NonNull Uri mountPoint, @NonNull Path file, @NonNull String type) throws IOException {
@@ -143,6 +155,15 @@ public abstract class VirtualFileSystem {
         return mount(mountPoint, getNewInstance(file, type), options);
     }
 
+    /**
+     * Mount a dex file system whose classes are already loaded, e.g. from the contents of the dex files read elsewhere.
+     */
+    @WorkerThread
+    public static int mount(@NonNull Uri mountPoint, @NonNull Path file, @NonNull DexClasses dexClasses)
+            throws IOException {
+        return mount(mountPoint, new DexFileSystem(file, dexClasses), new MountOptions.Builder().build());
+    }
+
     @WorkerThread
     private static int mount(@NonNull Uri mountPoint, @NonNull VirtualFileSystem fs, @NonNull MountOptions options)
             throws IOException {
@@ -957,7 +978,7 @@ public abstract class VirtualFileSystem {
 
     /* I/O APIs */
     @NonNull
-    public FileInputStream newInputStream(String path) throws IOException {
+    public InputStream newInputStream(String path) throws IOException {
         if (!checkAccess(path, OsConstants.R_OK)) {
             throw new IOException(path + " is inaccessible.");
         }
@@ -968,6 +989,11 @@ public abstract class VirtualFileSystem {
         if (!targetNode.isFile()) {
             throw new IOException(path + " is not a file.");
         }
+        File cachedFile = findCachedFile(targetNode);
+        if (cachedFile == null && targetNode.isPhysical()) {
+            // Unmodified, read directly from the source
+            return getInputStream(targetNode);
+        }
         return new FileInputStream(getCachedFile(targetNode, false));
     }
 
@@ -1015,6 +1041,12 @@ public abstract class VirtualFileSystem {
         if (!targetNode.isFile()) {
             throw new IOException(path + " is not a file.");
         }
+        if (!write) {
+            FileChannel channel = openDirectChannel(targetNode);
+            if (channel != null) {
+                return channel;
+            }
+        }
         return FileSystemManager.getLocal().openChannel(getCachedFile(targetNode, write), mode);
     }
 
@@ -1051,12 +1083,94 @@ public abstract class VirtualFileSystem {
         if (!targetNode.isFile()) {
             throw new IOException(path + " is not a file.");
         }
+        if (!write && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            FileChannel channel = openDirectChannel(targetNode);
+            if (channel != null) {
+                StorageManager sm = ContextUtils.getContext().getSystemService(StorageManager.class);
+                try {
+                    return sm.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+                            new ChannelProxyCallback(channel), getProxyHandler());
+                } catch (IOException | RuntimeException e) {
+                    IoUtils.closeQuietly(channel);
+                    Log.w(TAG, "Could not open proxy file descriptor for " + path, e);
+                }
+            }
+        }
         return ParcelFileDescriptor.open(getCachedFile(targetNode, write), mode);
     }
 
     @NonNull
     protected abstract InputStream getInputStream(@NonNull Node<?> node) throws IOException;
 
+    /**
+     * Open a read-only channel that reads the node directly from the source without caching it first.
+     *
+     * @return The channel or {@code null} if it is not supported, in which case the node is cached
+     */
+    @Nullable
+    protected FileChannel openReadOnlyChannel(@NonNull Node<?> node) throws IOException {
+        return null;
+    }
+
+    @Nullable
+    private FileChannel openDirectChannel(@NonNull Node<?> node) throws IOException {
+        if (!node.isPhysical() || findCachedFile(node) != null) {
+            // Either it does not exist in the source or it has been modified
+            return null;
+        }
+        return openReadOnlyChannel(node);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    @NonNull
+    private static synchronized Handler getProxyHandler() {
+        if (sProxyHandler == null) {
+            HandlerThread thread = new HandlerThread("VirtualFileSystem.Proxy");
+            thread.start();
+            sProxyHandler = new Handler(thread.getLooper());
+        }
+        return sProxyHandler;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    private static class ChannelProxyCallback extends ProxyFileDescriptorCallback {
+        @NonNull
+        private final FileChannel mChannel;
+
+        ChannelProxyCallback(@NonNull FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public long onGetSize() throws ErrnoException {
+            try {
+                return mChannel.size();
+            } catch (IOException e) {
+                throw new ErrnoException(e.getMessage(), OsConstants.EIO);
+            }
+        }
+
+        @Override
+        public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (mChannel.read(buffer, offset + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                return buffer.position();
+            } catch (IOException e) {
+                throw new ErrnoException(e.getMessage(), OsConstants.EIO);
+            }
+        }
+
+        @Override
+        public void onRelease() {
+            IoUtils.closeQuietly(mChannel);
+        }
+    }
+
     @Nullable
     protected File findCachedFile(@NonNull Node<?> node) {
         FileCacheItem fileCacheItem = mFileCacheMap.get(node.getFullPath());
@@ -1104,6 +1218,8 @@ public abstract class VirtualFileSystem {
         @Nullable
         private HashMap<String, Node<T>> mChildren = null;
         private boolean mDirectory;
+        // Whether the children have been loaded, false only for nodes overriding loadChildren()
+        private volatile boolean mChildrenLoaded;
 
         protected Node(@Nullable Node<T> parent, @NonNull String name) {
             this(parent, name, null);
@@ -1119,6 +1235,7 @@ public abstract class VirtualFileSystem {
 
         protected Node(@Nullable Node<T> parent, @NonNull Node<T> node, @NonNull String newName) {
             this(parent, newName, node.mObject, node.mPhysical);
+            node.ensureChildrenLoaded();
             mChildren = node.mChildren;
             mDirectory = node.mDirectory;
             if (mChildren != null) {
@@ -1129,6 +1246,15 @@ public abstract class VirtualFileSystem {
         }
 
         protected Node(@Nullable Node<T> parent, @NonNull String name, @Nullable T object, boolean physical) {
+            this(parent, name, object, physical, false);
+        }
+
+        /**
+         * @param lazy Whether the children are to be loaded using {@link #loadChildren()} when they are first accessed
+         */
+        protected Node(@Nullable Node<T> parent, @NonNull String name, @Nullable T object, boolean physical,
+                       boolean lazy) {
+            mChildrenLoaded = !lazy;
             mParent = parent;
             mName = name;
             mObject = object;
@@ -1184,12 +1310,14 @@ public abstract class VirtualFileSystem {
 
         @Nullable
         public Node<T> getChild(String name) {
+            ensureChildrenLoaded();
             if (mChildren == null) return null;
             return mChildren.get(name);
         }
 
         @Nullable
         public Node<T> getLastChild(@Nullable String name) {
+            ensureChildrenLoaded();
             if (mChildren == null) return null;
             return getLastNode(this, name);
         }
@@ -1197,6 +1325,7 @@ public abstract class VirtualFileSystem {
         @SuppressWarnings("unchecked")
         @Nullable
         public Node<T>[] listChildren() {
+            ensureChildrenLoaded();
             if (mChildren == null || mChildren.size() == 0) return null;
             return mChildren.values().toArray(new Node[0]);
         }
@@ -1204,6 +1333,7 @@ public abstract class VirtualFileSystem {
         @SuppressWarnings("unchecked")
         public void addChild(@Nullable Node<?> child) {
             if (child == null) return;
+            ensureChildrenLoaded();
             if (mChildren == null) mChildren = new HashMap<>();
             Node<T> node = (Node<T>) child;
             node.mParent = this;
@@ -1211,11 +1341,37 @@ public abstract class VirtualFileSystem {
         }
 
         public void removeChild(@Nullable Node<?> child) {
-            if (child == null || mChildren == null) return;
+            if (child == null) return;
+            ensureChildrenLoaded();
+            if (mChildren == null) return;
             mChildren.remove(child.mName);
             child.mParent = null;
         }
 
+        /**
+         * Load the children of a lazy node. This is called only once, when the children are first accessed.
+         */
+        @Nullable
+        protected List<Node<T>> loadChildren() {
+            return null;
+        }
+
+        private void ensureChildrenLoaded() {
+            if (mChildrenLoaded) return;
+            synchronized (this) {
+                if (mChildrenLoaded) return;
+                List<Node<T>> children = loadChildren();
+                if (children != null && !children.isEmpty()) {
+                    mChildren = new HashMap<>(children.size());
+                    for (Node<T> child : children) {
+                        child.mParent = this;
+                        mChildren.put(child.mName, child);
+                    }
+                }
+                mChildrenLoaded = true;
+            }
+        }
+
         private static String calculateFullPath(@Nullable Node<?> parent, @NonNull Node<?> child) {
             String basePath = parent == null ? File.separator : parent.getFullPath();
             return (basePath.equals(File.separator) ? (child.mName.equals(File.separator) ? "" : File.separator)
@@ -0,0 +1,285 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io.fs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal reader of the central directory of a ZIP file, used to locate the raw data of the entries.
+ * {@link java.util.zip.ZipFile} does not expose the offsets.
+ */
+final class ZipCentralDirectory {
+    static final int EOCD_SIGNATURE = 0x06054b50;
+    static final int EOCD_SIZE = 22;
+    static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    /**
+     * A record of the central directory. The sizes and the offset are already resolved from the ZIP64 extra field.
+     */
+    static class Entry {
+        @NonNull
+        final String name;
+        final int versionMadeBy;
+        final int versionNeeded;
+        final int flags;
+        final int method;
+        // DOS time in the lower and DOS date in the upper 16 bits
+        final int dosDateTime;
+        final int crc;
+        final long compressedSize;
+        final long uncompressedSize;
+        @NonNull
+        final byte[] rawName;
+        @NonNull
+        final byte[] extra;
+        @NonNull
+        final byte[] comment;
+        final int internalAttributes;
+        final int externalAttributes;
+        final long localHeaderOffset;
+
+        Entry(@NonNull ByteBuffer cd, int pos) throws ZipException {
+            versionMadeBy = cd.getShort(pos + 4) & 0xFFFF;
+            versionNeeded = cd.getShort(pos + 6) & 0xFFFF;
+            flags = cd.getShort(pos + 8) & 0xFFFF;
+            method = cd.getShort(pos + 10) & 0xFFFF;
+            dosDateTime = cd.getInt(pos + 12);
+            crc = cd.getInt(pos + 16);
+            int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+            internalAttributes = cd.getShort(pos + 36) & 0xFFFF;
+            externalAttributes = cd.getInt(pos + 38);
+            rawName = getBytes(cd, pos + CENTRAL_HEADER_SIZE, nameLength);
+            extra = getBytes(cd, pos + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+            comment = getBytes(cd, pos + CENTRAL_HEADER_SIZE + nameLength + extraLength, commentLength);
+            name = new String(rawName, StandardCharsets.UTF_8);
+            // The ZIP64 fields are present only if the corresponding fields in the header are set to the magic value
+            long uncompressedSize = cd.getInt(pos + 24) & ZIP64_MAGIC;
+            long compressedSize = cd.getInt(pos + 20) & ZIP64_MAGIC;
+            long localHeaderOffset = cd.getInt(pos + 42) & ZIP64_MAGIC;
+            if (uncompressedSize == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC
+                    || localHeaderOffset == ZIP64_MAGIC) {
+                ByteBuffer zip64 = findExtraField(extra, ZIP64_EXTRA_ID);
+                if (zip64 == null) {
+                    throw new ZipException("ZIP64 extra field not found for " + name);
+                }
+                if (uncompressedSize == ZIP64_MAGIC) uncompressedSize = zip64.getLong();
+                if (compressedSize == ZIP64_MAGIC) compressedSize = zip64.getLong();
+                if (localHeaderOffset == ZIP64_MAGIC) localHeaderOffset = zip64.getLong();
+            }
+            this.uncompressedSize = uncompressedSize;
+            this.compressedSize = compressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        static int getSize(@NonNull ByteBuffer cd, int pos) {
+            return CENTRAL_HEADER_SIZE + (cd.getShort(pos + 28) & 0xFFFF) + (cd.getShort(pos + 30) & 0xFFFF)
+                    + (cd.getShort(pos + 32) & 0xFFFF);
+        }
+    }
+
+    /**
+     * Read all the records of the central directory in the order they appear.
+     */
+    @NonNull
+    static List<Entry> readEntries(@NonNull FileChannel channel) throws IOException {
+        long size = channel.size();
+        // Find the end of central directory record, which is followed by an optional comment
+        int tailSize = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, size - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; --i) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new ZipException("End of central directory not found.");
+        }
+        long entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+        long cdSize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long cdOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+        long locatorOffset = size - tailSize + eocd - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locatorOffset >= 0) {
+            ByteBuffer locator = read(channel, locatorOffset, ZIP64_EOCD_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                ByteBuffer zip64Eocd = read(channel, locator.getLong(8), 56);
+                if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new ZipException("Invalid ZIP64 end of central directory.");
+                }
+                entryCount = zip64Eocd.getLong(32);
+                cdSize = zip64Eocd.getLong(40);
+                cdOffset = zip64Eocd.getLong(48);
+            }
+        }
+        if (cdSize > Integer.MAX_VALUE || cdOffset + cdSize > size) {
+            throw new ZipException("Invalid central directory.");
+        }
+        ByteBuffer cd = read(channel, cdOffset, (int) cdSize);
+        List<Entry> entries = new ArrayList<>();
+        int pos = 0;
+        for (long i = 0; i < entryCount; ++i) {
+            if (pos + CENTRAL_HEADER_SIZE > cd.limit() || cd.getInt(pos) != CENTRAL_HEADER_SIGNATURE
+                    || pos + Entry.getSize(cd, pos) > cd.limit()) {
+                throw new ZipException("Invalid central directory entry.");
+            }
+            entries.add(new Entry(cd, pos));
+            pos += Entry.getSize(cd, pos);
+        }
+        return entries;
+    }
+
+    /**
+     * Read the offsets of the local headers of the entries that are stored without compression.
+     *
+     * @return Map of the entry names to the offsets of their local headers
+     */
+    @NonNull
+    static Map<String, Long> readStoredEntryOffsets(@NonNull FileChannel channel) throws IOException {
+        Map<String, Long> offsets = new HashMap<>();
+        for (Entry entry : readEntries(channel)) {
+            if (entry.method == 0 /* STORED */) {
+                offsets.put(entry.name, entry.localHeaderOffset);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Read the extra field of the local header of an entry.
+     */
+    @NonNull
+    static byte[] readLocalExtra(@NonNull FileChannel channel, long localHeaderOffset) throws IOException {
+        ByteBuffer header = readLocalHeader(channel, localHeaderOffset);
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        ByteBuffer extra = read(channel, localHeaderOffset + LOCAL_HEADER_SIZE + nameLength, extraLength);
+        return getBytes(extra, 0, extraLength);
+    }
+
+    /**
+     * Find a field in an extra field block.
+     *
+     * @return The data of the field or {@code null} if not found
+     */
+    @Nullable
+    static ByteBuffer findExtraField(@NonNull byte[] extra, int headerId) {
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        int pos = 0;
+        while (pos + 4 <= extra.length) {
+            int id = buffer.getShort(pos) & 0xFFFF;
+            int length = buffer.getShort(pos + 2) & 0xFFFF;
+            if (pos + 4 + length > extra.length) {
+                break;
+            }
+            if (id == headerId) {
+                ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                data.limit(pos + 4 + length);
+                data.position(pos + 4);
+                return data.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            pos += 4 + length;
+        }
+        return null;
+    }
+
+    /**
+     * Remove the fields with the given IDs from an extra field block. Trailing bytes that do not form a complete
+     * field, e.g. the zero padding added by some aligners, are also removed.
+     */
+    @NonNull
+    static byte[] removeExtraFields(@NonNull byte[] extra, int... headerIds) {
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream os = new ByteArrayOutputStream(extra.length);
+        int pos = 0;
+        outer:
+        while (pos + 4 <= extra.length) {
+            int id = buffer.getShort(pos) & 0xFFFF;
+            int length = buffer.getShort(pos + 2) & 0xFFFF;
+            if (pos + 4 + length > extra.length) {
+                break;
+            }
+            int next = pos + 4 + length;
+            if (id == 0 && length == 0) {
+                // Padding
+                pos = next;
+                continue;
+            }
+            for (int headerId : headerIds) {
+                if (id == headerId) {
+                    pos = next;
+                    continue outer;
+                }
+            }
+            os.write(extra, pos, next - pos);
+            pos = next;
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Get the offset of the data of an entry from the offset of its local header.
+     */
+    static long getDataOffset(@NonNull FileChannel channel, long localHeaderOffset) throws IOException {
+        ByteBuffer header = readLocalHeader(channel, localHeaderOffset);
+        int nameLength = header.getShort(26) & 0xFFFF;
+        int extraLength = header.getShort(28) & 0xFFFF;
+        return localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    @NonNull
+    private static ByteBuffer readLocalHeader(@NonNull FileChannel channel, long localHeaderOffset)
+            throws IOException {
+        ByteBuffer header = read(channel, localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header.");
+        }
+        return header;
+    }
+
+    @NonNull
+    private static byte[] getBytes(@NonNull ByteBuffer buffer, int pos, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(pos);
+        b.get(bytes);
+        return bytes;
+    }
+
+    @NonNull
+    private static ByteBuffer read(@NonNull FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
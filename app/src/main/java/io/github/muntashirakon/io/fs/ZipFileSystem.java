@@ -14,9 +14,13 @@ import com.j256.simplemagic.ContentType;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -25,13 +29,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
+import io.github.muntashirakon.AppManager.logs.Log;
 import io.github.muntashirakon.AppManager.self.filecache.FileCache;
-import io.github.muntashirakon.AppManager.utils.DigestUtils;
+import io.github.muntashirakon.io.ExtendedFile;
+import io.github.muntashirakon.io.FileSystemManager;
 import io.github.muntashirakon.io.IoUtils;
 import io.github.muntashirakon.io.Path;
 import io.github.muntashirakon.io.Paths;
@@ -58,6 +62,11 @@ class ZipFileSystem extends VirtualFileSystem {
     private final LruCache<String, Node<ZipEntry>> mCache = new LruCache<>(100);
     @Nullable
     private ZipFile mZipFile;
+    // Used for reading the entries stored without compression directly, guarded by this
+    @Nullable
+    private FileChannel mArchiveChannel;
+    @Nullable
+    private Map<String, Long> mStoredEntryOffsets;
     @Nullable
     private Node<ZipEntry> mRootNode;
 
@@ -76,8 +85,12 @@ class ZipFileSystem extends VirtualFileSystem {
             // Remount requested, no need to generate anything if they're already generated.
             return Paths.get(this);
         }
-        mZipFile = new ZipFile(Objects.requireNonNull(getFile().getFile()));
-        mRootNode = buildTree(Objects.requireNonNull(mZipFile));
+        ExtendedFile file = Objects.requireNonNull(getFile().getFile());
+        mZipFile = new ZipFile(file);
+        mRootNode = new PathIndex.IndexedNode<>(getPathIndex(file, mZipFile), (index, entry) -> {
+            ZipFile zipFile = mZipFile;
+            return zipFile != null ? zipFile.getEntry(index.getOriginalName(entry)) : null;
+        });
         return Paths.get(this);
     }
 
@@ -87,6 +100,13 @@ class ZipFileSystem extends VirtualFileSystem {
         File cachedFile = getUpdatedZipFile(actionList);
         mRootNode = null;
         mCache.evictAll();
+        synchronized (this) {
+            if (mArchiveChannel != null) {
+                mArchiveChannel.close();
+                mArchiveChannel = null;
+            }
+            mStoredEntryOffsets = null;
+        }
         if (mZipFile != null) {
             mZipFile.close();
             mZipFile = null;
@@ -124,7 +144,11 @@ class ZipFileSystem extends VirtualFileSystem {
                     case ACTION_UPDATE:
                         // It's a file and it's updated. So, cached file must exist.
                         File cachedFile = Objects.requireNonNull(action.getCachedPath());
-                        zipEntries.put(targetNode.getFullPath(), getZipEntry(targetNode, cachedFile));
+                        // Stored entries, e.g. resources.arsc, must remain stored
+                        ZipEntry oldEntry = zipEntries.get(targetNode.getFullPath());
+                        int method = oldEntry != null && oldEntry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED
+                                : ZipEntry.DEFLATED;
+                        zipEntries.put(targetNode.getFullPath(), getZipEntry(targetNode, cachedFile, method));
                         break;
                     case ACTION_MOVE:
                         // File/directory move
@@ -140,46 +164,42 @@ class ZipFileSystem extends VirtualFileSystem {
                 }
             }
         }
-        try (FileOutputStream os = new FileOutputStream(file);
-             ZipOutputStream zos = new ZipOutputStream(os)) {
-            zos.setMethod(ZipOutputStream.DEFLATED);
-            zos.setLevel(Deflater.BEST_COMPRESSION);
-            List<String> paths = new ArrayList<>(zipEntries.keySet());
-            Collections.sort(paths);
-            for (String path : paths) {
-                ZipEntry zipEntry = zipEntries.get(path);
-                if (zipEntry == null) continue;
-                if (zipEntry instanceof VirtualZipEntry) {
-                    // Our custom zip files
-                    zos.putNextEntry(zipEntry);
-                    if (zipEntry.isDirectory()) {
-                        zos.closeEntry();
-                        continue;
-                    }
-                    // Entry is a file
-                    File cachedFile = ((VirtualZipEntry) zipEntry).getCachedFile();
-                    if (cachedFile != null) {
-                        try (InputStream is = new FileInputStream(cachedFile)) {
-                            IoUtils.copy(is, zos, -1, null);
-                        }
-                    } // else cached file was not created because the file was only created and never written to
-                    zos.closeEntry();
+        File sourceFile = Objects.requireNonNull(getFile().getFile());
+        Map<String, ZipCentralDirectory.Entry> rawEntries = new HashMap<>();
+        try (FileChannel channel = new FileInputStream(sourceFile).getChannel()) {
+            for (ZipCentralDirectory.Entry rawEntry : ZipCentralDirectory.readEntries(channel)) {
+                rawEntries.put(rawEntry.name, rawEntry);
+            }
+        }
+        // Unchanged entries are copied without being recompressed
+        ZipRewriter rewriter = new ZipRewriter(sourceFile);
+        List<String> paths = new ArrayList<>(zipEntries.keySet());
+        Collections.sort(paths);
+        for (String path : paths) {
+            ZipEntry zipEntry = zipEntries.get(path);
+            String name = Paths.sanitize(path, true);
+            if (zipEntry == null || name == null) continue;
+            if (zipEntry.isDirectory()) {
+                name += File.separator;
+            }
+            if (zipEntry instanceof VirtualZipEntry) {
+                // Our custom zip files
+                if (zipEntry.isDirectory()) {
+                    rewriter.addDirectory(name, zipEntry.getTime());
                 } else {
-                    // Not our custom files, need to copy from zipEntry everything except the name
-                    ZipEntry newZipEntry = getZipEntry(path, zipEntry);
-                    zos.putNextEntry(newZipEntry);
-                    if (zipEntry.isDirectory()) {
-                        zos.closeEntry();
-                        continue;
-                    }
-                    // Entry is a file
-                    try (InputStream is = mZipFile.getInputStream(zipEntry)) {
-                        IoUtils.copy(is, zos, -1, null);
-                    }
-                    zos.closeEntry();
+                    // Cached file is null if the file was only created and never written to
+                    rewriter.addFile(name, ((VirtualZipEntry) zipEntry).getCachedFile(), zipEntry.getTime(),
+                            zipEntry.getMethod());
                 }
+            } else {
+                ZipCentralDirectory.Entry rawEntry = rawEntries.get(zipEntry.getName());
+                if (rawEntry == null) {
+                    throw new IOException("Could not find " + zipEntry.getName() + " in the central directory.");
+                }
+                rewriter.addExisting(name, rawEntry);
             }
         }
+        rewriter.write(file);
         return file;
     }
 
@@ -199,36 +219,19 @@ class ZipFileSystem extends VirtualFileSystem {
     }
 
     @NonNull
-    private ZipEntry getZipEntry(@NonNull Node<?> node, @NonNull File cachedFile) throws IOException {
+    private ZipEntry getZipEntry(@NonNull Node<?> node, @NonNull File cachedFile, int method) {
         String name = Paths.sanitize(node.getFullPath(), false);
         if (node.isDirectory()) {
             name += File.separator;
         }
         VirtualZipEntry zipEntry = new VirtualZipEntry(name);
-        zipEntry.setMethod(ZipEntry.DEFLATED);
+        zipEntry.setMethod(method);
         zipEntry.setCachedFile(cachedFile);
         zipEntry.setSize(cachedFile.length());
-        zipEntry.setCrc(DigestUtils.calculateCrc32(Paths.get(cachedFile)));
         zipEntry.setTime(cachedFile.lastModified());
         return zipEntry;
     }
 
-    @NonNull
-    private ZipEntry getZipEntry(@NonNull String path, @NonNull ZipEntry zipEntry) {
-        String name = Paths.sanitize(File.separator + path, false);
-        if (zipEntry.isDirectory()) {
-            name += File.separator;
-        }
-        ZipEntry zipEntry1 = new VirtualZipEntry(name);
-        zipEntry1.setMethod(ZipEntry.DEFLATED);
-        zipEntry1.setSize(zipEntry.getSize());
-        zipEntry1.setCrc(zipEntry.getCrc());
-        zipEntry1.setTime(zipEntry.getTime());
-        zipEntry1.setComment(zipEntry.getComment());
-        zipEntry1.setExtra(zipEntry.getExtra());
-        return zipEntry1;
-    }
-
     @Nullable
     @Override
     protected Node<?> getNode(String path) {
@@ -344,36 +347,227 @@ class ZipFileSystem extends VirtualFileSystem {
         return Objects.requireNonNull(mZipFile).getInputStream(zipEntry);
     }
 
+    @Nullable
+    @Override
+    protected FileChannel openReadOnlyChannel(@NonNull Node<?> node) throws IOException {
+        ZipEntry zipEntry = (ZipEntry) node.getObject();
+        if (zipEntry == null) {
+            return null;
+        }
+        if (zipEntry.getMethod() == ZipEntry.STORED && zipEntry.getSize() >= 0) {
+            FileChannel archiveChannel;
+            Long localHeaderOffset;
+            synchronized (this) {
+                if (mArchiveChannel == null) {
+                    mArchiveChannel = FileSystemManager.getLocal().openChannel(Objects.requireNonNull(
+                            getFile().getFile()), FileSystemManager.MODE_READ_ONLY);
+                }
+                archiveChannel = mArchiveChannel;
+                if (mStoredEntryOffsets == null) {
+                    try {
+                        mStoredEntryOffsets = ZipCentralDirectory.readStoredEntryOffsets(archiveChannel);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not read the central directory of " + getFile(), e);
+                        mStoredEntryOffsets = Collections.emptyMap();
+                    }
+                }
+                localHeaderOffset = mStoredEntryOffsets.get(zipEntry.getName());
+            }
+            if (localHeaderOffset != null) {
+                long dataOffset = ZipCentralDirectory.getDataOffset(archiveChannel, localHeaderOffset);
+                return new StoredEntryChannel(archiveChannel, dataOffset, zipEntry.getSize());
+            }
+        }
+        return new InflatedEntryChannel(Objects.requireNonNull(mZipFile), zipEntry);
+    }
+
     @NonNull
-    private static Node<ZipEntry> buildTree(@NonNull ZipFile zipFile) {
-        Node<ZipEntry> rootNode = new Node<>(null, File.separator);
+    private PathIndex getPathIndex(@NonNull ExtendedFile file, @NonNull ZipFile zipFile) {
+        String key = TYPE + ":" + getFile().getUri();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        PathIndex index = PathIndex.getCached(key, size, lastModified);
+        if (index != null) {
+            return index;
+        }
+        PathIndex.Builder builder = new PathIndex.Builder();
         Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
         while (zipEntries.hasMoreElements()) {
             ZipEntry zipEntry = zipEntries.nextElement();
-            buildTree(rootNode, zipEntry);
+            builder.add(zipEntry.getName(), zipEntry.isDirectory(), zipEntry.getName());
         }
-        return rootNode;
+        index = builder.build(size, lastModified);
+        PathIndex.putCached(key, index);
+        return index;
     }
 
-    // Build nodes as needed by the entry, entry itself is the last node in the tree if it is not a directory
-    private static void buildTree(@NonNull Node<ZipEntry> rootNode, @NonNull ZipEntry zipEntry) {
-        String filename = Paths.sanitize(zipEntry.getName(), true);
-        if (filename == null) {
-            return;
-        }
-        String[] components = filename.split(File.separator);
-        if (components.length < 1) return;
-        Node<ZipEntry> lastNode = rootNode;
-        for (int i = 0; i < components.length - 1 /* last one will be set manually */; ++i) {
-            Node<ZipEntry> newNode = lastNode.getChild(components[i]);
-            if (newNode == null) {
-                // Add children
-                newNode = new Node<>(lastNode, components[i]);
-                lastNode.addChild(newNode);
+    /**
+     * A bounded slice of the archive containing an entry stored without compression.
+     */
+    private static class StoredEntryChannel extends ReadOnlyFileChannel {
+        @NonNull
+        private final FileChannel mArchiveChannel;
+        private final long mOffset;
+        private final long mSize;
+
+        StoredEntryChannel(@NonNull FileChannel archiveChannel, long offset, long size) {
+            mArchiveChannel = archiveChannel;
+            mOffset = offset;
+            mSize = size;
+        }
+
+        @Override
+        protected int readAt(@NonNull ByteBuffer dst, long position) throws IOException {
+            if (position >= mSize) {
+                return -1;
+            }
+            int len = (int) Math.min(dst.remaining(), mSize - position);
+            ByteBuffer slice = dst.duplicate();
+            slice.limit(slice.position() + len);
+            int readCount = mArchiveChannel.read(slice, mOffset + position);
+            if (readCount > 0) {
+                dst.position(dst.position() + readCount);
+            }
+            return readCount;
+        }
+
+        @Override
+        protected long sizeInternal() {
+            return mSize;
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            if (mode != MapMode.READ_ONLY) {
+                throw new NonWritableChannelException();
+            }
+            if (position < 0 || size < 0 || position + size > mSize) {
+                throw new IllegalArgumentException();
+            }
+            ensureOpen();
+            return mArchiveChannel.map(MapMode.READ_ONLY, mOffset + position, size);
+        }
+
+        @Override
+        protected void implCloseChannel() {
+            // The archive is shared, and it is closed when the file system is unmounted
+        }
+    }
+
+    /**
+     * A compressed entry that is inflated on demand. Reading forward continues the current inflater, and the most
+     * recently inflated bytes are kept in a ring buffer so that short backward seeks, e.g. while a decoder reads the
+     * headers, are served without inflating the entry again. An inflater cannot be restored to an earlier state. So,
+     * after the first seek behind the ring buffer, the entry is inflated again from the start into the file cache, and
+     * every inflated byte is read from there afterwards, i.e. the entry is inflated at most twice.
+     */
+    private static class InflatedEntryChannel extends ReadOnlyFileChannel {
+        private static final int WINDOW_SIZE = 256 * 1024;
+
+        @NonNull
+        private final ZipFile mZipFile;
+        @NonNull
+        private final ZipEntry mZipEntry;
+        // Ring buffer, the byte at position p in the entry is at p % WINDOW_SIZE
+        private final byte[] mWindow = new byte[WINDOW_SIZE];
+        // Number of bytes in the window, which end at mStreamPosition
+        private int mWindowLength;
+        @Nullable
+        private InputStream mStream;
+        // Position in the entry of the next byte to be read from the stream
+        private long mStreamPosition;
+        // Contains everything before mStreamPosition once a read went behind the window
+        @Nullable
+        private File mCacheFile;
+        @Nullable
+        private FileChannel mCacheChannel;
+
+        InflatedEntryChannel(@NonNull ZipFile zipFile, @NonNull ZipEntry zipEntry) {
+            mZipFile = zipFile;
+            mZipEntry = zipEntry;
+        }
+
+        @Override
+        protected synchronized int readAt(@NonNull ByteBuffer dst, long position) throws IOException {
+            long size = mZipEntry.getSize();
+            if (size >= 0 && position >= size) {
+                return -1;
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            if (mCacheChannel == null && position < mStreamPosition - mWindowLength) {
+                // Behind the window, start over and keep everything this time
+                IoUtils.closeQuietly(mStream);
+                mStream = null;
+                mCacheFile = FileCache.getGlobalFileCache().createCachedFile(null);
+                mCacheChannel = new RandomAccessFile(mCacheFile, "rw").getChannel();
+            }
+            if (mStream == null) {
+                mStream = mZipFile.getInputStream(mZipEntry);
+                mStreamPosition = 0;
+                mWindowLength = 0;
+            }
+            while (position >= mStreamPosition) {
+                if (!inflateMore()) {
+                    return -1;
+                }
+            }
+            int len = (int) Math.min(dst.remaining(), mStreamPosition - position);
+            if (mCacheChannel != null) {
+                ByteBuffer slice = dst.duplicate();
+                slice.limit(slice.position() + len);
+                int readCount = mCacheChannel.read(slice, position);
+                if (readCount > 0) {
+                    dst.position(dst.position() + readCount);
+                }
+                return readCount;
+            }
+            int start = (int) (position % WINDOW_SIZE);
+            len = Math.min(len, WINDOW_SIZE - start);
+            dst.put(mWindow, start, len);
+            return len;
+        }
+
+        /**
+         * Inflate the next bytes into the window, and into the cache file if there is one.
+         *
+         * @return {@code false} at the end of the entry
+         */
+        private boolean inflateMore() throws IOException {
+            InputStream stream = Objects.requireNonNull(mStream);
+            int start = (int) (mStreamPosition % WINDOW_SIZE);
+            int readCount = stream.read(mWindow, start, WINDOW_SIZE - start);
+            if (readCount < 0) {
+                return false;
+            }
+            if (mCacheChannel != null) {
+                ByteBuffer src = ByteBuffer.wrap(mWindow, start, readCount);
+                long cachePosition = mStreamPosition;
+                while (src.hasRemaining()) {
+                    cachePosition += mCacheChannel.write(src, cachePosition);
+                }
+            }
+            mStreamPosition += readCount;
+            mWindowLength = Math.min(mWindowLength + readCount, WINDOW_SIZE);
+            return true;
+        }
+
+        @Override
+        protected long sizeInternal() {
+            return mZipEntry.getSize();
+        }
+
+        @Override
+        protected synchronized void implCloseChannel() {
+            IoUtils.closeQuietly(mStream);
+            mStream = null;
+            if (mCacheChannel != null) {
+                IoUtils.closeQuietly(mCacheChannel);
+                mCacheChannel = null;
+                FileCache.getGlobalFileCache().delete(mCacheFile);
+                mCacheFile = null;
             }
-            lastNode = newNode;
         }
-        lastNode.addChild(new Node<>(lastNode, components[components.length - 1],
-                zipEntry.isDirectory() ? null : zipEntry));
     }
 }
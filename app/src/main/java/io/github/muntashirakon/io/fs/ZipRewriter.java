@@ -0,0 +1,455 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io.fs;
+
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.CENTRAL_HEADER_SIGNATURE;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.CENTRAL_HEADER_SIZE;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.EOCD_SIGNATURE;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.EOCD_SIZE;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.LOCAL_HEADER_SIGNATURE;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.LOCAL_HEADER_SIZE;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.ZIP64_EOCD_LOCATOR_SIGNATURE;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.ZIP64_EOCD_LOCATOR_SIZE;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.ZIP64_EOCD_SIGNATURE;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.ZIP64_EXTRA_ID;
+import static io.github.muntashirakon.io.fs.ZipCentralDirectory.ZIP64_MAGIC;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import io.github.muntashirakon.AppManager.self.filecache.FileCache;
+import io.github.muntashirakon.AppManager.utils.MultithreadedExecutor;
+import io.github.muntashirakon.io.IoUtils;
+
+/**
+ * Write a ZIP file from the entries of an existing ZIP file and new contents. The existing entries are copied as is,
+ * i.e. their compressed data is never inflated, and only the new contents to be deflated are compressed, in parallel.
+ * Entries stored without compression are aligned to 4 bytes (4 KiB for native libraries) in the same way as {@code zipalign -p 4}.
+ */
+final class ZipRewriter {
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    // General purpose flags
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    // Extra field used by Android tools to align the data of an entry
+    private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+    private static final int ALIGNMENT_DEFAULT = 4;
+    private static final int ALIGNMENT_PAGE = 4096;
+
+    private static class Item {
+        @NonNull
+        final byte[] name;
+        // Raw copy
+        @Nullable
+        final ZipCentralDirectory.Entry source;
+        // New content, null if the entry is a directory or an empty file
+        @Nullable
+        final File content;
+        // Method of the new content
+        final int method;
+        final int dosDateTime;
+        // Filled in after compressing new content, same as the content if it is stored
+        @Nullable
+        Future<?> compression;
+        @Nullable
+        File compressedFile;
+        int crc;
+        long compressedSize;
+        long uncompressedSize;
+        // Filled in while writing
+        long localHeaderOffset;
+
+        Item(@NonNull String name, @Nullable ZipCentralDirectory.Entry source, @Nullable File content, int method,
+             int dosDateTime) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.source = source;
+            this.content = content;
+            this.method = method;
+            this.dosDateTime = dosDateTime;
+        }
+
+        boolean isDirectory() {
+            return name.length > 0 && name[name.length - 1] == '/';
+        }
+
+        int getMethod() {
+            if (source != null) {
+                return source.method;
+            }
+            // Empty files are always stored
+            return compressedFile != null ? method : ZipEntry.STORED;
+        }
+    }
+
+    @NonNull
+    private final File mSourceFile;
+    private final List<Item> mItems = new ArrayList<>();
+    private final FileCache mFileCache = new FileCache();
+
+    /**
+     * @param sourceFile The ZIP file from which the existing entries are copied
+     */
+    ZipRewriter(@NonNull File sourceFile) {
+        mSourceFile = sourceFile;
+    }
+
+    /**
+     * Copy an existing entry without recompressing it.
+     *
+     * @param name Name of the entry, can be different from the name of the source entry
+     */
+    void addExisting(@NonNull String name, @NonNull ZipCentralDirectory.Entry source) {
+        mItems.add(new Item(name, source, null, source.method, 0));
+    }
+
+    /**
+     * Add a new directory. The name must end with a {@code /}.
+     */
+    void addDirectory(@NonNull String name, long time) {
+        mItems.add(new Item(name, null, null, ZipEntry.STORED, toDosDateTime(time)));
+    }
+
+    /**
+     * Add a new file.
+     *
+     * @param content Contents of the file, {@code null} if it is empty
+     * @param method  {@link ZipEntry#STORED} to store the contents as is, or {@link ZipEntry#DEFLATED}
+     */
+    void addFile(@NonNull String name, @Nullable File content, long time, int method) {
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+            throw new IllegalArgumentException("Invalid method " + method);
+        }
+        mItems.add(new Item(name, null, content, method, toDosDateTime(time)));
+    }
+
+    /**
+     * Write the entries in the order they were added.
+     */
+    @WorkerThread
+    void write(@NonNull File outputFile) throws IOException {
+        MultithreadedExecutor executor = MultithreadedExecutor.getNewInstance();
+        try (FileChannel source = new FileInputStream(mSourceFile).getChannel();
+             FileChannel output = new FileOutputStream(outputFile).getChannel()) {
+            // Start compressing the new contents, the existing entries are written meanwhile
+            for (Item item : mItems) {
+                if (item.content != null && item.content.length() > 0) {
+                    item.compression = executor.submit(() -> {
+                        try {
+                            compress(item);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                }
+            }
+            for (Item item : mItems) {
+                item.localHeaderOffset = output.position();
+                if (item.source != null) {
+                    writeExisting(source, output, item);
+                } else {
+                    writeNew(output, item);
+                }
+            }
+            writeCentralDirectory(output);
+        } finally {
+            executor.shutdownNow();
+            mFileCache.close();
+        }
+    }
+
+    private void compress(@NonNull Item item) throws IOException {
+        if (item.method == ZipEntry.STORED) {
+            // Only the checksum is needed
+            store(item);
+            return;
+        }
+        File compressedFile;
+        synchronized (mFileCache) {
+            compressedFile = mFileCache.createCachedFile("deflate");
+        }
+        CRC32 crc32 = new CRC32();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try (InputStream is = new FileInputStream(item.content);
+             OutputStream os = new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(compressedFile)),
+                     deflater, IoUtils.DEFAULT_BUFFER_SIZE)) {
+            byte[] buf = new byte[IoUtils.DEFAULT_BUFFER_SIZE];
+            long size = 0;
+            int len;
+            while ((len = is.read(buf)) != -1) {
+                crc32.update(buf, 0, len);
+                os.write(buf, 0, len);
+                size += len;
+            }
+            os.close();
+            item.crc = (int) crc32.getValue();
+            item.uncompressedSize = size;
+            item.compressedSize = compressedFile.length();
+            item.compressedFile = compressedFile;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void store(@NonNull Item item) throws IOException {
+        CRC32 crc32 = new CRC32();
+        try (InputStream is = new FileInputStream(item.content)) {
+            byte[] buf = new byte[IoUtils.DEFAULT_BUFFER_SIZE];
+            long size = 0;
+            int len;
+            while ((len = is.read(buf)) != -1) {
+                crc32.update(buf, 0, len);
+                size += len;
+            }
+            item.crc = (int) crc32.getValue();
+            item.uncompressedSize = size;
+            item.compressedSize = size;
+            item.compressedFile = item.content;
+        }
+    }
+
+    private static void writeExisting(@NonNull FileChannel source, @NonNull FileChannel output, @NonNull Item item)
+            throws IOException {
+        ZipCentralDirectory.Entry entry = item.source;
+        assert entry != null;
+        byte[] extra = ZipCentralDirectory.removeExtraFields(ZipCentralDirectory.readLocalExtra(source,
+                entry.localHeaderOffset), ZIP64_EXTRA_ID, ALIGNMENT_EXTRA_ID);
+        writeLocalHeader(output, item, entry.versionNeeded, entry.flags, entry.method, entry.dosDateTime, entry.crc,
+                entry.compressedSize, entry.uncompressedSize, extra);
+        long dataOffset = ZipCentralDirectory.getDataOffset(source, entry.localHeaderOffset);
+        transferFully(source, dataOffset, entry.compressedSize, output);
+    }
+
+    private static void writeNew(@NonNull FileChannel output, @NonNull Item item) throws IOException {
+        if (item.compression != null) {
+            awaitCompression(item);
+        }
+        writeLocalHeader(output, item, VERSION_DEFAULT, FLAG_UTF8, item.getMethod(), item.dosDateTime, item.crc,
+                item.compressedSize, item.uncompressedSize, new byte[0]);
+        if (item.compressedFile != null) {
+            try (FileChannel compressed = new FileInputStream(item.compressedFile).getChannel()) {
+                transferFully(compressed, 0, item.compressedSize, output);
+            }
+        }
+    }
+
+    private static void awaitCompression(@NonNull Item item) throws IOException {
+        try {
+            Objects.requireNonNull(item.compression).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException && cause.getCause() instanceof IOException) {
+                throw (IOException) cause.getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void writeLocalHeader(@NonNull FileChannel output, @NonNull Item item, int versionNeeded,
+                                         int flags, int method, int dosDateTime, int crc, long compressedSize,
+                                         long uncompressedSize, @NonNull byte[] extra) throws IOException {
+        boolean zip64 = compressedSize >= ZIP64_MAGIC || uncompressedSize >= ZIP64_MAGIC;
+        if (zip64) {
+            ByteBuffer zip64Extra = newBuffer(4 + 16);
+            zip64Extra.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16)
+                    .putLong(uncompressedSize).putLong(compressedSize);
+            extra = concat(zip64Extra.array(), extra);
+        }
+        if (method == ZipEntry.STORED && !item.isDirectory()) {
+            extra = concat(extra, getAlignmentExtra(item, extra.length));
+        }
+        ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE + item.name.length + extra.length);
+        header.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort((short) (zip64 ? Math.max(versionNeeded, VERSION_ZIP64) : versionNeeded))
+                // The sizes are known, no need for a data descriptor
+                .putShort((short) (flags & ~FLAG_DATA_DESCRIPTOR))
+                .putShort((short) method)
+                .putInt(dosDateTime)
+                .putInt(crc)
+                .putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize))
+                .putInt((int) (zip64 ? ZIP64_MAGIC : uncompressedSize))
+                .putShort((short) item.name.length)
+                .putShort((short) extra.length)
+                .put(item.name)
+                .put(extra);
+        writeFully(output, header);
+    }
+
+    @NonNull
+    private static byte[] getAlignmentExtra(@NonNull Item item, int extraLength) {
+        int alignment = ALIGNMENT_DEFAULT;
+        String name = new String(item.name, StandardCharsets.UTF_8);
+        if (name.startsWith("lib/") && name.endsWith(".so")) {
+            alignment = ALIGNMENT_PAGE;
+        }
+        // ID (2) + size (2) + alignment (2) + padding
+        long dataOffset = item.localHeaderOffset + LOCAL_HEADER_SIZE + item.name.length + extraLength + 6;
+        int padding = (int) ((alignment - (dataOffset % alignment)) % alignment);
+        ByteBuffer alignmentExtra = newBuffer(6 + padding);
+        alignmentExtra.putShort((short) ALIGNMENT_EXTRA_ID).putShort((short) (2 + padding))
+                .putShort((short) alignment);
+        return alignmentExtra.array();
+    }
+
+    private void writeCentralDirectory(@NonNull FileChannel output) throws IOException {
+        long cdOffset = output.position();
+        for (Item item : mItems) {
+            ZipCentralDirectory.Entry entry = item.source;
+            int versionMadeBy = entry != null ? entry.versionMadeBy : VERSION_DEFAULT;
+            int versionNeeded = entry != null ? entry.versionNeeded : VERSION_DEFAULT;
+            int flags = (entry != null ? entry.flags : FLAG_UTF8) & ~FLAG_DATA_DESCRIPTOR;
+            int dosDateTime = entry != null ? entry.dosDateTime : item.dosDateTime;
+            int crc = entry != null ? entry.crc : item.crc;
+            long compressedSize = entry != null ? entry.compressedSize : item.compressedSize;
+            long uncompressedSize = entry != null ? entry.uncompressedSize : item.uncompressedSize;
+            byte[] extra = entry != null ? ZipCentralDirectory.removeExtraFields(entry.extra, ZIP64_EXTRA_ID,
+                    ALIGNMENT_EXTRA_ID) : new byte[0];
+            byte[] comment = entry != null ? entry.comment : new byte[0];
+            int internalAttributes = entry != null ? entry.internalAttributes : 0;
+            int externalAttributes = entry != null ? entry.externalAttributes : (item.isDirectory() ? 0x10 : 0);
+            // ZIP64 fields are written only for the values that do not fit
+            ByteBuffer zip64Extra = newBuffer(4 + 24);
+            zip64Extra.position(4);
+            if (uncompressedSize >= ZIP64_MAGIC) zip64Extra.putLong(uncompressedSize);
+            if (compressedSize >= ZIP64_MAGIC) zip64Extra.putLong(compressedSize);
+            if (item.localHeaderOffset >= ZIP64_MAGIC) zip64Extra.putLong(item.localHeaderOffset);
+            boolean zip64 = zip64Extra.position() > 4;
+            if (zip64) {
+                int size = zip64Extra.position() - 4;
+                zip64Extra.putShort(0, (short) ZIP64_EXTRA_ID).putShort(2, (short) size);
+                byte[] zip64Bytes = new byte[4 + size];
+                System.arraycopy(zip64Extra.array(), 0, zip64Bytes, 0, zip64Bytes.length);
+                extra = concat(zip64Bytes, extra);
+                versionNeeded = Math.max(versionNeeded, VERSION_ZIP64);
+            }
+            ByteBuffer header = newBuffer(CENTRAL_HEADER_SIZE + item.name.length + extra.length + comment.length);
+            header.putInt(CENTRAL_HEADER_SIGNATURE)
+                    .putShort((short) versionMadeBy)
+                    .putShort((short) versionNeeded)
+                    .putShort((short) flags)
+                    .putShort((short) item.getMethod())
+                    .putInt(dosDateTime)
+                    .putInt(crc)
+                    .putInt((int) Math.min(compressedSize, ZIP64_MAGIC))
+                    .putInt((int) Math.min(uncompressedSize, ZIP64_MAGIC))
+                    .putShort((short) item.name.length)
+                    .putShort((short) extra.length)
+                    .putShort((short) comment.length)
+                    .putShort((short) 0) // Disk number
+                    .putShort((short) internalAttributes)
+                    .putInt(externalAttributes)
+                    .putInt((int) Math.min(item.localHeaderOffset, ZIP64_MAGIC))
+                    .put(item.name)
+                    .put(extra)
+                    .put(comment);
+            writeFully(output, header);
+        }
+        long cdEnd = output.position();
+        long cdSize = cdEnd - cdOffset;
+        long count = mItems.size();
+        boolean zip64 = count >= 0xFFFF || cdSize >= ZIP64_MAGIC || cdOffset >= ZIP64_MAGIC;
+        if (zip64) {
+            ByteBuffer zip64Eocd = newBuffer(56 + ZIP64_EOCD_LOCATOR_SIZE);
+            zip64Eocd.putInt(ZIP64_EOCD_SIGNATURE)
+                    .putLong(56 - 12) // Size of the rest of the record
+                    .putShort((short) VERSION_ZIP64)
+                    .putShort((short) VERSION_ZIP64)
+                    .putInt(0) // Disk number
+                    .putInt(0) // Disk with the central directory
+                    .putLong(count)
+                    .putLong(count)
+                    .putLong(cdSize)
+                    .putLong(cdOffset)
+                    // Locator
+                    .putInt(ZIP64_EOCD_LOCATOR_SIGNATURE)
+                    .putInt(0)
+                    .putLong(cdEnd)
+                    .putInt(1);
+            writeFully(output, zip64Eocd);
+        }
+        ByteBuffer eocd = newBuffer(EOCD_SIZE);
+        eocd.putInt(EOCD_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(count, 0xFFFF))
+                .putShort((short) Math.min(count, 0xFFFF))
+                .putInt((int) Math.min(cdSize, ZIP64_MAGIC))
+                .putInt((int) Math.min(cdOffset, ZIP64_MAGIC))
+                .putShort((short) 0); // Comment length
+        writeFully(output, eocd);
+    }
+
+    private static void transferFully(@NonNull FileChannel source, long position, long count,
+                                      @NonNull FileChannel output) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long len = source.transferTo(position + transferred, count - transferred, output);
+            if (len <= 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            transferred += len;
+        }
+    }
+
+    private static void writeFully(@NonNull FileChannel output, @NonNull ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            output.write(buffer);
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @NonNull
+    private static byte[] concat(@NonNull byte[] a, @NonNull byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static int toDosDateTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            // Minimum DOS date: 1980-01-01 00:00:00
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25)
+                | ((calendar.get(Calendar.MONTH) + 1) << 21)
+                | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                | (calendar.get(Calendar.MINUTE) << 5)
+                | (calendar.get(Calendar.SECOND) >> 1);
+    }
+}
@@ -0,0 +1,39 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.apk.signing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.android.apksig.ApkVerifier;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.Objects;
+
+@RunWith(RobolectricTestRunner.class)
+public class ApkVerifierSummaryTest {
+    private final ClassLoader classLoader = Objects.requireNonNull(getClass().getClassLoader());
+
+    @Test
+    public void testSerialization() throws Exception {
+        File apkFile = new File(classLoader.getResource("oandbackups/dnsfilter.android/base.apk").getFile());
+        ApkVerifierSummary summary = new ApkVerifierSummary(new ApkVerifier.Builder(apkFile).build().verify());
+        assertFalse(summary.getSignerCertificates().isEmpty());
+        String jsonString = summary.serializeToJson();
+        ApkVerifierSummary deserializedSummary = ApkVerifierSummary.deserialize(jsonString);
+        assertEquals(summary.isVerified(), deserializedSummary.isVerified());
+        assertEquals(summary.isSourceStampVerified(), deserializedSummary.isSourceStampVerified());
+        assertEquals(summary.getSourceStampSource(), deserializedSummary.getSourceStampSource());
+        assertEquals(summary.getSignatureSchemes(), deserializedSummary.getSignatureSchemes());
+        assertEquals(summary.getErrors(), deserializedSummary.getErrors());
+        assertEquals(summary.getIgnoredSignerErrors(), deserializedSummary.getIgnoredSignerErrors());
+        assertEquals(summary.getWarningCount(), deserializedSummary.getWarningCount());
+        assertEquals(summary.getSignerCertificates(), deserializedSummary.getSignerCertificates());
+        // Serializing again gives the same result
+        assertEquals(jsonString, deserializedSummary.serializeToJson());
+    }
+}
@@ -0,0 +1,67 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.backup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+public class BackupManifestTest {
+    private static final String BASE_MANIFEST = "d\t0\t1000\t16889\tshared_prefs/\n" +
+            "f\t10\t1000\t33200\tshared_prefs/a.xml\n" +
+            "f\t20\t1000\t33200\tshared_prefs/b%20c.xml\n" +
+            "d\t0\t1000\t16889\tfiles/\n" +
+            "f\t30\t1000\t33200\tfiles/d\n";
+
+    @Test
+    public void testReadWrite() throws IOException {
+        BackupManifest manifest = read(BASE_MANIFEST);
+        assertEquals(5, manifest.getEntries().size());
+        BackupManifest.Entry entry = manifest.get("shared_prefs/b c.xml");
+        assertEquals(BackupManifest.TYPE_FILE, entry.type);
+        assertEquals(20, entry.size);
+        assertEquals(1000, entry.lastModified);
+        assertEquals(33200, entry.mode);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        manifest.write(os);
+        assertEquals(BASE_MANIFEST, os.toString());
+    }
+
+    @Test
+    public void testIncremental() throws IOException {
+        BackupManifest baseManifest = read(BASE_MANIFEST);
+        BackupManifest manifest = read("d\t0\t1000\t16889\tshared_prefs/\n" +
+                "f\t10\t1000\t33200\tshared_prefs/a.xml\n" +
+                "f\t21\t2000\t33200\tshared_prefs/b%20c.xml\n" +
+                "f\t40\t2000\t33200\tshared_prefs/e.xml\n");
+        assertFalse(manifest.requiresArchiving("shared_prefs/a.xml", baseManifest));
+        assertTrue(manifest.requiresArchiving("shared_prefs/b c.xml", baseManifest));
+        assertTrue(manifest.requiresArchiving("shared_prefs/e.xml", baseManifest));
+        // Directories are always archived
+        assertTrue(manifest.requiresArchiving("shared_prefs/", baseManifest));
+        manifest.recordDeletions(baseManifest);
+        // Children are deleted before the parents
+        assertEquals(Arrays.asList("files/d", "files/"), manifest.getDeletedPaths());
+        assertNull(manifest.get("files/d"));
+        assertEquals(4, manifest.getEntries().size());
+        // Deletions survive a round trip
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        manifest.write(os);
+        assertEquals(Arrays.asList("files/d", "files/"), read(os.toString()).getDeletedPaths());
+    }
+
+    private static BackupManifest read(String manifest) throws IOException {
+        return BackupManifest.read(new ByteArrayInputStream(manifest.getBytes()));
+    }
+}
@@ -0,0 +1,111 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.db.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.os.UserHandleHidden;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import io.github.muntashirakon.AppManager.db.entity.App;
+
+@RunWith(RobolectricTestRunner.class)
+public class AppDbTest {
+    @Test
+    public void testDiffPackages() {
+        List<App> apps = new ArrayList<>();
+        apps.add(getApp(0, 0));
+        apps.add(getApp(1, 0));
+        apps.add(getApp(3, 0));
+        List<PackageInfo> packageInfoList = new ArrayList<>();
+        packageInfoList.add(getPackageInfo(0, 0, 1000));
+        // Updated
+        packageInfoList.add(getPackageInfo(1, 0, 2000));
+        // New
+        packageInfoList.add(getPackageInfo(2, 0, 1000));
+        Map<String, App> oldApps = AppDb.getAppIndex(apps);
+        List<App> upToDateApps = new ArrayList<>();
+        List<PackageInfo> changedPackages = AppDb.diffPackages(oldApps, packageInfoList, upToDateApps);
+        assertEquals(2, changedPackages.size());
+        assertEquals(getPackageName(1), changedPackages.get(0).packageName);
+        assertEquals(getPackageName(2), changedPackages.get(1).packageName);
+        assertEquals(1, upToDateApps.size());
+        assertSame(apps.get(0), upToDateApps.get(0));
+        // Only the uninstalled app is left
+        assertEquals(1, oldApps.size());
+        assertSame(apps.get(2), oldApps.get(AppDb.getAppKey(getPackageName(3), 0)));
+    }
+
+    @Test
+    public void testDiffPackagesMatchesUsers() {
+        List<App> apps = new ArrayList<>();
+        apps.add(getApp(0, 0));
+        apps.add(getApp(0, 10));
+        List<PackageInfo> packageInfoList = new ArrayList<>();
+        packageInfoList.add(getPackageInfo(0, 10, 1000));
+        packageInfoList.add(getPackageInfo(0, 11, 1000));
+        Map<String, App> oldApps = AppDb.getAppIndex(apps);
+        List<App> upToDateApps = new ArrayList<>();
+        List<PackageInfo> changedPackages = AppDb.diffPackages(oldApps, packageInfoList, upToDateApps);
+        // Same package installed for another user
+        assertEquals(1, changedPackages.size());
+        assertEquals(11, UserHandleHidden.getUserId(changedPackages.get(0).applicationInfo.uid));
+        assertEquals(1, upToDateApps.size());
+        assertSame(apps.get(1), upToDateApps.get(0));
+        assertEquals(1, oldApps.size());
+        assertTrue(oldApps.containsKey(AppDb.getAppKey(getPackageName(0), 0)));
+    }
+
+    @Test
+    public void testDiffPackagesUninstalledApp() {
+        App app = getApp(0, 0);
+        app.isInstalled = false;
+        List<App> apps = new ArrayList<>();
+        apps.add(app);
+        List<PackageInfo> packageInfoList = new ArrayList<>();
+        packageInfoList.add(getPackageInfo(0, 0, 1000));
+        Map<String, App> oldApps = AppDb.getAppIndex(apps);
+        List<App> upToDateApps = new ArrayList<>();
+        List<PackageInfo> changedPackages = AppDb.diffPackages(oldApps, packageInfoList, upToDateApps);
+        // Reinstalled with the same update time
+        assertEquals(1, changedPackages.size());
+        assertTrue(upToDateApps.isEmpty());
+        assertTrue(oldApps.isEmpty());
+    }
+
+    private static App getApp(int index, int userId) {
+        App app = new App();
+        app.packageName = getPackageName(index);
+        app.userId = userId;
+        app.isInstalled = true;
+        app.lastUpdateTime = 1000;
+        app.flags = ApplicationInfo.FLAG_INSTALLED;
+        return app;
+    }
+
+    private static PackageInfo getPackageInfo(int index, int userId, long lastUpdateTime) {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = getPackageName(index);
+        packageInfo.lastUpdateTime = lastUpdateTime;
+        packageInfo.applicationInfo = new ApplicationInfo();
+        packageInfo.applicationInfo.packageName = packageInfo.packageName;
+        packageInfo.applicationInfo.uid = UserHandleHidden.getUid(userId, 10000 + index);
+        packageInfo.applicationInfo.flags = ApplicationInfo.FLAG_INSTALLED;
+        return packageInfo;
+    }
+
+    private static String getPackageName(int index) {
+        return "com.example.app" + index;
+    }
+}
@@ -0,0 +1,71 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.dex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.github.muntashirakon.io.IoUtils;
+
+@RunWith(RobolectricTestRunner.class)
+public class DexClassesTest {
+    private static final List<String> CLASS_NAMES = Arrays.asList("a.a.a", "a.a.b", "ademar.textlauncher.Activity",
+            "ademar.textlauncher.Activity$a", "ademar.textlauncher.LauncherActivity");
+
+    private final ClassLoader classLoader = getClass().getClassLoader();
+
+    @Test
+    public void testMappedDexFile() throws IOException, ClassNotFoundException {
+        try (DexClasses dexClasses = new DexClasses(getDexFile(), -1)) {
+            assertDexClasses(dexClasses);
+        }
+    }
+
+    @Test
+    public void testDexFileContents() throws IOException, ClassNotFoundException {
+        byte[] dexFile;
+        try (InputStream is = new FileInputStream(getDexFile())) {
+            dexFile = IoUtils.readFully(is, -1, true);
+        }
+        try (DexClasses dexClasses = new DexClasses(Collections.singletonList(dexFile), -1)) {
+            assertDexClasses(dexClasses);
+        }
+        // Duplicate classes are merged
+        try (DexClasses dexClasses = new DexClasses(Arrays.asList(dexFile, dexFile), -1)) {
+            assertDexClasses(dexClasses);
+        }
+    }
+
+    @Test
+    public void testInvalidDexFile() {
+        assertThrows(IOException.class, () -> new DexClasses(Collections.singletonList(new byte[]{'d', 'e', 'x',
+                '\n', '0', '3', '5', 0}), -1));
+    }
+
+    private static void assertDexClasses(DexClasses dexClasses) throws ClassNotFoundException {
+        assertEquals(CLASS_NAMES, dexClasses.getClassNames());
+        assertEquals(Arrays.asList("a.a.a", "a.a.b", "ademar.textlauncher.Activity",
+                "ademar.textlauncher.LauncherActivity"), dexClasses.getBaseClassNames());
+        for (String className : CLASS_NAMES) {
+            assertEquals("L" + className.replace('.', '/') + ";", dexClasses.getClassDef(className).getType());
+        }
+        assertThrows(ClassNotFoundException.class, () -> dexClasses.getClassDef("ademar.textlauncher.Activity$b"));
+    }
+
+    private File getDexFile() {
+        assert classLoader != null;
+        return new File(classLoader.getResource("oandbackups/ademar.textlauncher/classes.dex").getFile());
+    }
+}
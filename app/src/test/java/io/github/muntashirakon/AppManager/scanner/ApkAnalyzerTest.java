@@ -0,0 +1,67 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.scanner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.util.Pair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.ZipFile;
+
+import io.github.muntashirakon.AppManager.utils.DigestUtils;
+import io.github.muntashirakon.io.IoUtils;
+import io.github.muntashirakon.io.Paths;
+import io.github.muntashirakon.io.fs.SequentialZipReaderTest;
+
+@RunWith(RobolectricTestRunner.class)
+public class ApkAnalyzerTest {
+    private final ClassLoader classLoader = Objects.requireNonNull(getClass().getClassLoader());
+    private File mApkFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mApkFile = File.createTempFile("analyzer_", ".apk");
+        File baseApk = new File(classLoader.getResource("oandbackups/dnsfilter.android/base.apk").getFile());
+        SequentialZipReaderTest.createApkWithLibraries(baseApk, mApkFile, SequentialZipReaderTest.LIBRARY);
+    }
+
+    @After
+    public void tearDown() {
+        mApkFile.delete();
+    }
+
+    @Test
+    public void testAnalyze() throws IOException {
+        ApkAnalyzer apkAnalyzer = new ApkAnalyzer(mApkFile);
+        Pair<String, String>[] expectedDigests = DigestUtils.getDigests(Paths.get(mApkFile));
+        Pair<String, String>[] digests = apkAnalyzer.getDigests();
+        assertEquals(expectedDigests.length, digests.length);
+        for (int i = 0; i < digests.length; ++i) {
+            assertEquals(expectedDigests[i].first, digests[i].first);
+            assertEquals(expectedDigests[i].first, expectedDigests[i].second, digests[i].second);
+        }
+        assertEquals("dnsfilter.android", apkAnalyzer.getPackageName());
+        assertEquals(new HashSet<>(Arrays.asList("libstored.so", "libdeflated.so")),
+                new HashSet<>(apkAnalyzer.getNativeLibraries()));
+        List<byte[]> dexFiles = apkAnalyzer.getDexFiles();
+        assertEquals(1, dexFiles.size());
+        try (ZipFile zipFile = new ZipFile(mApkFile);
+             InputStream is = zipFile.getInputStream(zipFile.getEntry("classes.dex"))) {
+            assertArrayEquals(IoUtils.readFully(is, -1, true), dexFiles.get(0));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.scanner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanResultCacheTest {
+    @Test
+    public void testSignatureCount() throws JSONException {
+        int[] signatureCount = new int[]{0, 3, 0, 0, 1, 0, 25};
+        String jsonString = ScanResultCache.serializeSignatureCount(signatureCount);
+        // Only the matched signatures are stored
+        assertEquals("[1,3,4,1,6,25]", jsonString);
+        assertArrayEquals(signatureCount, ScanResultCache.deserializeSignatureCount(jsonString, signatureCount.length));
+    }
+
+    @Test
+    public void testEmptySignatureCount() throws JSONException {
+        int[] signatureCount = new int[5];
+        String jsonString = ScanResultCache.serializeSignatureCount(signatureCount);
+        assertEquals("[]", jsonString);
+        assertArrayEquals(signatureCount, ScanResultCache.deserializeSignatureCount(jsonString, signatureCount.length));
+    }
+
+    @Test
+    public void testSignatureCountWithRemovedSignatures() {
+        String jsonString = ScanResultCache.serializeSignatureCount(new int[]{0, 0, 0, 2});
+        assertThrows(JSONException.class, () -> ScanResultCache.deserializeSignatureCount(jsonString, 3));
+    }
+
+    @Test
+    public void testStrings() throws JSONException {
+        List<String> strings = Arrays.asList("com.example.Tracker", "lib\"quoted\".so", "", "com.example.a.b");
+        assertEquals(strings, ScanResultCache.deserializeStrings(ScanResultCache.serializeStrings(strings)));
+        List<String> emptyList = Collections.emptyList();
+        assertEquals(emptyList, ScanResultCache.deserializeStrings(ScanResultCache.serializeStrings(emptyList)));
+    }
+}
@@ -0,0 +1,76 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import io.github.muntashirakon.io.IoUtils;
+
+@RunWith(RobolectricTestRunner.class)
+public class ParallelCompressorOutputStreamTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        byte[] input = getInput(BLOCK_SIZE * 7 / 2);
+        byte[] compressed = compress(TarUtils.TAR_GZIP, input);
+        try (InputStream is = new GzipCompressorInputStream(new ByteArrayInputStream(compressed), true)) {
+            assertArrayEquals(input, IoUtils.readFully(is, -1, true));
+        }
+    }
+
+    @Test
+    public void testBzip2RoundTrip() throws IOException {
+        byte[] input = getInput(BLOCK_SIZE * 5 / 2);
+        byte[] compressed = compress(TarUtils.TAR_BZIP2, input);
+        try (InputStream is = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed), true)) {
+            assertArrayEquals(input, IoUtils.readFully(is, -1, true));
+        }
+    }
+
+    @Test
+    public void testEmptyInput() throws IOException {
+        byte[] compressed = compress(TarUtils.TAR_GZIP, new byte[0]);
+        try (InputStream is = new GzipCompressorInputStream(new ByteArrayInputStream(compressed), true)) {
+            assertEquals(0, IoUtils.readFully(is, -1, true).length);
+        }
+    }
+
+    private static byte[] compress(String type, byte[] input) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (OutputStream os = new ParallelCompressorOutputStream(baos, type, 4, BLOCK_SIZE)) {
+            // Write in uneven chunks to cross the block boundaries
+            int off = 0;
+            while (off < input.length) {
+                int len = Math.min(10_000, input.length - off);
+                os.write(input, off, len);
+                off += len;
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] getInput(int size) {
+        // Compressible but not trivial
+        Random random = new Random(42);
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            bytes[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,85 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+public class ParallelDigestOutputStreamTest {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final String[] ALGORITHMS = new String[]{DigestUtils.CRC32, DigestUtils.MD5, DigestUtils.SHA_1,
+            DigestUtils.SHA_256, DigestUtils.SHA_384, DigestUtils.SHA_512};
+
+    @Test
+    public void testMultipleBlocks() throws IOException {
+        byte[] input = getInput(BLOCK_SIZE * 11 / 2);
+        ParallelDigestOutputStream pdos = new ParallelDigestOutputStream(ALGORITHMS, BLOCK_SIZE, 3);
+        try {
+            // Write in uneven chunks to cross the block boundaries
+            int off = 0;
+            while (off < input.length) {
+                int len = Math.min(10_000, input.length - off);
+                pdos.write(input, off, len);
+                off += len;
+            }
+        } finally {
+            pdos.close();
+        }
+        assertArrayEquals(getExpectedDigests(input), pdos.getHexDigests());
+    }
+
+    @Test
+    public void testWriteFrom() throws IOException {
+        byte[] input = getInput(BLOCK_SIZE * 4);
+        ParallelDigestOutputStream pdos = new ParallelDigestOutputStream(ALGORITHMS, BLOCK_SIZE, 2);
+        try {
+            pdos.writeFrom(new ByteArrayInputStream(input));
+        } finally {
+            pdos.close();
+        }
+        assertArrayEquals(getExpectedDigests(input), pdos.getHexDigests());
+    }
+
+    @Test
+    public void testSingleBlock() throws IOException {
+        byte[] input = getInput(BLOCK_SIZE / 2);
+        ParallelDigestOutputStream pdos = new ParallelDigestOutputStream(ALGORITHMS, BLOCK_SIZE, 2);
+        try {
+            pdos.write(input);
+        } finally {
+            pdos.close();
+        }
+        assertArrayEquals(getExpectedDigests(input), pdos.getHexDigests());
+    }
+
+    @Test
+    public void testEmptyInput() throws IOException {
+        ParallelDigestOutputStream pdos = new ParallelDigestOutputStream(DigestUtils.SHA_256);
+        pdos.close();
+        assertEquals(DigestUtils.getHexDigest(DigestUtils.SHA_256, new byte[0]), pdos.getHexDigests()[0]);
+    }
+
+    private static String[] getExpectedDigests(byte[] input) {
+        String[] digests = new String[ALGORITHMS.length];
+        for (int i = 0; i < ALGORITHMS.length; ++i) {
+            digests[i] = DigestUtils.getHexDigest(ALGORITHMS[i], input);
+        }
+        return digests;
+    }
+
+    private static byte[] getInput(int size) {
+        Random random = new Random(42);
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
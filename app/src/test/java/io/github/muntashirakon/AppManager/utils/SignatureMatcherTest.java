@@ -0,0 +1,92 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.AppManager.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Random;
+
+import io.github.muntashirakon.AppManager.StaticDataset;
+
+@RunWith(RobolectricTestRunner.class)
+public class SignatureMatcherTest {
+    @Test
+    public void testFirstMatch() {
+        SignatureMatcher matcher = new SignatureMatcher(new String[]{"com.b.", "a.com.b", "com.", "ab", "com."});
+        assertEquals(0, matcher.firstMatch("a.com.b.C"));
+        assertEquals(1, matcher.firstMatch("a.com.bC"));
+        assertEquals(2, matcher.firstMatch("org.com.c"));
+        assertEquals(3, matcher.firstMatch("abc"));
+        assertEquals(-1, matcher.firstMatch("org.example"));
+        assertEquals(-1, matcher.firstMatch(""));
+        assertTrue(matcher.matches("xab"));
+        assertFalse(matcher.matches("xa.b"));
+    }
+
+    @Test
+    public void testEmptySignature() {
+        SignatureMatcher matcher = new SignatureMatcher(new String[]{"abc", ""});
+        assertEquals(0, matcher.firstMatch("abc"));
+        assertEquals(1, matcher.firstMatch("ab"));
+        assertEquals(1, matcher.firstMatch(""));
+        assertEquals(-1, new SignatureMatcher(new String[0]).firstMatch("abc"));
+    }
+
+    @Test
+    public void testRandomSignatures() {
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; ++i) {
+            String[] signatures = new String[random.nextInt(8)];
+            for (int j = 0; j < signatures.length; ++j) {
+                signatures[j] = getRandomString(random, random.nextInt(4));
+            }
+            SignatureMatcher matcher = new SignatureMatcher(signatures);
+            for (int j = 0; j < 20; ++j) {
+                String text = getRandomString(random, random.nextInt(12));
+                assertEquals(findFirstMatch(signatures, text), matcher.firstMatch(text));
+            }
+        }
+    }
+
+    @Test
+    public void testTrackerSignatures() {
+        String[] signatures = StaticDataset.getTrackerCodeSignatures();
+        SignatureMatcher matcher = StaticDataset.getTrackerSignatureMatcher();
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; ++i) {
+            String className;
+            if (i % 10 == 0) {
+                className = "com.example." + signatures[random.nextInt(signatures.length)] + "Class" + i;
+            } else {
+                className = "com.example.app" + i + ".Class" + i;
+            }
+            int expected = findFirstMatch(signatures, className);
+            assertEquals(expected, matcher.firstMatch(className));
+            assertEquals(expected != -1, matcher.matches(className));
+        }
+    }
+
+    private static int findFirstMatch(String[] signatures, String text) {
+        for (int i = 0; i < signatures.length; ++i) {
+            if (text.contains(signatures[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String getRandomString(Random random, int length) {
+        String alphabet = "abc.";
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+}
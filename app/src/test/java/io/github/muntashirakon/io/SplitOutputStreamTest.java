@@ -19,8 +19,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 import io.github.muntashirakon.AppManager.utils.DigestUtils;
+import io.github.muntashirakon.AppManager.utils.HexDigestOutputStream;
 
 @RunWith(RobolectricTestRunner.class)
 public class SplitOutputStreamTest {
@@ -55,6 +57,29 @@ public class SplitOutputStreamTest {
         assertEquals(expectedHashes, actualHashes);
     }
 
+    @Test
+    public void writeWithWrapper() throws IOException {
+        List<HexDigestOutputStream> digestStreams = new ArrayList<>();
+        try (SplitOutputStream sos = new SplitOutputStream(Paths.get("/tmp"), "AppManager_v2.5.22.apks", 1024000,
+                ".tmp", (file, os) -> {
+            HexDigestOutputStream dos = new HexDigestOutputStream(os, DigestUtils.SHA_256);
+            digestStreams.add(dos);
+            return dos;
+        })) {
+            IoUtils.copy(inputStream, sos, -1, null);
+            sos.close();
+            List<Path> files = sos.getFiles();
+            assertEquals(8, files.size());
+            List<String> expectedHashes = getExpectedHashes();
+            for (int i = 0; i < files.size(); ++i) {
+                junkFiles.add(Objects.requireNonNull(files.get(i).getFile()));
+                assertEquals("AppManager_v2.5.22.apks." + i + ".tmp", files.get(i).getName());
+                assertEquals(expectedHashes.get(i), digestStreams.get(i).getHexDigest());
+                assertEquals(expectedHashes.get(i), DigestUtils.getHexDigest(DigestUtils.SHA_256, files.get(i)));
+            }
+        }
+    }
+
     @NonNull
     private List<String> getExpectedHashes() {
         List<String> expectedHashes = new ArrayList<>();
@@ -0,0 +1,157 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import io.github.muntashirakon.AppManager.utils.DigestUtils;
+import io.github.muntashirakon.AppManager.utils.ParallelDigestOutputStream;
+import io.github.muntashirakon.io.IoUtils;
+import io.github.muntashirakon.io.Paths;
+
+@RunWith(RobolectricTestRunner.class)
+public class SequentialZipReaderTest {
+    // ELF magic, 64-bit, little endian, followed by e_type and e_machine (AArch64)
+    public static final byte[] LIBRARY = new byte[]{0x7f, 'E', 'L', 'F', 2, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            3, 0, (byte) 0xb7, 0, 1, 0, 0, 0};
+
+    private final ClassLoader classLoader = Objects.requireNonNull(getClass().getClassLoader());
+    private File mApkFile;
+
+    @Before
+    public void setUp() throws IOException {
+        // The test APK has no native libraries, add them to a copy
+        mApkFile = File.createTempFile("sequential_", ".apk");
+        File baseApk = new File(classLoader.getResource("oandbackups/dnsfilter.android/base.apk").getFile());
+        createApkWithLibraries(baseApk, mApkFile, LIBRARY);
+    }
+
+    @After
+    public void tearDown() {
+        mApkFile.delete();
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        @DigestUtils.Algorithm
+        String[] algorithms = new String[]{DigestUtils.MD5, DigestUtils.SHA_1, DigestUtils.SHA_256,
+                DigestUtils.SHA_384, DigestUtils.SHA_512};
+        Map<String, ByteArrayOutputStream> payloads = new HashMap<>();
+        long[] byteCount = new long[1];
+        String[] hexDigests;
+        try (ParallelDigestOutputStream pdos = new ParallelDigestOutputStream(algorithms)) {
+            SequentialZipReader.read(mApkFile, new SequentialZipReader.Callback() {
+                @Override
+                public void onBytes(@NonNull byte[] b, int off, int len) throws IOException {
+                    byteCount[0] += len;
+                    pdos.write(b, off, len);
+                }
+
+                @Nullable
+                @Override
+                public SequentialZipReader.EntryConsumer onEntry(@NonNull String name, long size) {
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                    payloads.put(name, payload);
+                    return new SequentialZipReader.EntryConsumer() {
+                        @Override
+                        public boolean onData(@NonNull byte[] b, int off, int len) {
+                            payload.write(b, off, len);
+                            return true;
+                        }
+
+                        @Override
+                        public void onEnd() {
+                        }
+                    };
+                }
+            });
+            pdos.close();
+            hexDigests = pdos.getHexDigests();
+        }
+        // Every byte of the file is passed exactly once
+        assertEquals(mApkFile.length(), byteCount[0]);
+        Pair<String, String>[] digests = DigestUtils.getDigests(Paths.get(mApkFile));
+        for (int i = 0; i < algorithms.length; ++i) {
+            assertEquals(digests[i].first, digests[i].second, hexDigests[i]);
+        }
+        // The payloads are the same as the ones in the ZIP file
+        int fileCount = 0;
+        try (ZipFile zipFile = new ZipFile(mApkFile)) {
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                if (zipEntry.isDirectory()) {
+                    continue;
+                }
+                ++fileCount;
+                ByteArrayOutputStream payload = payloads.get(zipEntry.getName());
+                assertNotNull(zipEntry.getName(), payload);
+                try (InputStream is = zipFile.getInputStream(zipEntry)) {
+                    assertArrayEquals(zipEntry.getName(), IoUtils.readFully(is, -1, true), payload.toByteArray());
+                }
+            }
+        }
+        assertEquals(fileCount, payloads.size());
+        assertArrayEquals(LIBRARY, payloads.get("lib/arm64-v8a/libstored.so").toByteArray());
+        assertArrayEquals(LIBRARY, payloads.get("lib/arm64-v8a/libdeflated.so").toByteArray());
+    }
+
+    /**
+     * Copy the given APK file and add a stored and a deflated native library to it.
+     */
+    public static void createApkWithLibraries(@NonNull File source, @NonNull File dest, @NonNull byte[] library)
+            throws IOException {
+        try (ZipFile zipFile = new ZipFile(source);
+             ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(dest))) {
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                zos.putNextEntry(new ZipEntry(zipEntry.getName()));
+                try (InputStream is = zipFile.getInputStream(zipEntry)) {
+                    IoUtils.copy(is, zos, -1, null);
+                }
+                zos.closeEntry();
+            }
+            ZipEntry storedEntry = new ZipEntry("lib/arm64-v8a/libstored.so");
+            CRC32 crc32 = new CRC32();
+            crc32.update(library);
+            storedEntry.setMethod(ZipEntry.STORED);
+            storedEntry.setSize(library.length);
+            storedEntry.setCompressedSize(library.length);
+            storedEntry.setCrc(crc32.getValue());
+            zos.putNextEntry(storedEntry);
+            zos.write(library);
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("lib/arm64-v8a/libdeflated.so"));
+            zos.write(library);
+            zos.closeEntry();
+        }
+    }
+}
@@ -2,6 +2,7 @@
 
 package io.github.muntashirakon.io.fs;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
@@ -17,12 +18,20 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import io.github.muntashirakon.io.FileSystemManager;
 import io.github.muntashirakon.io.Path;
 import io.github.muntashirakon.io.Paths;
 
@@ -880,6 +889,44 @@ public class ZipFileSystemTest {
         assertTrue(modifiedApk.get().delete());
     }
 
+    @Test
+    public void readInflatedEntryChannel() throws IOException {
+        // Larger than the window of the channel so that the backward seeks go behind it
+        byte[] contents = new byte[1024 * 1024];
+        Random random = new Random(42);
+        for (int i = 0; i < contents.length; ++i) {
+            contents[i] = (byte) ('a' + random.nextInt(4));
+        }
+        File zipFile = File.createTempFile("inflated_", ".zip");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            zos.putNextEntry(new ZipEntry("data.bin"));
+            zos.write(contents);
+            zos.closeEntry();
+        }
+        Path mountPoint = Paths.get("/tmp/am_mount_point_inflated");
+        int fsId = VirtualFileSystem.mount(mountPoint.getUri(), Paths.get(zipFile), "application/zip");
+        try (FileChannel channel = mountPoint.findFile("data.bin").openFileChannel(FileSystemManager.MODE_READ_ONLY)) {
+            assertEquals(contents.length, channel.size());
+            // Forward, a short step back inside the window, then far behind it and forward again
+            long[] positions = new long[]{0, 600_000, 590_000, 10_000, 1_000_000, 300_000, contents.length - 100};
+            for (long position : positions) {
+                ByteBuffer buffer = ByteBuffer.allocate(4096);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) == -1) {
+                        break;
+                    }
+                }
+                int length = (int) Math.min(4096, contents.length - position);
+                assertEquals(length, buffer.position());
+                assertArrayEquals(Arrays.copyOfRange(contents, (int) position, (int) position + length),
+                        Arrays.copyOf(buffer.array(), length));
+            }
+        } finally {
+            VirtualFileSystem.unmount(fsId);
+            assertTrue(zipFile.delete());
+        }
+    }
+
     @Test
     public void setLastModified() {
         // TODO: 25/11/22
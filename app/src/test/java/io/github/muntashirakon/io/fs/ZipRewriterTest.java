@@ -0,0 +1,120 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import io.github.muntashirakon.AppManager.apk.signing.ZipAlign;
+import io.github.muntashirakon.io.IoUtils;
+
+@RunWith(RobolectricTestRunner.class)
+public class ZipRewriterTest {
+    private static final byte[] MANIFEST = "manifest".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESOURCES = "resources, stored".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LIBRARY = "native library, stored".getBytes(StandardCharsets.UTF_8);
+
+    private File mSourceFile;
+    private File mOutputFile;
+    private File mContentFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mSourceFile = File.createTempFile("source_", ".apk");
+        mOutputFile = File.createTempFile("output_", ".apk");
+        mContentFile = File.createTempFile("content_", ".txt");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mSourceFile))) {
+            zos.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zos.write(MANIFEST);
+            zos.closeEntry();
+            // Odd lengths so that the following entries are misaligned unless padded
+            putStoredEntry(zos, "resources.arsc", RESOURCES);
+            putStoredEntry(zos, "lib/arm64-v8a/libtest.so", LIBRARY);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mSourceFile.delete();
+        mOutputFile.delete();
+        mContentFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] newResources = "updated resources".getBytes(StandardCharsets.UTF_8);
+        try (FileOutputStream fos = new FileOutputStream(mContentFile)) {
+            fos.write(newResources);
+        }
+        Map<String, ZipCentralDirectory.Entry> rawEntries = new HashMap<>();
+        try (FileChannel channel = new FileInputStream(mSourceFile).getChannel()) {
+            for (ZipCentralDirectory.Entry rawEntry : ZipCentralDirectory.readEntries(channel)) {
+                rawEntries.put(rawEntry.name, rawEntry);
+            }
+        }
+        ZipRewriter rewriter = new ZipRewriter(mSourceFile);
+        rewriter.addExisting("AndroidManifest.xml", rawEntries.get("AndroidManifest.xml"));
+        rewriter.addDirectory("assets/", System.currentTimeMillis());
+        rewriter.addFile("assets/new.txt", mContentFile, System.currentTimeMillis(), ZipEntry.DEFLATED);
+        rewriter.addFile("assets/empty.txt", null, System.currentTimeMillis(), ZipEntry.DEFLATED);
+        // Updated stored entry
+        rewriter.addFile("resources.arsc", mContentFile, System.currentTimeMillis(), ZipEntry.STORED);
+        rewriter.addExisting("lib/arm64-v8a/libtest.so", rawEntries.get("lib/arm64-v8a/libtest.so"));
+        rewriter.write(mOutputFile);
+
+        try (ZipFile zipFile = new ZipFile(mOutputFile)) {
+            assertEquals(6, zipFile.size());
+            assertEntry(zipFile, "AndroidManifest.xml", ZipEntry.DEFLATED, MANIFEST);
+            assertTrue(zipFile.getEntry("assets/").isDirectory());
+            assertEntry(zipFile, "assets/new.txt", ZipEntry.DEFLATED, newResources);
+            assertEntry(zipFile, "assets/empty.txt", ZipEntry.STORED, new byte[0]);
+            assertEntry(zipFile, "resources.arsc", ZipEntry.STORED, newResources);
+            assertEntry(zipFile, "lib/arm64-v8a/libtest.so", ZipEntry.STORED, LIBRARY);
+        }
+        assertTrue(ZipAlign.verify(mOutputFile, ZipAlign.ALIGNMENT_4, true));
+    }
+
+    private static void assertEntry(ZipFile zipFile, String name, int method, byte[] contents) throws IOException {
+        ZipEntry zipEntry = zipFile.getEntry(name);
+        assertNotNull(name, zipEntry);
+        assertEquals(name, method, zipEntry.getMethod());
+        try (InputStream is = zipFile.getInputStream(zipEntry)) {
+            assertArrayEquals(name, contents, IoUtils.readFully(is, -1, true));
+        }
+    }
+
+    private static void putStoredEntry(ZipOutputStream zos, String name, byte[] contents) throws IOException {
+        ZipEntry zipEntry = new ZipEntry(name);
+        CRC32 crc32 = new CRC32();
+        crc32.update(contents);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(contents.length);
+        zipEntry.setCompressedSize(contents.length);
+        zipEntry.setCrc(crc32.getValue());
+        zos.putNextEntry(zipEntry);
+        zos.write(contents);
+        zos.closeEntry();
+    }
+}
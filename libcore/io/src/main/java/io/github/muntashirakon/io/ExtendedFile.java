@@ -14,6 +14,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 
 /**
@@ -100,6 +102,14 @@ public abstract class ExtendedFile extends File {
 
     public abstract boolean setSelinuxContext(@NonNull String context);
 
+    /**
+     * Get several attributes of the file at once. Files returned by {@link #listFiles()} may already have them.
+     *
+     * @param attributeMask Attributes to fetch, a combination of {@link FileStat}{@code .ATTR_*} constants
+     */
+    @NonNull
+    public abstract FileStat getFileStat(int attributeMask);
+
     /**
      * @return true if the abstract pathname denotes a block device.
      */
@@ -203,6 +213,24 @@ public abstract class ExtendedFile extends File {
     @NonNull
     public abstract FileOutputStream newOutputStream(boolean append) throws IOException;
 
+    /**
+     * Opens an InputStream meant to be read sequentially until the end. The file system backend may use a faster
+     * transport than {@link #newInputStream()} for it.
+     */
+    @NonNull
+    public InputStream newSequentialInputStream() throws IOException {
+        return newInputStream();
+    }
+
+    /**
+     * Opens an OutputStream meant to be written sequentially. The file system backend may use a faster transport than
+     * {@link #newOutputStream(boolean)} for it.
+     */
+    @NonNull
+    public OutputStream newSequentialOutputStream(boolean append) throws IOException {
+        return newOutputStream(append);
+    }
+
     /**
      * Create a child relative to the abstract pathname using the same file system backend.
      *
@@ -0,0 +1,256 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io;
+
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SELinux;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * A compact record of the attributes of a file returned by {@link IFileSystemService#listWithAttributes(String, int)}.
+ * Only the attributes requested in {@link #mask} are valid.
+ */
+public class FileStat implements Parcelable {
+    /**
+     * {@link java.io.File#isDirectory()} and {@link java.io.File#isFile()}, i.e. symbolic links are followed.
+     */
+    public static final int ATTR_TYPE = 1;
+    /**
+     * {@link java.io.File#length()}
+     */
+    public static final int ATTR_LENGTH = 1 << 1;
+    /**
+     * {@link java.io.File#lastModified()}
+     */
+    public static final int ATTR_LAST_MODIFIED = 1 << 2;
+    /**
+     * {@code st_mode} of {@code lstat(2)}
+     */
+    public static final int ATTR_MODE = 1 << 3;
+    /**
+     * {@code st_uid} and {@code st_gid} of {@code lstat(2)}
+     */
+    public static final int ATTR_UID_GID = 1 << 4;
+    /**
+     * {@code st_atime} and {@code st_ctime} of {@code lstat(2)}
+     */
+    public static final int ATTR_TIMES = 1 << 5;
+    /**
+     * SELinux context of the file
+     */
+    public static final int ATTR_SELINUX_CONTEXT = 1 << 6;
+    /**
+     * {@code st_dev}, {@code st_ino} and {@code st_nlink} of {@code lstat(2)}
+     */
+    public static final int ATTR_INODE = 1 << 7;
+    public static final int ATTR_ALL = ATTR_TYPE | ATTR_LENGTH | ATTR_LAST_MODIFIED | ATTR_MODE | ATTR_UID_GID
+            | ATTR_TIMES | ATTR_SELINUX_CONTEXT | ATTR_INODE;
+    private static final int ATTR_LSTAT = ATTR_MODE | ATTR_UID_GID | ATTR_TIMES | ATTR_INODE;
+    // Attributes of the target of a symbolic link
+    private static final int ATTR_STAT = ATTR_TYPE | ATTR_LENGTH | ATTR_LAST_MODIFIED;
+
+    // Whether lstat(2) has failed, e.g. the file has been deleted after listing
+    static final int FLAG_LSTAT_FAILED = 1;
+    static final int FLAG_DIRECTORY = 1 << 1;
+    static final int FLAG_FILE = 1 << 2;
+
+    @NonNull
+    public final String name;
+    public final int mask;
+    final int flags;
+    public final int mode;
+    public final int uid;
+    public final int gid;
+    public final long length;
+    public final long lastModified;
+    public final long lastAccess;
+    public final long creationTime;
+    @Nullable
+    public final String selinuxContext;
+    public final long dev;
+    public final long ino;
+    public final long nlink;
+
+    /**
+     * Get the requested attributes of a file in the current process. A single {@code lstat(2)} is enough unless the
+     * file is a symbolic link, in which case the target is also queried for {@link #ATTR_TYPE}, {@link #ATTR_LENGTH}
+     * and {@link #ATTR_LAST_MODIFIED}.
+     */
+    @NonNull
+    static FileStat fromFile(@NonNull File file, int attributeMask) {
+        String path = file.getPath();
+        int flags = 0;
+        int mode = 0;
+        int uid = 0;
+        int gid = 0;
+        long lastAccess = 0;
+        long creationTime = 0;
+        long dev = 0;
+        long ino = 0;
+        long nlink = 0;
+        StructStat lstat = null;
+        if ((attributeMask & ATTR_LSTAT) != 0) {
+            try {
+                lstat = Os.lstat(path);
+                mode = lstat.st_mode;
+                uid = lstat.st_uid;
+                gid = lstat.st_gid;
+                lastAccess = lstat.st_atime * 1000;
+                creationTime = lstat.st_ctime * 1000;
+                dev = lstat.st_dev;
+                ino = lstat.st_ino;
+                nlink = lstat.st_nlink;
+            } catch (ErrnoException e) {
+                flags |= FLAG_LSTAT_FAILED;
+            }
+        }
+        long length = 0;
+        long lastModified = 0;
+        if ((attributeMask & ATTR_STAT) != 0) {
+            StructStat stat = null;
+            if (lstat != null && !OsConstants.S_ISLNK(lstat.st_mode)) {
+                stat = lstat;
+            } else {
+                try {
+                    stat = Os.stat(path);
+                } catch (ErrnoException ignore) {
+                    // Same as java.io.File, i.e. neither a directory nor a file
+                }
+            }
+            if (stat != null) {
+                if ((attributeMask & ATTR_TYPE) != 0) {
+                    if (OsConstants.S_ISDIR(stat.st_mode)) {
+                        flags |= FLAG_DIRECTORY;
+                    } else if (OsConstants.S_ISREG(stat.st_mode)) {
+                        flags |= FLAG_FILE;
+                    }
+                }
+                if ((attributeMask & ATTR_LENGTH) != 0) {
+                    length = stat.st_size;
+                }
+                if ((attributeMask & ATTR_LAST_MODIFIED) != 0) {
+                    lastModified = getLastModified(stat);
+                }
+            }
+        }
+        String selinuxContext = (attributeMask & ATTR_SELINUX_CONTEXT) != 0
+                ? SELinux.getFileContext(path) : null;
+        return new FileStat(file.getName(), attributeMask, flags, mode, uid, gid, length, lastModified, lastAccess,
+                creationTime, selinuxContext, dev, ino, nlink);
+    }
+
+    private static long getLastModified(@NonNull StructStat stat) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            // Millisecond precision like java.io.File#lastModified()
+            return stat.st_mtim.tv_sec * 1000 + stat.st_mtim.tv_nsec / 1_000_000;
+        }
+        return stat.st_mtime * 1000;
+    }
+
+    FileStat(@NonNull String name, int mask, int flags, int mode, int uid, int gid, long length, long lastModified,
+             long lastAccess, long creationTime, @Nullable String selinuxContext, long dev, long ino, long nlink) {
+        this.name = name;
+        this.mask = mask;
+        this.flags = flags;
+        this.mode = mode;
+        this.uid = uid;
+        this.gid = gid;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.lastAccess = lastAccess;
+        this.creationTime = creationTime;
+        this.selinuxContext = selinuxContext;
+        this.dev = dev;
+        this.ino = ino;
+        this.nlink = nlink;
+    }
+
+    protected FileStat(Parcel in) {
+        name = in.readString();
+        mask = in.readInt();
+        flags = in.readInt();
+        mode = in.readInt();
+        uid = in.readInt();
+        gid = in.readInt();
+        length = in.readLong();
+        lastModified = in.readLong();
+        lastAccess = in.readLong();
+        creationTime = in.readLong();
+        selinuxContext = in.readString();
+        dev = in.readLong();
+        ino = in.readLong();
+        nlink = in.readLong();
+    }
+
+    public static final Creator<FileStat> CREATOR = new Creator<FileStat>() {
+        @Override
+        public FileStat createFromParcel(Parcel in) {
+            return new FileStat(in);
+        }
+
+        @Override
+        public FileStat[] newArray(int size) {
+            return new FileStat[size];
+        }
+    };
+
+    public boolean has(int attribute) {
+        return (mask & attribute) == attribute;
+    }
+
+    public boolean isDirectory() {
+        return (flags & FLAG_DIRECTORY) != 0;
+    }
+
+    public boolean isFile() {
+        return (flags & FLAG_FILE) != 0;
+    }
+
+    /**
+     * Whether {@link #mode} denotes a symbolic link. Requires {@link #ATTR_MODE}.
+     */
+    public boolean isSymlink() {
+        return !isLstatFailed() && OsConstants.S_ISLNK(mode);
+    }
+
+    /**
+     * Whether {@link #mode}, {@link #uid}, {@link #gid}, {@link #lastAccess}, {@link #creationTime}, {@link #dev},
+     * {@link #ino} and {@link #nlink} are unavailable because {@code lstat(2)} has failed.
+     */
+    public boolean isLstatFailed() {
+        return (flags & FLAG_LSTAT_FAILED) != 0;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(@NonNull Parcel dest, int flags) {
+        dest.writeString(name);
+        dest.writeInt(mask);
+        dest.writeInt(this.flags);
+        dest.writeInt(mode);
+        dest.writeInt(uid);
+        dest.writeInt(gid);
+        dest.writeLong(length);
+        dest.writeLong(lastModified);
+        dest.writeLong(lastAccess);
+        dest.writeLong(creationTime);
+        dest.writeString(selinuxContext);
+        dest.writeLong(dev);
+        dest.writeLong(ino);
+        dest.writeLong(nlink);
+    }
+}
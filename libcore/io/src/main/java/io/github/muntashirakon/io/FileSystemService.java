@@ -11,22 +11,30 @@ import static android.system.OsConstants.O_WRONLY;
 
 import android.annotation.SuppressLint;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.SELinux;
+import android.os.SharedMemory;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.system.StructStat;
 import android.util.LruCache;
 
+import androidx.annotation.NonNull;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import aosp.android.content.pm.ParceledListSlice;
 import aosp.android.content.pm.StringParceledListSlice;
 import io.github.muntashirakon.compat.system.OsCompat;
 import io.github.muntashirakon.compat.system.StructTimespec;
@@ -116,6 +124,25 @@ class FileSystemService extends IFileSystemService.Stub {
         return list != null ? new StringParceledListSlice(Arrays.asList(list)) : null;
     }
 
+    @Override
+    public ParceledListSlice<FileStat> listWithAttributes(String path, int attributeMask) {
+        File dir = mCache.get(path);
+        String[] list = dir.list();
+        if (list == null) {
+            return null;
+        }
+        List<FileStat> stats = new ArrayList<>(list.length);
+        for (String name : list) {
+            stats.add(FileStat.fromFile(new File(dir, name), attributeMask));
+        }
+        return new ParceledListSlice<>(stats);
+    }
+
+    @Override
+    public FileStat getFileStat(String path, int attributeMask) {
+        return FileStat.fromFile(mCache.get(path), attributeMask);
+    }
+
     @Override
     public boolean mkdir(String path) {
         return mCache.get(path).mkdir();
@@ -334,6 +361,60 @@ class FileSystemService extends IFileSystemService.Stub {
         }
     }
 
+    @SuppressWarnings("OctalInteger")
+    @Override
+    public IOResult openSharedMemory(String path, int mode, Bundle args) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) {
+            return new IOResult(new IOException("Shared memory is not supported."));
+        }
+        SharedMemory sharedMemory = args.getParcelable(SharedMemoryFile.ARG_SHARED_MEMORY);
+        if (sharedMemory == null) {
+            return new IOResult(new IOException("No shared memory."));
+        }
+        SharedMemoryFile f;
+        try {
+            f = new SharedMemoryFile(sharedMemory);
+        } catch (ErrnoException e) {
+            sharedMemory.close();
+            return new IOResult(e);
+        }
+        try {
+            f.fd = Os.open(path, mode, 0666);
+            return new IOResult(openFiles.put(f));
+        } catch (ErrnoException e) {
+            f.close();
+            return new IOResult(e);
+        }
+    }
+
+    @Override
+    public IOResult readShared(int handle, int offset, int len) {
+        try {
+            return new IOResult(getSharedMemoryFile(handle).read(offset, len));
+        } catch (IOException | ErrnoException | RuntimeException e) {
+            return new IOResult(e);
+        }
+    }
+
+    @Override
+    public IOResult writeShared(int handle, int offset, int len) {
+        try {
+            getSharedMemoryFile(handle).write(offset, len);
+            return new IOResult();
+        } catch (IOException | ErrnoException | RuntimeException e) {
+            return new IOResult(e);
+        }
+    }
+
+    @NonNull
+    private SharedMemoryFile getSharedMemoryFile(int handle) throws IOException {
+        OpenFile f = openFiles.get(handle);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1 || !(f instanceof SharedMemoryFile)) {
+            throw new IOException("Invalid file handle");
+        }
+        return (SharedMemoryFile) f;
+    }
+
     @Override
     public void close(int handle) {
         openFiles.remove(handle);
@@ -358,6 +439,17 @@ class FileSystemService extends IFileSystemService.Stub {
         }
     }
 
+    @Override
+    public IOResult transfer(int handle, long offset, long len, int targetHandle) {
+        try {
+            OpenFile f = openFiles.get(handle);
+            OpenFile target = openFiles.get(targetHandle);
+            return new IOResult(f.transferTo(target, offset, len));
+        } catch (IOException | ErrnoException | RuntimeException e) {
+            return new IOResult(e);
+        }
+    }
+
     @Override
     public IOResult lseek(int handle, long offset, int whence) {
         try {
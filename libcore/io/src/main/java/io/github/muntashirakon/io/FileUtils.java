@@ -41,9 +41,13 @@ import java.util.Set;
 @SuppressWarnings({"ConstantConditions", "JavaReflectionMemberAccess"})
 @SuppressLint("DiscouragedPrivateApi")
 class FileUtils {
+    // Linux-specific, not available in OsConstants
+    private static final int F_SETPIPE_SZ = 1031;
+
     private static Object os;
     private static Method splice;
     private static Method sendfile;
+    private static Method fcntlInt;
     private static AccessibleObject setFd;
 
     static class Flag {
@@ -185,6 +189,22 @@ class FileUtils {
         }
     }
 
+    /**
+     * Resize a pipe using {@code F_SETPIPE_SZ}.
+     *
+     * @return The new capacity of the pipe, or {@code -1} on failure
+     */
+    static int setPipeSize(FileDescriptor fd, int size) {
+        try {
+            if (fcntlInt == null) {
+                fcntlInt = Os.class.getMethod("fcntlInt", FileDescriptor.class, int.class, int.class);
+            }
+            return (int) fcntlInt.invoke(null, fd, F_SETPIPE_SZ, size);
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+
     @SuppressWarnings("OctalInteger")
     static File createTempFIFO() throws ErrnoException, IOException {
         File fifo = File.createTempFile("libsu-fifo-", null);
@@ -51,6 +51,12 @@ class LocalFile extends FileImpl<LocalFile> {
         return Os.lstat(getPath()).st_mode;
     }
 
+    @NonNull
+    @Override
+    public FileStat getFileStat(int attributeMask) {
+        return FileStat.fromFile(this, attributeMask);
+    }
+
     @Override
     public boolean setMode(int mode) throws ErrnoException {
         Os.chmod(getPath(), mode);
@@ -155,28 +155,51 @@ class OpenFile implements Closeable {
         } else {
             // Unfortunately, sendfile does not allow reading from pipes.
             // Manually read into an internal buffer then write to output.
-            ByteBuffer buf = getBuf();
-            int sz = 0;
-            buf.limit(len);
-            if (exact) {
-                while (len > sz) {
-                    sz += Os.read(read, buf);
-                }
-            } else {
-                sz = Os.read(read, buf);
-            }
-            len = sz;
-            buf.flip();
-            while (sz > 0) {
-                if (offset < 0) {
-                    sz -= Os.write(fd, buf);
+            // The client pipe can be larger than the buffer, so copy in chunks.
+            int total = 0;
+            do {
+                ByteBuffer buf = getBuf();
+                int sz = 0;
+                buf.limit(Math.min(len - total, buf.capacity()));
+                if (exact) {
+                    while (buf.hasRemaining()) {
+                        sz += Os.read(read, buf);
+                    }
                 } else {
-                    int w = Os.pwrite(fd, buf, offset);
-                    sz -= w;
-                    offset += w;
+                    sz = Os.read(read, buf);
                 }
-            }
-            return len;
+                total += sz;
+                buf.flip();
+                while (sz > 0) {
+                    if (offset < 0) {
+                        sz -= Os.write(fd, buf);
+                    } else {
+                        int w = Os.pwrite(fd, buf, offset);
+                        sz -= w;
+                        offset += w;
+                    }
+                }
+            } while (exact && total < len);
+            return total;
+        }
+    }
+
+    /**
+     * Copy bytes from this file to the current position of the target file entirely in the kernel.
+     *
+     * @param offset Offset in this file
+     * @return Number of bytes copied, {@code 0} at the end of file
+     */
+    synchronized long transferTo(OpenFile target, long offset, long len) throws ErrnoException, IOException {
+        // The target is not locked and may be closed concurrently
+        FileDescriptor targetFd = target.fd;
+        if (fd == null || targetFd == null)
+            throw new ClosedChannelException();
+        StructStat st = getStat();
+        if (!OsConstants.S_ISREG(st.st_mode) && !OsConstants.S_ISBLK(st.st_mode)) {
+            // sendfile only supports reading from mmap-able files
+            throw new ErrnoException("sendfile", OsConstants.EINVAL);
         }
+        return FileUtils.sendfile(targetFd, fd, new MutableLong(offset), len);
     }
-}
\ No newline at end of file
+}
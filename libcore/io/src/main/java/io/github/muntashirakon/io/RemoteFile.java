@@ -2,6 +2,7 @@
 
 package io.github.muntashirakon.io;
 
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.system.ErrnoException;
@@ -11,17 +12,30 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
+import aosp.android.content.pm.ParceledListSlice;
 import aosp.android.content.pm.StringParceledListSlice;
 
 // Copyright 2022 John "topjohnwu" Wu
 // Copyright 2022 Muntashir Al-Islam
 class RemoteFile extends FileImpl<RemoteFile> {
+    // Attributes fetched along with the listing of a directory. The selinux context is rarely used.
+    private static final int LIST_ATTRIBUTES = FileStat.ATTR_ALL & ~FileStat.ATTR_SELINUX_CONTEXT;
 
     private final IFileSystemService fs;
+    // Snapshot of the attributes taken while listing the parent directory. It is discarded as soon as the file is
+    // altered through this object or its existence is checked again, but changes made elsewhere are not noticed.
+    @Nullable
+    private FileStat mStat;
 
     RemoteFile(IFileSystemService f, String path) {
         super(path);
@@ -33,6 +47,41 @@ class RemoteFile extends FileImpl<RemoteFile> {
         fs = f;
     }
 
+    private RemoteFile(IFileSystemService f, String parent, @NonNull FileStat stat) {
+        super(parent, stat.name);
+        fs = f;
+        mStat = stat;
+    }
+
+    @NonNull
+    @Override
+    public FileStat getFileStat(int attributeMask) {
+        FileStat stat = mStat;
+        if (stat != null && stat.has(attributeMask)) {
+            return stat;
+        }
+        try {
+            return fs.getFileStat(getPath(), attributeMask);
+        } catch (RemoteException e) {
+            return new FileStat(getName(), attributeMask, FileStat.FLAG_LSTAT_FAILED, 0, 0, 0, 0, 0, 0, 0, null, 0,
+                    0, 0);
+        }
+    }
+
+    @Nullable
+    private FileStat getStat(int attribute) {
+        FileStat stat = mStat;
+        if (stat == null || !stat.has(attribute)) {
+            return null;
+        }
+        if ((attribute & (FileStat.ATTR_MODE | FileStat.ATTR_UID_GID | FileStat.ATTR_TIMES)) != 0
+                && stat.isLstatFailed()) {
+            // Let the service report the error
+            return null;
+        }
+        return stat;
+    }
+
     @Override
     protected RemoteFile create(String path) {
         return new RemoteFile(fs, path);
@@ -84,11 +133,17 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean exists() {
+        // The caller is interested in the current state of the file
+        mStat = null;
         return checkAccess(OsConstants.F_OK);
     }
 
     @Override
     public boolean isDirectory() {
+        FileStat stat = getStat(FileStat.ATTR_TYPE);
+        if (stat != null) {
+            return stat.isDirectory();
+        }
         try {
             return fs.isDirectory(getPath());
         } catch (RemoteException e) {
@@ -98,6 +153,10 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean isFile() {
+        FileStat stat = getStat(FileStat.ATTR_TYPE);
+        if (stat != null) {
+            return stat.isFile();
+        }
         try {
             return fs.isFile(getPath());
         } catch (RemoteException e) {
@@ -107,6 +166,10 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public int getMode() throws ErrnoException {
+        FileStat stat = getStat(FileStat.ATTR_MODE);
+        if (stat != null) {
+            return stat.mode;
+        }
         try {
             return fs.getMode(getPath()).tryAndGetErrnoException();
         } catch (RemoteException e) {
@@ -116,6 +179,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean setMode(int mode) throws ErrnoException {
+        mStat = null;
         try {
             fs.setMode(getPath(), mode).checkErrnoException();
             return true;
@@ -126,6 +190,10 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public UidGidPair getUidGid() throws ErrnoException {
+        FileStat stat = getStat(FileStat.ATTR_UID_GID);
+        if (stat != null) {
+            return new UidGidPair(stat.uid, stat.gid);
+        }
         try {
             return fs.getUidGid(getPath()).tryAndGetErrnoException();
         } catch (RemoteException e) {
@@ -135,6 +203,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean setUidGid(int uid, int gid) throws ErrnoException {
+        mStat = null;
         try {
             fs.setUidGid(getPath(), uid, gid).checkErrnoException();
             return true;
@@ -146,6 +215,10 @@ class RemoteFile extends FileImpl<RemoteFile> {
     @Nullable
     @Override
     public String getSelinuxContext() {
+        FileStat stat = getStat(FileStat.ATTR_SELINUX_CONTEXT);
+        if (stat != null) {
+            return stat.selinuxContext;
+        }
         try {
             return fs.getSelinuxContext(getPath());
         } catch (RemoteException e) {
@@ -155,6 +228,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean restoreSelinuxContext() {
+        mStat = null;
         try {
             return fs.restoreSelinuxContext(getPath());
         } catch (RemoteException e) {
@@ -164,6 +238,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean setSelinuxContext(@NonNull String context) {
+        mStat = null;
         try {
             return fs.setSelinuxContext(getPath(), context);
         } catch (RemoteException e) {
@@ -227,6 +302,10 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public long lastModified() {
+        FileStat stat = getStat(FileStat.ATTR_LAST_MODIFIED);
+        if (stat != null) {
+            return stat.lastModified;
+        }
         try {
             return fs.lastModified(getPath());
         } catch (RemoteException e) {
@@ -236,6 +315,10 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public long creationTime() {
+        FileStat stat = getStat(FileStat.ATTR_TIMES);
+        if (stat != null) {
+            return stat.creationTime;
+        }
         try {
             return fs.creationTime(getPath()).tryAndGetErrnoException();
         } catch (RemoteException | ErrnoException e) {
@@ -245,6 +328,10 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public long lastAccess() {
+        FileStat stat = getStat(FileStat.ATTR_TIMES);
+        if (stat != null) {
+            return stat.lastAccess;
+        }
         try {
             return fs.lastAccess(getPath()).tryAndGetErrnoException();
         } catch (RemoteException | ErrnoException e) {
@@ -254,6 +341,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean setLastAccess(long millis) {
+        mStat = null;
         try {
             fs.setLastAccess(getPath(), millis).checkErrnoException();
             return true;
@@ -264,6 +352,10 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public long length() {
+        FileStat stat = getStat(FileStat.ATTR_LENGTH);
+        if (stat != null) {
+            return stat.length;
+        }
         try {
             return fs.length(getPath());
         } catch (RemoteException e) {
@@ -273,6 +365,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean createNewFile() throws IOException {
+        mStat = null;
         try {
             return fs.createNewFile(getPath()).tryAndGet();
         } catch (RemoteException e) {
@@ -282,6 +375,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean createNewLink(String existing) throws IOException {
+        mStat = null;
         try {
             return fs.createLink(getPath(), existing, false).tryAndGet();
         } catch (RemoteException e) {
@@ -291,6 +385,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean createNewSymlink(String target) throws IOException {
+        mStat = null;
         try {
             return fs.createLink(getPath(), target, true).tryAndGet();
         } catch (RemoteException e) {
@@ -300,6 +395,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean delete() {
+        mStat = null;
         try {
             return fs.delete(getPath());
         } catch (RemoteException e) {
@@ -322,8 +418,71 @@ class RemoteFile extends FileImpl<RemoteFile> {
         }
     }
 
+    @Nullable
+    @Override
+    public RemoteFile[] listFiles() {
+        List<RemoteFile> files = listFilesWithAttributes();
+        return files != null ? files.toArray(new RemoteFile[0]) : null;
+    }
+
+    @Nullable
+    @Override
+    public RemoteFile[] listFiles(@Nullable FilenameFilter filter) {
+        List<RemoteFile> files = listFilesWithAttributes();
+        if (files == null) {
+            return null;
+        }
+        List<RemoteFile> filteredFiles = new ArrayList<>(files.size());
+        for (RemoteFile file : files) {
+            if (filter == null || filter.accept(this, file.getName())) {
+                filteredFiles.add(file);
+            }
+        }
+        return filteredFiles.toArray(new RemoteFile[0]);
+    }
+
+    @Nullable
+    @Override
+    public RemoteFile[] listFiles(@Nullable FileFilter filter) {
+        List<RemoteFile> files = listFilesWithAttributes();
+        if (files == null) {
+            return null;
+        }
+        List<RemoteFile> filteredFiles = new ArrayList<>(files.size());
+        for (RemoteFile file : files) {
+            if (filter == null || filter.accept(file)) {
+                filteredFiles.add(file);
+            }
+        }
+        return filteredFiles.toArray(new RemoteFile[0]);
+    }
+
+    /**
+     * List the files along with their attributes in a single transaction so that querying the attributes of the
+     * children does not require any more transactions.
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private List<RemoteFile> listFilesWithAttributes() {
+        try {
+            ParceledListSlice<FileStat> list = fs.listWithAttributes(getPath(), LIST_ATTRIBUTES);
+            if (list == null) {
+                return null;
+            }
+            List<FileStat> stats = list.getList();
+            List<RemoteFile> files = new ArrayList<>(stats.size());
+            for (FileStat stat : stats) {
+                files.add(new RemoteFile(fs, getPath(), stat));
+            }
+            return files;
+        } catch (RemoteException e) {
+            return null;
+        }
+    }
+
     @Override
     public boolean mkdir() {
+        mStat = null;
         try {
             return fs.mkdir(getPath());
         } catch (RemoteException e) {
@@ -333,6 +492,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean mkdirs() {
+        mStat = null;
         try {
             return fs.mkdirs(getPath());
         } catch (RemoteException e) {
@@ -342,6 +502,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean renameTo(@NonNull File dest) {
+        mStat = null;
         try {
             return fs.renameTo(getPath(), dest.getAbsolutePath());
         } catch (RemoteException e) {
@@ -351,6 +512,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean setLastModified(long time) {
+        mStat = null;
         try {
             return fs.setLastModified(getPath(), time);
         } catch (RemoteException e) {
@@ -360,6 +522,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean setReadOnly() {
+        mStat = null;
         try {
             return fs.setReadOnly(getPath());
         } catch (RemoteException e) {
@@ -369,6 +532,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean setWritable(boolean writable, boolean ownerOnly) {
+        mStat = null;
         try {
             return fs.setWritable(getPath(), writable, ownerOnly);
         } catch (RemoteException e) {
@@ -378,6 +542,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean setReadable(boolean readable, boolean ownerOnly) {
+        mStat = null;
         try {
             return fs.setReadable(getPath(), readable, ownerOnly);
         } catch (RemoteException e) {
@@ -387,6 +552,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
 
     @Override
     public boolean setExecutable(boolean executable, boolean ownerOnly) {
+        mStat = null;
         try {
             return fs.setExecutable(getPath(), executable, ownerOnly);
         } catch (RemoteException e) {
@@ -439,6 +605,7 @@ class RemoteFile extends FileImpl<RemoteFile> {
     @NonNull
     @Override
     public FileOutputStream newOutputStream(boolean append) throws IOException {
+        mStat = null;
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
         try {
             fs.openWriteStream(getPath(), pipe[0], append).checkException();
@@ -450,4 +617,28 @@ class RemoteFile extends FileImpl<RemoteFile> {
         }
         return new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
     }
-}
\ No newline at end of file
+
+    @NonNull
+    @Override
+    public InputStream newSequentialInputStream() throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            try {
+                return SharedMemoryStreams.openInputStream(fs, getPath(), length());
+            } catch (IOException ignore) {
+                // Fallback to pipe
+            }
+        }
+        return newInputStream();
+    }
+
+    @NonNull
+    @Override
+    public OutputStream newSequentialOutputStream(boolean append) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            mStat = null;
+            // Small files are still written through a pipe
+            return SharedMemoryStreams.openOutputStream(fs, getPath(), newOutputStream(append));
+        }
+        return newOutputStream(append);
+    }
+}
@@ -23,6 +23,8 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 
+import androidx.annotation.Nullable;
+
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
@@ -35,6 +37,10 @@ import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static android.os.ParcelFileDescriptor.MODE_READ_ONLY;
 import static android.os.ParcelFileDescriptor.MODE_READ_WRITE;
@@ -46,14 +52,31 @@ import static android.system.OsConstants.O_WRONLY;
 class RemoteFileChannel extends FileChannel {
 
     private static final int PIPE_CAPACITY = 16 * 4096;
+    // The pipe is enlarged to this size if allowed so that several requests can be in flight
+    private static final int MAX_PIPE_CAPACITY = 1024 * 1024;
+    // Number of consecutive sequential reads or writes after which pipelining is enabled
+    private static final int SEQUENTIAL_ACCESS_THRESHOLD = 2;
+
+    private static final ExecutorService pipelineExecutor = Executors.newCachedThreadPool();
 
     private final IFileSystemService fs;
     private final int mode;
     private final Object fdLock = new Object();
+    private final Object pipelineLock = new Object();
 
     private final FileDescriptor read;
     private final FileDescriptor write;
     private final int handle;
+    private final int pipeCapacity;
+
+    // Pipelining, guarded by pipelineLock
+    @Nullable
+    private volatile ReadAhead readAhead;
+    @Nullable
+    private WriteBuffer writeBuffer;
+    private int sequentialReads;
+    private int sequentialWrites;
+    private boolean readAheadUnsupported;
 
     RemoteFileChannel(IFileSystemService fs, File file, int mode) throws IOException {
         this.fs = fs;
@@ -72,6 +95,8 @@ class RemoteFileChannel extends FileChannel {
             // have to make sure none of our I/O can block in all operations.
             read = Os.open(fifo.getPath(), O_RDONLY | O_NONBLOCK, 0);
             write = Os.open(fifo.getPath(), O_WRONLY | O_NONBLOCK, 0);
+            int capacity = FileUtils.setPipeSize(write, MAX_PIPE_CAPACITY);
+            pipeCapacity = capacity >= PIPE_CAPACITY ? capacity : PIPE_CAPACITY;
         } catch (RemoteException | ErrnoException e) {
             throw new IOException(e);
         } finally {
@@ -146,7 +171,22 @@ class RemoteFileChannel extends FileChannel {
         ensureOpen();
         if (!readable())
             throw new NonReadableChannelException();
-        return read0(dst, -1);
+        synchronized (pipelineLock) {
+            flushWriteBuffer();
+            sequentialWrites = 0;
+            ReadAhead ra = getReadAhead();
+            if (ra != null) {
+                try {
+                    return ra.read(dst);
+                } finally {
+                    if (ra.isFinished()) {
+                        // Let the next read find out whether the file has grown
+                        stopReadAhead();
+                    }
+                }
+            }
+            return read0(dst, -1);
+        }
     }
 
     @Override
@@ -159,7 +199,7 @@ class RemoteFileChannel extends FileChannel {
         int sz = 0;
         // Real scattered I/O is too complicated, let's cheat
         for (int i = offset; i < offset + length; ++i) {
-            sz += read0(dsts[i], -1);
+            sz += read(dsts[i]);
         }
         return sz;
     }
@@ -195,7 +235,15 @@ class RemoteFileChannel extends FileChannel {
         ensureOpen();
         if (!writable())
             throw new NonWritableChannelException();
-        return write0(src, -1);
+        synchronized (pipelineLock) {
+            stopReadAhead();
+            sequentialReads = 0;
+            WriteBuffer wb = getWriteBuffer();
+            if (wb != null) {
+                return wb.write(src);
+            }
+            return write0(src, -1);
+        }
     }
 
     @Override
@@ -216,6 +264,7 @@ class RemoteFileChannel extends FileChannel {
     @Override
     public long position() throws IOException {
         ensureOpen();
+        stopPipelining();
         try {
             return fs.lseek(handle, 0, OsConstants.SEEK_CUR).tryAndGet();
         } catch (RemoteException e) {
@@ -226,6 +275,7 @@ class RemoteFileChannel extends FileChannel {
     @Override
     public RemoteFileChannel position(long newPosition) throws IOException {
         ensureOpen();
+        stopPipelining();
         if (newPosition < 0)
             throw new IllegalArgumentException();
         try {
@@ -239,6 +289,7 @@ class RemoteFileChannel extends FileChannel {
     @Override
     public long size() throws IOException {
         ensureOpen();
+        flushPipelinedWrites();
         try {
             return fs.size(handle).tryAndGet();
         } catch (RemoteException e) {
@@ -249,6 +300,7 @@ class RemoteFileChannel extends FileChannel {
     @Override
     public RemoteFileChannel truncate(long size) throws IOException {
         ensureOpen();
+        stopPipelining();
         if (size < 0)
             throw new IllegalArgumentException("Negative size");
         if (!writable())
@@ -264,6 +316,7 @@ class RemoteFileChannel extends FileChannel {
     @Override
     public void force(boolean metaData) throws IOException {
         ensureOpen();
+        stopPipelining();
         try {
             fs.sync(handle, metaData).checkException();
         } catch (RemoteException e) {
@@ -275,6 +328,7 @@ class RemoteFileChannel extends FileChannel {
     public long transferTo(long position, long count, WritableByteChannel target)
             throws IOException {
         ensureOpen();
+        stopPipelining();
         if (!target.isOpen())
             throw new ClosedChannelException();
         if (!readable())
@@ -282,6 +336,15 @@ class RemoteFileChannel extends FileChannel {
         if ((position < 0) || (count < 0))
             throw new IllegalArgumentException();
 
+        if (target instanceof RemoteFileChannel) {
+            RemoteFileChannel remoteTarget = (RemoteFileChannel) target;
+            if (remoteTarget.fs.asBinder() == fs.asBinder()) {
+                long bytes = transferInRemote(position, count, remoteTarget);
+                if (bytes >= 0)
+                    return bytes;
+            }
+        }
+
         ByteBuffer b = ByteBuffer.allocateDirect(PIPE_CAPACITY);
         long bytes = 0;
         while (count > bytes) {
@@ -298,9 +361,41 @@ class RemoteFileChannel extends FileChannel {
         return bytes;
     }
 
+    /**
+     * Copy the bytes between two files opened by the same remote process without transferring them to this process.
+     *
+     * @return Number of bytes copied or {@code -1} if the remote process cannot copy between the files
+     */
+    private long transferInRemote(long position, long count, RemoteFileChannel target) throws IOException {
+        if (!target.writable())
+            throw new NonWritableChannelException();
+        target.stopPipelining();
+        long bytes = 0;
+        try {
+            while (count > bytes) {
+                long len;
+                try {
+                    len = fs.transfer(handle, position + bytes, count - bytes, target.handle)
+                            .tryAndGetErrnoException();
+                } catch (ErrnoException e) {
+                    if (bytes == 0 && (e.errno == OsConstants.EINVAL || e.errno == OsConstants.ENOSYS))
+                        return -1;
+                    throw new IOException(e);
+                }
+                if (len <= 0)
+                    break;
+                bytes += len;
+            }
+        } catch (RemoteException e) {
+            throw new IOException(e);
+        }
+        return bytes;
+    }
+
     @Override
     public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
         ensureOpen();
+        stopPipelining();
         if (!src.isOpen())
             throw new ClosedChannelException();
         if (!writable())
@@ -329,6 +424,7 @@ class RemoteFileChannel extends FileChannel {
         if (position < 0)
             throw new IllegalArgumentException("Negative position");
         ensureOpen();
+        stopPipelining();
         return read0(dst, position);
     }
 
@@ -337,16 +433,327 @@ class RemoteFileChannel extends FileChannel {
         if (position < 0)
             throw new IllegalArgumentException("Negative position");
         ensureOpen();
+        stopPipelining();
         return write0(src, position);
     }
 
     @Override
-    protected void implCloseChannel() {
+    protected void implCloseChannel() throws IOException {
+        IOException error = null;
+        // A reader may be waiting for the read-ahead while holding the lock
+        ReadAhead ra = readAhead;
+        if (ra != null)
+            ra.cancel();
+        synchronized (pipelineLock) {
+            try {
+                stopPipelining();
+            } catch (IOException e) {
+                // Pending writes could not be written
+                error = e;
+            }
+        }
         try { fs.close(handle); } catch (RemoteException ignored) {}
         synchronized (fdLock) {
             try { Os.close(read); } catch (ErrnoException ignored) {}
             try { Os.close(write); } catch (ErrnoException ignored) {}
         }
+        if (error != null)
+            throw error;
+    }
+
+    // Pipelining
+
+    private void stopPipelining() throws IOException {
+        synchronized (pipelineLock) {
+            sequentialReads = 0;
+            sequentialWrites = 0;
+            try {
+                flushWriteBuffer();
+            } finally {
+                stopReadAhead();
+            }
+        }
+    }
+
+    private void flushPipelinedWrites() throws IOException {
+        synchronized (pipelineLock) {
+            flushWriteBuffer();
+        }
+    }
+
+    @Nullable
+    private ReadAhead getReadAhead() {
+        if (readAhead != null)
+            return readAhead;
+        if (readAheadUnsupported || ++sequentialReads < SEQUENTIAL_ACCESS_THRESHOLD)
+            return null;
+        // Bytes read ahead but not consumed must be given back by seeking backwards
+        try {
+            fs.lseek(handle, 0, OsConstants.SEEK_CUR).checkException();
+        } catch (IOException | RemoteException e) {
+            readAheadUnsupported = true;
+            return null;
+        }
+        readAhead = new ReadAhead();
+        return readAhead;
+    }
+
+    private void stopReadAhead() throws IOException {
+        ReadAhead ra = readAhead;
+        if (ra == null)
+            return;
+        readAhead = null;
+        int unconsumed = ra.stop();
+        if (unconsumed > 0) {
+            try {
+                fs.lseek(handle, -unconsumed, OsConstants.SEEK_CUR).checkException();
+            } catch (RemoteException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Nullable
+    private WriteBuffer getWriteBuffer() {
+        if (writeBuffer == null && ++sequentialWrites >= SEQUENTIAL_ACCESS_THRESHOLD)
+            writeBuffer = new WriteBuffer();
+        return writeBuffer;
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        WriteBuffer wb = writeBuffer;
+        if (wb == null)
+            return;
+        writeBuffer = null;
+        wb.flush();
+    }
+
+    private static void awaitUninterruptibly(Future<?> future) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read ahead of the consumer: the requests are issued from a background thread as long as there is room in the
+     * pipe so that several requests are in flight while the consumer drains the pipe. The size of the requests grows
+     * as the consumer keeps reading sequentially.
+     */
+    private class ReadAhead implements Runnable {
+        private final int maxWindow = Math.max(pipeCapacity / 4, PIPE_CAPACITY);
+        private final Future<?> future;
+
+        // Guarded by this
+        private int window = PIPE_CAPACITY;
+        // Bytes transferred to the pipe by the remote process but not consumed yet
+        private int pipeBytes;
+        private boolean eof;
+        private boolean stopped;
+        @Nullable
+        private IOException error;
+
+        ReadAhead() {
+            future = pipelineExecutor.submit(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int len;
+                    synchronized (this) {
+                        // Wait until there is room for a reasonably sized request
+                        while (!stopped && pipeCapacity - pipeBytes < Math.min(window, PIPE_CAPACITY))
+                            wait();
+                        if (stopped)
+                            return;
+                        len = Math.min(window, pipeCapacity - pipeBytes);
+                    }
+                    final int transferred;
+                    try {
+                        transferred = fs.pread(handle, len, -1).tryAndGetErrnoException();
+                    } catch (ErrnoException e) {
+                        if (e.errno != OsConstants.EAGAIN)
+                            throw e;
+                        // The pipe is full as partially filled pages take up whole slots
+                        synchronized (this) {
+                            int bytes = pipeBytes;
+                            while (!stopped && bytes > 0 && pipeBytes == bytes)
+                                wait();
+                        }
+                        continue;
+                    }
+                    synchronized (this) {
+                        if (transferred == 0) {
+                            eof = true;
+                            notifyAll();
+                            return;
+                        }
+                        pipeBytes += transferred;
+                        window = Math.min(window * 2, maxWindow);
+                        notifyAll();
+                    }
+                }
+            } catch (ErrnoException | RemoteException | InterruptedException e) {
+                synchronized (this) {
+                    error = new IOException(e);
+                    notifyAll();
+                }
+            }
+        }
+
+        int read(ByteBuffer dst) throws IOException {
+            final int initial = dst.position();
+            while (dst.hasRemaining()) {
+                final int len;
+                synchronized (this) {
+                    try {
+                        while (pipeBytes == 0 && !eof && error == null && !stopped)
+                            wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return -1;
+                    }
+                    if (stopped)
+                        return -1;
+                    if (pipeBytes == 0) {
+                        if (error != null)
+                            throw error;
+                        // End of file
+                        break;
+                    }
+                    len = Math.min(dst.remaining(), pipeBytes);
+                }
+                synchronized (fdLock) {
+                    if (!isOpen())
+                        return -1;
+                    readFully(dst, len);
+                }
+                synchronized (this) {
+                    pipeBytes -= len;
+                    notifyAll();
+                }
+            }
+            return dst.position() - initial;
+        }
+
+        /**
+         * Whether the end of file is reached or an error has occurred, and all the bytes read ahead are consumed.
+         */
+        synchronized boolean isFinished() {
+            return (eof || error != null) && pipeBytes == 0;
+        }
+
+        /**
+         * Stop reading ahead without waiting for the request in flight, and wake up the reader. Used when the channel
+         * is being closed.
+         */
+        synchronized void cancel() {
+            stopped = true;
+            notifyAll();
+        }
+
+        /**
+         * Stop reading ahead and discard the bytes that are not consumed yet.
+         *
+         * @return Number of bytes discarded
+         */
+        int stop() throws IOException {
+            synchronized (this) {
+                stopped = true;
+                notifyAll();
+            }
+            // Wait for the request in flight, if any
+            awaitUninterruptibly(future);
+            int unconsumed;
+            synchronized (this) {
+                unconsumed = pipeBytes;
+                pipeBytes = 0;
+            }
+            ByteBuffer b = ByteBuffer.allocateDirect(Math.min(unconsumed, PIPE_CAPACITY));
+            synchronized (fdLock) {
+                for (int remaining = unconsumed; remaining > 0; remaining -= b.position()) {
+                    b.clear();
+                    readFully(b, Math.min(remaining, b.capacity()));
+                }
+            }
+            return unconsumed;
+        }
+    }
+
+    /**
+     * Read exactly len bytes that are already available in the pipe.
+     */
+    private void readFully(ByteBuffer dst, int len) throws IOException {
+        final int limit = dst.limit();
+        dst.limit(dst.position() + len);
+        try {
+            for (int sz = 0; sz < len;) {
+                sz += Os.read(read, dst);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Coalesce small writes into large requests. The buffer grows as the writer keeps writing sequentially. Like any
+     * buffered writer, an error is reported by the write that fills the buffer or by the flush.
+     */
+    private class WriteBuffer {
+        private final int maxCapacity = Math.max(pipeCapacity, PIPE_CAPACITY);
+
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(PIPE_CAPACITY);
+
+        int write(ByteBuffer src) throws IOException {
+            final int remaining = src.remaining();
+            while (src.hasRemaining()) {
+                int len = Math.min(src.remaining(), buffer.remaining());
+                int limit = src.limit();
+                src.limit(src.position() + len);
+                buffer.put(src);
+                src.limit(limit);
+                if (!buffer.hasRemaining()) {
+                    push();
+                    if (buffer.capacity() < maxCapacity)
+                        buffer = ByteBuffer.allocateDirect(Math.min(buffer.capacity() * 2, maxCapacity));
+                }
+            }
+            return remaining;
+        }
+
+        void flush() throws IOException {
+            if (buffer.position() > 0)
+                push();
+        }
+
+        private void push() throws IOException {
+            buffer.flip();
+            try {
+                write0(buffer, -1);
+            } finally {
+                // Nothing is written twice, even after an error
+                buffer.clear();
+            }
+        }
     }
 
     // Unsupported operations
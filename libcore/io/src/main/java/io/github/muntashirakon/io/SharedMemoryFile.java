@@ -0,0 +1,81 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io;
+
+import android.os.Build;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A file opened in the remote process whose data is transferred through a shared memory region mapped by both
+ * processes instead of a pipe. The client only sends the offsets and lengths within the region.
+ */
+@RequiresApi(Build.VERSION_CODES.O_MR1)
+class SharedMemoryFile extends OpenFile {
+    static final String ARG_SHARED_MEMORY = "shm";
+
+    @NonNull
+    private final SharedMemory sharedMemory;
+    private ByteBuffer mapping;
+
+    SharedMemoryFile(@NonNull SharedMemory sharedMemory) throws ErrnoException {
+        this.sharedMemory = sharedMemory;
+        mapping = sharedMemory.mapReadWrite();
+    }
+
+    /**
+     * Read from the current position of the file into the region.
+     *
+     * @return Number of bytes read, less than {@code len} only at the end of file
+     */
+    synchronized int read(int offset, int len) throws ErrnoException, IOException {
+        ByteBuffer dst = getRegion(offset, len);
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int sz = Os.read(fd, dst);
+            if (sz == 0)
+                break;
+            total += sz;
+        }
+        return total;
+    }
+
+    /**
+     * Write from the region to the current position of the file.
+     */
+    synchronized void write(int offset, int len) throws ErrnoException, IOException {
+        ByteBuffer src = getRegion(offset, len);
+        while (src.hasRemaining()) {
+            Os.write(fd, src);
+        }
+    }
+
+    private ByteBuffer getRegion(int offset, int len) throws IOException {
+        if (fd == null || mapping == null)
+            throw new ClosedChannelException();
+        if (offset < 0 || len < 0 || offset > mapping.capacity() - len)
+            throw new IndexOutOfBoundsException("Invalid region: offset " + offset + ", length " + len);
+        ByteBuffer b = mapping.duplicate();
+        b.limit(offset + len);
+        b.position(offset);
+        return b;
+    }
+
+    @Override
+    synchronized public void close() {
+        super.close();
+        if (mapping != null) {
+            SharedMemory.unmap(mapping);
+            mapping = null;
+        }
+        sharedMemory.close();
+    }
+}
@@ -0,0 +1,556 @@
+// SPDX-License-Identifier: GPL-3.0-or-later
+
+package io.github.muntashirakon.io;
+
+import static android.system.OsConstants.O_APPEND;
+import static android.system.OsConstants.O_CREAT;
+import static android.system.OsConstants.O_RDONLY;
+import static android.system.OsConstants.O_TRUNC;
+import static android.system.OsConstants.O_WRONLY;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sequential streams over a file in the remote process backed by a ring of slots in a shared memory region. A worker
+ * thread asks the remote process to fill (or drain) one slot at a time while the caller consumes (or produces) the
+ * others, so the binder calls only carry the offset and the length of a slot and the data is never copied through a
+ * pipe or a parcel.
+ */
+@RequiresApi(Build.VERSION_CODES.O_MR1)
+final class SharedMemoryStreams {
+    private static final int SLOT_COUNT = 4;
+    private static final int MIN_SLOT_SIZE = 4096;
+    private static final int MAX_SLOT_SIZE = 1024 * 1024;  // 1 MiB
+    // Marks a slot that can be filled by the producer
+    private static final int FREE = -1;
+
+    // Writes up to this size are buffered and sent through a pipe
+    private static final int PIPE_WRITE_LIMIT = 64 * 1024;  // 64 KiB
+
+    private static final ExecutorService workerPool = Executors.newCachedThreadPool();
+
+    @NonNull
+    static InputStream openInputStream(@NonNull IFileSystemService fs, @NonNull String path, long length)
+            throws IOException {
+        // Do not map more than necessary for small files
+        long size = Math.min(Math.max(length, 0) / SLOT_COUNT + 1, MAX_SLOT_SIZE);
+        int slotSize = (int) Math.max((size + MIN_SLOT_SIZE - 1) / MIN_SLOT_SIZE * MIN_SLOT_SIZE, MIN_SLOT_SIZE);
+        SharedMemory sharedMemory = create(slotSize);
+        int handle = open(fs, path, O_RDONLY, sharedMemory);
+        try {
+            return new Input(fs, handle, sharedMemory, slotSize);
+        } catch (ErrnoException e) {
+            abort(fs, handle, sharedMemory);
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Open a stream that writes small files through the given pipe, and switches to the shared memory once more than
+     * {@link #PIPE_WRITE_LIMIT} bytes are written. So, neither the region nor the worker is created for the small
+     * files, which are the majority of the writes. The pipe must already be open so that the file is created or
+     * truncated, and any error is reported, right away.
+     */
+    @NonNull
+    static OutputStream openOutputStream(@NonNull IFileSystemService fs, @NonNull String path,
+                                         @NonNull OutputStream pipe) {
+        return new DeferredOutput(fs, path, pipe);
+    }
+
+    @NonNull
+    private static OutputStream openSharedOutputStream(@NonNull IFileSystemService fs, @NonNull String path,
+                                                       boolean append) throws IOException {
+        SharedMemory sharedMemory = create(MAX_SLOT_SIZE);
+        int mode = O_CREAT | O_WRONLY | (append ? O_APPEND : O_TRUNC);
+        int handle = open(fs, path, mode, sharedMemory);
+        try {
+            return new Output(fs, handle, sharedMemory, MAX_SLOT_SIZE);
+        } catch (ErrnoException e) {
+            abort(fs, handle, sharedMemory);
+            throw new IOException(e);
+        }
+    }
+
+    @NonNull
+    private static SharedMemory create(int slotSize) throws IOException {
+        try {
+            return SharedMemory.create("am-io", slotSize * SLOT_COUNT);
+        } catch (ErrnoException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static int open(@NonNull IFileSystemService fs, @NonNull String path, int mode,
+                            @NonNull SharedMemory sharedMemory) throws IOException {
+        Bundle args = new Bundle();
+        args.putParcelable(SharedMemoryFile.ARG_SHARED_MEMORY, sharedMemory);
+        try {
+            return fs.openSharedMemory(path, mode, args).tryAndGet();
+        } catch (RemoteException e) {
+            sharedMemory.close();
+            throw new IOException(e);
+        } catch (IOException | RuntimeException e) {
+            sharedMemory.close();
+            throw e;
+        }
+    }
+
+    private static void abort(@NonNull IFileSystemService fs, int handle, @NonNull SharedMemory sharedMemory) {
+        try {
+            fs.close(handle);
+        } catch (RemoteException ignored) {
+        }
+        sharedMemory.close();
+    }
+
+    /**
+     * The shared memory region divided into {@link #SLOT_COUNT} slots. It is also the lock guarding the slots.
+     */
+    private static class Region {
+        @NonNull
+        final IFileSystemService fs;
+        final int handle;
+        final int slotSize;
+        // Length of data in each slot or FREE
+        final int[] slots = new int[SLOT_COUNT];
+        @NonNull
+        private final SharedMemory sharedMemory;
+        @NonNull
+        private final ByteBuffer mapping;
+        @Nullable
+        IOException error;
+        boolean closed;
+        private boolean workerFinished;
+
+        Region(@NonNull IFileSystemService fs, int handle, @NonNull SharedMemory sharedMemory, int slotSize)
+                throws ErrnoException {
+            this.fs = fs;
+            this.handle = handle;
+            this.sharedMemory = sharedMemory;
+            this.slotSize = slotSize;
+            mapping = sharedMemory.mapReadWrite();
+            Arrays.fill(slots, FREE);
+        }
+
+        void startWorker(@NonNull Worker worker) {
+            workerPool.execute(() -> {
+                try {
+                    worker.work();
+                } catch (IOException e) {
+                    setError(e);
+                } catch (RemoteException | RuntimeException e) {
+                    setError(new IOException(e));
+                } finally {
+                    synchronized (this) {
+                        workerFinished = true;
+                        notifyAll();
+                    }
+                }
+            });
+        }
+
+        @NonNull
+        ByteBuffer getSlot(int slot, int position, int length) {
+            ByteBuffer b = mapping.duplicate();
+            int start = slot * slotSize + position;
+            b.limit(start + length);
+            b.position(start);
+            return b;
+        }
+
+        synchronized void setError(@NonNull IOException e) {
+            if (error == null) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        void ensureOpen() throws IOException {
+            if (closed) throw new IOException("Stream closed");
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                notifyAll();
+                boolean interrupted = false;
+                // The worker may be in the middle of a transaction using the region
+                while (!workerFinished) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            try {
+                fs.close(handle);
+            } catch (RemoteException ignored) {
+            }
+            SharedMemory.unmap(mapping);
+            sharedMemory.close();
+        }
+    }
+
+    private interface Worker {
+        /**
+         * Fill or drain the slots in order in the remote process until the stream is finished or closed.
+         */
+        void work() throws IOException, RemoteException;
+    }
+
+    private static class Input extends InputStream {
+        @NonNull
+        private final Region region;
+        private int current;
+        private int position;
+
+        Input(@NonNull IFileSystemService fs, int handle, @NonNull SharedMemory sharedMemory, int slotSize)
+                throws ErrnoException {
+            region = new Region(fs, handle, sharedMemory, slotSize);
+            region.startWorker(this::fill);
+        }
+
+        private void fill() throws IOException, RemoteException {
+            Region r = region;
+            int slot = 0;
+            while (true) {
+                synchronized (r) {
+                    while (r.slots[slot] != FREE && !r.closed) {
+                        r.await();
+                    }
+                    if (r.closed) return;
+                }
+                int len = r.fs.readShared(r.handle, slot * r.slotSize, r.slotSize).tryAndGet();
+                synchronized (r) {
+                    r.slots[slot] = len;
+                    r.notifyAll();
+                }
+                if (len < r.slotSize) {
+                    // End of file
+                    return;
+                }
+                slot = (slot + 1) % SLOT_COUNT;
+            }
+        }
+
+        /**
+         * Wait until the current slot has data.
+         *
+         * @return Number of bytes that can be read from the current slot, {@code -1} at the end of file
+         */
+        private int awaitData() throws IOException {
+            Region r = region;
+            synchronized (r) {
+                while (true) {
+                    r.ensureOpen();
+                    int len = r.slots[current];
+                    if (len != FREE) {
+                        if (position < len) {
+                            return len - position;
+                        }
+                        if (len < r.slotSize) {
+                            return -1;
+                        }
+                        // Consumed, hand it back to the worker
+                        r.slots[current] = FREE;
+                        r.notifyAll();
+                        current = (current + 1) % SLOT_COUNT;
+                        position = 0;
+                        continue;
+                    }
+                    if (r.error != null) throw r.error;
+                    r.await();
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int readCount = read(b, 0, 1);
+            return readCount == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) return 0;
+            int available = awaitData();
+            if (available == -1) return -1;
+            int sz = Math.min(available, len);
+            region.getSlot(current, position, sz).get(b, off, sz);
+            position += sz;
+            return sz;
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized (region) {
+                region.ensureOpen();
+                int len = region.slots[current];
+                return len == FREE ? 0 : Math.max(len - position, 0);
+            }
+        }
+
+        @Override
+        public void close() {
+            region.close();
+        }
+    }
+
+    private static class Output extends OutputStream {
+        @NonNull
+        private final Region region;
+        private int current;
+        private int position;
+        private boolean finishing;
+
+        Output(@NonNull IFileSystemService fs, int handle, @NonNull SharedMemory sharedMemory, int slotSize)
+                throws ErrnoException {
+            region = new Region(fs, handle, sharedMemory, slotSize);
+            region.startWorker(this::drain);
+        }
+
+        private void drain() throws IOException, RemoteException {
+            Region r = region;
+            int slot = 0;
+            while (true) {
+                int len;
+                synchronized (r) {
+                    while (r.slots[slot] == FREE && !finishing && !r.closed) {
+                        r.await();
+                    }
+                    if (r.slots[slot] == FREE || r.closed) return;
+                    len = r.slots[slot];
+                }
+                r.fs.writeShared(r.handle, slot * r.slotSize, len).checkException();
+                synchronized (r) {
+                    r.slots[slot] = FREE;
+                    r.notifyAll();
+                }
+                slot = (slot + 1) % SLOT_COUNT;
+            }
+        }
+
+        /**
+         * Wait until the current slot can be filled. Must be called with the region locked.
+         */
+        private void awaitFreeSlot() throws IOException {
+            Region r = region;
+            while (true) {
+                r.ensureOpen();
+                if (r.error != null) throw r.error;
+                if (r.slots[current] == FREE) return;
+                r.await();
+            }
+        }
+
+        /**
+         * Hand the current slot over to the worker. Must be called with the region locked.
+         */
+        private void submit() {
+            region.slots[current] = position;
+            region.notifyAll();
+            current = (current + 1) % SLOT_COUNT;
+            position = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            while (len > 0) {
+                synchronized (region) {
+                    awaitFreeSlot();
+                }
+                // The current slot belongs to this thread until it is submitted
+                int sz = Math.min(region.slotSize - position, len);
+                region.getSlot(current, position, sz).put(b, off, sz);
+                position += sz;
+                off += sz;
+                len -= sz;
+                if (position == region.slotSize) {
+                    synchronized (region) {
+                        submit();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            Region r = region;
+            synchronized (r) {
+                if (position > 0) {
+                    awaitFreeSlot();
+                    submit();
+                }
+                while (true) {
+                    r.ensureOpen();
+                    if (r.error != null) throw r.error;
+                    boolean pending = false;
+                    for (int len : r.slots) {
+                        if (len != FREE) {
+                            pending = true;
+                            break;
+                        }
+                    }
+                    if (!pending) return;
+                    r.await();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (region) {
+                if (region.closed) return;
+            }
+            try {
+                flush();
+            } finally {
+                synchronized (region) {
+                    finishing = true;
+                    region.notifyAll();
+                }
+                region.close();
+            }
+        }
+    }
+
+    /**
+     * Buffer the beginning of the file until it is known whether the file is small enough for a pipe. The file is
+     * opened through the pipe beforehand, and only the transport is chosen once the stream is flushed, closed or more
+     * than {@link #PIPE_WRITE_LIMIT} bytes are written.
+     */
+    private static class DeferredOutput extends OutputStream {
+        @NonNull
+        private final IFileSystemService fs;
+        @NonNull
+        private final String path;
+        @NonNull
+        private final OutputStream pipe;
+        @Nullable
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        @Nullable
+        private OutputStream out;
+        private boolean closed;
+
+        DeferredOutput(@NonNull IFileSystemService fs, @NonNull String path, @NonNull OutputStream pipe) {
+            this.fs = fs;
+            this.path = path;
+            this.pipe = pipe;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (closed) throw new IOException("Stream closed");
+            if (out == null) {
+                if (Objects.requireNonNull(buffer).size() + len <= PIPE_WRITE_LIMIT) {
+                    buffer.write(b, off, len);
+                    return;
+                }
+                openStream(true);
+            }
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            if (out == null) {
+                openStream(false);
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            if (out == null) {
+                openStream(false);
+            }
+            out.close();
+        }
+
+        private void openStream(boolean large) throws IOException {
+            OutputStream os = null;
+            if (large) {
+                try {
+                    // The file has already been created or truncated by the pipe, and nothing is written to it yet
+                    os = openSharedOutputStream(fs, path, true);
+                } catch (IOException ignore) {
+                    // Fallback to pipe
+                }
+            }
+            if (os == null) {
+                os = pipe;
+            } else {
+                try {
+                    pipe.close();
+                } catch (IOException e) {
+                    os.close();
+                    throw e;
+                }
+            }
+            try {
+                Objects.requireNonNull(buffer).writeTo(os);
+            } catch (IOException e) {
+                os.close();
+                throw e;
+            }
+            buffer = null;
+            out = os;
+        }
+    }
+}